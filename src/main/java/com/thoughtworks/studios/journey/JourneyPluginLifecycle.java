@@ -0,0 +1,60 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey;
+
+import org.apache.commons.configuration.Configuration;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.server.plugins.Injectable;
+import org.neo4j.server.plugins.PluginLifecycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Starts replaying ingest logs left behind by the last run when the server starts, and stops ingestion
+ * writers of all namespaces when the server stops. The server stops its plugins before the database, so
+ * events accepted asynchronously (including those held in a reorder window) still get written.
+ */
+public class JourneyPluginLifecycle implements PluginLifecycle {
+    private static final Logger logger = LoggerFactory.getLogger(JourneyPluginLifecycle.class);
+
+    @Override
+    public Collection<Injectable<?>> start(GraphDatabaseService graphDatabaseService, Configuration config) {
+        try {
+            JourneyService.replayLogs(graphDatabaseService);
+        } catch (IOException e) {
+            // the log of a namespace is opened again on its first write
+            logger.error("Failed to open ingest logs for replay", e);
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void stop() {
+        try {
+            JourneyService.shutdownWriters();
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while shutting down ingestion writers", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -21,14 +21,27 @@ package com.thoughtworks.studios.journey;
 import com.thoughtworks.studios.journey.cspmining.*;
 import com.thoughtworks.studios.journey.importexport.DataImportExport;
 import com.thoughtworks.studios.journey.importexport.Reporter;
+import com.thoughtworks.studios.journey.ingestion.EventsWriter;
+import com.thoughtworks.studios.journey.ingestion.BinaryEventsReader;
+import com.thoughtworks.studios.journey.ingestion.BackgroundWriter;
+import com.thoughtworks.studios.journey.ingestion.GroupCommitIngestor;
+import com.thoughtworks.studios.journey.ingestion.IngestLog;
+import com.thoughtworks.studios.journey.ingestion.JourneySealer;
+import com.thoughtworks.studios.journey.ingestion.NamespaceLocks;
+import com.thoughtworks.studios.journey.ingestion.PartialWriteException;
+import com.thoughtworks.studios.journey.ingestion.PartitionedIngestor;
+import com.thoughtworks.studios.journey.ingestion.ShutdownWithDatabase;
+import com.thoughtworks.studios.journey.ingestion.WriteRetry;
 import com.thoughtworks.studios.journey.jql.DataQuery;
 import com.thoughtworks.studios.journey.jql.DataQueryResult;
 import com.thoughtworks.studios.journey.jql.JourneyQuery;
 import com.thoughtworks.studios.journey.jql.Stop;
 import com.thoughtworks.studios.journey.models.*;
+import com.thoughtworks.studios.journey.utils.AdaptiveBatchSize;
 import com.thoughtworks.studios.journey.utils.BatchTransaction;
 import com.thoughtworks.studios.journey.utils.GraphDbUtils;
 import com.thoughtworks.studios.journey.utils.JSONUtils;
+import com.thoughtworks.studios.journey.utils.MapReader;
 import org.apache.commons.lang.StringUtils;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.index.Index;
@@ -46,7 +59,6 @@ import java.io.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import static com.thoughtworks.studios.journey.utils.JSONUtils.*;
 import static com.thoughtworks.studios.journey.utils.MapUtils.mapOf;
@@ -55,6 +67,8 @@ import static com.thoughtworks.studios.journey.utils.MapUtils.mapOf;
 public class JourneyService {
 
     private static final Logger logger = LoggerFactory.getLogger(JourneyService.class);
+    private static final int STREAM_COMMIT_SIZE = Integer.getInteger("journey.ingest.stream_commit_size", 1000);
+    private static final int IDENTIFY_BATCH_SIZE = Integer.getInteger("journey.identify.batch_size", 1000);
 
     private GraphDatabaseService graphDB;
 
@@ -83,11 +97,11 @@ public class JourneyService {
     @POST
     @Produces(MediaType.TEXT_PLAIN)
     @Path("/{ns}/setup_schema")
-    public Response setupSchema(@PathParam("ns") String ns) {
-        Lock writingLock = getWritingLock(ns);
+    public Response setupSchema(@PathParam("ns") String ns) throws IOException {
+        Lock writingLock = writeLocks(ns).exclusive();
         writingLock.lock();
         try {
-            Application app = new Application(graphDB, ns);
+            Application app = application(ns);
             try (Transaction tx = graphDB.beginTx()) {
                 app.setupSchema();
                 tx.success();
@@ -108,7 +122,7 @@ public class JourneyService {
     @Produces(MediaType.TEXT_PLAIN)
     @Path("/{ns}/export")
     public Response export(@PathParam("ns") String ns) {
-        final Application app = new Application(graphDB, ns);
+        final Application app = application(ns);
         StreamingOutput stream = new StreamingOutput() {
             @Override
             public void write(OutputStream output) throws IOException, WebApplicationException {
@@ -134,12 +148,12 @@ public class JourneyService {
     @Produces(MediaType.TEXT_PLAIN)
     @Path("/{ns}/import")
     public Response imports(@PathParam("ns") String ns, InputStream stream) throws IOException {
-        Lock writingLock = getWritingLock(ns);
+        Lock writingLock = writeLocks(ns).exclusive();
         writingLock.lock();
         try {
-            final Application app = new Application(graphDB, ns);
+            final Application app = application(ns);
             BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(stream));
-            try (BatchTransaction tx = new BatchTransaction(graphDB, 1000)) {
+            try (BatchTransaction tx = new BatchTransaction(graphDB, AdaptiveBatchSize.forOperation(ns, "import", 1000))) {
                 DataImportExport importer = new DataImportExport(app, new Reporter() {
                     @Override
                     public void report() {
@@ -149,6 +163,7 @@ public class JourneyService {
                 importer.importFrom(bufferedReader);
             }
         } finally {
+            ApplicationRegistry.getInstance().reset(ns);
             writingLock.unlock();
         }
         return Response.status(Response.Status.OK).build();
@@ -163,11 +178,11 @@ public class JourneyService {
     @POST
     @Produces(MediaType.TEXT_PLAIN)
     @Path("/{ns}/migrate")
-    public Response migrate(@PathParam("ns") String ns) {
-        Lock writingLock = getWritingLock(ns);
+    public Response migrate(@PathParam("ns") String ns) throws IOException {
+        Lock writingLock = writeLocks(ns).exclusive();
         writingLock.lock();
         try {
-            Application app = new Application(graphDB, ns);
+            Application app = application(ns);
             ArrayList<Long> ids = new ArrayList<>();
             try (Transaction ignored = graphDB.beginTx()) {
                 ResourceIterator<Node> nodes = graphDB.findNodes(app.journeys().getLabel());
@@ -177,7 +192,7 @@ public class JourneyService {
                 }
             }
 
-            try (BatchTransaction tx = new BatchTransaction(graphDB, 5000)) {
+            try (BatchTransaction tx = new BatchTransaction(graphDB, AdaptiveBatchSize.forOperation(ns, "migrate", 5000))) {
                 for (Long id : ids) {
                     Node journey = graphDB.getNodeById(id);
                     if(!journey.hasProperty(Journeys.PROP_LENGTH)) {
@@ -186,15 +201,85 @@ public class JourneyService {
                         Index<Node> index = GraphDbUtils.legacyIndex(graphDB, app.journeys().getLabel());
                         index.add(journey, Journeys.PROP_LENGTH, new ValueContext(length).indexNumeric());
                     }
+                    app.journeys().indexQueryFields(journey);
                     tx.increment();
                 }
             }
+
+            backfillEventActionIds(ns, app);
         } finally {
             writingLock.unlock();
         }
         return Response.status(Response.Status.OK).build();
     }
 
+    private void backfillEventActionIds(String ns, Application app) {
+        ArrayList<Long> ids = new ArrayList<>();
+        try (Transaction ignored = graphDB.beginTx()) {
+            ResourceIterator<Node> nodes = graphDB.findNodes(app.events().getLabel());
+            while (nodes.hasNext()) {
+                ids.add(nodes.next().getId());
+            }
+        }
+
+        try (BatchTransaction tx = new BatchTransaction(graphDB, AdaptiveBatchSize.forOperation(ns, "backfill_action_ids", 5000))) {
+            for (Long id : ids) {
+                app.events().backfillActionId(graphDB.getNodeById(id));
+                tx.increment();
+            }
+        }
+    }
+
+    /**
+     * API for converting custom properties of all events under a namespace to given layout: "inline"
+     * stores single valued scalar properties on event nodes, "relationships" moves them back
+     *
+     * @param ns     namespace name
+     * @param layout layout to convert to
+     * @return json format of number of events converted
+     * @throws IOException
+     */
+    @POST
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/{ns}/migrate_custom_properties")
+    public Response migrateCustomProperties(@PathParam("ns") String ns, @QueryParam("layout") String layout) throws IOException {
+        CustomProperties.Layout target;
+        try {
+            target = CustomProperties.Layout.valueOf(String.valueOf(layout).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("unknown layout: " + layout).build();
+        }
+
+        long converted = 0;
+        Lock writingLock = writeLocks(ns).exclusive();
+        writingLock.lock();
+        try {
+            Application app = application(ns);
+            ArrayList<Long> ids = new ArrayList<>();
+            try (Transaction ignored = graphDB.beginTx()) {
+                ResourceIterator<Node> nodes = graphDB.findNodes(app.events().getLabel());
+                while (nodes.hasNext()) {
+                    ids.add(nodes.next().getId());
+                }
+            }
+
+            CustomProperties properties = app.customProperties();
+            try (BatchTransaction tx = new BatchTransaction(graphDB, AdaptiveBatchSize.forOperation(ns, "migrate_custom_properties", 5000))) {
+                for (Long id : ids) {
+                    Node event = graphDB.getNodeById(id);
+                    if (target == CustomProperties.Layout.INLINE ? properties.inline(event) : properties.toRelationships(event)) {
+                        converted++;
+                    }
+                    tx.increment();
+                }
+            }
+        } finally {
+            ApplicationRegistry.getInstance().invalidate(ns);
+            writingLock.unlock();
+        }
+        return jsonOkResponse(mapOf("converted", converted));
+    }
+
     /**
      * API for destroying all data under a namespace
      *
@@ -204,11 +289,11 @@ public class JourneyService {
     @POST
     @Produces(MediaType.TEXT_PLAIN)
     @Path("/{ns}/destroy")
-    public Response destroy(@PathParam("ns") String ns) {
-        Lock writingLock = getWritingLock(ns);
+    public Response destroy(@PathParam("ns") String ns) throws IOException {
+        Lock writingLock = writeLocks(ns).exclusive();
         writingLock.lock();
         try {
-            Application app = new Application(graphDB, ns);
+            Application app = application(ns);
             try (Transaction tx = graphDB.beginTx()) {
                 app.tearDownSchema();
                 tx.success();
@@ -220,6 +305,7 @@ public class JourneyService {
             }
 
             app.destroyData();
+            ApplicationRegistry.getInstance().reset(ns);
         } finally {
             writingLock.unlock();
         }
@@ -237,11 +323,11 @@ public class JourneyService {
     @POST
     @Produces(MediaType.TEXT_PLAIN)
     @Path("/{ns}/reindex")
-    public Response reindex(@PathParam("ns") String ns) {
-        Lock writingLock = getWritingLock(ns);
+    public Response reindex(@PathParam("ns") String ns) throws IOException {
+        Lock writingLock = writeLocks(ns).exclusive();
         writingLock.lock();
         try {
-            Application app = new Application(graphDB, ns);
+            Application app = application(ns);
             try (Transaction tx = graphDB.beginTx()) {
                 app.journeys().tearDownLegacyIndex();
                 tx.success();
@@ -256,11 +342,14 @@ public class JourneyService {
                 tx.success();
             }
 
-            try (BatchTransaction tx = new BatchTransaction(graphDB, 100)) {
+            try (BatchTransaction tx = new BatchTransaction(graphDB, AdaptiveBatchSize.forOperation(ns, "reindex", 100))) {
                 for (Long id : ids) {
                     Node journey = graphDB.getNodeById(id);
+                    // an index entry per action of the journey on top of its time range and user
+                    int changes = app.journeys().length(journey) + 3;
+                    tx.reserve(changes);
                     app.journeys().reindex(journey);
-                    tx.increment();
+                    tx.increment(changes);
                 }
             }
         } finally {
@@ -286,9 +375,18 @@ public class JourneyService {
      *          "prop-b":"bar"
      *      }
      *    }]
+     * The request body is parsed as a stream and events are committed in chunks, so a big batch
+     * does not need to fit in memory. Events in a chunk are inserted grouped by session and in time order.
+     * When a later chunk fails, the earlier chunks stay committed and a 500 response tells how many
+     * events were committed. Every event needs a digest, the chunk of an event without one fails. Sending
+     * the batch again is safe: events already committed are skipped as duplicates by their digest.
+     * When async is true, events are queued and committed later together with other batches by the
+     * namespace ingestion writer. Use the batch_id in the response to check whether the batch is committed.
      * @param ns: namespace under operation
-     * @param eventsJSON: request body, json format, array event
-     * @return 201 response
+     * @param async: queue the events for group commit instead of writing them in the request
+     * @param eventsStream: request body, json format, array event
+     * @return 201 response, 202 response with batch id in async mode, or 500 response with count of
+     * events committed before a failure
      * @throws IOException
      */
     @POST
@@ -296,27 +394,99 @@ public class JourneyService {
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/{ns}/add_events")
     public Response addEvents(@PathParam("ns") String ns,
-                              String eventsJSON) throws IOException {
+                              @QueryParam("async") @DefaultValue("false") boolean async,
+                              InputStream eventsStream) throws IOException {
+        return addEvents(ns, async, listOfMapReader(eventsStream));
+    }
 
-        Lock writingLock = getWritingLock(ns);
-        writingLock.lock();
-        try {
-            Application app = new Application(graphDB, ns);
+    /**
+     * API for adding events in the compact binary format described in {@link BinaryEventsReader}, which
+     * saves parsing json on the server. Behaves the same as add_events with a json body otherwise.
+     * @param ns: namespace under operation
+     * @param async: queue the events for group commit instead of writing them in the request
+     * @param eventsStream: request body, binary events
+     * @return 201 response, or 202 response with batch id in async mode
+     * @throws IOException
+     */
+    @POST
+    @Consumes(BinaryEventsReader.MEDIA_TYPE)
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/{ns}/add_events")
+    public Response addBinaryEvents(@PathParam("ns") String ns,
+                                    @QueryParam("async") @DefaultValue("false") boolean async,
+                                    InputStream eventsStream) throws IOException {
+        return addEvents(ns, async, new BinaryEventsReader(eventsStream));
+    }
 
-            List<Map> eventsAttrs = jsonToListMap(eventsJSON);
-            try (Transaction tx = graphDB.beginTx()) {
-                for (Map eventAttrs : eventsAttrs) {
-                    //noinspection unchecked
-                    app.events().add(eventAttrs);
+    private Response addEvents(String ns, boolean async, MapReader events) throws IOException {
+        NamespaceLocks locks = writeLocks(ns);
+        if (JourneySealer.DEFAULT_INTERVAL_MILLIS > 0) {
+            getSealer(ns);
+        }
+        try (MapReader reader = events) {
+            if (async) {
+                return submitEvents(ns, reader);
+            }
+
+            PartitionedIngestor partitioned = PartitionedIngestor.DEFAULT_WORKERS > 0 ? getPartitionedIngestor(ns) : null;
+            EventsWriter writer = new EventsWriter(graphDB, ns, locks);
+            List<Map<String, Object>> chunk = new ArrayList<>();
+            int committed = 0;
+            try {
+                Map<String, Object> eventAttrs;
+                while ((eventAttrs = reader.next()) != null) {
+                    chunk.add(eventAttrs);
+                    if (chunk.size() >= STREAM_COMMIT_SIZE) {
+                        writeEvents(partitioned, writer, chunk);
+                        committed += chunk.size();
+                        chunk = new ArrayList<>();
+                    }
                 }
-                tx.success();
+                writeEvents(partitioned, writer, chunk);
+            } catch (IOException | RuntimeException e) {
+                // with ingestion workers, parts of the failed chunk owned by other workers may be committed
+                if (e instanceof PartialWriteException) {
+                    committed += ((PartialWriteException) e).getCommitted();
+                }
+                if (committed == 0) {
+                    throw e;
+                }
+                // earlier chunks stay committed, tell the client how far the batch got
+                logger.error("Failed to add events to namespace " + ns + " after " + committed + " events were committed", e);
+                return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                        .entity(toJson(mapOf("committed", committed, "error", String.valueOf(e.getMessage())))).build();
             }
-        } finally {
-            writingLock.unlock();
         }
         return Response.status(Response.Status.CREATED).build();
     }
 
+    private void writeEvents(PartitionedIngestor partitioned, EventsWriter writer, List<Map<String, Object>> events) throws InterruptedIOException {
+        if (partitioned == null) {
+            writer.write(events);
+            return;
+        }
+        try {
+            partitioned.write(events);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for ingestion workers");
+        }
+    }
+
+    private Response submitEvents(String ns, MapReader reader) throws IOException {
+        List<Map> eventsAttrs = new ArrayList<>();
+        Map<String, Object> eventAttrs;
+        while ((eventAttrs = reader.next()) != null) {
+            eventsAttrs.add(eventAttrs);
+        }
+
+        long batchId = getIngestor(ns).submit(eventsAttrs);
+        if (batchId < 0) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+        }
+        return Response.status(Response.Status.ACCEPTED).entity(toJson(mapOf("batch_id", batchId))).build();
+    }
+
     /**
      * API for identify a user and setup traits.
      * @param ns: namespace under operation
@@ -334,45 +504,309 @@ public class JourneyService {
                              @QueryParam("uid") String uid,
                              @QueryParam("anonymous_id") String anonymousId,
                              String traitsJSON) throws IOException {
-        Lock writingLock = getWritingLock(ns);
-        writingLock.lock();
+        Map<String, Object> traits = traitsJSON == null ? null : jsonToMap(traitsJSON);
+        NamespaceLocks locks = writeLocks(ns);
+        for (int attempt = 1; ; attempt++) {
+            try (WriteScope ignored = locks.forUsers()) {
+                Users users = application(ns).users();
+                try (Transaction tx = graphDB.beginTx()) {
+                    Node user = users.identify(uid, anonymousId);
+                    if (traits != null) {
+                        for (String key : traits.keySet()) {
+                            users.addTrait(user, key, traits.get(key));
+                        }
+                    }
+                    tx.success();
+                }
+                break;
+            } catch (RuntimeException e) {
+                if (attempt >= WriteRetry.MAX_ATTEMPTS || !WriteRetry.isRetryable(e)) {
+                    throw e;
+                }
+                ApplicationRegistry.getInstance().invalidate(ns);
+                locks.recordRetry();
+                WriteRetry.backoff(attempt);
+            }
+        }
+        return Response.status(Response.Status.CREATED).build();
+    }
 
-        try {
-            Application app = new Application(graphDB, ns);
-            Users users = app.users();
+    /**
+     * API for identifying many users at once, e.g. when back filling logins. The request body is
+     * parsed as a stream and identified in batches, each committed in one transaction. Users are
+     * looked up once per batch and traits of a user are added together, so it is much cheaper than
+     * calling identify for each user.
+     * Example request body:
+     *    [{
+     *      "uid":"johndoe@example.com",
+     *      "anonymous_id":"4aa1c9e2",
+     *      "traits":{"plan":"gold"}
+     *    }]
+     * @param ns: namespace under operation
+     * @param recordsStream: request body, json format, array of records with uid, anonymous_id and traits
+     * @return 201 response with count of identified records
+     * @throws IOException
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/{ns}/identify_batch")
+    public Response identifyBatch(@PathParam("ns") String ns, InputStream recordsStream) throws IOException {
+        NamespaceLocks locks = writeLocks(ns);
+        int identified = 0;
+        try (JSONUtils.ListOfMapReader reader = listOfMapReader(recordsStream)) {
+            List<Map<String, Object>> chunk = new ArrayList<>();
+            Map<String, Object> record;
+            while ((record = reader.next()) != null) {
+                chunk.add(record);
+                if (chunk.size() >= IDENTIFY_BATCH_SIZE) {
+                    identified += identifyChunk(ns, locks, chunk);
+                    chunk.clear();
+                }
+            }
+            identified += identifyChunk(ns, locks, chunk);
+        }
+        return Response.status(Response.Status.CREATED).entity(toJson(mapOf("identified", identified))).build();
+    }
 
-            try (Transaction tx = graphDB.beginTx()) {
-                Node user = users.identify(uid, anonymousId);
-                if (traitsJSON != null) {
-                    Map<String, Object> traits = jsonToMap(traitsJSON);
-                    for (String key : traits.keySet()) {
-                        users.addTrait(user, key, traits.get(key));
+    private int identifyChunk(String ns, NamespaceLocks locks, List<Map<String, Object>> records) {
+        if (records.isEmpty()) {
+            return 0;
+        }
+        for (int attempt = 1; ; attempt++) {
+            try (WriteScope ignored = locks.forUsers()) {
+                BulkIdentify bulk = new BulkIdentify(application(ns), records);
+                try (BatchTransaction tx = new BatchTransaction(graphDB, IDENTIFY_BATCH_SIZE)) {
+                    try {
+                        return bulk.process();
+                    } catch (RuntimeException e) {
+                        tx.failure();
+                        throw e;
                     }
                 }
-                tx.success();
+            } catch (RuntimeException e) {
+                if (attempt >= WriteRetry.MAX_ATTEMPTS || !WriteRetry.isRetryable(e)) {
+                    throw e;
+                }
+                ApplicationRegistry.getInstance().invalidate(ns);
+                locks.recordRetry();
+                WriteRetry.backoff(attempt);
             }
-        } finally {
-            writingLock.unlock();
         }
-        return Response.status(Response.Status.CREATED).build();
     }
 
-    private static ConcurrentHashMap<String, Lock> writingLocks = new ConcurrentHashMap<>();
+    /**
+     * API for checking status of a batch of events added in async mode.
+     * @param ns: namespace under operation
+     * @param batchId: batch id returned by add_events
+     * @return json with status of the batch: pending, committed or failed
+     * @throws IOException
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/{ns}/ingest_batches/{batch_id}")
+    public Response ingestBatchStatus(@PathParam("ns") String ns,
+                                      @PathParam("batch_id") long batchId) throws IOException {
+        GroupCommitIngestor.BatchStatus status = getIngestor(ns).status(batchId);
+        if (status == GroupCommitIngestor.BatchStatus.UNKNOWN) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return jsonOkResponse(mapOf("batch_id", batchId, "status", status.name().toLowerCase()));
+    }
+
+    /**
+     * API for sealing journeys no more event can join, i.e. finished earlier than the newest event of the
+     * namespace by more than the cut tolerance. Background sealing does the same every journey.sealing.interval_ms.
+     * @param ns: namespace under operation
+     * @return json with number of journeys sealed
+     * @throws IOException
+     */
+    @POST
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/{ns}/seal_journeys")
+    public Response sealJourneys(@PathParam("ns") String ns) throws IOException {
+        awaitLogReplay(ns);
+        return jsonOkResponse(mapOf("sealed", getSealer(ns).sweep()));
+    }
+
+    /**
+     * API for runtime statistics of the namespace, e.g. cache hit and miss counts.
+     * @param ns: namespace under operation
+     * @return json format of map of component name and its statistics
+     * @throws IOException
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/{ns}/stats")
+    public Response stats(@PathParam("ns") String ns) throws IOException {
+        Application app = application(ns);
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("session_cache", app.journeys().sessionCache().stats());
+        stats.put("digest_filter", app.events().digestFilter().stats());
+        stats.put("journey_index", app.journeys().indexStats());
+        stats.put("string_dictionary", app.strings().stats());
+        stats.put("write_locks", getLocks(ns).stats());
+        PartitionedIngestor partitioned = partitionedIngestors.get(ns);
+        if (partitioned != null) {
+            stats.put("ingest_workers", partitioned.stats());
+        }
+        GroupCommitIngestor ingestor = ingestors.get(ns);
+        if (ingestor != null && ingestor.reorderStats() != null) {
+            stats.put("reorder_buffer", ingestor.reorderStats());
+        }
+        if (ingestor != null && ingestor.logStats() != null) {
+            stats.put("ingest_log", ingestor.logStats());
+        }
+        JourneySealer sealer = sealers.get(ns);
+        if (sealer != null) {
+            stats.put("journey_sealer", sealer.stats());
+        }
+        Map<String, Object> batchTransactions = AdaptiveBatchSize.stats(ns);
+        if (!batchTransactions.isEmpty()) {
+            stats.put("batch_transactions", batchTransactions);
+        }
+        return jsonOkResponse(stats);
+    }
+
+    private Application application(String ns) {
+        return ApplicationRegistry.getInstance().get(graphDB, ns);
+    }
+
+    private static ConcurrentHashMap<String, NamespaceLocks> namespaceLocks = new ConcurrentHashMap<>();
+    private static ConcurrentHashMap<String, GroupCommitIngestor> ingestors = new ConcurrentHashMap<>();
+    private static ConcurrentHashMap<String, PartitionedIngestor> partitionedIngestors = new ConcurrentHashMap<>();
+    private static ConcurrentHashMap<String, JourneySealer> sealers = new ConcurrentHashMap<>();
+
+    private GroupCommitIngestor getIngestor(String ns) throws IOException {
+        GroupCommitIngestor ingestor = ingestors.get(ns);
+        if (ingestor != null && ingestor.isServing(graphDB)) {
+            return ingestor;
+        }
+        synchronized (ingestors) {
+            ingestor = ingestors.get(ns);
+            if (ingestor == null || !ingestor.isServing(graphDB)) {
+                GroupCommitIngestor replaced = ingestor;
+                ingestor = new GroupCommitIngestor(graphDB, ns, getLocks(ns), IngestLog.forNamespace(graphDB, ns));
+                ingestors.put(ns, ingestor);
+                started(ingestor, replaced);
+            }
+            return ingestor;
+        }
+    }
+
+    private NamespaceLocks writeLocks(String ns) throws IOException {
+        awaitLogReplay(ns);
+        return getLocks(ns);
+    }
+
+    // batches left in the ingest log of a namespace are replayed before anything else gets written to it
+    private void awaitLogReplay(String ns) throws IOException {
+        GroupCommitIngestor ingestor = ingestors.get(ns);
+        if (ingestor == null || !ingestor.isServing(graphDB)) {
+            if (!IngestLog.exists(graphDB, ns)) {
+                return;
+            }
+            ingestor = getIngestor(ns);
+        }
+        try {
+            ingestor.awaitReplay();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for ingest log replay");
+        }
+    }
+
+    /**
+     * Start ingestors of all namespaces having an ingest log, which replay batches left in their log.
+     */
+    static void replayLogs(GraphDatabaseService graphDB) throws IOException {
+        JourneyService service = new JourneyService(graphDB);
+        for (String ns : IngestLog.namespaces(graphDB)) {
+            service.getIngestor(ns);
+        }
+    }
+
+    private PartitionedIngestor getPartitionedIngestor(String ns) {
+        PartitionedIngestor ingestor = partitionedIngestors.get(ns);
+        if (ingestor != null && ingestor.isServing(graphDB)) {
+            return ingestor;
+        }
+        synchronized (partitionedIngestors) {
+            ingestor = partitionedIngestors.get(ns);
+            if (ingestor == null || !ingestor.isServing(graphDB)) {
+                PartitionedIngestor replaced = ingestor;
+                ingestor = new PartitionedIngestor(graphDB, ns, getLocks(ns), PartitionedIngestor.DEFAULT_WORKERS);
+                partitionedIngestors.put(ns, ingestor);
+                started(ingestor, replaced);
+            }
+            return ingestor;
+        }
+    }
+
+    private JourneySealer getSealer(String ns) {
+        JourneySealer sealer = sealers.get(ns);
+        if (sealer != null && sealer.isServing(graphDB)) {
+            return sealer;
+        }
+        synchronized (sealers) {
+            sealer = sealers.get(ns);
+            if (sealer == null || !sealer.isServing(graphDB)) {
+                JourneySealer replaced = sealer;
+                sealer = new JourneySealer(graphDB, ns, getLocks(ns));
+                sealers.put(ns, sealer);
+                started(sealer, replaced);
+            }
+            return sealer;
+        }
+    }
+
+    /**
+     * Stop background writers of all namespaces, after they have written everything they accepted.
+     */
+    static void shutdownWriters() throws InterruptedException {
+        synchronized (ingestors) {
+            for (GroupCommitIngestor ingestor : ingestors.values()) {
+                ingestor.shutdown();
+            }
+        }
+        synchronized (partitionedIngestors) {
+            for (PartitionedIngestor ingestor : partitionedIngestors.values()) {
+                ingestor.shutdown();
+            }
+        }
+        synchronized (sealers) {
+            for (JourneySealer sealer : sealers.values()) {
+                sealer.shutdown();
+            }
+        }
+    }
 
-    private static Lock getWritingLock(String ns) {
-        Lock lock = new ReentrantLock();
-        Lock existingLock = writingLocks.putIfAbsent(ns, lock);
-        if (existingLock != null) {
-            lock = existingLock;
+    // writer threads are stopped with their database, or once replaced for serving another database
+    private void started(BackgroundWriter writer, BackgroundWriter replaced) {
+        ShutdownWithDatabase.register(graphDB, writer);
+        if (replaced != null) {
+            try {
+                replaced.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static NamespaceLocks getLocks(String ns) {
+        NamespaceLocks locks = new NamespaceLocks();
+        NamespaceLocks existing = namespaceLocks.putIfAbsent(ns, locks);
+        if (existing != null) {
+            locks = existing;
         }
-        return lock;
+        return locks;
     }
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/{ns}/user/{identifier}")
     public Response user(@PathParam("ns") String ns, @PathParam("identifier") String identifier) throws IOException {
-        Application app = new Application(graphDB, ns);
+        Application app = application(ns);
         try (Transaction ignored = graphDB.beginTx()) {
             Node user = app.users().findByIdentifier(identifier);
             Map<String, Object> map = app.users().toHash(user);
@@ -389,7 +823,7 @@ public class JourneyService {
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/{ns}/anonymous_user/{anonymous_id}")
     public Response anonymousUser(@PathParam("ns") String ns, @PathParam("anonymous_id") String anonymousId) throws IOException {
-        Application app = new Application(graphDB, ns);
+        Application app = application(ns);
         try (Transaction ignored = graphDB.beginTx()) {
             Node user = app.users().findByAnonymousId(anonymousId);
             Map<String, Object> map = app.users().toHash(user);
@@ -422,7 +856,7 @@ public class JourneyService {
                              @QueryParam("offset") @DefaultValue("0") int offset,
                              @QueryParam("desc") @DefaultValue("true") boolean descOrder,
                              @QueryParam("events_limit") @DefaultValue("50") int eventsLimit) throws IOException {
-        Application app = new Application(graphDB, ns);
+        Application app = application(ns);
         List<String> conditions = parseQueryCondition(queryJson);
         List<Map> result = new ArrayList<>();
 
@@ -447,7 +881,7 @@ public class JourneyService {
     @Path("/{ns}/journeys_summary")
     public Response journeysSummary(@PathParam("ns") String ns,
                                     @QueryParam("query") @DefaultValue("") String queryJson) throws IOException {
-        Application app = new Application(graphDB, ns);
+        Application app = application(ns);
         List<String> conditions = parseQueryCondition(queryJson);
         int journeyCount = 0;
         Set<Node> users = new HashSet<>();
@@ -466,6 +900,43 @@ public class JourneyService {
         return jsonOkResponse(mapOf("journey_count", journeyCount, "user_count", users.size()));
     }
 
+    /**
+     * API for debugging journey queries: which conditions are pushed down to the journey index and
+     * the order residual conditions get evaluated in, with their estimated cost and selectivity.
+     *
+     * @param ns:        namespace
+     * @param queryJson: journey conditions. json format.
+     * @param analyze:   run the query and report journeys evaluated and rejected by each residual condition
+     * @return the plan in JSON format
+     * @throws IOException
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/{ns}/journeys_plan")
+    public Response journeysPlan(@PathParam("ns") String ns,
+                                 @QueryParam("query") @DefaultValue("") String queryJson,
+                                 @QueryParam("analyze") @DefaultValue("false") boolean analyze) throws IOException {
+        Application app = application(ns);
+        List<String> conditions = parseQueryCondition(queryJson);
+        Map<String, Object> result;
+        try (Transaction ignored = graphDB.beginTx()) {
+            JourneyQuery query = JourneyQuery.Builder.query(app).
+                    conditions(conditions).
+                    build();
+            if (analyze) {
+                int journeyCount = 0;
+                for (Node ignoredJourney : query.journeys()) {
+                    journeyCount++;
+                }
+                result = query.plan().toHash();
+                result.put("journey_count", journeyCount);
+            } else {
+                result = query.plan().toHash();
+            }
+        }
+        return jsonOkResponse(result);
+    }
+
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
@@ -473,7 +944,7 @@ public class JourneyService {
     public Response journeysActionGraph(@PathParam("ns") String ns,
                                         @QueryParam("query") @DefaultValue("") String queryJson,
                                         @QueryParam("steps") @DefaultValue("10") int steps) throws IOException {
-        Application app = new Application(graphDB, ns);
+        Application app = application(ns);
         List<String> conditions = parseQueryCondition(queryJson);
         ActionsGraph graph = new ActionsGraph(app, steps);
         try (Transaction ignored = graphDB.beginTx()) {
@@ -495,7 +966,7 @@ public class JourneyService {
                                           @QueryParam("query") String queryJson,
                                           @QueryParam("label") String startActionLabel,
                                           @QueryParam("steps") @DefaultValue("4") int steps) throws IOException {
-        Application app = new Application(graphDB, ns);
+        Application app = application(ns);
         ActionsGraph graph = new ActionsGraph(app, steps);
         try (Transaction ignored = graphDB.beginTx()) {
             JourneyQuery query = JourneyQuery.Builder.query(app).
@@ -520,7 +991,7 @@ public class JourneyService {
                                           @QueryParam("query") String queryJson,
                                           @QueryParam("label") String startActionLabel,
                                           @QueryParam("steps") @DefaultValue("4") int steps) throws IOException {
-        Application app = new Application(graphDB, ns);
+        Application app = application(ns);
         ActionsGraph graph = new ActionsGraph(app, steps);
         try (Transaction ignored = graphDB.beginTx()) {
             JourneyQuery query = JourneyQuery.Builder.query(app).
@@ -551,7 +1022,7 @@ public class JourneyService {
                           @QueryParam("select") String select,
                           @QueryParam("stops") String stopsJson,
                           @QueryParam("cross") @DefaultValue("true") boolean cross) throws IOException {
-        Application app = new Application(graphDB, ns);
+        Application app = application(ns);
         try (Transaction ignored = graphDB.beginTx()) {
             try {
                 DataQuery dataQuery = new DataQuery(app, cross);
@@ -573,7 +1044,7 @@ public class JourneyService {
                                    @QueryParam("base_stop") String baseStopExpression,
                                    @QueryParam("convert_stop") String convertStopExpression) throws IOException {
 
-        Application app = new Application(graphDB, ns);
+        Application app = application(ns);
 
         try (Transaction ignored = graphDB.beginTx()) {
             Stop baseStop = Stop.build(app, JSONUtils.jsonToMap(baseStopExpression));
@@ -623,7 +1094,7 @@ public class JourneyService {
                                  @PathParam("ids") String ids,
                                  @QueryParam("events_limit") @DefaultValue("50") int eventsLimit,
                                  @QueryParam("events_offset") @DefaultValue("0") int eventsOffset) throws IOException {
-        Application app = new Application(graphDB, ns);
+        Application app = application(ns);
 
         List<Map> result = new ArrayList<>();
         try (Transaction ignored = graphDB.beginTx()) {
@@ -642,7 +1113,7 @@ public class JourneyService {
                                   @QueryParam("ab") @DefaultValue("true") boolean absoluteSupport,
                                   @QueryParam("threshold") @DefaultValue("0.1") float threshold,
                                   @QueryParam("tree_category") @DefaultValue("GLOBAL") String treeCategory) throws IOException {
-        Application app = new Application(graphDB, ns);
+        Application app = application(ns);
         List<Pattern> patterns = new ArrayList<>();
         try (Transaction ignored = graphDB.beginTx()) {
             for (SuffixTree tree : SuffixTree.findByCategory(app, TreeCategory.valueOf(treeCategory))) {
@@ -661,7 +1132,7 @@ public class JourneyService {
     public Response churnPOSTActions(@PathParam("ns") String ns,
                                      @QueryParam("min_churn") @DefaultValue("2") int minNumberOfRepeats,
                                      @QueryParam("threshold") @DefaultValue("0.1") float threshold) throws IOException {
-        Application app = new Application(graphDB, ns);
+        Application app = application(ns);
         List<RepeatedAction> actions = new ArrayList<>();
 
         try (Transaction ignored = graphDB.beginTx()) {
@@ -696,7 +1167,8 @@ public class JourneyService {
     public Response buildSuffixTrees(@PathParam("ns") String ns,
                                      @QueryParam("tree_height_limit") @DefaultValue("8") int treeHeightLimit,
                                      @QueryParam("journeys_limit") @DefaultValue("10000") int journeyLimit) throws IOException {
-        Application app = new Application(graphDB, ns);
+        awaitLogReplay(ns);
+        Application app = application(ns);
 
         destroySuffixTreesWithCategory(app, TreeCategory.GLOBAL);
         JourneyQuery query = JourneyQuery.Builder.
@@ -741,7 +1213,8 @@ public class JourneyService {
     @Path("/{ns}/destroy_suffix_trees")
     public Response destroySuffixTrees(@PathParam("ns") String ns,
                                        @QueryParam("tree_category") @DefaultValue("GLOBAL") String treeCategory) throws IOException {
-        Application app = new Application(graphDB, ns);
+        awaitLogReplay(ns);
+        Application app = application(ns);
         destroySuffixTreesWithCategory(app, TreeCategory.valueOf(treeCategory));
         return Response.status(Response.Status.OK).build();
     }
@@ -761,7 +1234,8 @@ public class JourneyService {
     public Response ignoreAction(@PathParam("ns") String ns,
                                  @QueryParam("label") String label,
                                  @QueryParam("toggle") @DefaultValue("true") boolean toggle) throws IOException {
-        Application app = new Application(graphDB, ns);
+        awaitLogReplay(ns);
+        Application app = application(ns);
 
         try (Transaction tx = graphDB.beginTx()) {
             Node action = app.actions().findByActionLabel(label);
@@ -772,6 +1246,10 @@ public class JourneyService {
             }
 
             tx.success();
+        } catch (RuntimeException e) {
+            // the shared action dictionary already has the flag of the rolled back change
+            ApplicationRegistry.getInstance().invalidate(ns);
+            throw e;
         }
         return Response.status(Response.Status.OK).build();
     }
@@ -786,7 +1264,7 @@ public class JourneyService {
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/{ns}/action_labels")
     public Response actionLabels(@PathParam("ns") String ns) throws IOException {
-        Application app = new Application(graphDB, ns);
+        Application app = application(ns);
         List<String> labels = new ArrayList<>();
         try (Transaction ignored = graphDB.beginTx()) {
             Iterable<Node> actions = app.actions().allExcludeIgnored();
@@ -809,7 +1287,7 @@ public class JourneyService {
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/{ns}/ignored_action_labels")
     public Response ignoredActionLabels(@PathParam("ns") String ns) throws IOException {
-        Application app = new Application(graphDB, ns);
+        Application app = application(ns);
         LinkedList<String> labels = new LinkedList<>();
         try (Transaction ignored = graphDB.beginTx()) {
             Iterable<Node> actions = app.actions().allIgnored();
@@ -830,7 +1308,7 @@ public class JourneyService {
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/{ns}/custom_properties")
     public Response customProperties(@PathParam("ns") String ns) throws IOException {
-        Application app = new Application(graphDB, ns);
+        Application app = application(ns);
         List<String> names = new ArrayList<>();
         try (Transaction ignored = graphDB.beginTx()) {
             Iterable<Node> properties = app.customProperties().all();
@@ -855,7 +1333,7 @@ public class JourneyService {
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/{ns}/user_traits")
     public Response userTraits(@PathParam("ns") String ns) throws IOException {
-        Application app = new Application(graphDB, ns);
+        Application app = application(ns);
         List<String> names = new ArrayList<>();
         UserTraits module = app.userTraits();
         try (Transaction ignored = graphDB.beginTx()) {
@@ -881,7 +1359,7 @@ public class JourneyService {
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/{ns}/traits_sample")
     public Response traitsSample(@PathParam("ns") String ns, @QueryParam("sample") @DefaultValue("500") int sampleLimit) throws IOException {
-        Application app = new Application(graphDB, ns);
+        Application app = application(ns);
         Map<String, Set> sampleResult = new HashMap<>();
 
         UserTraits module = app.userTraits();
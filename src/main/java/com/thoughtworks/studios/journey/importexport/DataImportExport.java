@@ -20,16 +20,19 @@ package com.thoughtworks.studios.journey.importexport;
 
 import com.thoughtworks.studios.journey.models.Application;
 import com.thoughtworks.studios.journey.models.Models;
+import com.thoughtworks.studios.journey.models.StringDictionary;
 import org.apache.commons.lang.StringUtils;
 import org.neo4j.cypher.export.CypherResultSubGraph;
 import org.neo4j.cypher.export.SubGraph;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Result;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 public class DataImportExport {
@@ -69,6 +72,10 @@ public class DataImportExport {
     }
 
     private String modelCypher(Models model) {
+        // dictionary strings are only referred to by codes on events, there are no relationships to them
+        if (model instanceof StringDictionary) {
+            return "MATCH (n:`" + model.getLabel().name() + "`) RETURN n, null AS r";
+        }
         return "MATCH (n:`" + model.getLabel().name() + "`)-[r]->() RETURN n, r";
     }
 
@@ -83,6 +90,20 @@ public class DataImportExport {
             executor.execute(line.replaceAll(namespaceRegx, namespaceReplacement));
             reporter.report();
         }
+        backfillActionIds();
+    }
+
+    // action ids copied from exported events point to action nodes of the exporting database
+    private void backfillActionIds() {
+        List<Long> ids = new ArrayList<>();
+        Iterator<Node> events = app.allNodes(app.events());
+        while (events.hasNext()) {
+            ids.add(events.next().getId());
+        }
+        for (Long id : ids) {
+            app.events().backfillActionId(graphDB.getNodeById(id));
+            reporter.report();
+        }
     }
 
 }
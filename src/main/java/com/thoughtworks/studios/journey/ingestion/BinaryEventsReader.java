@@ -0,0 +1,211 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.ingestion;
+
+import com.thoughtworks.studios.journey.utils.MapReader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads events posted in the compact binary format, as an alternative to a json array of event objects.
+ * All numbers are unsigned LEB128 varints unless noted, signed ones zigzag encoded. A batch is:
+ * <pre>
+ * magic        "JEV" followed by version byte 1
+ * string table count, then for each string its UTF-8 length and bytes
+ * event count  then for each event:
+ *   start_at   signed delta from start_at of previous event (from 0 for the first event)
+ *   fields     string references for action_label, session_id, digest, user, anonymous_id, url,
+ *              referrer, http_method, client_ip and status_code, in this order
+ *   properties count, then for each property the string reference of its name and its value
+ * </pre>
+ * A string reference is 0 for null, otherwise the index in the string table plus one. A property
+ * value is a tag byte followed by its content: 0 null, 1 string reference, 2 signed long, 3 double
+ * (8 bytes, big endian), 4 true, 5 false, 6 list (count followed by values).
+ * <p>
+ * Repeated strings in a batch are decoded once and shared by all events referring to them. Counts and
+ * lengths come from the client, so nothing is allocated for more than 1024 elements ahead of the data
+ * actually read.
+ */
+public class BinaryEventsReader implements MapReader {
+    public static final String MEDIA_TYPE = "application/x-journey-events";
+    public static final byte[] MAGIC = {'J', 'E', 'V', 1};
+    public static final String[] FIELDS = {"action_label", "session_id", "digest", "user", "anonymous_id", "url",
+            "referrer", "http_method", "client_ip", "status_code"};
+
+    public static final int NULL = 0;
+    public static final int STRING = 1;
+    public static final int LONG = 2;
+    public static final int DOUBLE = 3;
+    public static final int TRUE = 4;
+    public static final int FALSE = 5;
+    public static final int LIST = 6;
+    private static final int MAX_PRESIZE = 1024;
+
+    private final DataInputStream in;
+    private List<String> strings;
+    private long remaining;
+    private long startAt;
+
+    public BinaryEventsReader(InputStream in) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+    }
+
+    @Override
+    public Map<String, Object> next() throws IOException {
+        if (strings == null) {
+            readHeader();
+        }
+        if (remaining == 0) {
+            return null;
+        }
+        remaining--;
+
+        Map<String, Object> event = new HashMap<>();
+        startAt += readSignedVarLong();
+        event.put("start_at", startAt);
+        for (String field : FIELDS) {
+            String value = readString();
+            if (value != null) {
+                event.put(field, value);
+            }
+        }
+
+        int propertyCount = readCount();
+        if (propertyCount > 0) {
+            Map<String, Object> properties = new HashMap<>();
+            for (int i = 0; i < propertyCount; i++) {
+                String name = readString();
+                if (name == null) {
+                    throw new IOException("malformed binary events: property without name");
+                }
+                properties.put(name, readValue(true));
+            }
+            event.put("properties", properties);
+        }
+        return event;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void readHeader() throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("malformed binary events: unknown format or version");
+            }
+        }
+        int count = readCount();
+        strings = new ArrayList<>(Math.min(count, MAX_PRESIZE));
+        for (int i = 0; i < count; i++) {
+            strings.add(readUtf8(readCount()));
+        }
+        remaining = readCount();
+    }
+
+    private Object readValue(boolean allowList) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString();
+            case LONG:
+                return readSignedVarLong();
+            case DOUBLE:
+                return in.readDouble();
+            case TRUE:
+                return true;
+            case FALSE:
+                return false;
+            case LIST:
+                if (allowList) {
+                    int count = readCount();
+                    List<Object> values = new ArrayList<>(Math.min(count, MAX_PRESIZE));
+                    for (int i = 0; i < count; i++) {
+                        values.add(readValue(false));
+                    }
+                    return values;
+                }
+            default:
+                throw new IOException("malformed binary events: unexpected value tag " + tag);
+        }
+    }
+
+    private String readString() throws IOException {
+        int ref = readCount();
+        if (ref == 0) {
+            return null;
+        }
+        if (ref > strings.size()) {
+            throw new IOException("malformed binary events: string reference " + ref + " out of table");
+        }
+        return strings.get(ref - 1);
+    }
+
+    private String readUtf8(int length) throws IOException {
+        if (length <= MAX_PRESIZE) {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        // grows with the bytes read, a claimed length beyond the body ends with EOFException
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(MAX_PRESIZE);
+        byte[] chunk = new byte[MAX_PRESIZE];
+        for (int read = 0; read < length; read += chunk.length) {
+            int size = Math.min(chunk.length, length - read);
+            in.readFully(chunk, 0, size);
+            bytes.write(chunk, 0, size);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private int readCount() throws IOException {
+        long value = readVarLong();
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("malformed binary events: count " + value + " too large");
+        }
+        return (int) value;
+    }
+
+    private long readSignedVarLong() throws IOException {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed binary events: varint too long");
+    }
+}
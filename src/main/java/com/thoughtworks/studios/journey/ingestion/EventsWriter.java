@@ -0,0 +1,74 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.ingestion;
+
+import com.thoughtworks.studios.journey.models.Application;
+import com.thoughtworks.studios.journey.models.ApplicationRegistry;
+import com.thoughtworks.studios.journey.models.WriteScope;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes chunks of events of a namespace under its write locks, one transaction per chunk, retrying
+ * chunks failed by lock conflicts with concurrent writers.
+ */
+public class EventsWriter {
+    private final GraphDatabaseService graphDB;
+    private final String namespace;
+    private final NamespaceLocks locks;
+
+    public EventsWriter(GraphDatabaseService graphDB, String namespace, NamespaceLocks locks) {
+        this.graphDB = graphDB;
+        this.namespace = namespace;
+        this.locks = locks;
+    }
+
+    public void write(List<Map<String, Object>> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        Set<String> sessionIds = new HashSet<>();
+        for (Map<String, Object> event : events) {
+            sessionIds.add((String) event.get("session_id"));
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            try (WriteScope ignored = locks.forSessions(sessionIds)) {
+                Application app = ApplicationRegistry.getInstance().get(graphDB, namespace);
+                try (Transaction tx = graphDB.beginTx()) {
+                    app.events().addAll(events);
+                    tx.success();
+                }
+                return;
+            } catch (RuntimeException e) {
+                ApplicationRegistry.getInstance().invalidate(namespace);
+                if (attempt >= WriteRetry.MAX_ATTEMPTS || !WriteRetry.isRetryable(e)) {
+                    throw e;
+                }
+                locks.recordRetry();
+                WriteRetry.backoff(attempt);
+            }
+        }
+    }
+}
@@ -0,0 +1,544 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.ingestion;
+
+import com.thoughtworks.studios.journey.models.Application;
+import com.thoughtworks.studios.journey.models.ApplicationRegistry;
+import com.thoughtworks.studios.journey.models.WriteScope;
+import com.thoughtworks.studios.journey.utils.BatchTransaction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous ingestion for one namespace. Event batches posted by clients are queued into a bounded
+ * queue, and a single writer thread drains the queue and commits many batches together in one
+ * transaction (group commit). Each submitted batch get an id which can be used to check whether the
+ * batch has been committed.
+ * <p>
+ * With a reorder window configured, events are held in a {@link ReorderBuffer} per session before being
+ * written, and a batch is only reported as committed once all of its events got flushed out of the buffer.
+ * Batches with events that can not be ordered are failed without being buffered.
+ * <p>
+ * When a group fails to commit, its batches are written again one by one, so a batch with a bad event
+ * only fails itself. Status is kept for the last journey.ingest.batch_status_retained batches.
+ * <p>
+ * With an {@link IngestLog}, batches are appended to the log and synced to disk before being acknowledged,
+ * and the log is checkpointed as batches get committed. Batches left in the log after the last checkpoint
+ * are replayed in chunks before anything else when the ingestor starts; the checkpoint does not move past
+ * a replayed batch that failed, so it is replayed again on next start, until it failed
+ * journey.ingest.replay_attempts times and gets moved to the dead letter file of the log.
+ */
+public class GroupCommitIngestor implements BackgroundWriter {
+    public enum BatchStatus {
+        PENDING, COMMITTED, FAILED, UNKNOWN
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = Integer.getInteger("journey.ingest.queue_capacity", 1000);
+    public static final int DEFAULT_MAX_BATCH_SIZE = Integer.getInteger("journey.ingest.max_batch_size", 5000);
+    public static final long DEFAULT_MAX_LINGER_MILLIS = Long.getLong("journey.ingest.max_linger_ms", 50L);
+    // 0 disables reordering
+    public static final long DEFAULT_REORDER_WINDOW_MILLIS = Long.getLong("journey.ingest.reorder_window_ms", 0L);
+    public static final int DEFAULT_REORDER_CAPACITY = Integer.getInteger("journey.ingest.reorder_capacity", 100000);
+    public static final long STATUS_RETAINED = Long.getLong("journey.ingest.batch_status_retained", 100000L);
+    public static final int REPLAY_ATTEMPTS = Integer.getInteger("journey.ingest.replay_attempts", 3);
+
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommitIngestor.class);
+
+    private final GraphDatabaseService graphDB;
+    private final String namespace;
+    private final NamespaceLocks locks;
+    private final int maxBatchSize;
+    private final long maxLingerMillis;
+    private final BlockingQueue<PendingBatch> queue;
+    // failed batches among the last STATUS_RETAINED ones
+    private final ConcurrentSkipListSet<Long> failedBatchIds = new ConcurrentSkipListSet<>();
+    private final Thread writer;
+    private final ReorderBuffer reorder;
+    private final IngestLog log;
+    private final CountDownLatch replayed = new CountDownLatch(1);
+    // log offsets of batches in the reorder buffer by batch id, only touched by the writer thread
+    private final TreeMap<Long, Long> bufferedLogEnds = new TreeMap<>();
+    // count of events still in the reorder buffer by batch id, only touched by the writer thread
+    private final TreeMap<Long, Integer> buffered = new TreeMap<>();
+    private long lastBufferedId = 0;
+    // checkpoint stays at or below the start of the first batch replay failed to apply and kept in the log, only touched by the writer thread
+    private long checkpointLimit = Long.MAX_VALUE;
+    private long lastSubmittedId = 0;
+    private volatile long lastCommittedId = 0;
+    private volatile boolean running = true;
+
+    public GroupCommitIngestor(GraphDatabaseService graphDB, String ns, NamespaceLocks locks) {
+        this(graphDB, ns, locks, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_LINGER_MILLIS, DEFAULT_REORDER_WINDOW_MILLIS);
+    }
+
+    public GroupCommitIngestor(GraphDatabaseService graphDB, String ns, NamespaceLocks locks,
+                               int queueCapacity, int maxBatchSize, long maxLingerMillis) {
+        this(graphDB, ns, locks, queueCapacity, maxBatchSize, maxLingerMillis, 0);
+    }
+
+    public GroupCommitIngestor(GraphDatabaseService graphDB, String ns, NamespaceLocks locks,
+                               int queueCapacity, int maxBatchSize, long maxLingerMillis, long reorderWindowMillis) {
+        this(graphDB, ns, locks, queueCapacity, maxBatchSize, maxLingerMillis, reorderWindowMillis, null);
+    }
+
+    public GroupCommitIngestor(GraphDatabaseService graphDB, String ns, NamespaceLocks locks, IngestLog log) {
+        this(graphDB, ns, locks, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_LINGER_MILLIS, DEFAULT_REORDER_WINDOW_MILLIS, log);
+    }
+
+    public GroupCommitIngestor(GraphDatabaseService graphDB, String ns, NamespaceLocks locks,
+                               int queueCapacity, int maxBatchSize, long maxLingerMillis, long reorderWindowMillis,
+                               IngestLog log) {
+        this.graphDB = graphDB;
+        this.log = log;
+        this.reorder = reorderWindowMillis > 0 ? new ReorderBuffer(reorderWindowMillis, DEFAULT_REORDER_CAPACITY) : null;
+        this.namespace = ns;
+        this.locks = locks;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLingerMillis = maxLingerMillis;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "journey-ingest-" + ns);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Put events into the ingestion queue, after they are synced to the ingest log if there is one.
+     *
+     * @param events list of event attributes
+     * @return batch id, or -1 if the queue is full
+     */
+    public long submit(List<Map> events) throws IOException {
+        PendingBatch batch;
+        synchronized (this) {
+            // only submitters add to the queue, so there is still room after appending to the log
+            if (!running || queue.remainingCapacity() == 0) {
+                return -1;
+            }
+            batch = new PendingBatch(lastSubmittedId + 1, events, log == null ? 0 : log.append(events));
+            queue.add(batch);
+            lastSubmittedId = batch.id;
+        }
+        if (log != null) {
+            log.sync(batch.logEnd);
+        }
+        return batch.id;
+    }
+
+    public BatchStatus status(long batchId) {
+        long lastSubmittedId = lastSubmittedId();
+        if (batchId <= 0 || batchId > lastSubmittedId || batchId <= lastSubmittedId - STATUS_RETAINED) {
+            return BatchStatus.UNKNOWN;
+        }
+        if (failedBatchIds.contains(batchId)) {
+            return BatchStatus.FAILED;
+        }
+        return batchId <= lastCommittedId ? BatchStatus.COMMITTED : BatchStatus.PENDING;
+    }
+
+    @Override
+    public boolean isServing(GraphDatabaseService db) {
+        return running && graphDB == db;
+    }
+
+    public int queueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return statistics of the reorder buffer, or null if reordering is disabled
+     */
+    public Map<String, Object> reorderStats() {
+        return reorder == null ? null : reorder.stats();
+    }
+
+    /**
+     * @return statistics of the ingest log, or null if there is no log
+     */
+    public Map<String, Object> logStats() {
+        return log == null ? null : log.stats();
+    }
+
+    /**
+     * Stop accepting new batches, commit everything already queued or held in the reorder buffer and
+     * stop the writer thread.
+     */
+    @Override
+    public void shutdown() throws InterruptedException {
+        synchronized (this) {
+            running = false;
+        }
+        writer.join();
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                logger.error("Failed to close ingest log of namespace " + namespace, e);
+            }
+        }
+    }
+
+    private synchronized long lastSubmittedId() {
+        return lastSubmittedId;
+    }
+
+    /**
+     * Block until batches left in the ingest log got replayed, so writes outside the ingestor can not
+     * get ahead of them.
+     */
+    public void awaitReplay() throws InterruptedException {
+        replayed.await();
+    }
+
+    private void drainLoop() {
+        try {
+            if (log != null) {
+                replay();
+            }
+        } finally {
+            replayed.countDown();
+        }
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingBatch first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    List<PendingBatch> group = collectGroup(first);
+                    if (reorder == null) {
+                        writeGroup(group);
+                    } else {
+                        bufferGroup(group);
+                    }
+                }
+                if (reorder != null) {
+                    writeBuffered(reorder.drain(System.currentTimeMillis()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        // watermark: nothing arrives after shutdown, so everything still held is flushed
+        if (reorder != null) {
+            writeBuffered(reorder.drainAll(System.currentTimeMillis()));
+        }
+    }
+
+    private List<PendingBatch> collectGroup(PendingBatch first) throws InterruptedException {
+        List<PendingBatch> group = new ArrayList<>();
+        group.add(first);
+        int eventCount = first.events.size();
+        long deadline = System.currentTimeMillis() + maxLingerMillis;
+
+        while (eventCount < maxBatchSize) {
+            PendingBatch next = queue.peek();
+            if (next != null && eventCount + next.events.size() > maxBatchSize) {
+                break;
+            }
+
+            long wait = deadline - System.currentTimeMillis();
+            next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+            if (next == null) {
+                break;
+            }
+            group.add(next);
+            eventCount += next.events.size();
+        }
+        return group;
+    }
+
+    private void writeGroup(List<PendingBatch> group) {
+        List<Map<String, Object>> events = new ArrayList<>();
+        Map<Long, List<Map<String, Object>>> eventsByBatch = new LinkedHashMap<>();
+        for (PendingBatch batch : group) {
+            List<Map<String, Object>> batchEvents = new ArrayList<>(batch.events.size());
+            for (Map eventAttrs : batch.events) {
+                //noinspection unchecked
+                batchEvents.add(eventAttrs);
+            }
+            events.addAll(batchEvents);
+            eventsByBatch.put(batch.id, batchEvents);
+        }
+        writeBatches(events, eventsByBatch);
+        PendingBatch last = group.get(group.size() - 1);
+        lastCommittedId = last.id;
+        checkpoint(last.logEnd);
+    }
+
+    /**
+     * Write batches left in the log after the last checkpoint, in chunks of up to max batch size events.
+     * A batch failing on its own stays in the log: the checkpoint is kept below it from then on, so it is
+     * replayed again on next start. After failing REPLAY_ATTEMPTS starts in a row it is dead lettered instead.
+     */
+    private void replay() {
+        if (log.recoveredRecords() == 0) {
+            return;
+        }
+        logger.info("Replaying " + log.recoveredRecords() + " ingestion batches from log of namespace " + namespace);
+        List<IngestLog.Record> chunk = new ArrayList<>();
+        int eventCount = 0;
+        // end of the last record read, 0 before the first one
+        long readEnd = 0;
+        try (IngestLog.RecordReader reader = log.recovered()) {
+            IngestLog.Record record;
+            while ((record = reader.next()) != null) {
+                readEnd = record.getEnd();
+                chunk.add(record);
+                eventCount += record.getEvents().size();
+                if (eventCount >= maxBatchSize) {
+                    replayChunk(chunk);
+                    chunk.clear();
+                    eventCount = 0;
+                }
+            }
+            replayChunk(chunk);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to read ingest log of namespace " + namespace + ", batches not replayed are kept in the log", e);
+            replayChunk(chunk);
+            checkpointLimit = Math.min(checkpointLimit, readEnd);
+        }
+    }
+
+    private void replayChunk(List<IngestLog.Record> chunk) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (IngestLog.Record record : chunk) {
+            for (Map eventAttrs : record.getEvents()) {
+                //noinspection unchecked
+                events.add(eventAttrs);
+            }
+        }
+        RuntimeException failure = writeEvents(events);
+        if (failure != null) {
+            for (IngestLog.Record record : chunk) {
+                //noinspection unchecked
+                RuntimeException recordFailure = writeEvents((List) record.getEvents());
+                if (recordFailure != null) {
+                    replayFailed(record, recordFailure);
+                }
+            }
+        }
+        checkpoint(chunk.get(chunk.size() - 1).getEnd());
+    }
+
+    private void replayFailed(IngestLog.Record record, RuntimeException failure) {
+        String batch = "ingestion batch ending at log offset " + record.getEnd() + " under namespace " + namespace;
+        try {
+            int attempts = log.replayFailed(record.getStart());
+            if (attempts >= REPLAY_ATTEMPTS) {
+                log.deadLetter(record);
+                logger.error("Failed to replay " + batch + " " + attempts + " times, moved it to the dead letter file", failure);
+                return;
+            }
+            logger.error("Failed to replay " + batch + " (attempt " + attempts + " of " + REPLAY_ATTEMPTS + "), keeping it in the log", failure);
+        } catch (IOException e) {
+            logger.error("Failed to replay " + batch + ", keeping it in the log", failure);
+            logger.warn("Failed to record replay failure in ingest log of namespace " + namespace, e);
+        }
+        checkpointLimit = Math.min(checkpointLimit, record.getStart());
+    }
+
+    private void checkpoint(long logEnd) {
+        if (log == null) {
+            return;
+        }
+        try {
+            log.checkpoint(Math.min(logEnd, checkpointLimit));
+        } catch (IOException e) {
+            // batches after an old checkpoint are only replayed again
+            logger.warn("Failed to checkpoint ingest log of namespace " + namespace, e);
+        }
+    }
+
+    private void bufferGroup(List<PendingBatch> group) {
+        long now = System.currentTimeMillis();
+        for (PendingBatch batch : group) {
+            if (isOrderable(batch)) {
+                for (Map eventAttrs : batch.events) {
+                    //noinspection unchecked
+                    reorder.add(eventAttrs, batch.id, now);
+                }
+                if (!batch.events.isEmpty()) {
+                    buffered.put(batch.id, batch.events.size());
+                }
+            } else {
+                logger.error("Failed ingestion batch " + batch.id + " under namespace " + namespace + ": event without session_id or start_at");
+                markFailed(batch.id);
+            }
+            bufferedLogEnds.put(batch.id, batch.logEnd);
+            lastBufferedId = batch.id;
+        }
+        updateLastCommittedId();
+    }
+
+    private static boolean isOrderable(PendingBatch batch) {
+        for (Map eventAttrs : batch.events) {
+            if (!ReorderBuffer.isOrderable(eventAttrs)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeBuffered(List<ReorderBuffer.Buffered> ready) {
+        if (ready.isEmpty()) {
+            return;
+        }
+        List<Map<String, Object>> events = new ArrayList<>(ready.size());
+        Map<Long, List<Map<String, Object>>> flushedByBatch = new LinkedHashMap<>();
+        for (ReorderBuffer.Buffered event : ready) {
+            events.add(event.getEvent());
+            List<Map<String, Object>> batchEvents = flushedByBatch.get(event.getTag());
+            if (batchEvents == null) {
+                batchEvents = new ArrayList<>();
+                flushedByBatch.put(event.getTag(), batchEvents);
+            }
+            batchEvents.add(event.getEvent());
+        }
+
+        writeBatches(events, flushedByBatch);
+
+        for (Map.Entry<Long, List<Map<String, Object>>> entry : flushedByBatch.entrySet()) {
+            int remaining = buffered.get(entry.getKey()) - entry.getValue().size();
+            if (remaining == 0) {
+                buffered.remove(entry.getKey());
+            } else {
+                buffered.put(entry.getKey(), remaining);
+            }
+        }
+        updateLastCommittedId();
+    }
+
+    private void updateLastCommittedId() {
+        lastCommittedId = buffered.isEmpty() ? lastBufferedId : buffered.firstKey() - 1;
+        SortedMap<Long, Long> committed = bufferedLogEnds.headMap(lastCommittedId + 1);
+        if (!committed.isEmpty()) {
+            checkpoint(committed.get(committed.lastKey()));
+            committed.clear();
+        }
+    }
+
+    /**
+     * Write events of given batches together, or one batch at a time if that fails, failing only the
+     * batches that still fail on their own.
+     */
+    private void writeBatches(List<Map<String, Object>> events, Map<Long, List<Map<String, Object>>> eventsByBatch) {
+        RuntimeException failure = writeEvents(events);
+        if (failure == null) {
+            return;
+        }
+        if (eventsByBatch.size() > 1) {
+            logger.warn("Failed to commit " + eventsByBatch.size() + " ingestion batches together under namespace " + namespace + ", writing them one by one", failure);
+            for (Map.Entry<Long, List<Map<String, Object>>> entry : eventsByBatch.entrySet()) {
+                RuntimeException batchFailure = writeEvents(entry.getValue());
+                if (batchFailure != null) {
+                    logger.error("Failed to commit ingestion batch " + entry.getKey() + " under namespace " + namespace, batchFailure);
+                    markFailed(entry.getKey());
+                }
+            }
+        } else {
+            for (Long batchId : eventsByBatch.keySet()) {
+                logger.error("Failed to commit ingestion batch " + batchId + " under namespace " + namespace, failure);
+                markFailed(batchId);
+            }
+        }
+    }
+
+    private void markFailed(long batchId) {
+        failedBatchIds.add(batchId);
+        failedBatchIds.headSet(lastSubmittedId() - STATUS_RETAINED, true).clear();
+    }
+
+    /**
+     * @return null if written, or the failure after retries
+     */
+    private RuntimeException writeEvents(List<Map<String, Object>> events) {
+        Set<String> sessionIds = new HashSet<>();
+        for (Map<String, Object> eventAttrs : events) {
+            // only picks lock stripes, malformed session ids fail in the transaction below
+            sessionIds.add(String.valueOf(eventAttrs.get("session_id")));
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            try (WriteScope ignored = locks.forSessions(sessionIds)) {
+                writeInTransactions(events);
+                return null;
+            } catch (RuntimeException e) {
+                ApplicationRegistry.getInstance().invalidate(namespace);
+                // retrying is safe even if some chunks got committed, committed events are skipped by digest
+                if (attempt < WriteRetry.MAX_ATTEMPTS && WriteRetry.isRetryable(e)) {
+                    locks.recordRetry();
+                    WriteRetry.backoff(attempt);
+                    continue;
+                }
+                return e;
+            }
+        }
+    }
+
+    private void writeInTransactions(List<Map<String, Object>> events) {
+        Application app = ApplicationRegistry.getInstance().get(graphDB, namespace);
+        try (BatchTransaction tx = new BatchTransaction(graphDB, maxBatchSize)) {
+            try {
+                for (int from = 0; from < events.size(); from += maxBatchSize) {
+                    if (from > 0) {
+                        tx.commit();
+                    }
+                    app.events().addAll(events.subList(from, Math.min(events.size(), from + maxBatchSize)));
+                }
+            } catch (RuntimeException e) {
+                tx.failure();
+                throw e;
+            }
+        }
+    }
+
+    private static class PendingBatch {
+        private final long id;
+        private final List<Map> events;
+        private final long logEnd;
+
+        private PendingBatch(long id, List<Map> events, long logEnd) {
+            this.id = id;
+            this.events = events;
+            this.logEnd = logEnd;
+        }
+    }
+}
@@ -0,0 +1,512 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.ingestion;
+
+import com.thoughtworks.studios.journey.utils.GraphDbUtils;
+import com.thoughtworks.studios.journey.utils.JSONUtils;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append only log of ingested event batches for one namespace, so batches can be acknowledged
+ * once they are on disk and applied to the graph later.
+ * <p>
+ * The log is a directory of memory mapped segment files named by the log offset they start at. Each
+ * record is its length, a CRC32 checksum and the batch in json. Appends only copy into the mapped
+ * segment; {@link #sync(long)} forces it to disk, and concurrent callers waiting for the same range share
+ * one force (group commit). The applier records a checkpoint offset after batches got committed to the
+ * graph. On open, records after the checkpoint are only checked; they are read back for replay one at
+ * a time through {@link #recovered()}. The first torn or corrupted record ends the log: it is wiped
+ * together with everything after it, later segments included. Segments entirely before the checkpoint
+ * are deleted.
+ * <p>
+ * Failed replays of a record are counted in a file next to the segments, so the applier can give up on
+ * a record after a number of restarts and move its batch to the dead letter file, one json array per line.
+ */
+public class IngestLog {
+    public static final boolean ENABLED = Boolean.getBoolean("journey.ingest.log");
+    public static final int DEFAULT_SEGMENT_SIZE = Integer.getInteger("journey.ingest.log.segment_size", 64 * 1024 * 1024);
+    private static final String LOG_SUFFIX = ".ingest-log";
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String REPLAY_FAILURES_FILE = "replay-failures";
+    private static final String DEAD_LETTER_FILE = "dead-letter";
+    private static final int HEADER_SIZE = 8;
+
+    private final File dir;
+    private final int segmentSize;
+    private final RandomAccessFile checkpointFile;
+    // range of the records found on open after the checkpoint
+    private long recoveredFrom;
+    private long recoveredEnd;
+    private int recoveredRecords;
+    private final AtomicLong appendedRecords = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final Object syncLock = new Object();
+    private Segment current;
+    private volatile long writtenOffset;
+    private volatile long syncedOffset;
+    private volatile long checkpoint;
+
+    public IngestLog(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public IngestLog(File dir, int segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create ingest log directory " + dir);
+        }
+        this.checkpointFile = new RandomAccessFile(new File(dir, CHECKPOINT_FILE), "rw");
+        this.checkpoint = checkpointFile.length() >= 8 ? checkpointFile.readLong() : 0;
+        recover();
+    }
+
+    /**
+     * Open the log of a namespace under the database store directory.
+     *
+     * @return the log, or null if the log is not enabled (system property journey.ingest.log)
+     */
+    public static IngestLog forNamespace(GraphDatabaseService graphDB, String ns) throws IOException {
+        File logsDir = logsDir(graphDB);
+        if (logsDir == null) {
+            return null;
+        }
+        return new IngestLog(new File(logsDir, ns + LOG_SUFFIX));
+    }
+
+    /**
+     * @return whether the namespace has a log under the database store directory, always false if the
+     * log is not enabled
+     */
+    public static boolean exists(GraphDatabaseService graphDB, String ns) {
+        File logsDir = logsDir(graphDB);
+        return logsDir != null && new File(logsDir, ns + LOG_SUFFIX).isDirectory();
+    }
+
+    /**
+     * @return namespaces having a log under the database store directory, empty if the log is not enabled
+     */
+    public static List<String> namespaces(GraphDatabaseService graphDB) {
+        File logsDir = logsDir(graphDB);
+        File[] files = logsDir == null ? null : logsDir.listFiles();
+        List<String> result = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory() && file.getName().endsWith(LOG_SUFFIX)) {
+                    result.add(file.getName().substring(0, file.getName().length() - LOG_SUFFIX.length()));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static File logsDir(GraphDatabaseService graphDB) {
+        File storeDir = ENABLED ? GraphDbUtils.storeDir(graphDB) : null;
+        return storeDir == null ? null : new File(storeDir, "journey");
+    }
+
+    /**
+     * @return reader of batches appended after the last checkpoint before the log was opened, in append order
+     */
+    public RecordReader recovered() {
+        return new RecordReader(recoveredFrom, recoveredEnd);
+    }
+
+    /**
+     * @return number of batches appended after the last checkpoint before the log was opened
+     */
+    public int recoveredRecords() {
+        return recoveredRecords;
+    }
+
+    /**
+     * Append a batch, which is not durable until {@link #sync(long)} is called with the returned offset.
+     *
+     * @return log offset at the end of the record
+     */
+    public synchronized long append(List<Map> events) throws IOException {
+        byte[] payload = JSONUtils.toJson(events).getBytes(StandardCharsets.UTF_8);
+        int recordSize = HEADER_SIZE + payload.length;
+        // leave room for the zero length marking end of segment
+        if (current == null || current.buffer.remaining() < recordSize + 4) {
+            roll(recordSize + 4);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        current.buffer.putInt(payload.length);
+        current.buffer.putInt((int) crc.getValue());
+        current.buffer.put(payload);
+        writtenOffset = current.base + current.buffer.position();
+        appendedRecords.incrementAndGet();
+        return writtenOffset;
+    }
+
+    /**
+     * Block until everything appended up to given offset is on disk.
+     */
+    public void sync(long offset) {
+        if (syncedOffset >= offset) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (syncedOffset >= offset) {
+                return;
+            }
+            Segment segment;
+            long target;
+            synchronized (this) {
+                segment = current;
+                target = writtenOffset;
+            }
+            // earlier segments got forced when rolled over
+            segment.buffer.force();
+            syncs.incrementAndGet();
+            syncedOffset = target;
+        }
+    }
+
+    /**
+     * Record that all batches up to given offset are applied to the graph. The checkpoint itself is
+     * not forced to disk: losing it only means replaying batches again, which skips existing events
+     * by digest.
+     */
+    public synchronized void checkpoint(long offset) throws IOException {
+        if (offset <= checkpoint) {
+            return;
+        }
+        checkpoint = offset;
+        checkpointFile.seek(0);
+        checkpointFile.writeLong(offset);
+        // a segment ends where the next one starts
+        List<File> files = segmentFiles();
+        for (int i = 0; i + 1 < files.size() && baseOf(files.get(i + 1)) <= offset; i++) {
+            if (!files.get(i).delete()) {
+                throw new IOException("can not delete ingest log segment " + files.get(i));
+            }
+        }
+    }
+
+    /**
+     * Count one more failed replay of the record starting at given log offset. Counts of records the
+     * checkpoint moved past are dropped.
+     *
+     * @return number of failed replays of the record so far, across restarts
+     */
+    public synchronized int replayFailed(long start) throws IOException {
+        File file = new File(dir, REPLAY_FAILURES_FILE);
+        Properties failures = new Properties();
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                failures.load(in);
+            }
+        }
+        for (String key : failures.stringPropertyNames()) {
+            if (Long.parseLong(key) < checkpoint) {
+                failures.remove(key);
+            }
+        }
+        int attempts = Integer.parseInt(failures.getProperty(String.valueOf(start), "0")) + 1;
+        failures.setProperty(String.valueOf(start), String.valueOf(attempts));
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            failures.store(out, null);
+            out.getFD().sync();
+        }
+        return attempts;
+    }
+
+    /**
+     * Append the batch of a record to the dead letter file and force it to disk, so the checkpoint can
+     * move past the record without losing the batch.
+     */
+    public synchronized void deadLetter(Record record) throws IOException {
+        byte[] line = (JSONUtils.toJson(record.getEvents()) + "\n").getBytes(StandardCharsets.UTF_8);
+        try (FileOutputStream out = new FileOutputStream(new File(dir, DEAD_LETTER_FILE), true)) {
+            out.write(line);
+            out.getFD().sync();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (current != null) {
+            current.buffer.force();
+            current.channel.close();
+            current = null;
+        }
+        checkpointFile.getChannel().force(true);
+        checkpointFile.close();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("appended_records", appendedRecords.get());
+        stats.put("syncs", syncs.get());
+        stats.put("written_offset", writtenOffset);
+        stats.put("synced_offset", syncedOffset);
+        stats.put("checkpoint", checkpoint);
+        stats.put("segments", segmentFiles().size());
+        return stats;
+    }
+
+    private void roll(int minSize) throws IOException {
+        long base;
+        if (current != null) {
+            base = current.base + current.buffer.position();
+            current.buffer.force();
+            current.channel.close();
+        } else {
+            base = writtenOffset;
+        }
+        current = new Segment(base, new File(dir, segmentName(base)), Math.max(segmentSize, minSize));
+    }
+
+    private void recover() throws IOException {
+        List<File> files = segmentFiles();
+        long end = checkpoint;
+        Segment last = null;
+        boolean corrupted = false;
+        for (File file : files) {
+            if (corrupted) {
+                // after the end of the log, can not be read as records later
+                if (!file.delete()) {
+                    throw new IOException("can not delete ingest log segment " + file);
+                }
+                continue;
+            }
+            long base = baseOf(file);
+            Segment segment = new Segment(base, file, (int) file.length());
+            ByteBuffer buffer = segment.buffer;
+            while (true) {
+                int length = nextRecordLength(buffer);
+                if (length <= 0 || !skipRecord(buffer, length)) {
+                    corrupted = length != 0;
+                    break;
+                }
+                if (base + buffer.position() > checkpoint) {
+                    recoveredRecords++;
+                }
+            }
+            end = base + buffer.position();
+            if (last != null) {
+                last.channel.close();
+            }
+            last = segment;
+        }
+
+        if (last != null) {
+            // wipe whatever a torn append left behind, so it can not be read as a record later
+            ByteBuffer buffer = last.buffer.duplicate();
+            while (buffer.hasRemaining()) {
+                buffer.put((byte) 0);
+            }
+            last.buffer.force();
+        }
+        current = last;
+        writtenOffset = Math.max(end, checkpoint);
+        syncedOffset = writtenOffset;
+        recoveredFrom = checkpoint;
+        recoveredEnd = writtenOffset;
+    }
+
+    /**
+     * Read the header of the record at buffer position.
+     *
+     * @return payload length, 0 at the end of the segment, or -1 if the header is corrupted
+     */
+    private static int nextRecordLength(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return 0;
+        }
+        int length = buffer.getInt(buffer.position());
+        return length < 0 || length > buffer.remaining() - HEADER_SIZE ? -1 : length;
+    }
+
+    // moves past the record if its checksum matches
+    private static boolean skipRecord(ByteBuffer buffer, int length) {
+        return readRecord(buffer, length) != null;
+    }
+
+    private static byte[] readRecord(ByteBuffer buffer, int length) {
+        int start = buffer.position();
+        buffer.getInt();
+        int checksum = buffer.getInt();
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+            buffer.position(start);
+            return null;
+        }
+        return payload;
+    }
+
+    private List<File> segmentFiles() {
+        File[] files = dir.listFiles();
+        List<File> result = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SEGMENT_SUFFIX)) {
+                    result.add(file);
+                }
+            }
+        }
+        Collections.sort(result, new Comparator<File>() {
+            @Override
+            public int compare(File left, File right) {
+                return Long.compare(baseOf(left), baseOf(right));
+            }
+        });
+        return result;
+    }
+
+    private static String segmentName(long base) {
+        return String.format("%020d%s", base, SEGMENT_SUFFIX);
+    }
+
+    private static long baseOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Reads records of a range of the log from its segment files. Segments are only mapped while being
+     * read, and the range must not be checkpointed past the records read so far.
+     */
+    public class RecordReader implements Closeable {
+        private final long from;
+        private final long to;
+        private Segment segment;
+        private long segmentBase = -1;
+        private long offset;
+
+        private RecordReader(long from, long to) {
+            this.from = from;
+            this.to = to;
+            this.offset = from;
+        }
+
+        /**
+         * @return next record, or null at the end of the range
+         */
+        public Record next() throws IOException {
+            while (offset < to) {
+                if (segment == null && !openSegment()) {
+                    return null;
+                }
+                ByteBuffer buffer = segment.buffer;
+                int length = nextRecordLength(buffer);
+                byte[] payload = length > 0 ? readRecord(buffer, length) : null;
+                if (payload == null) {
+                    close();
+                    continue;
+                }
+                long end = segment.base + buffer.position();
+                if (end > from) {
+                    long start = offset;
+                    offset = end;
+                    return new Record(JSONUtils.jsonToListMap(new String(payload, StandardCharsets.UTF_8)), start, end);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (segment != null) {
+                segment.channel.close();
+                segment = null;
+            }
+        }
+
+        // opens the segment holding the record after offset, false if there is none
+        private boolean openSegment() throws IOException {
+            File found = null;
+            for (File file : segmentFiles()) {
+                if (baseOf(file) <= offset) {
+                    found = file;
+                }
+            }
+            if (found == null || baseOf(found) == segmentBase) {
+                return false;
+            }
+            segmentBase = baseOf(found);
+            segment = new Segment(segmentBase, found, (int) found.length());
+            return true;
+        }
+    }
+
+    public static class Record {
+        private final List<Map> events;
+        private final long start;
+        private final long end;
+
+        private Record(List<Map> events, long start, long end) {
+            this.events = events;
+            this.start = start;
+            this.end = end;
+        }
+
+        public List<Map> getEvents() {
+            return events;
+        }
+
+        /**
+         * @return log offset at the end of the record before, the checkpoint must stay at or below it
+         * while the record is not applied
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return log offset at the end of the record, for checkpointing once it is applied
+         */
+        public long getEnd() {
+            return end;
+        }
+    }
+
+    private static class Segment {
+        private final long base;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        private Segment(long base, File file, int size) throws IOException {
+            this.base = base;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
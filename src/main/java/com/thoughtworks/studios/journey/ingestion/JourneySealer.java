@@ -0,0 +1,219 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.ingestion;
+
+import com.thoughtworks.studios.journey.models.Application;
+import com.thoughtworks.studios.journey.models.ApplicationRegistry;
+import com.thoughtworks.studios.journey.models.Journeys;
+import com.thoughtworks.studios.journey.models.WriteScope;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.IndexHits;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Seals journeys of a namespace that no more event can join: once the newest event of the namespace
+ * is more than {@link Journeys#CUT_TOLERANT} past a journey's finish time, the journey is marked sealed
+ * and dropped from the session cache, so event resolution never looks at it again.
+ * <p>
+ * Sweeps run on a background thread every interval, sealing journeys in batches of one transaction each
+ * under the write locks of their sessions.
+ */
+public class JourneySealer implements BackgroundWriter {
+    // 0 disables background sweeps
+    public static final long DEFAULT_INTERVAL_MILLIS = Long.getLong("journey.sealing.interval_ms", 0L);
+    public static final int DEFAULT_BATCH_SIZE = Integer.getInteger("journey.sealing.batch_size", 1000);
+
+    private static final Logger logger = LoggerFactory.getLogger(JourneySealer.class);
+
+    private final GraphDatabaseService graphDB;
+    private final String namespace;
+    private final NamespaceLocks locks;
+    private final int batchSize;
+    private final long intervalMillis;
+    private final Thread sweeper;
+    private final AtomicLong sweeps = new AtomicLong();
+    private final AtomicLong sealed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastSweepMillis = 0;
+    private volatile boolean running = true;
+
+    public JourneySealer(GraphDatabaseService graphDB, String ns, NamespaceLocks locks) {
+        this(graphDB, ns, locks, DEFAULT_BATCH_SIZE, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param intervalMillis time between background sweeps, no background sweep if not positive
+     */
+    public JourneySealer(GraphDatabaseService graphDB, String ns, NamespaceLocks locks, int batchSize, long intervalMillis) {
+        this.graphDB = graphDB;
+        this.namespace = ns;
+        this.locks = locks;
+        this.batchSize = batchSize;
+        this.intervalMillis = intervalMillis;
+        if (intervalMillis > 0) {
+            this.sweeper = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    sweepLoop();
+                }
+            }, "journey-sealer-" + ns);
+            this.sweeper.setDaemon(true);
+            this.sweeper.start();
+        } else {
+            this.sweeper = null;
+        }
+    }
+
+    /**
+     * Seal all journeys finished long enough before the newest event of the namespace.
+     *
+     * @return number of journeys sealed
+     */
+    public synchronized int sweep() {
+        long start = System.currentTimeMillis();
+        Long cutoff = cutoff();
+        int count = 0;
+        if (cutoff != null) {
+            while (true) {
+                List<Long> candidates = new ArrayList<>();
+                Set<String> sessionIds = new HashSet<>();
+                findCandidates(cutoff, candidates, sessionIds);
+                int sealedInBatch = candidates.isEmpty() ? 0 : sealBatch(cutoff, candidates, sessionIds);
+                count += sealedInBatch;
+                // candidates failing the check under lock come back in next query, stop when none got sealed
+                if (candidates.size() < batchSize || sealedInBatch == 0) {
+                    break;
+                }
+            }
+        }
+        sweeps.incrementAndGet();
+        sealed.addAndGet(count);
+        lastSweepMillis = System.currentTimeMillis() - start;
+        return count;
+    }
+
+    @Override
+    public boolean isServing(GraphDatabaseService db) {
+        return running && graphDB == db;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("interval_ms", intervalMillis);
+        stats.put("batch_size", batchSize);
+        stats.put("sweeps", sweeps.get());
+        stats.put("sealed", sealed.get());
+        stats.put("failures", failures.get());
+        stats.put("last_sweep_ms", lastSweepMillis);
+        return stats;
+    }
+
+    @Override
+    public void shutdown() throws InterruptedException {
+        running = false;
+        if (sweeper != null) {
+            sweeper.interrupt();
+            sweeper.join();
+        }
+    }
+
+    private void sweepLoop() {
+        while (running) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                sweep();
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+                logger.error("Failed to seal journeys under namespace " + namespace, e);
+            }
+        }
+    }
+
+    private Long cutoff() {
+        try (Transaction tx = graphDB.beginTx()) {
+            Application app = ApplicationRegistry.getInstance().get(graphDB, namespace);
+            Long latest = app.journeys().latestFinishAt();
+            tx.success();
+            return latest == null ? null : latest - Journeys.CUT_TOLERANT;
+        }
+    }
+
+    private void findCandidates(long cutoff, List<Long> candidates, Set<String> sessionIds) {
+        try (Transaction tx = graphDB.beginTx()) {
+            Journeys journeys = ApplicationRegistry.getInstance().get(graphDB, namespace).journeys();
+            try (IndexHits<Node> hits = journeys.unsealedFinishedBefore(cutoff, batchSize)) {
+                for (Node journey : hits) {
+                    candidates.add(journey.getId());
+                    sessionIds.add(journeys.getSessionId(journey));
+                }
+            }
+            tx.success();
+        }
+    }
+
+    private int sealBatch(long cutoff, List<Long> candidates, Set<String> sessionIds) {
+        for (int attempt = 1; ; attempt++) {
+            try (WriteScope ignored = locks.forSessions(sessionIds)) {
+                Journeys journeys = ApplicationRegistry.getInstance().get(graphDB, namespace).journeys();
+                int count = 0;
+                try (Transaction tx = graphDB.beginTx()) {
+                    long now = System.currentTimeMillis();
+                    for (Long id : candidates) {
+                        Node journey;
+                        try {
+                            journey = graphDB.getNodeById(id);
+                        } catch (NotFoundException e) {
+                            continue;
+                        }
+                        // an event may have been added since the query, keep the journey open then
+                        if (!journeys.isSealed(journey) && journeys.getFinishAt(journey) < cutoff) {
+                            journeys.seal(journey, now);
+                            count++;
+                        }
+                    }
+                    tx.success();
+                }
+                return count;
+            } catch (RuntimeException e) {
+                ApplicationRegistry.getInstance().invalidate(namespace);
+                if (attempt >= WriteRetry.MAX_ATTEMPTS || !WriteRetry.isRetryable(e)) {
+                    throw e;
+                }
+                locks.recordRetry();
+                WriteRetry.backoff(attempt);
+            }
+        }
+    }
+}
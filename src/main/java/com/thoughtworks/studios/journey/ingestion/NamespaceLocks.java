@@ -0,0 +1,130 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.ingestion;
+
+import com.thoughtworks.studios.journey.models.WriteScope;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Write locks of a namespace. In the default namespace mode every write takes one exclusive lock,
+ * so writes of a namespace happen one at a time. In striped mode (system property
+ * journey.write_lock.mode=striped) writes of events take a shared namespace lock plus the stripes
+ * their session ids hash onto, so events of different sessions are written concurrently, and models
+ * lock shared keys (users, actions, property names) only where they create shared nodes. Whole
+ * namespace operations such as import or destroy always take the exclusive lock.
+ */
+public class NamespaceLocks {
+    public static final boolean STRIPED = "striped".equals(System.getProperty("journey.write_lock.mode", "namespace"));
+    public static final int DEFAULT_STRIPES = Integer.getInteger("journey.write_lock.stripes", 64);
+    public static final long DEFAULT_TIMEOUT_MILLIS = Long.getLong("journey.write_lock.timeout_ms", 1000L);
+
+    private final boolean striped;
+    private final long timeoutMillis;
+    private final ReentrantReadWriteLock namespaceLock = new ReentrantReadWriteLock();
+    private final Lock[] sessionStripes;
+    private final Lock[] sharedStripes;
+    private final AtomicLong retries = new AtomicLong();
+
+    public NamespaceLocks() {
+        this(STRIPED, DEFAULT_STRIPES, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public NamespaceLocks(boolean striped, int stripes, long timeoutMillis) {
+        this.striped = striped;
+        this.timeoutMillis = timeoutMillis;
+        this.sessionStripes = newLocks(stripes);
+        this.sharedStripes = newLocks(stripes);
+    }
+
+    public boolean isStriped() {
+        return striped;
+    }
+
+    /**
+     * @return lock excluding all other writes of the namespace
+     */
+    public Lock exclusive() {
+        return namespaceLock.writeLock();
+    }
+
+    /**
+     * Open write scope for writing events of given sessions.
+     */
+    public WriteScope forSessions(Collection<String> sessionIds) {
+        if (!striped) {
+            return WriteScope.open(Collections.<Lock>singletonList(exclusive()), null, timeoutMillis);
+        }
+        return forPartition(sessionIds);
+    }
+
+    /**
+     * Open write scope for an ingestion worker writing events of given sessions. Workers of a namespace
+     * write concurrently whatever the mode is, so they always lock session stripes and shared keys.
+     */
+    public WriteScope forPartition(Collection<String> sessionIds) {
+        SortedSet<Integer> stripes = new TreeSet<>();
+        for (String sessionId : sessionIds) {
+            stripes.add(stripe(sessionId));
+        }
+        List<Lock> locks = new ArrayList<>(stripes.size() + 1);
+        locks.add(namespaceLock.readLock());
+        for (Integer stripe : stripes) {
+            locks.add(sessionStripes[stripe]);
+        }
+        return WriteScope.open(locks, sharedStripes, timeoutMillis);
+    }
+
+    /**
+     * Open write scope for identifying users, which only locks the users it touches in striped mode.
+     */
+    public WriteScope forUsers() {
+        if (!striped) {
+            return WriteScope.open(Collections.<Lock>singletonList(exclusive()), null, timeoutMillis);
+        }
+        return WriteScope.open(Collections.<Lock>singletonList(namespaceLock.readLock()), sharedStripes, timeoutMillis);
+    }
+
+    public void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("mode", striped ? "striped" : "namespace");
+        stats.put("retries", retries.get());
+        return stats;
+    }
+
+    int stripe(String sessionId) {
+        return sessionId == null ? 0 : (sessionId.hashCode() & Integer.MAX_VALUE) % sessionStripes.length;
+    }
+
+    private static Lock[] newLocks(int size) {
+        Lock[] locks = new Lock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+}
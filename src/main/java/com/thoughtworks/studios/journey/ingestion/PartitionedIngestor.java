@@ -0,0 +1,302 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.ingestion;
+
+import com.thoughtworks.studios.journey.models.Application;
+import com.thoughtworks.studios.journey.models.ApplicationRegistry;
+import com.thoughtworks.studios.journey.models.WriteScope;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Synchronous ingestion for one namespace on a fixed set of worker threads. Events are routed to
+ * workers by consistent hashing on session id, so each worker owns its sessions and writes their
+ * events (and journeys) in its own transactions, in parallel with the other workers. Creating shared
+ * nodes (actions, users, property names) is coordinated by the shared key locks of {@link WriteScope},
+ * and transactions failed by lock conflicts are retried. When the parts a worker grouped into one
+ * transaction fail together, they are written again one by one, so only the parts failing on their own fail.
+ * <p>
+ * Enabled by system property journey.ingest.workers, otherwise events are written on request threads.
+ */
+public class PartitionedIngestor implements BackgroundWriter {
+    public static final int DEFAULT_WORKERS = Integer.getInteger("journey.ingest.workers", 0);
+    public static final int DEFAULT_QUEUE_CAPACITY = Integer.getInteger("journey.ingest.worker_queue_capacity", 64);
+    public static final int DEFAULT_MAX_BATCH_SIZE = Integer.getInteger("journey.ingest.worker_batch_size", 2000);
+    private static final int VIRTUAL_NODES = 64;
+
+    private final GraphDatabaseService graphDB;
+    private final String namespace;
+    private final NamespaceLocks locks;
+    private final int maxBatchSize;
+    private final Worker[] workers;
+    private final TreeMap<Integer, Integer> ring = new TreeMap<>();
+    // write calls that passed the running check and may still be queueing parts
+    private final AtomicInteger queueing = new AtomicInteger();
+    private volatile boolean running = true;
+
+    public PartitionedIngestor(GraphDatabaseService graphDB, String ns, NamespaceLocks locks, int workerCount) {
+        this(graphDB, ns, locks, workerCount, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    public PartitionedIngestor(GraphDatabaseService graphDB, String ns, NamespaceLocks locks,
+                               int workerCount, int queueCapacity, int maxBatchSize) {
+        this.graphDB = graphDB;
+        this.namespace = ns;
+        this.locks = locks;
+        this.maxBatchSize = maxBatchSize;
+        this.workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring.put(mix(("worker-" + i + "#" + v).hashCode()), i);
+            }
+            workers[i] = new Worker(i, queueCapacity);
+            workers[i].thread.start();
+        }
+    }
+
+    /**
+     * Write events and wait till all of them are committed by the workers owning their sessions.
+     *
+     * @param events list of event attributes
+     * @throws PartialWriteException if some of the events got committed and the others failed
+     * @throws RuntimeException the failure of a worker writing the events, if none got committed
+     */
+    public void write(List<Map<String, Object>> events) throws InterruptedException {
+        if (events.isEmpty()) {
+            return;
+        }
+        Map<Integer, List<Map<String, Object>>> partitions = new HashMap<>();
+        for (Map<String, Object> event : events) {
+            int worker = workerFor((String) event.get("session_id"));
+            List<Map<String, Object>> partition = partitions.get(worker);
+            if (partition == null) {
+                partition = new ArrayList<>();
+                partitions.put(worker, partition);
+            }
+            partition.add(event);
+        }
+
+        Ticket ticket = new Ticket(partitions.size());
+        // workers keep draining while a call is queueing, so parts are not left behind after shut down
+        synchronized (this) {
+            if (!running) {
+                throw new IllegalStateException("ingestor of namespace " + namespace + " has been shut down");
+            }
+            queueing.incrementAndGet();
+        }
+        try {
+            for (Map.Entry<Integer, List<Map<String, Object>>> entry : partitions.entrySet()) {
+                workers[entry.getKey()].queue.put(new Part(ticket, entry.getValue()));
+            }
+        } finally {
+            queueing.decrementAndGet();
+        }
+        ticket.await();
+    }
+
+    @Override
+    public boolean isServing(GraphDatabaseService db) {
+        return running && graphDB == db;
+    }
+
+    public int workerCount() {
+        return workers.length;
+    }
+
+    /**
+     * Stop the workers after they have written everything already queued, including parts of write
+     * calls still queueing.
+     */
+    @Override
+    public void shutdown() throws InterruptedException {
+        synchronized (this) {
+            running = false;
+        }
+        for (Worker worker : workers) {
+            worker.thread.join();
+        }
+    }
+
+    public Map<String, Object> stats() {
+        List<Map<String, Object>> workerStats = new ArrayList<>();
+        for (Worker worker : workers) {
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("queue_size", worker.queue.size());
+            stats.put("events", worker.events.get());
+            stats.put("transactions", worker.transactions.get());
+            workerStats.add(stats);
+        }
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("workers", workerStats);
+        return stats;
+    }
+
+    int workerFor(String sessionId) {
+        Map.Entry<Integer, Integer> entry = ring.ceilingEntry(mix(sessionId == null ? 0 : sessionId.hashCode()));
+        return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    // spread String.hashCode() bits over the ring (murmur3 finalizer)
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private class Worker {
+        private final BlockingQueue<Part> queue;
+        private final Thread thread;
+        private final AtomicLong events = new AtomicLong();
+        private final AtomicLong transactions = new AtomicLong();
+
+        private Worker(int index, int queueCapacity) {
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drainLoop();
+                }
+            }, "journey-ingest-" + namespace + "-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        private void drainLoop() {
+            while (running || queueing.get() > 0 || !queue.isEmpty()) {
+                try {
+                    Part first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    List<Part> group = new ArrayList<>();
+                    group.add(first);
+                    int eventCount = first.events.size();
+                    Part next;
+                    while (eventCount < maxBatchSize && (next = queue.peek()) != null
+                            && eventCount + next.events.size() <= maxBatchSize) {
+                        group.add(queue.poll());
+                        eventCount += next.events.size();
+                    }
+                    writeGroup(group, eventCount);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        private void writeGroup(List<Part> group, int eventCount) {
+            List<Map<String, Object>> events = new ArrayList<>(eventCount);
+            for (Part part : group) {
+                events.addAll(part.events);
+            }
+            RuntimeException failure = writeEvents(events);
+            if (failure == null || group.size() == 1) {
+                for (Part part : group) {
+                    part.ticket.done(part, failure);
+                }
+                return;
+            }
+            for (Part part : group) {
+                part.ticket.done(part, writeEvents(part.events));
+            }
+        }
+
+        /**
+         * @return null if written, or the failure after retries
+         */
+        private RuntimeException writeEvents(List<Map<String, Object>> events) {
+            Set<String> sessionIds = new HashSet<>();
+            for (Map<String, Object> event : events) {
+                sessionIds.add((String) event.get("session_id"));
+            }
+            for (int attempt = 1; ; attempt++) {
+                try (WriteScope ignored = locks.forPartition(sessionIds)) {
+                    Application app = ApplicationRegistry.getInstance().get(graphDB, namespace);
+                    try (Transaction tx = graphDB.beginTx()) {
+                        app.events().addAll(events);
+                        tx.success();
+                    }
+                    this.events.addAndGet(events.size());
+                    this.transactions.incrementAndGet();
+                    return null;
+                } catch (RuntimeException e) {
+                    ApplicationRegistry.getInstance().invalidate(namespace);
+                    if (attempt >= WriteRetry.MAX_ATTEMPTS || !WriteRetry.isRetryable(e)) {
+                        return e;
+                    }
+                    locks.recordRetry();
+                    WriteRetry.backoff(attempt);
+                }
+            }
+        }
+    }
+
+    private static class Part {
+        private final Ticket ticket;
+        private final List<Map<String, Object>> events;
+
+        private Part(Ticket ticket, List<Map<String, Object>> events) {
+            this.ticket = ticket;
+            this.events = events;
+        }
+    }
+
+    // completion of one write call, counted down by each part
+    private static class Ticket {
+        private final CountDownLatch latch;
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        private final AtomicInteger committed = new AtomicInteger();
+
+        private Ticket(int parts) {
+            this.latch = new CountDownLatch(parts);
+        }
+
+        private void done(Part part, RuntimeException e) {
+            if (e == null) {
+                committed.addAndGet(part.events.size());
+            } else {
+                failure.compareAndSet(null, e);
+            }
+            latch.countDown();
+        }
+
+        private void await() throws InterruptedException {
+            latch.await();
+            if (failure.get() == null) {
+                return;
+            }
+            if (committed.get() > 0) {
+                throw new PartialWriteException(committed.get(), failure.get());
+            }
+            throw failure.get();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.ingestion;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds events of each open session for a time window before they are written, so events arriving
+ * slightly out of order get written in time order and mostly append to journey and user chains. A
+ * session's buffer is flushed whole once its oldest event has waited for the window, or earlier when
+ * the buffer holds more events than its capacity. Flushed events are sorted by start_at.
+ * <p>
+ * Used by the ingestion writer thread only, statistics can be read from any thread.
+ */
+public class ReorderBuffer {
+    private static final Comparator<Buffered> START_AT_ORDER = new Comparator<Buffered>() {
+        @Override
+        public int compare(Buffered left, Buffered right) {
+            return Long.compare(left.startAt, right.startAt);
+        }
+    };
+
+    private final long windowMillis;
+    private final int capacity;
+    // buffers by session, in the order their oldest event arrived
+    private final LinkedHashMap<String, SessionBuffer> sessions = new LinkedHashMap<>();
+    // latest start_at flushed by session, for telling late events, in the order sessions got flushed
+    private final LinkedHashMap<String, Flushed> flushed = new LinkedHashMap<>();
+    private final AtomicLong depth = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong outOfOrder = new AtomicLong();
+    private final AtomicLong late = new AtomicLong();
+    private final AtomicLong forcedFlushes = new AtomicLong();
+
+    public ReorderBuffer(long windowMillis, int capacity) {
+        this.windowMillis = windowMillis;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return whether the event has the session_id and start_at it is buffered and ordered by
+     */
+    public static boolean isOrderable(Map event) {
+        return event.get("session_id") instanceof String && event.get("start_at") instanceof Number;
+    }
+
+    /**
+     * Buffer an event arrived at given time.
+     *
+     * @param tag opaque tag returned with the event when flushed, e.g. id of the batch it came with
+     * @throws IllegalArgumentException if the event is not orderable, the buffer is left unchanged
+     */
+    public void add(Map<String, Object> event, long tag, long now) {
+        if (!isOrderable(event)) {
+            throw new IllegalArgumentException("Event without session_id or start_at can not be reordered");
+        }
+        String sessionId = (String) event.get("session_id");
+        long startAt = ((Number) event.get("start_at")).longValue();
+        events.incrementAndGet();
+
+        SessionBuffer buffer = sessions.get(sessionId);
+        Flushed last = flushed.get(sessionId);
+        long latestStartAt = Math.max(buffer == null ? Long.MIN_VALUE : buffer.maxStartAt, last == null ? Long.MIN_VALUE : last.maxStartAt);
+        if (startAt < latestStartAt) {
+            outOfOrder.incrementAndGet();
+            if (last != null && startAt < last.maxStartAt) {
+                late.incrementAndGet();
+            }
+        }
+
+        if (buffer == null) {
+            buffer = new SessionBuffer(now);
+            sessions.put(sessionId, buffer);
+        }
+        buffer.add(new Buffered(event, startAt, tag));
+        depth.incrementAndGet();
+    }
+
+    /**
+     * @return events of sessions due for flushing, in time order
+     */
+    public List<Buffered> drain(long now) {
+        List<Buffered> result = new ArrayList<>();
+        Iterator<Map.Entry<String, SessionBuffer>> iterator = sessions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, SessionBuffer> entry = iterator.next();
+            boolean due = now - entry.getValue().firstArrivalAt >= windowMillis;
+            if (!due && depth.get() <= capacity) {
+                break;
+            }
+            if (!due) {
+                forcedFlushes.incrementAndGet();
+            }
+            flush(entry.getKey(), entry.getValue(), now, result);
+            iterator.remove();
+        }
+        forgetFlushed(now);
+        Collections.sort(result, START_AT_ORDER);
+        return result;
+    }
+
+    /**
+     * @return all buffered events, in time order
+     */
+    public List<Buffered> drainAll(long now) {
+        List<Buffered> result = new ArrayList<>();
+        for (Map.Entry<String, SessionBuffer> entry : sessions.entrySet()) {
+            flush(entry.getKey(), entry.getValue(), now, result);
+        }
+        sessions.clear();
+        Collections.sort(result, START_AT_ORDER);
+        return result;
+    }
+
+    public boolean isEmpty() {
+        return sessions.isEmpty();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        long total = events.get();
+        stats.put("window_ms", windowMillis);
+        stats.put("depth", depth.get());
+        stats.put("events", total);
+        stats.put("out_of_order", outOfOrder.get());
+        stats.put("late", late.get());
+        stats.put("out_of_order_rate", total == 0 ? 0.0 : outOfOrder.get() / (double) total);
+        stats.put("late_rate", total == 0 ? 0.0 : late.get() / (double) total);
+        stats.put("forced_flushes", forcedFlushes.get());
+        return stats;
+    }
+
+    private void flush(String sessionId, SessionBuffer buffer, long now, List<Buffered> result) {
+        result.addAll(buffer.events);
+        depth.addAndGet(-buffer.events.size());
+
+        Flushed last = flushed.remove(sessionId);
+        long maxStartAt = last == null ? buffer.maxStartAt : Math.max(last.maxStartAt, buffer.maxStartAt);
+        flushed.put(sessionId, new Flushed(maxStartAt, now));
+    }
+
+    // sessions flushed long ago are unlikely to get events in order of the window anymore
+    private void forgetFlushed(long now) {
+        Iterator<Flushed> iterator = flushed.values().iterator();
+        while (iterator.hasNext() && now - iterator.next().flushedAt > 10 * windowMillis) {
+            iterator.remove();
+        }
+    }
+
+    public static class Buffered {
+        private final Map<String, Object> event;
+        private final long startAt;
+        private final long tag;
+
+        private Buffered(Map<String, Object> event, long startAt, long tag) {
+            this.event = event;
+            this.startAt = startAt;
+            this.tag = tag;
+        }
+
+        public Map<String, Object> getEvent() {
+            return event;
+        }
+
+        public long getTag() {
+            return tag;
+        }
+    }
+
+    private static class SessionBuffer {
+        private final long firstArrivalAt;
+        private final List<Buffered> events = new ArrayList<>();
+        private long maxStartAt = Long.MIN_VALUE;
+
+        private SessionBuffer(long firstArrivalAt) {
+            this.firstArrivalAt = firstArrivalAt;
+        }
+
+        private void add(Buffered buffered) {
+            events.add(buffered);
+            maxStartAt = Math.max(maxStartAt, buffered.startAt);
+        }
+    }
+
+    private static class Flushed {
+        private final long maxStartAt;
+        private final long flushedAt;
+
+        private Flushed(long maxStartAt, long flushedAt) {
+            this.maxStartAt = maxStartAt;
+            this.flushedAt = flushedAt;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.ingestion;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops the threads of a background writer when its database shuts down, so they do not outlive it.
+ * Neo4j refuses new transactions by then, so anything the writer has not written yet fails, and is only
+ * kept if it is in an ingest log. Runs ahead of the other handlers, so that writes still in progress
+ * finish before state they go through, such as digest filters, gets persisted. A server stops its
+ * plugins before the database, see {@link com.thoughtworks.studios.journey.JourneyPluginLifecycle}.
+ */
+public class ShutdownWithDatabase implements KernelEventHandler {
+    private static final Logger logger = LoggerFactory.getLogger(ShutdownWithDatabase.class);
+
+    private final BackgroundWriter writer;
+
+    private ShutdownWithDatabase(BackgroundWriter writer) {
+        this.writer = writer;
+    }
+
+    public static void register(GraphDatabaseService graphDB, BackgroundWriter writer) {
+        graphDB.registerKernelEventHandler(new ShutdownWithDatabase(writer));
+    }
+
+    @Override
+    public void beforeShutdown() {
+        try {
+            writer.shutdown();
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while shutting down ingestion writer threads", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void kernelPanic(ErrorState error) {
+    }
+
+    @Override
+    public Object getResource() {
+        return null;
+    }
+
+    @Override
+    public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+        return ExecutionOrder.BEFORE;
+    }
+}
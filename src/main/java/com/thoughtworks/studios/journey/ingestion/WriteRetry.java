@@ -0,0 +1,59 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.ingestion;
+
+import com.thoughtworks.studios.journey.models.WriteConflictException;
+import org.neo4j.kernel.DeadlockDetectedException;
+
+import java.util.Random;
+
+/**
+ * Retry policy for writes failed by lock conflicts with concurrent writes: Neo4j detected deadlocks
+ * and timed out shared key locks. Retrying events is safe because events already committed are
+ * skipped by digest.
+ */
+public class WriteRetry {
+    public static final int MAX_ATTEMPTS = Integer.getInteger("journey.write_retry.max_attempts", 5);
+    private static final long BASE_BACKOFF_MILLIS = Long.getLong("journey.write_retry.backoff_ms", 10L);
+    private static final Random random = new Random();
+
+    /**
+     * @return whether the failure is caused by a lock conflict and the write should be retried
+     */
+    public static boolean isRetryable(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DeadlockDetectedException || cause instanceof WriteConflictException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sleep for a random time growing with the attempt, so conflicting writers do not meet again.
+     */
+    public static void backoff(int attempt) {
+        long bound = BASE_BACKOFF_MILLIS << Math.min(attempt, 10);
+        try {
+            Thread.sleep(1 + (long) (random.nextDouble() * bound));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
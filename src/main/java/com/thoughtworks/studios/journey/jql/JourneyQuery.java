@@ -28,10 +28,7 @@ import org.neo4j.helpers.collection.Iterables;
 import org.neo4j.helpers.collection.LimitingIterable;
 import org.neo4j.index.lucene.QueryContext;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 
 import static org.neo4j.helpers.collection.Iterables.skip;
 
@@ -41,6 +38,7 @@ public class JourneyQuery {
     private List<JourneyCondition> conditions;
     private int limit;
     private int offset;
+    private JourneyQueryPlan plan;
 
 
     public static class Builder {
@@ -121,23 +119,43 @@ public class JourneyQuery {
         return result;
     }
 
-    private Iterable<Node> filter(Iterable<Node> journeys) {
-        for (final JourneyCondition condition : conditions) {
-            if (condition.matchingIndexes()) {
-                continue;
-            }
-
-            journeys = Iterables.filter(new Predicate<Node>() {
+    /**
+     * @return plan of the query, residual conditions get ordered on first call
+     */
+    public JourneyQueryPlan plan() {
+        if (plan == null) {
+            Iterable<Node> sample = new Iterable<Node>() {
                 @Override
-                public boolean accept(Node journey) {
-                    return condition.evaluate(app, journey);
+                public Iterator<Node> iterator() {
+                    QueryContext queryContext = new QueryContext(luceneQuery()).top(JourneyQueryPlan.SAMPLE_SIZE);
+                    return app.journeys().query(queryContext);
                 }
-            }, journeys);
+            };
+            plan = JourneyQueryPlan.plan(app, conditions, sample);
         }
-        return journeys;
+        return plan;
+    }
+
+    private Iterable<Node> filter(Iterable<Node> journeys) {
+        final JourneyQueryPlan plan = plan();
+        if (!plan.hasResiduals()) {
+            return journeys;
+        }
+        return Iterables.filter(new Predicate<Node>() {
+            @Override
+            public boolean accept(Node journey) {
+                return plan.accept(app, journey);
+            }
+        }, journeys);
     }
 
     private Iterable<Node> query() {
+        Sort sorting = new Sort(new SortField(Journeys.PROP_START_AT, SortField.LONG, descOrder));
+        QueryContext queryContext = new QueryContext(luceneQuery()).sort(sorting);
+        return app.journeys().query(queryContext);
+    }
+
+    private Query luceneQuery() {
         BooleanQuery luceneQuery = new BooleanQuery();
         luceneQuery.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
         for (JourneyCondition condition : conditions) {
@@ -146,9 +164,7 @@ public class JourneyQuery {
                 luceneQuery.add(q, BooleanClause.Occur.MUST);
             }
         }
-        Sort sorting = new Sort(new SortField(Journeys.PROP_START_AT, SortField.LONG, descOrder));
-        QueryContext queryContext = new QueryContext(luceneQuery).sort(sorting);
-        return app.journeys().query(queryContext);
+        return luceneQuery;
     }
 
     private Iterable<Node> applyLimitAndOffset(Iterable<Node> journeys) {
@@ -0,0 +1,152 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.jql;
+
+import com.thoughtworks.studios.journey.jql.conditions.JourneyCondition;
+import com.thoughtworks.studios.journey.models.Application;
+import org.neo4j.graphdb.Node;
+
+import java.util.*;
+
+/**
+ * Plan of a journey query: conditions pushed down into the journey index, and residual conditions
+ * evaluated journey by journey. Residual conditions are ordered by rank, cost / (1 - selectivity),
+ * so cheap conditions rejecting most journeys run first and later ones are skipped once a journey
+ * gets rejected. Cost comes from the fields a condition reads (see ModelAccessor), selectivity is
+ * estimated on a sample of journeys matching the index conditions.
+ */
+public class JourneyQueryPlan {
+    public static final int SAMPLE_SIZE = Integer.getInteger("journey.query.plan_sample_size", 100);
+
+    private final List<JourneyCondition> indexConditions;
+    private final List<Step> residuals;
+    private final int sampled;
+
+    JourneyQueryPlan(List<JourneyCondition> indexConditions, List<Step> residuals, int sampled) {
+        this.indexConditions = indexConditions;
+        this.residuals = residuals;
+        this.sampled = sampled;
+    }
+
+    /**
+     * @param sample journeys matching index conditions, only read when there is more than one
+     *               residual condition to order
+     */
+    static JourneyQueryPlan plan(Application app, List<JourneyCondition> conditions, Iterable<Node> sample) {
+        List<JourneyCondition> indexConditions = new ArrayList<>();
+        List<Step> residuals = new ArrayList<>();
+        for (JourneyCondition condition : conditions) {
+            if (condition.matchingIndexes()) {
+                indexConditions.add(condition);
+            } else {
+                residuals.add(new Step(condition));
+            }
+        }
+
+        int sampled = 0;
+        if (residuals.size() > 1) {
+            for (Node journey : sample) {
+                for (Step step : residuals) {
+                    if (step.condition.evaluate(app, journey)) {
+                        step.sampleAccepted++;
+                    }
+                }
+                sampled++;
+            }
+            for (Step step : residuals) {
+                // add-one smoothing, a condition accepting the whole sample still counts as filtering
+                step.selectivity = (step.sampleAccepted + 1.0) / (sampled + 2.0);
+            }
+        }
+        // stable sort, conditions of same rank keep the order they were written in
+        Collections.sort(residuals, new Comparator<Step>() {
+            @Override
+            public int compare(Step left, Step right) {
+                return Double.compare(left.rank(), right.rank());
+            }
+        });
+        return new JourneyQueryPlan(indexConditions, residuals, sampled);
+    }
+
+    public List<JourneyCondition> indexConditions() {
+        return indexConditions;
+    }
+
+    public boolean hasResiduals() {
+        return !residuals.isEmpty();
+    }
+
+    /**
+     * Evaluate residual conditions on a journey in plan order, stop at the first one rejecting it.
+     */
+    public boolean accept(Application app, Node journey) {
+        for (Step step : residuals) {
+            step.evaluated++;
+            if (!step.condition.evaluate(app, journey)) {
+                step.rejected++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Map<String, Object> toHash() {
+        List<String> index = new ArrayList<>();
+        for (JourneyCondition condition : indexConditions) {
+            index.add(condition.toString());
+        }
+        List<Map<String, Object>> residual = new ArrayList<>();
+        for (Step step : residuals) {
+            residual.add(step.toHash());
+        }
+        Map<String, Object> hash = new HashMap<>();
+        hash.put("index_conditions", index);
+        hash.put("residual_conditions", residual);
+        hash.put("sampled", sampled);
+        return hash;
+    }
+
+    private static class Step {
+        private final JourneyCondition condition;
+        private final int cost;
+        private int sampleAccepted = 0;
+        private Double selectivity = null;
+        private long evaluated = 0;
+        private long rejected = 0;
+
+        private Step(JourneyCondition condition) {
+            this.condition = condition;
+            this.cost = Math.max(condition.cost(), 1);
+        }
+
+        private double rank() {
+            return selectivity == null ? cost : cost / (1.0 - selectivity);
+        }
+
+        private Map<String, Object> toHash() {
+            Map<String, Object> hash = new HashMap<>();
+            hash.put("condition", condition.toString());
+            hash.put("cost", cost);
+            hash.put("selectivity", selectivity);
+            hash.put("evaluated", evaluated);
+            hash.put("rejected", rejected);
+            return hash;
+        }
+    }
+}
@@ -83,7 +83,7 @@ public class Stop {
     }
 
     private boolean match(Node event) {
-        return matchAny || app.events().action(event).equals(action);
+        return matchAny || (action != null && app.events().actionId(event) == action.getId());
     }
 
     public static Stop build(Application app, Map<String, Object> attrs) {
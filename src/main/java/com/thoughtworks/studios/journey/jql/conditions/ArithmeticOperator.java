@@ -27,12 +27,22 @@ enum ArithmeticOperator {
         public Value apply(Value left, Value right) {
             return left.plus(right);
         }
+
+        @Override
+        public long apply(long left, long right) {
+            return left + right;
+        }
     },
     MINUS {
         @Override
         public Value apply(Value left, Value right) {
             return left.minus(right);
         }
+
+        @Override
+        public long apply(long left, long right) {
+            return left - right;
+        }
     },
 
     MULTIPLY {
@@ -40,6 +50,11 @@ enum ArithmeticOperator {
         public Value apply(Value left, Value right) {
             return left.multiply(right);
         }
+
+        @Override
+        public long apply(long left, long right) {
+            return left * right;
+        }
     },
 
     DIVIDE {
@@ -47,6 +62,11 @@ enum ArithmeticOperator {
         public Value apply(Value left, Value right) {
             return left.divide(right);
         }
+
+        @Override
+        public long apply(long left, long right) {
+            return left / right;
+        }
     },
 
     REMINDER {
@@ -54,6 +74,11 @@ enum ArithmeticOperator {
         public Value apply(Value left, Value right) {
             return left.reminder(right);
         }
+
+        @Override
+        public long apply(long left, long right) {
+            return left % right;
+        }
     };
 
     private static Map<String, ArithmeticOperator> registry = new HashMap<>(2);
@@ -71,4 +96,6 @@ enum ArithmeticOperator {
     }
 
     public abstract Value apply(Value left, Value right);
+
+    public abstract long apply(long left, long right);
 }
@@ -44,4 +44,19 @@ class CombinedExpression implements Expression {
         Value rightVal = right.eval(app, journey);
         return arithmeticOperator.apply(leftVal, rightVal);
     }
+
+    @Override
+    public int cost() {
+        return left.cost() + right.cost();
+    }
+
+    @Override
+    public boolean isInteger() {
+        return left.isInteger() && right.isInteger();
+    }
+
+    @Override
+    public long evalLong(Application app, Node journey) {
+        return arithmeticOperator.apply(left.evalLong(app, journey), right.evalLong(app, journey));
+    }
 }
@@ -24,4 +24,16 @@ import org.neo4j.graphdb.Node;
 interface Expression {
     boolean includeField();
     Value eval(Application app, Node journey);
+
+    /**
+     * @return relative cost of evaluating the expression on a journey, 0 for literals
+     */
+    int cost();
+
+    /**
+     * @return true when the expression always evaluates to an integer, so evalLong can be used instead of eval
+     */
+    boolean isInteger();
+
+    long evalLong(Application app, Node journey);
 }
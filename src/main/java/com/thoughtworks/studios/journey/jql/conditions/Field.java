@@ -25,15 +25,19 @@ import org.neo4j.graphdb.Node;
 
 class Field implements Expression {
     private final String fullName;
+    private final ModelAccessor accessor;
+    private final IndexField indexField;
 
 
     public Field(String fieldName, boolean user) {
         fieldName = StringUtils.unquote(fieldName, "`");
         this.fullName = user ? "user." + fieldName : fieldName;
+        this.accessor = ModelAccessor.forField(fullName);
+        this.indexField = IndexField.get(fullName);
     }
 
     public IndexField indexField() {
-        return IndexField.get(fullName);
+        return indexField;
     }
 
     @Override
@@ -43,7 +47,6 @@ class Field implements Expression {
 
     @Override
     public Value eval(Application app, Node journey) {
-        ModelAccessor accessor = ModelAccessor.forField(fullName);
         if (accessor != null) {
             return accessor.get(app, journey);
         }
@@ -51,7 +54,26 @@ class Field implements Expression {
         throw new DataQueryError("Field " + fullName + " is not valid");
     }
 
+    @Override
+    public int cost() {
+        if (accessor != null) {
+            return accessor.cost();
+        }
+
+        throw new DataQueryError("Field " + fullName + " is not valid");
+    }
+
+    @Override
+    public boolean isInteger() {
+        return accessor != null && accessor.isInteger();
+    }
+
+    @Override
+    public long evalLong(Application app, Node journey) {
+        return accessor.getLong(app, journey);
+    }
+
     public boolean matchIndex() {
-        return indexField() != null;
+        return indexField != null;
     }
 }
@@ -44,6 +44,21 @@ public class FloatValue implements Expression, Value {
         return this;
     }
 
+    @Override
+    public int cost() {
+        return 0;
+    }
+
+    @Override
+    public boolean isInteger() {
+        return false;
+    }
+
+    @Override
+    public long evalLong(Application app, Node journey) {
+        throw new DataQueryError("float value " + val + " is not an integer");
+    }
+
     @Override
     public Value plus(Value right) {
         if (right instanceof IntValue) {
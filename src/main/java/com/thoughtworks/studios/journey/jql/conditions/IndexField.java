@@ -35,6 +35,10 @@ class IndexField {
         indexes.put("user.identifier", new IndexField(Journeys.IDX_PROP_UID, IndexFieldType.STRING));
         indexes.put("start_at", new IndexField(Journeys.PROP_START_AT, IndexFieldType.LONG));
         indexes.put("finish_at", new IndexField(Journeys.PROP_FINISH_AT, IndexFieldType.LONG));
+        indexes.put("first_action", new IndexField(Journeys.IDX_PROP_FIRST_ACTION, IndexFieldType.STRING));
+        indexes.put("user.anonymous_id", new IndexField(Journeys.IDX_PROP_ANONYMOUS_ID, IndexFieldType.STRING));
+        indexes.put("user.start_active_at", new IndexField(Journeys.IDX_PROP_USER_START_ACTIVE_AT, IndexFieldType.LONG));
+        indexes.put("user.last_active_at", new IndexField(Journeys.IDX_PROP_USER_LAST_ACTIVE_AT, IndexFieldType.LONG));
         indexes.put("actions", new IndexField(Journeys.IDX_PROP_ACTION_IDS, IndexFieldType.LONG, new ValueConverter() {
             @Override
             public Value convert(Application app, Value original) {
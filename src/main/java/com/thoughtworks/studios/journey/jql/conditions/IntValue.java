@@ -48,6 +48,21 @@ public class IntValue implements Expression, Value {
         return this;
     }
 
+    @Override
+    public int cost() {
+        return 0;
+    }
+
+    @Override
+    public boolean isInteger() {
+        return true;
+    }
+
+    @Override
+    public long evalLong(Application app, Node journey) {
+        return val;
+    }
+
     @Override
     public Value plus(Value right) {
         if (right instanceof IntValue) {
@@ -25,9 +25,11 @@ import org.apache.lucene.search.Query;
 import org.neo4j.graphdb.Node;
 
 public class JourneyCondition {
+    private String expression;
     private Expression leftExpr;
     private Expression rightExpr;
     private RelationOperator relationOperator;
+    private Evaluator evaluator;
 
     public static JourneyCondition parse(String expression) {
         JourneyConditionLexer lexer = new JourneyConditionLexer(new ANTLRInputStream(expression));
@@ -40,13 +42,65 @@ public class JourneyCondition {
         });
 
         final JourneyCondition condition = new JourneyCondition();
+        condition.expression = expression;
         JourneyConditionParser.ConditionContext context = parser.condition();
         condition.leftExpr = visit(context.expr(0));
         condition.rightExpr = visit(context.expr(1));
         condition.relationOperator = RelationOperator.forSymbol(context.rel_op().getText());
+        condition.evaluator = compile(condition.leftExpr, condition.relationOperator, condition.rightExpr);
         return condition;
     }
 
+    /**
+     * Bind operator and expressions of a condition into an evaluator once. Comparisons of integer
+     * expressions run on primitive longs without allocating values, and a side without fields is
+     * evaluated at compile time instead of for every journey.
+     */
+    private static Evaluator compile(final Expression left, final RelationOperator operator, final Expression right) {
+        if (left.isInteger() && right.isInteger() && operator.comparesIntegers()) {
+            if (!right.includeField()) {
+                final long constant = right.evalLong(null, null);
+                return new Evaluator() {
+                    @Override
+                    public boolean evaluate(Application app, Node journey) {
+                        return operator.apply(left.evalLong(app, journey), constant);
+                    }
+                };
+            }
+            if (!left.includeField()) {
+                final long constant = left.evalLong(null, null);
+                return new Evaluator() {
+                    @Override
+                    public boolean evaluate(Application app, Node journey) {
+                        return operator.apply(constant, right.evalLong(app, journey));
+                    }
+                };
+            }
+            return new Evaluator() {
+                @Override
+                public boolean evaluate(Application app, Node journey) {
+                    return operator.apply(left.evalLong(app, journey), right.evalLong(app, journey));
+                }
+            };
+        }
+
+        if (!right.includeField()) {
+            final Value constant = right.eval(null, null);
+            return new Evaluator() {
+                @Override
+                public boolean evaluate(Application app, Node journey) {
+                    return operator.apply(left.eval(app, journey), constant);
+                }
+            };
+        }
+        return new Evaluator() {
+            @Override
+            public boolean evaluate(Application app, Node journey) {
+                return operator.apply(left.eval(app, journey), right.eval(app, journey));
+            }
+        };
+    }
+
     private static Expression visit(JourneyConditionParser.ExprContext expr) {
         if (expr.field_name() != null) {
             return new Field(expr.field_name().getText(), expr.K_USER() != null);
@@ -89,8 +143,22 @@ public class JourneyCondition {
     }
 
     public boolean evaluate(Application app, Node journey) {
-        Value left = leftExpr.eval(app, journey);
-        Value right = rightExpr.eval(app, journey);
-        return relationOperator.apply(left, right);
+        return evaluator.evaluate(app, journey);
+    }
+
+    /**
+     * @return relative cost of evaluating the condition on a journey, see ModelAccessor
+     */
+    public int cost() {
+        return leftExpr.cost() + rightExpr.cost();
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    private interface Evaluator {
+        boolean evaluate(Application app, Node journey);
     }
 }
@@ -18,6 +18,7 @@
  */
 package com.thoughtworks.studios.journey.jql.conditions;
 
+import com.thoughtworks.studios.journey.jql.DataQueryError;
 import com.thoughtworks.studios.journey.models.Application;
 import org.neo4j.graphdb.Node;
 import org.neo4j.helpers.collection.Iterables;
@@ -26,23 +27,23 @@ import java.util.HashMap;
 import java.util.Map;
 
 public enum ModelAccessor {
-    START_ACTIVE_AT {
+    START_ACTIVE_AT(3, true) {
         @Override
-        public Value get(Application app, Node journey) {
+        public long getLong(Application app, Node journey) {
             Node user = app.journeys().user(journey);
-            return new IntValue(app.users().getStartActiveAt(user));
+            return app.users().getStartActiveAt(user);
         }
     },
 
-    LAST_ACTIVE_AT {
+    LAST_ACTIVE_AT(3, true) {
         @Override
-        public Value get(Application app, Node journey) {
+        public long getLong(Application app, Node journey) {
             Node user = app.journeys().user(journey);
-            return new IntValue(app.users().getLastActiveAt(user));
+            return app.users().getLastActiveAt(user);
         }
     },
 
-    IDENTIFIER {
+    IDENTIFIER(2) {
         @Override
         public Value get(Application app, Node journey) {
             Node user = app.journeys().user(journey);
@@ -50,46 +51,45 @@ public enum ModelAccessor {
         }
     },
 
-    FIRST_ACTION {
+    FIRST_ACTION(3) {
         @Override
         public Value get(Application app, Node journey) {
             Node firstEvent = app.journeys().firstEvent(journey);
             if (firstEvent == null) {
                 return new StringValue("");
             }
-            Node firstAction = app.events().action(firstEvent);
-            return new StringValue(app.actions().getActionLabel(firstAction));
+            return new StringValue(app.events().getActionLabel(firstEvent));
         }
     },
 
-    START_AT {
+    START_AT(1, true) {
         @Override
-        public Value get(Application app, Node journey) {
-            return new IntValue(app.journeys().getStartAt(journey));
+        public long getLong(Application app, Node journey) {
+            return app.journeys().getStartAt(journey);
         }
     },
 
-    FINISH_AT {
+    FINISH_AT(1, true) {
         @Override
-        public Value get(Application app, Node journey) {
-            return new IntValue(app.journeys().getFinishAt(journey));
+        public long getLong(Application app, Node journey) {
+            return app.journeys().getFinishAt(journey);
         }
     },
 
-    LENGTH {
+    LENGTH(1, true) {
         @Override
-        public Value get(Application app, Node journey) {
-            return new IntValue(app.journeys().length(journey));
+        public long getLong(Application app, Node journey) {
+            return app.journeys().length(journey);
         }
     },
 
-    ACTIONS {
+    ACTIONS(8) {
         @Override
         public Value get(Application app, Node journey) {
             return new SetValue(app.journeys().actions(journey));
         }
     },
-    ANONYMOUS_ID {
+    ANONYMOUS_ID(2) {
         @Override
         public Value get(Application app, Node journey) {
             Node user = app.journeys().user(journey);
@@ -100,6 +100,21 @@ public enum ModelAccessor {
 
     private static Map<String, ModelAccessor> registry = new HashMap<>(3);
 
+    // relative cost of reading the field: 1 for a journey property, plus one for each relationship
+    // hop to the node holding it, ACTIONS loads the whole action set
+    private final int cost;
+    // integer fields implement getLong, read without boxing into an IntValue
+    private final boolean integer;
+
+    ModelAccessor(int cost) {
+        this(cost, false);
+    }
+
+    ModelAccessor(int cost, boolean integer) {
+        this.cost = cost;
+        this.integer = integer;
+    }
+
     static {
         registry.put("user.start_active_at", START_ACTIVE_AT);
         registry.put("user.last_active_at", LAST_ACTIVE_AT);
@@ -116,6 +131,20 @@ public enum ModelAccessor {
         return registry.get(field);
     }
 
-    public abstract Value get(Application app, Node journey);
+    public Value get(Application app, Node journey) {
+        return new IntValue(getLong(app, journey));
+    }
+
+    public long getLong(Application app, Node journey) {
+        throw new DataQueryError("Field " + name().toLowerCase() + " is not an integer");
+    }
+
+    public boolean isInteger() {
+        return integer;
+    }
+
+    public int cost() {
+        return cost;
+    }
 
 }
@@ -32,6 +32,16 @@ import java.util.Map;
 
 enum RelationOperator {
     MORE_THAN {
+        @Override
+        public boolean comparesIntegers() {
+            return true;
+        }
+
+        @Override
+        public boolean apply(long left, long right) {
+            return left > right;
+        }
+
         @Override
         public Query generateIndexQuery(IndexField indexField, Value value) {
             switch (indexField.getType()) {
@@ -66,6 +76,16 @@ enum RelationOperator {
     },
 
     LESS_THAN {
+        @Override
+        public boolean comparesIntegers() {
+            return true;
+        }
+
+        @Override
+        public boolean apply(long left, long right) {
+            return left < right;
+        }
+
         @Override
         public Query generateIndexQuery(IndexField indexField, Value value) {
             switch (indexField.getType()) {
@@ -100,6 +120,16 @@ enum RelationOperator {
     },
 
     LESS_OR_EQ_THAN {
+        @Override
+        public boolean comparesIntegers() {
+            return true;
+        }
+
+        @Override
+        public boolean apply(long left, long right) {
+            return left <= right;
+        }
+
         @Override
         public Query generateIndexQuery(IndexField indexField, Value value) {
             switch (indexField.getType()) {
@@ -134,6 +164,16 @@ enum RelationOperator {
     },
 
     MORE_OR_EQ_THAN {
+        @Override
+        public boolean comparesIntegers() {
+            return true;
+        }
+
+        @Override
+        public boolean apply(long left, long right) {
+            return left >= right;
+        }
+
         @Override
         public Query generateIndexQuery(IndexField indexField, Value value) {
             switch (indexField.getType()) {
@@ -167,6 +207,16 @@ enum RelationOperator {
     },
 
     EQ {
+        @Override
+        public boolean comparesIntegers() {
+            return true;
+        }
+
+        @Override
+        public boolean apply(long left, long right) {
+            return left == right;
+        }
+
         @Override
         public Query generateIndexQuery(IndexField indexField, Value value) {
             switch (indexField.getType()) {
@@ -207,6 +257,16 @@ enum RelationOperator {
     },
 
     NOT_EQ {
+        @Override
+        public boolean comparesIntegers() {
+            return true;
+        }
+
+        @Override
+        public boolean apply(long left, long right) {
+            return left != right;
+        }
+
         @Override
         public Query generateIndexQuery(IndexField indexField, Value value) {
             return LuceneUtils.negate(EQ.generateIndexQuery(indexField, value));
@@ -303,4 +363,12 @@ enum RelationOperator {
     public abstract Query generateIndexQuery(IndexField indexField, Value value);
 
     public abstract boolean apply(Value left, Value right);
+
+    public boolean comparesIntegers() {
+        return false;
+    }
+
+    public boolean apply(long left, long right) {
+        throw new DataQueryError("operator is not compatible with integer values");
+    }
 }
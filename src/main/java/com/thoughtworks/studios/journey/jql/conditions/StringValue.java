@@ -18,6 +18,7 @@
  */
 package com.thoughtworks.studios.journey.jql.conditions;
 
+import com.thoughtworks.studios.journey.jql.DataQueryError;
 import com.thoughtworks.studios.journey.models.Application;
 import com.thoughtworks.studios.journey.utils.StringUtils;
 import org.neo4j.graphdb.Node;
@@ -39,6 +40,21 @@ public class StringValue extends BaseValue implements Expression, Value {
         return this;
     }
 
+    @Override
+    public int cost() {
+        return 0;
+    }
+
+    @Override
+    public boolean isInteger() {
+        return false;
+    }
+
+    @Override
+    public long evalLong(Application app, Node journey) {
+        throw new DataQueryError("string value '" + val + "' is not an integer");
+    }
+
     public String asString() {
         return val;
     }
@@ -0,0 +1,59 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.jql.transforms;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+
+import java.net.URI;
+
+/**
+ * Urls parsed for url transforms, memoized per url. Event urls repeat a lot, and dictionary encoded
+ * urls decode to the same string instance for the same code, so a lookup costs no more than an
+ * identity check on a string with its hash already computed.
+ */
+class ParsedUrls {
+    private static final int CACHE_SIZE = Integer.getInteger("journey.url_transforms.cache_size", 10000);
+    private static final ConcurrentLinkedHashMap<String, ParsedUrl> parsed =
+            new ConcurrentLinkedHashMap.Builder<String, ParsedUrl>().maximumWeightedCapacity(CACHE_SIZE).build();
+
+    static ParsedUrl parse(String url) {
+        ParsedUrl result = parsed.get(url);
+        if (result == null) {
+            URI uri;
+            try {
+                uri = URI.create(url);
+                result = new ParsedUrl(uri.getHost(), uri.getQuery());
+            } catch (Exception e) {
+                result = new ParsedUrl(null, null);
+            }
+            parsed.put(url, result);
+        }
+        return result;
+    }
+
+    static class ParsedUrl {
+        final String host;
+        final String query;
+
+        private ParsedUrl(String host, String query) {
+            this.host = host;
+            this.query = query;
+        }
+    }
+}
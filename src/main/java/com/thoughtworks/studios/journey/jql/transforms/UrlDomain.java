@@ -22,7 +22,6 @@ import com.thoughtworks.studios.journey.jql.Values;
 import com.thoughtworks.studios.journey.jql.values.JQLValue;
 import com.thoughtworks.studios.journey.jql.values.NullValue;
 import com.thoughtworks.studios.journey.jql.values.SingleValue;
-import com.thoughtworks.studios.journey.utils.URIUtils;
 
 public class UrlDomain implements ValueTransformFn {
 
@@ -34,7 +33,7 @@ public class UrlDomain implements ValueTransformFn {
 
         if (value instanceof SingleValue) {
             String url = (String) ((SingleValue) value).getWrapped();
-            return Values.wrapSingle(URIUtils.topDomain(url));
+            return Values.wrapSingle(ParsedUrls.parse(url).host);
         }
 
         throw new RuntimeException("Can not apply function url_query to " + value.toString());
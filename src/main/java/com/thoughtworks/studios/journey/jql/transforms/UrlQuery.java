@@ -35,7 +35,8 @@ public class UrlQuery implements ValueTransformFn {
         }
 
         if (value instanceof SingleValue) {
-            String queryValue = URIUtils.queryValue((String) ((SingleValue) value).getWrapped(), field);
+            String url = (String) ((SingleValue) value).getWrapped();
+            String queryValue = URIUtils.queryParam(ParsedUrls.parse(url).query, field);
             return Values.wrapSingle(queryValue);
         }
 
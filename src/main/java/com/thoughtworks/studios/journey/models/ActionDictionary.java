@@ -0,0 +1,169 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.models;
+
+import java.util.*;
+
+/**
+ * Copy-on-write dictionary of the actions of a namespace: label to action node id to a dense int id,
+ * plus the ignored flag. Reads go against an immutable snapshot without locking; creating or
+ * (un)ignoring an action copies the snapshot, which is cheap because actions are few and rarely
+ * change compared to events.
+ * <p>
+ * Dense ids are assigned in the order actions are registered, so they are only stable for the
+ * lifetime of the dictionary and should not be persisted.
+ */
+public class ActionDictionary {
+    private static final Snapshot EMPTY = new Snapshot(
+            Collections.<String, Entry>emptyMap(),
+            Collections.<Long, Entry>emptyMap(),
+            Collections.<Entry>emptyList());
+
+    private volatile Snapshot snapshot = EMPTY;
+
+    public Entry byLabel(String label) {
+        return snapshot.byLabel.get(label);
+    }
+
+    public Entry byNodeId(long nodeId) {
+        return snapshot.byNodeId.get(nodeId);
+    }
+
+    public Entry byId(int id) {
+        List<Entry> entries = snapshot.entries;
+        return id >= 0 && id < entries.size() ? entries.get(id) : null;
+    }
+
+    public int size() {
+        return snapshot.entries.size();
+    }
+
+    /**
+     * Register an action, or update the ignored flag of an action already registered.
+     *
+     * @return the registered entry
+     */
+    public synchronized Entry put(String label, long nodeId, boolean ignored) {
+        Snapshot current = snapshot;
+        Entry exist = current.byNodeId.get(nodeId);
+        if (exist != null && exist.label.equals(label)) {
+            if (exist.ignored == ignored) {
+                return exist;
+            }
+            Entry updated = new Entry(label, nodeId, exist.id, ignored);
+            snapshot = current.replace(exist, updated);
+            return updated;
+        }
+        if (exist != null) {
+            current = current.remove(exist);
+        }
+        Entry stale = current.byLabel.get(label);
+        if (stale != null) {
+            current = current.remove(stale);
+        }
+        Entry fresh = new Entry(label, nodeId, current.entries.size(), ignored);
+        snapshot = current.add(fresh);
+        return fresh;
+    }
+
+    /**
+     * Forget an action that turned out to be gone, e.g. created by a rolled back transaction.
+     */
+    public synchronized void remove(long nodeId) {
+        Entry exist = snapshot.byNodeId.get(nodeId);
+        if (exist != null) {
+            snapshot = snapshot.remove(exist);
+        }
+    }
+
+    public synchronized void clear() {
+        snapshot = EMPTY;
+    }
+
+    public static class Entry {
+        private final String label;
+        private final long nodeId;
+        private final int id;
+        private final boolean ignored;
+
+        private Entry(String label, long nodeId, int id, boolean ignored) {
+            this.label = label;
+            this.nodeId = nodeId;
+            this.id = id;
+            this.ignored = ignored;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public long getNodeId() {
+            return nodeId;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public boolean isIgnored() {
+            return ignored;
+        }
+    }
+
+    private static class Snapshot {
+        private final Map<String, Entry> byLabel;
+        private final Map<Long, Entry> byNodeId;
+        // indexed by dense id, removed entries leave a null slot so ids are never reused
+        private final List<Entry> entries;
+
+        private Snapshot(Map<String, Entry> byLabel, Map<Long, Entry> byNodeId, List<Entry> entries) {
+            this.byLabel = byLabel;
+            this.byNodeId = byNodeId;
+            this.entries = entries;
+        }
+
+        private Snapshot add(Entry entry) {
+            Snapshot copy = copy();
+            copy.byLabel.put(entry.label, entry);
+            copy.byNodeId.put(entry.nodeId, entry);
+            copy.entries.add(entry);
+            return copy;
+        }
+
+        private Snapshot replace(Entry old, Entry entry) {
+            Snapshot copy = copy();
+            copy.byLabel.put(entry.label, entry);
+            copy.byNodeId.put(entry.nodeId, entry);
+            copy.entries.set(old.id, entry);
+            return copy;
+        }
+
+        private Snapshot remove(Entry entry) {
+            Snapshot copy = copy();
+            copy.byLabel.remove(entry.label);
+            copy.byNodeId.remove(entry.nodeId);
+            copy.entries.set(entry.id, null);
+            return copy;
+        }
+
+        private Snapshot copy() {
+            return new Snapshot(new HashMap<>(byLabel), new HashMap<>(byNodeId), new ArrayList<>(entries));
+        }
+    }
+}
@@ -21,6 +21,7 @@ package com.thoughtworks.studios.journey.models;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.helpers.Predicate;
 
 import java.util.HashMap;
@@ -36,6 +37,8 @@ public class Actions implements Models {
     private static final String PROP_IGNORED = "ignored";
     private final Application app;
     private final GraphDatabaseService graphDb;
+    private final ActionDictionary dictionary = new ActionDictionary();
+    private volatile boolean dictionaryLoaded = false;
 
 
     public Actions(Application application) {
@@ -62,32 +65,103 @@ public class Actions implements Models {
     }
 
     public String getActionLabel(Node action) {
-        return (String) action.getProperty(PROP_ACTION_LABEL);
+        ActionDictionary.Entry entry = dictionary().byNodeId(action.getId());
+        return entry != null ? entry.getLabel() : (String) action.getProperty(PROP_ACTION_LABEL);
     }
 
     public Node findOrCreateByActionLabel(String actionLabel) {
         Node exist = findByActionLabel(actionLabel);
+        // a concurrent write may be creating the same action, look again once it committed
+        if (exist == null && WriteScope.lockShared("action:" + actionLabel)) {
+            exist = findByActionLabel(actionLabel);
+        }
         if (exist != null) {
             return exist;
         } else {
             Node fresh = graphDb.createNode(getLabel());
             fresh.setProperty(PROP_ACTION_LABEL, actionLabel);
+            dictionary.put(actionLabel, fresh.getId(), false);
             return fresh;
         }
     }
 
+    /**
+     * @return dictionary entry of the action, carrying its label, ignored flag and dense int id
+     */
+    public ActionDictionary.Entry entry(Node action) {
+        ActionDictionary.Entry entry = dictionary().byNodeId(action.getId());
+        return entry != null ? entry : register(action);
+    }
+
+    public ActionDictionary.Entry entry(long actionId) {
+        ActionDictionary.Entry entry = dictionary().byNodeId(actionId);
+        return entry != null ? entry : register(graphDb.getNodeById(actionId));
+    }
+
+    public boolean isIgnored(long actionId) {
+        return entry(actionId).isIgnored();
+    }
+
+    /**
+     * @return the action dictionary of this namespace, loaded with all actions on first call
+     */
+    public ActionDictionary dictionary() {
+        if (!dictionaryLoaded) {
+            synchronized (dictionary) {
+                if (!dictionaryLoaded) {
+                    for (Node action : all()) {
+                        register(action);
+                    }
+                    dictionaryLoaded = true;
+                }
+            }
+        }
+        return dictionary;
+    }
+
     public String getHttpMethod(Node action) {
         Node firstEvent = first(events(action));
         return app.events().getHttpMethod(firstEvent);
     }
 
     public Node findByActionLabel(String actionLabel) {
-        return graphDb.findNode(getLabel(), PROP_ACTION_LABEL, actionLabel);
+        ActionDictionary.Entry entry = dictionary().byLabel(actionLabel);
+        if (entry != null) {
+            Node action = live(entry);
+            if (action != null) {
+                return action;
+            }
+        }
+
+        Node action = graphDb.findNode(getLabel(), PROP_ACTION_LABEL, actionLabel);
+        if (action != null) {
+            register(action);
+        }
+        return action;
+    }
+
+    // entries of actions created by a rolled back transaction point to nodes that are gone or reused
+    private Node live(ActionDictionary.Entry entry) {
+        try {
+            Node action = graphDb.getNodeById(entry.getNodeId());
+            if (action.hasLabel(getLabel()) && entry.getLabel().equals(action.getProperty(PROP_ACTION_LABEL, null))) {
+                return action;
+            }
+        } catch (NotFoundException e) {
+            // fall through
+        }
+        dictionary.remove(entry.getNodeId());
+        return null;
+    }
+
+    private ActionDictionary.Entry register(Node action) {
+        return dictionary.put((String) action.getProperty(PROP_ACTION_LABEL), action.getId(), action.hasProperty(PROP_IGNORED));
     }
 
 
     public void addEvent(Node action, Node event) {
         connectSingle(event, RelTypes.ACTION, action);
+        event.setProperty(Events.PROP_ACTION_ID, action.getId());
     }
 
 
@@ -118,16 +192,23 @@ public class Actions implements Models {
         return getStartNodes(action, RelTypes.ACTION);
     }
 
+    /**
+     * Mark action ignored. The action dictionary is updated right away so the change is seen in the
+     * transaction, callers invalidate the application when the transaction rolls back.
+     */
     public void ignore(Node action) {
         action.setProperty(PROP_IGNORED, true);
+        register(action);
     }
 
     public boolean isIgnored(Node action) {
-        return action.hasProperty(PROP_IGNORED);
+        ActionDictionary.Entry entry = dictionary().byNodeId(action.getId());
+        return entry != null ? entry.isIgnored() : action.hasProperty(PROP_IGNORED);
     }
 
     public void unIgnore(Node action) {
         action.removeProperty(PROP_IGNORED);
+        register(action);
     }
 
 }
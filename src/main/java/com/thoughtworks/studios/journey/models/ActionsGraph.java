@@ -26,8 +26,9 @@ import java.util.*;
 import static org.neo4j.helpers.collection.Iterables.limit;
 
 public class ActionsGraph {
+    private static final int START_ID = -1;
     private final HashMap<Integer, Link> links;
-    private Map<String, GraphNode> nodes;
+    private Map<Long, GraphNode> nodes;
     private Application app;
     private int stepLimit;
 
@@ -37,17 +38,17 @@ public class ActionsGraph {
         this.nodes = new HashMap<>();
         this.links = new HashMap<>();
 
-        findOrCreateNode("$start", 0);
+        findOrCreateNode("$start", START_ID, 0);
     }
 
     public void add(Iterable<Node> events) {
         Iterable<Node> limited = limit(stepLimit, events);
         int step = 0;
-        GraphNode previous = findOrCreateNode("$start", step);
+        GraphNode previous = findOrCreateNode("$start", START_ID, step);
         for (Node event : limited) {
             step ++;
-            String actionLabel = app.events().getActionLabel(event);
-            GraphNode current = findOrCreateNode(actionLabel, step);
+            ActionDictionary.Entry action = app.events().getActionEntry(event);
+            GraphNode current = findOrCreateNode(action.getLabel(), action.getId(), step);
             if (previous != null) {
                 Link link = findOrCreateLink(previous, current);
                 link.increaseWeight();
@@ -74,8 +75,8 @@ public class ActionsGraph {
         return (k1 + k2) * (k1 + k2 + 1) / 2 + k2;
     }
 
-    private GraphNode findOrCreateNode(String actionLabel, int step) {
-        String key = String.valueOf(step) + "$" + actionLabel;
+    private GraphNode findOrCreateNode(String actionLabel, int actionId, int step) {
+        long key = ((long) step << 32) | (actionId & 0xffffffffL);
 
         GraphNode existing = nodes.get(key);
         if (existing != null) {
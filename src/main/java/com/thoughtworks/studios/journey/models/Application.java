@@ -37,17 +37,23 @@ public class Application {
     private String namespace;
     private CustomProperties customProperties;
     private UserTraits userTraits;
+    private StringDictionary strings;
 
     public Application(GraphDatabaseService graphDB, String ns) {
+        this(graphDB, ns, null);
+    }
+
+    Application(GraphDatabaseService graphDB, String ns, DigestFilter digestFilter) {
         this.graphDB = graphDB;
         this.namespace = ns.toUpperCase();
-        events = new Events(this);
+        events = new Events(this, digestFilter);
         journeys = new Journeys(this);
         actions = new Actions(this);
         users = new Users(this);
         customProperties = new CustomProperties(this);
         userTraits = new UserTraits(this);
-        models = new Models[]{events, journeys, actions, users, customProperties, userTraits};
+        strings = new StringDictionary(this);
+        models = new Models[]{events, journeys, actions, users, customProperties, userTraits, strings};
     }
 
     /**
@@ -67,6 +73,10 @@ public class Application {
         return userTraits;
     }
 
+    public StringDictionary strings() {
+        return strings;
+    }
+
     public Events events() {
         return events;
     }
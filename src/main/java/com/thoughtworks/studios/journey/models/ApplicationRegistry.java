@@ -0,0 +1,206 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.models;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps Application instances (and the caches of their models) alive across requests, one per namespace.
+ * Number of namespaces kept is bounded with LRU eviction, and namespaces not accessed for a while are
+ * evicted on later access. Callers should invalidate a namespace when a write transaction fails, so
+ * that cached nodes do not outlive the data and pending journey index updates of the failed transaction
+ * are dropped, and reset it when its data is replaced.
+ * <p>
+ * Invalidation and eviction keep the digest filter of the namespace and hand it to the next Application:
+ * writers still in transactions on the old Application add their digests to the same filter, while a
+ * filter rebuilt from committed events would miss them once they commit. Bits left by rolled back
+ * transactions only cost an extra index lookup.
+ */
+public class ApplicationRegistry {
+    public static final int DEFAULT_MAX_NAMESPACES = Integer.getInteger("journey.registry.max_namespaces", 64);
+    public static final long DEFAULT_IDLE_MILLIS = Long.getLong("journey.registry.idle_ms", 30 * 60 * 1000L);
+
+    private static final ApplicationRegistry INSTANCE = new ApplicationRegistry(DEFAULT_MAX_NAMESPACES, DEFAULT_IDLE_MILLIS);
+
+    private final ConcurrentLinkedHashMap<String, Entry> entries;
+    // digest filters of applications invalidated or evicted, kept until the next Application of the namespace takes them
+    private final ConcurrentHashMap<String, Retired> retired = new ConcurrentHashMap<>();
+    private final Set<GraphDatabaseService> watchedDatabases = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<GraphDatabaseService, Boolean>()));
+    private final long idleMillis;
+    private volatile long lastSweepAt;
+
+    public ApplicationRegistry(int maxNamespaces, long idleMillis) {
+        this.entries = new ConcurrentLinkedHashMap.Builder<String, Entry>()
+                .maximumWeightedCapacity(maxNamespaces)
+                .listener(new EvictionListener<String, Entry>() {
+                    @Override
+                    public void onEviction(String ns, Entry entry) {
+                        // only recorded after removal, a get in between builds a fresh filter
+                        retired.put(ns, new Retired(entry.app));
+                    }
+                })
+                .build();
+        this.idleMillis = idleMillis;
+        this.lastSweepAt = System.currentTimeMillis();
+    }
+
+    public static ApplicationRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    public Application get(GraphDatabaseService graphDB, String ns) {
+        long now = System.currentTimeMillis();
+        evictIdle(now);
+
+        if (DigestFilter.PERSIST && watchedDatabases.add(graphDB)) {
+            graphDB.registerKernelEventHandler(new PersistOnShutdown(graphDB));
+        }
+
+        Entry entry = entries.get(ns);
+        if (entry == null) {
+            Retired previous = retired.get(ns);
+            DigestFilter digestFilter = previous != null && previous.graphDB == graphDB ? previous.digestFilter : null;
+            Entry fresh = new Entry(new Application(graphDB, ns, digestFilter));
+            entry = entries.putIfAbsent(ns, fresh);
+            if (entry == null) {
+                entry = fresh;
+                if (previous != null) {
+                    retired.remove(ns, previous);
+                }
+            }
+        }
+
+        if (entry.app.graphDB() != graphDB) {
+            entry = new Entry(new Application(graphDB, ns));
+            entries.put(ns, entry);
+        }
+        entry.lastAccessAt = now;
+        return entry.app;
+    }
+
+    /**
+     * Drop cached models of the namespace, after a write transaction of current thread failed.
+     */
+    public void invalidate(String ns) {
+        // journey index updates the failed transaction left on this thread
+        DeferredJourneyIndex.discardPending();
+        Entry entry = entries.get(ns);
+        if (entry != null) {
+            retire(ns, entry);
+        }
+    }
+
+    /**
+     * Drop the namespace together with its digest filter, for when events are imported or destroyed
+     * without going through the filter.
+     */
+    public void reset(String ns) {
+        entries.remove(ns);
+        retired.remove(ns);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void evictIdle(long now) {
+        if (now - lastSweepAt < Math.min(idleMillis, 60 * 1000L)) {
+            return;
+        }
+        lastSweepAt = now;
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (now - e.getValue().lastAccessAt > idleMillis) {
+                retire(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private void retire(String ns, Entry entry) {
+        // recorded before removing, so a concurrent get never builds a fresh filter in between
+        retired.put(ns, new Retired(entry.app));
+        entries.remove(ns, entry);
+    }
+
+    private class PersistOnShutdown implements KernelEventHandler {
+        private final GraphDatabaseService graphDB;
+
+        private PersistOnShutdown(GraphDatabaseService graphDB) {
+            this.graphDB = graphDB;
+        }
+
+        @Override
+        public void beforeShutdown() {
+            for (Entry entry : entries.values()) {
+                if (entry.app.graphDB() == graphDB) {
+                    entry.app.events().digestFilter().persist();
+                }
+            }
+            for (Retired record : retired.values()) {
+                if (record.graphDB == graphDB) {
+                    record.digestFilter.persist();
+                }
+            }
+        }
+
+        @Override
+        public void kernelPanic(ErrorState error) {
+        }
+
+        @Override
+        public Object getResource() {
+            return null;
+        }
+
+        @Override
+        public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+            return ExecutionOrder.DOESNT_MATTER;
+        }
+    }
+
+    // digest filter of an application no longer cached, without the caches of its other models
+    private static class Retired {
+        private final GraphDatabaseService graphDB;
+        private final DigestFilter digestFilter;
+
+        private Retired(Application app) {
+            this.graphDB = app.graphDB();
+            this.digestFilter = app.events().digestFilter();
+        }
+    }
+
+    private static class Entry {
+        private final Application app;
+        private volatile long lastAccessAt;
+
+        private Entry(Application app) {
+            this.app = app;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.models;
+
+import org.neo4j.graphdb.Node;
+
+import java.util.*;
+
+/**
+ * Identify a batch of users, each record being a uid and/or an anonymous_id plus optional traits, with
+ * the same outcome as identifying them one by one. Users are looked up through the index once per
+ * distinct uid or anonymous_id in the batch, and traits of each user are collected over the batch and
+ * added at once, so existing trait values of a user are only looked up once.
+ */
+public class BulkIdentify {
+    private final Application app;
+    private final List<Map<String, Object>> records;
+    // a cached null means the user is known not to exist (anymore)
+    private final Map<String, Node> byUid = new HashMap<>();
+    private final Map<String, Node> byAnonymousId = new HashMap<>();
+    private final Map<Node, Map<String, Set>> traits = new LinkedHashMap<>();
+
+    public BulkIdentify(Application app, List<Map<String, Object>> records) {
+        this.app = app;
+        this.records = records;
+    }
+
+    /**
+     * @return number of records identified, records without uid nor anonymous_id are skipped
+     */
+    public int process() {
+        int count = 0;
+        for (Map<String, Object> record : records) {
+            Node user = identify((String) record.get("uid"), (String) record.get("anonymous_id"));
+            if (user == null) {
+                continue;
+            }
+            Object recordTraits = record.get("traits");
+            if (recordTraits instanceof Map) {
+                addTraits(user, (Map<?, ?>) recordTraits);
+            }
+            count++;
+        }
+
+        for (Map.Entry<Node, Map<String, Set>> entry : traits.entrySet()) {
+            app.userTraits().setProperties(entry.getKey(), entry.getValue());
+        }
+        return count;
+    }
+
+    private Node identify(String uid, String anonymousId) {
+        Users users = app.users();
+        if (anonymousId != null) {
+            WriteScope.lockShared("anonymous:" + anonymousId);
+        }
+        if (uid == null) {
+            if (anonymousId == null) {
+                return null;
+            }
+            Node anonymous = findByAnonymousId(anonymousId);
+            if (anonymous == null) {
+                anonymous = users.createByAnonymousId(anonymousId);
+                byAnonymousId.put(anonymousId, anonymous);
+            }
+            return anonymous;
+        }
+
+        WriteScope.lockShared("user:" + uid);
+        Node identified = findByUid(uid);
+        if (identified == null) {
+            identified = users.createByIdentifier(uid);
+            byUid.put(uid, identified);
+        }
+
+        Node anonymous = anonymousId == null ? null : findByAnonymousId(anonymousId);
+        if (anonymous != null) {
+            users.merge(anonymous, identified);
+            byAnonymousId.put(anonymousId, null);
+            Map<String, Set> anonymousTraits = traits.remove(anonymous);
+            if (anonymousTraits != null) {
+                for (Map.Entry<String, Set> entry : anonymousTraits.entrySet()) {
+                    //noinspection unchecked
+                    traitValues(identified, entry.getKey()).addAll(entry.getValue());
+                }
+            }
+        }
+        return identified;
+    }
+
+    private Node findByUid(String uid) {
+        if (!byUid.containsKey(uid)) {
+            byUid.put(uid, app.users().findByIdentifier(uid));
+        }
+        return byUid.get(uid);
+    }
+
+    private Node findByAnonymousId(String anonymousId) {
+        if (!byAnonymousId.containsKey(anonymousId)) {
+            byAnonymousId.put(anonymousId, app.users().findByAnonymousId(anonymousId));
+        }
+        return byAnonymousId.get(anonymousId);
+    }
+
+    private void addTraits(Node user, Map<?, ?> values) {
+        for (Map.Entry<?, ?> entry : values.entrySet()) {
+            //noinspection unchecked
+            traitValues(user, (String) entry.getKey()).add(entry.getValue());
+        }
+    }
+
+    private Set traitValues(Node user, String key) {
+        Map<String, Set> userTraits = traits.get(user);
+        if (userTraits == null) {
+            userTraits = new HashMap<>();
+            traits.put(user, userTraits);
+        }
+        Set values = userTraits.get(key);
+        if (values == null) {
+            values = new LinkedHashSet();
+            userTraits.put(key, values);
+        }
+        return values;
+    }
+}
@@ -22,10 +22,13 @@ import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.helpers.collection.PrefetchingIterator;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import static com.thoughtworks.studios.journey.utils.GraphDbUtils.*;
 import static org.neo4j.helpers.collection.Iterables.skip;
+import static org.neo4j.helpers.collection.Iterables.toList;
 
 /**
  * General behaviors for linked list like data structure in neo4j database base on time order.
@@ -75,6 +78,72 @@ public class ChronologicalChain {
         }
     }
 
+    /**
+     * Insert node into the chain by walking forward from a hint node already in the chain. Used for
+     * inserting a time sorted run of nodes, where each node goes after the previous one inserted.
+     *
+     * @param chain chain node
+     * @param hint  a node in the chain not later than the node to insert
+     * @param node  node to insert
+     */
+    public void insertFrom(Node chain, Node hint, Node node) {
+        Node cursor = hint;
+        for (Node next : skip(1, nodesAfter(hint))) {
+            if (time(next) > time(node)) {
+                insertBefore(node, next);
+                return;
+            }
+            cursor = next;
+        }
+        appendNode(chain, cursor, node);
+    }
+
+    /**
+     * Move all nodes of source chain into target chain. Both chains are in time order, so they are
+     * merged in a single pass, and only links to nodes whose neighbour changed get rewritten. Nodes at
+     * the same time keep the ones of target chain first, as insert does.
+     *
+     * @param target chain node to merge into
+     * @param source chain node to move nodes from, which is empty afterwards
+     */
+    public void merge(Node target, Node source) {
+        List<Node> sourceNodes = toList(nodes(source));
+        if (sourceNodes.isEmpty()) {
+            return;
+        }
+        List<Node> targetNodes = toList(nodes(target));
+        int size = sourceNodes.size() + targetNodes.size();
+        List<Node> merged = new ArrayList<>(size);
+        List<Node> oldNext = new ArrayList<>(size);
+        int i = 0;
+        int j = 0;
+        while (i < targetNodes.size() || j < sourceNodes.size()) {
+            if (j == sourceNodes.size() || (i < targetNodes.size() && time(sourceNodes.get(j)) >= time(targetNodes.get(i)))) {
+                merged.add(targetNodes.get(i));
+                oldNext.add(i + 1 < targetNodes.size() ? targetNodes.get(i + 1) : null);
+                i++;
+            } else {
+                merged.add(sourceNodes.get(j));
+                oldNext.add(j + 1 < sourceNodes.size() ? sourceNodes.get(j + 1) : null);
+                j++;
+            }
+        }
+
+        disconnectSingle(source, first);
+        disconnectSingle(source, last);
+        for (int k = 0; k < size; k++) {
+            Node newNext = k + 1 < size ? merged.get(k + 1) : null;
+            if (newNext == null ? oldNext.get(k) != null : !newNext.equals(oldNext.get(k))) {
+                disconnectSingle(merged.get(k), next);
+                if (newNext != null) {
+                    merged.get(k).createRelationshipTo(newNext, next);
+                }
+            }
+        }
+        connectSingle(target, first, merged.get(0));
+        connectSingle(target, last, merged.get(size - 1));
+    }
+
     private void appendNode(Node chain, Node lastNode, Node node) {
         connectSingle(lastNode, next, node);
         connectSingle(chain, last, node);
@@ -18,9 +18,36 @@
  */
 package com.thoughtworks.studios.journey.models;
 
+import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.helpers.collection.Iterables;
 
+import java.util.*;
+
+/**
+ * Custom properties of events. By default every value is a relationship from the event to the node of
+ * the property name. In inline layout (system property journey.custom_properties.layout=inline) a
+ * property with a single scalar value is stored as a prefixed property of the event node instead, and
+ * only multi valued properties keep relationships. Reads work over events written in either layout;
+ * events having inline properties are marked with the layout they use.
+ */
 public class CustomProperties extends PropertyCollections {
+    public enum Layout {
+        RELATIONSHIPS, INLINE
+    }
+
+    public static final Layout DEFAULT_LAYOUT = Layout.valueOf(System.getProperty("journey.custom_properties.layout", "relationships").toUpperCase());
+
+    static final String INLINE_PREFIX = "prop:";
+    static final String PROP_LAYOUT = "properties_layout";
+    // event with inline properties only, or with both inline properties and relationships
+    private static final String LAYOUT_INLINE = "inline";
+    private static final String LAYOUT_MIXED = "mixed";
+
+    private volatile Layout layout = DEFAULT_LAYOUT;
+
     public CustomProperties(Application application) {
         super(application);
     }
@@ -32,4 +59,150 @@ public class CustomProperties extends PropertyCollections {
     protected RelTypes propertyRelType() {
         return RelTypes.CUSTOM_PROPERTY;
     }
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Set layout of properties written from now on. Existing events are converted by migrating them.
+     */
+    public void setLayout(Layout layout) {
+        this.layout = layout;
+    }
+
+    @Override
+    public Set<Object> getProperty(Node event, String propertyName) {
+        String eventLayout = (String) event.getProperty(PROP_LAYOUT, null);
+        if (eventLayout == null) {
+            return super.getProperty(event, propertyName);
+        }
+        Object value = event.getProperty(INLINE_PREFIX + propertyName, null);
+        if (value != null) {
+            Set<Object> result = new HashSet<>(1);
+            result.add(value);
+            return result;
+        }
+        return LAYOUT_MIXED.equals(eventLayout) ? super.getProperty(event, propertyName) : new HashSet<>();
+    }
+
+    @Override
+    public Map<String, Set> properties(Node event) {
+        String eventLayout = (String) event.getProperty(PROP_LAYOUT, null);
+        if (eventLayout == null) {
+            return super.properties(event);
+        }
+        Map<String, Set> result = LAYOUT_MIXED.equals(eventLayout) ? super.properties(event) : new HashMap<String, Set>();
+        for (String key : event.getPropertyKeys()) {
+            if (key.startsWith(INLINE_PREFIX)) {
+                Set<Object> values = new HashSet<>(1);
+                values.add(event.getProperty(key));
+                result.put(key.substring(INLINE_PREFIX.length()), values);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void setProperty(Node event, String propertyName, Object value) {
+        if (value == null) {
+            return;
+        }
+        String eventLayout = (String) event.getProperty(PROP_LAYOUT, null);
+        Object inlined = eventLayout == null ? null : event.getProperty(INLINE_PREFIX + propertyName, null);
+
+        if (inlined == null && layout == Layout.INLINE && isScalar(value)) {
+            boolean hasRelationships = eventLayout == null
+                    ? event.hasRelationship(propertyRelType(), Direction.OUTGOING)
+                    : LAYOUT_MIXED.equals(eventLayout);
+            if (!hasRelationships || super.getProperty(event, propertyName).isEmpty()) {
+                findOrCreate(propertyName);
+                event.setProperty(INLINE_PREFIX + propertyName, value);
+                if (eventLayout == null) {
+                    event.setProperty(PROP_LAYOUT, hasRelationships ? LAYOUT_MIXED : LAYOUT_INLINE);
+                }
+                return;
+            }
+        }
+
+        if (inlined != null) {
+            if (inlined.equals(value)) {
+                return;
+            }
+            // second value of an inline property, the property becomes multi valued
+            event.removeProperty(INLINE_PREFIX + propertyName);
+            super.setProperty(event, propertyName, Arrays.asList(inlined, value));
+        } else {
+            super.setProperty(event, propertyName, value);
+        }
+        if (eventLayout != null && !LAYOUT_MIXED.equals(eventLayout)) {
+            event.setProperty(PROP_LAYOUT, LAYOUT_MIXED);
+        }
+    }
+
+    /**
+     * Move single valued scalar properties of an event from relationships to event node properties.
+     *
+     * @return true if the event got changed
+     */
+    public boolean inline(Node event) {
+        if (LAYOUT_INLINE.equals(event.getProperty(PROP_LAYOUT, null))) {
+            return false;
+        }
+        Map<String, List<Relationship>> relationshipsByName = new HashMap<>();
+        for (Relationship relationship : event.getRelationships(propertyRelType(), Direction.OUTGOING)) {
+            String name = getName(relationship.getEndNode());
+            List<Relationship> relationships = relationshipsByName.get(name);
+            if (relationships == null) {
+                relationships = new ArrayList<>(1);
+                relationshipsByName.put(name, relationships);
+            }
+            relationships.add(relationship);
+        }
+
+        boolean changed = false;
+        boolean multiValued = false;
+        for (Map.Entry<String, List<Relationship>> entry : relationshipsByName.entrySet()) {
+            List<Relationship> relationships = entry.getValue();
+            Object value = relationships.get(0).getProperty(REL_PROP_VALUE);
+            if (relationships.size() > 1 || !isScalar(value)) {
+                multiValued = true;
+                continue;
+            }
+            relationships.get(0).delete();
+            event.setProperty(INLINE_PREFIX + entry.getKey(), value);
+            changed = true;
+        }
+        if (!changed) {
+            return false;
+        }
+        removeValueHashes(event);
+        event.setProperty(PROP_LAYOUT, multiValued ? LAYOUT_MIXED : LAYOUT_INLINE);
+        return true;
+    }
+
+    /**
+     * Move inline properties of an event back to relationships.
+     *
+     * @return true if the event got changed
+     */
+    public boolean toRelationships(Node event) {
+        if (!event.hasProperty(PROP_LAYOUT)) {
+            return false;
+        }
+        event.removeProperty(PROP_LAYOUT);
+        for (String key : Iterables.toList(event.getPropertyKeys())) {
+            if (key.startsWith(INLINE_PREFIX)) {
+                Object value = event.removeProperty(key);
+                super.setProperty(event, key.substring(INLINE_PREFIX.length()), value);
+            }
+        }
+        return true;
+    }
+
+    private static boolean isScalar(Object value) {
+        return value instanceof String || value instanceof Boolean || value instanceof Integer
+                || value instanceof Long || value instanceof Double || value instanceof Float
+                || value instanceof Short || value instanceof Byte;
+    }
 }
@@ -0,0 +1,220 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.models;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.*;
+
+/**
+ * Collects legacy index updates of journeys made in a transaction and writes them once per journey
+ * with the final property values, right before the transaction commits (or before the index gets
+ * queried inside the transaction, so queries still see their own writes). Adding a 20 events
+ * journey only writes each indexed field once instead of a remove and add for every event.
+ * <p>
+ * Fields derived from a user are copied onto all journeys of the user, a change of the user is only
+ * expanded to its journeys on flush, so it costs one pass over the journeys per transaction.
+ * <p>
+ * Pending updates are kept per thread and taken by the commit of the thread's transaction. They are
+ * dropped when a transaction rolls back after commit handlers ran, and by
+ * {@link ApplicationRegistry#invalidate(String)}, which writers call after their transaction failed.
+ * A transaction rolled back before reaching commit without either still leaves its updates to the
+ * next transaction of the thread, so updates are checked against the graph when written: journeys
+ * gone are skipped, a journey counts as created only when the committing transaction created it, and
+ * action ids are only added for actions the journey is connected to.
+ */
+class DeferredJourneyIndex {
+    private static final Map<GraphDatabaseService, DeferredJourneyIndex> instances = new WeakHashMap<>();
+
+    private final ThreadLocal<Pending> pending = new ThreadLocal<>();
+
+    private DeferredJourneyIndex() {
+    }
+
+    static DeferredJourneyIndex forDatabase(GraphDatabaseService graphDb) {
+        synchronized (instances) {
+            DeferredJourneyIndex instance = instances.get(graphDb);
+            if (instance == null) {
+                final DeferredJourneyIndex fresh = new DeferredJourneyIndex();
+                graphDb.registerTransactionEventHandler(new TransactionEventHandler.Adapter<Object>() {
+                    @Override
+                    public Object beforeCommit(TransactionData data) throws Exception {
+                        // token creation commits an isolated transaction on the same thread, it
+                        // carries no entity changes and must not take the pending updates
+                        if (hasChanges(data)) {
+                            fresh.flush(data);
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public void afterRollback(TransactionData data, Object state) {
+                        fresh.pending.remove();
+                    }
+                });
+                instances.put(graphDb, fresh);
+                instance = fresh;
+            }
+            return instance;
+        }
+    }
+
+    private static boolean hasChanges(TransactionData data) {
+        return data.createdNodes().iterator().hasNext()
+                || data.deletedNodes().iterator().hasNext()
+                || data.assignedNodeProperties().iterator().hasNext()
+                || data.removedNodeProperties().iterator().hasNext()
+                || data.createdRelationships().iterator().hasNext()
+                || data.deletedRelationships().iterator().hasNext();
+    }
+
+    /**
+     * Drop updates pending on current thread in all databases, after its transaction failed.
+     */
+    static void discardPending() {
+        synchronized (instances) {
+            for (DeferredJourneyIndex instance : instances.values()) {
+                instance.pending.remove();
+            }
+        }
+    }
+
+    /**
+     * Mark journey created in current transaction, so it has nothing to remove from index on flush.
+     */
+    void created(Journeys journeys, Node journey) {
+        updates(journeys, journey).created = true;
+    }
+
+    void fieldChanged(Journeys journeys, Node journey, String field) {
+        updates(journeys, journey).fields.add(field);
+    }
+
+    void actionAdded(Journeys journeys, Node journey, long actionId) {
+        updates(journeys, journey).actionIds.add(actionId);
+    }
+
+    void userChanged(Journeys journeys, Node user, String field) {
+        Pending current = current();
+        UserUpdates updates = current.users.get(user.getId());
+        if (updates == null) {
+            updates = new UserUpdates(journeys, user);
+            current.users.put(user.getId(), updates);
+        }
+        updates.fields.add(field);
+    }
+
+    /**
+     * Write out pending updates of current transaction, e.g. before querying the index in it.
+     */
+    void flush() {
+        flush(null);
+    }
+
+    // data: changes of the committing transaction, null when flushed inside the transaction
+    private void flush(TransactionData data) {
+        Pending current = pending.get();
+        if (current == null) {
+            return;
+        }
+        // taken before writing: commit handlers may be invoked again for the writes made here
+        pending.remove();
+        Set<Long> createdIds = data == null ? Collections.<Long>emptySet() : createdNodeIds(data);
+        for (UserUpdates user : current.users.values()) {
+            try {
+                for (Node journey : user.journeys.journeysOf(user.user)) {
+                    current.updates(user.journeys, journey).fields.addAll(user.fields);
+                }
+            } catch (NotFoundException | IllegalStateException e) {
+                // user merged into another one later in the transaction
+            }
+        }
+        for (JourneyUpdates updates : current.journeys.values()) {
+            try {
+                boolean created = updates.created && createdIds.contains(updates.journey.getId());
+                updates.journeys.writeIndex(updates.journey, created, updates.fields, updates.actionIds);
+            } catch (NotFoundException | IllegalStateException e) {
+                // journey deleted later in the transaction
+            }
+        }
+    }
+
+    private JourneyUpdates updates(Journeys journeys, Node journey) {
+        return current().updates(journeys, journey);
+    }
+
+    private static Set<Long> createdNodeIds(TransactionData data) {
+        Set<Long> ids = new HashSet<>();
+        for (Node node : data.createdNodes()) {
+            ids.add(node.getId());
+        }
+        return ids;
+    }
+
+    private Pending current() {
+        Pending current = pending.get();
+        if (current == null) {
+            current = new Pending();
+            pending.set(current);
+        }
+        return current;
+    }
+
+    private static class Pending {
+        private final Map<Long, JourneyUpdates> journeys = new LinkedHashMap<>();
+        private final Map<Long, UserUpdates> users = new LinkedHashMap<>();
+
+        private JourneyUpdates updates(Journeys journeys, Node journey) {
+            JourneyUpdates updates = this.journeys.get(journey.getId());
+            if (updates == null) {
+                updates = new JourneyUpdates(journeys, journey);
+                this.journeys.put(journey.getId(), updates);
+            }
+            return updates;
+        }
+    }
+
+    private static class JourneyUpdates {
+        private final Journeys journeys;
+        private final Node journey;
+        private final Set<String> fields = new HashSet<>();
+        private final Set<Long> actionIds = new HashSet<>();
+        private boolean created = false;
+
+        private JourneyUpdates(Journeys journeys, Node journey) {
+            this.journeys = journeys;
+            this.journey = journey;
+        }
+    }
+
+    private static class UserUpdates {
+        private final Journeys journeys;
+        private final Node user;
+        private final Set<String> fields = new HashSet<>();
+
+        private UserUpdates(Journeys journeys, Node user) {
+            this.journeys = journeys;
+            this.user = user;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.models;
+
+import com.thoughtworks.studios.journey.utils.BloomFilter;
+import com.thoughtworks.studios.journey.utils.GraphDbUtils;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.thoughtworks.studios.journey.utils.MapUtils.mapOf;
+
+/**
+ * Bloom filter over event digests of a namespace, checked before the digest index lookup when
+ * importing events. Almost all imported digests are new, and for those the filter answers
+ * "definitely not exists" without an index seek.
+ * <p>
+ * The filter is built by scanning digests of existing events on first use. When it is filled over
+ * its capacity, a new filter with double capacity is stacked on top instead of rescanning (scalable
+ * bloom filter), so digests added by concurrent transactions are never lost. When persistence is
+ * enabled (system property journey.digest_filter.persist), it is saved under the database store
+ * directory on shutdown and loaded on next start instead of scanning. The saved file is deleted once
+ * loaded, so after a crash the filter is always rebuilt and never misses committed digests.
+ */
+public class DigestFilter {
+    public static final boolean PERSIST = Boolean.getBoolean("journey.digest_filter.persist");
+    private static final int MIN_CAPACITY = Integer.getInteger("journey.digest_filter.min_capacity", 100000);
+    private static final double FPP = 0.01;
+    private static final Logger logger = LoggerFactory.getLogger(DigestFilter.class);
+
+    private final Application app;
+    private final GraphDatabaseService graphDb;
+    private volatile List<BloomFilter> filters;
+    private final AtomicLong definiteMisses = new AtomicLong();
+    private final AtomicLong probableHits = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    public DigestFilter(Application app) {
+        this.app = app;
+        this.graphDb = app.graphDB();
+    }
+
+    /**
+     * @return false if no event with the digest exists for sure, true if it may exist
+     */
+    public boolean mightExist(String digest) {
+        boolean result = false;
+        for (BloomFilter filter : filters()) {
+            if (filter.mightContain(digest)) {
+                result = true;
+                break;
+            }
+        }
+        (result ? probableHits : definiteMisses).incrementAndGet();
+        return result;
+    }
+
+    public void recordFalsePositive() {
+        falsePositives.incrementAndGet();
+    }
+
+    public synchronized void add(String digest) {
+        List<BloomFilter> current = filters();
+        BloomFilter last = current.get(current.size() - 1);
+        if (last.isSaturated()) {
+            last = new BloomFilter(last.expectedInsertions() * 2, FPP);
+            current.add(last);
+        }
+        last.put(digest);
+    }
+
+    public Map<String, Object> stats() {
+        List<BloomFilter> current = filters;
+        long insertions = 0;
+        double notFalsePositive = 1.0;
+        if (current != null) {
+            for (BloomFilter filter : current) {
+                insertions += filter.insertions();
+                notFalsePositive *= 1 - filter.expectedFpp();
+            }
+        }
+        long misses = definiteMisses.get();
+        long fp = falsePositives.get();
+        return mapOf("insertions", (Object) insertions,
+                "expected_fpp", 1 - notFalsePositive,
+                "definite_misses", misses,
+                "probable_hits", probableHits.get(),
+                "observed_fpp", (fp + misses) == 0 ? 0.0 : (double) fp / (fp + misses));
+    }
+
+    /**
+     * Save the filter into store directory, if it is loaded and persistence is enabled.
+     */
+    public synchronized void persist() {
+        List<BloomFilter> current = filters;
+        File file = file();
+        if (current == null || file == null) {
+            return;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(current.size());
+            for (BloomFilter filter : current) {
+                filter.writeTo(out);
+            }
+        } catch (IOException e) {
+            logger.warn("Can not save digest filter to " + file, e);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private List<BloomFilter> filters() {
+        List<BloomFilter> current = filters;
+        if (current == null) {
+            synchronized (this) {
+                current = filters;
+                if (current == null) {
+                    current = load();
+                    if (current == null) {
+                        current = rebuild();
+                    }
+                    filters = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private List<BloomFilter> load() {
+        File file = file();
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            List<BloomFilter> result = new CopyOnWriteArrayList<>();
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                result.add(BloomFilter.readFrom(in));
+            }
+            return result.isEmpty() ? null : result;
+        } catch (IOException e) {
+            logger.warn("Can not load digest filter from " + file + ", will rebuild it.", e);
+            return null;
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private List<BloomFilter> rebuild() {
+        BloomFilter fresh = new BloomFilter(Math.max(MIN_CAPACITY, app.events().count() * 2), FPP);
+        try (ResourceIterator<Node> nodes = graphDb.findNodes(app.events().getLabel())) {
+            while (nodes.hasNext()) {
+                fresh.put(app.events().getDigest(nodes.next()));
+            }
+        }
+        List<BloomFilter> result = new CopyOnWriteArrayList<>();
+        result.add(fresh);
+        return result;
+    }
+
+    private File file() {
+        File storeDir = PERSIST ? GraphDbUtils.storeDir(graphDb) : null;
+        if (storeDir == null) {
+            return null;
+        }
+        return new File(new File(storeDir, "journey"), app.nameSpace() + ".digests");
+    }
+}
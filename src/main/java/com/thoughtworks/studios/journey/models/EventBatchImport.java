@@ -0,0 +1,118 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.models;
+
+import org.neo4j.graphdb.Node;
+
+import java.util.*;
+
+/**
+ * Import a batch of events. Events are grouped by session id and sorted by time within each session,
+ * then each session run is spliced into its journeys in order: the journey is only resolved again when
+ * the run leaves the time range (or user) of the current journey, and each event is chained after the
+ * previous one instead of being searched from the ends of the journey chain.
+ */
+public class EventBatchImport {
+    private static final Comparator<Map<String, Object>> START_AT_ORDER = new Comparator<Map<String, Object>>() {
+        @Override
+        public int compare(Map<String, Object> left, Map<String, Object> right) {
+            return Long.compare(startAt(left), startAt(right));
+        }
+    };
+
+    private final Application app;
+    private final List<Map<String, Object>> eventsAttrs;
+
+    public EventBatchImport(Application app, List<Map<String, Object>> eventsAttrs) {
+        this.app = app;
+        this.eventsAttrs = eventsAttrs;
+    }
+
+    public int process() {
+        int count = 0;
+        for (List<Map<String, Object>> run : sessionRuns()) {
+            count += importRun(run);
+        }
+        return count;
+    }
+
+    private Collection<List<Map<String, Object>>> sessionRuns() {
+        Map<String, List<Map<String, Object>>> runs = new LinkedHashMap<>();
+        Set<String> digests = new HashSet<>();
+        for (Map<String, Object> attrs : eventsAttrs) {
+            if (!digests.add((String) attrs.get("digest")) || !app.events().isAcceptable(attrs)) {
+                continue;
+            }
+            String sessionId = (String) attrs.get("session_id");
+            List<Map<String, Object>> run = runs.get(sessionId);
+            if (run == null) {
+                run = new ArrayList<>();
+                runs.put(sessionId, run);
+            }
+            run.add(attrs);
+        }
+
+        for (List<Map<String, Object>> run : runs.values()) {
+            Collections.sort(run, START_AT_ORDER);
+        }
+        return runs.values();
+    }
+
+    private int importRun(List<Map<String, Object>> run) {
+        Journeys journeys = app.journeys();
+        Node journey = null;
+        Node previous = null;
+        EventPostImport segmentEnd = null;
+        Map<String, Object> segmentAttrs = null;
+
+        for (Map<String, Object> attrs : run) {
+            Node event = app.events().createEventNode(attrs);
+            EventPostImport processor = new EventPostImport(app, event, attrs);
+            Node action = processor.findOrCreateAction();
+            String userIdentifier = (String) attrs.get("user");
+
+            if (journey == null || !sameUser(segmentAttrs, attrs) || !journeys.covers(journey, event, userIdentifier)) {
+                if (journey != null) {
+                    segmentEnd.attachingToUsers(journey);
+                }
+                journey = journeys.findOrCreateCoveredBySessionId((String) attrs.get("session_id"), event, userIdentifier);
+                previous = null;
+            }
+
+            journeys.addEvent(journey, event, action, previous);
+            previous = event;
+            segmentEnd = processor;
+            segmentAttrs = attrs;
+        }
+
+        if (journey != null) {
+            segmentEnd.attachingToUsers(journey);
+        }
+        return run.size();
+    }
+
+    private static boolean sameUser(Map<String, Object> left, Map<String, Object> right) {
+        return Objects.equals(left.get("user"), right.get("user"))
+                && Objects.equals(left.get("anonymous_id"), right.get("anonymous_id"));
+    }
+
+    private static long startAt(Map<String, Object> attrs) {
+        return ((Number) attrs.get("start_at")).longValue();
+    }
+}
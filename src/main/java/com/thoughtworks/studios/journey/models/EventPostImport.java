@@ -39,7 +39,7 @@ public class EventPostImport {
         attachingToUsers(journey);
     }
 
-    private void attachingToUsers(Node journey) {
+    void attachingToUsers(Node journey) {
         String anonymousId = getAnonymousId(journey);
         String userIdentifier = getUserIdentifier();
 
@@ -75,7 +75,7 @@ public class EventPostImport {
         return (String) eventAttrs.get("session_id");
     }
 
-    private Node findOrCreateAction() {
+    Node findOrCreateAction() {
         String actionLabel = (String) eventAttrs.get("action_label");
         Node action = actions().findOrCreateByActionLabel(actionLabel);
         actions().addEvent(action, event);
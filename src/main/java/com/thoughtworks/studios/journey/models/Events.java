@@ -26,6 +26,7 @@ import org.neo4j.graphdb.Node;
 import org.neo4j.helpers.collection.IteratorUtil;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -41,15 +42,29 @@ public class Events implements Models {
     private static final String PROP_CLIENT_IP = "client_ip";
     private static final String PROP_STATUS_CODE = "status_code";
     private static final String PROP_REFERRER = "referrer";
+    private static final String PROP_URL_CODE = "url_code";
+    private static final String PROP_REFERRER_CODE = "referrer_code";
+    static final String PROP_ACTION_ID = "action_id";
     public static final long ONE_DAY = 24 * 3600 * 1000L;
+    public static final boolean DEFAULT_ENCODE_STRINGS = Boolean.getBoolean("journey.events.encode_strings");
 
     private Application app = null;
 
     private GraphDatabaseService graphDb;
+    private final DigestFilter digestFilter;
+    private volatile boolean encodeStrings = DEFAULT_ENCODE_STRINGS;
 
     public Events(Application application) {
+        this(application, null);
+    }
+
+    /**
+     * @param digestFilter digest filter carried over from a previous Application of the namespace, null to build one
+     */
+    public Events(Application application, DigestFilter digestFilter) {
         this.app = application;
         this.graphDb = app.graphDB();
+        this.digestFilter = digestFilter == null ? new DigestFilter(application) : digestFilter;
     }
 
     /**
@@ -65,7 +80,40 @@ public class Events implements Models {
     }
 
     public String getUrl(Node node) {
-        return (String) propertyValueOrNull(node, PROP_URL);
+        return encodedString(node, PROP_URL, PROP_URL_CODE);
+    }
+
+    /**
+     * Set whether url and referrer of events written from now on are dictionary encoded. Events
+     * written either way can be read any time.
+     */
+    public void setEncodeStrings(boolean encodeStrings) {
+        this.encodeStrings = encodeStrings;
+    }
+
+    private String encodedString(Node node, String prop, String codeProp) {
+        if (encodeStrings) {
+            Object code = propertyValueOrNull(node, codeProp);
+            return code != null ? app.strings().decode((Long) code) : (String) propertyValueOrNull(node, prop);
+        }
+        Object value = propertyValueOrNull(node, prop);
+        if (value != null) {
+            return (String) value;
+        }
+        Object code = propertyValueOrNull(node, codeProp);
+        return code == null ? null : app.strings().decode((Long) code);
+    }
+
+    private void setEncodedString(Node node, String prop, String codeProp, Object value) {
+        if (encodeStrings) {
+            node.setProperty(codeProp, app.strings().encode((String) value));
+        } else {
+            node.setProperty(prop, value);
+        }
+    }
+
+    public String getDigest(Node node) {
+        return (String) node.getProperty(PROP_DIGEST);
     }
 
     public Long getStartAt(Node node) {
@@ -78,14 +126,7 @@ public class Events implements Models {
      * @param eventAttrs : map of attributes
      */
     public Node add(Map<String, Object> eventAttrs) {
-        String digest = (String) eventAttrs.get("digest");
-        long start_at = ((Number) eventAttrs.get("start_at")).longValue();
-
-        if(start_at > System.currentTimeMillis() + ONE_DAY) {
-            return null;
-        }
-
-        if (eventExists(digest)) {
+        if (!isAcceptable(eventAttrs)) {
             return null;
         }
         Node node = createEventNode(eventAttrs);
@@ -96,24 +137,52 @@ public class Events implements Models {
     }
 
 
+    /**
+     * Add a batch of events. Events are grouped by session and inserted in time order, so that
+     * each session run resolves its journey once and mostly appends to the journey event chain.
+     *
+     * @param eventsAttrs : list of map of attributes
+     * @return number of events actually added
+     */
+    public int addAll(List<Map<String, Object>> eventsAttrs) {
+        return new EventBatchImport(app, eventsAttrs).process();
+    }
+
+    boolean isAcceptable(Map<String, Object> eventAttrs) {
+        long start_at = ((Number) eventAttrs.get("start_at")).longValue();
+        return start_at <= System.currentTimeMillis() + ONE_DAY && !eventExists((String) eventAttrs.get("digest"));
+    }
+
     private boolean eventExists(String digest) {
-        return findByDigest(digest) != null;
+        if (!digestFilter.mightExist(digest)) {
+            return false;
+        }
+        boolean exists = findByDigest(digest) != null;
+        if (!exists) {
+            digestFilter.recordFalsePositive();
+        }
+        return exists;
+    }
+
+    public DigestFilter digestFilter() {
+        return digestFilter;
     }
 
     private Actions actions() {
         return app.actions();
     }
 
-    private Node createEventNode(Map<String, Object> attributes) {
+    Node createEventNode(Map<String, Object> attributes) {
         Node node = graphDb.createNode(getLabel());
         node.setProperty(PROP_DIGEST, attributes.get("digest"));
+        digestFilter.add((String) attributes.get("digest"));
         node.setProperty(PROP_START_AT, ((Number) attributes.get("start_at")).longValue());
         if (attributes.get("url") != null) {
-            node.setProperty(PROP_URL, attributes.get("url"));
+            setEncodedString(node, PROP_URL, PROP_URL_CODE, attributes.get("url"));
         }
 
         if (attributes.get("referrer") != null) {
-            node.setProperty(PROP_REFERRER, attributes.get("referrer"));
+            setEncodedString(node, PROP_REFERRER, PROP_REFERRER_CODE, attributes.get("referrer"));
         }
 
         if (attributes.get("http_method") != null) {
@@ -180,7 +249,7 @@ public class Events implements Models {
     }
 
     public String getReferrer(Node event) {
-        return (String) propertyValueOrNull(event, PROP_REFERRER);
+        return encodedString(event, PROP_REFERRER, PROP_REFERRER_CODE);
     }
 
     private Integer getStatusCode(Node event) {
@@ -192,13 +261,52 @@ public class Events implements Models {
     }
 
     public String getActionLabel(Node event) {
-        return actions().getActionLabel(action(event));
+        return getActionEntry(event).getLabel();
+    }
+
+    public ActionDictionary.Entry getActionEntry(Node event) {
+        return actions().entry(actionId(event));
     }
 
     public Node action(Node event) {
+        Object actionId = event.getProperty(PROP_ACTION_ID, null);
+        if (actionId != null) {
+            return graphDb.getNodeById((Long) actionId);
+        }
         return getSingleEndNode(event, RelTypes.ACTION);
     }
 
+    /**
+     * Id of the action node of the event, read from the denormalized action_id property when the
+     * event has it, so no relationship need to be loaded.
+     */
+    public long actionId(Node event) {
+        Object actionId = event.getProperty(PROP_ACTION_ID, null);
+        if (actionId != null) {
+            return (Long) actionId;
+        }
+        return getSingleEndNode(event, RelTypes.ACTION).getId();
+    }
+
+    /**
+     * Set action_id property of the event from its action relationship, for events imported before
+     * the property was introduced or whose property was copied from another database.
+     *
+     * @return whether the property changed
+     */
+    public boolean backfillActionId(Node event) {
+        Node action = getSingleEndNode(event, RelTypes.ACTION);
+        if (action == null) {
+            return false;
+        }
+        Object current = event.getProperty(PROP_ACTION_ID, null);
+        if (current != null && (Long) current == action.getId()) {
+            return false;
+        }
+        event.setProperty(PROP_ACTION_ID, action.getId());
+        return true;
+    }
+
     public Function<Node, String> getActionLabelFn() {
         return new Function<Node, String>() {
             @Override
@@ -19,6 +19,12 @@
 package com.thoughtworks.studios.journey.models;
 
 import com.thoughtworks.studios.journey.utils.GraphDbUtils;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.neo4j.function.Function;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.index.Index;
@@ -30,6 +36,7 @@ import org.neo4j.index.lucene.QueryContext;
 import org.neo4j.index.lucene.ValueContext;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.thoughtworks.studios.journey.utils.GraphDbUtils.getSingleEndNode;
 import static org.neo4j.helpers.collection.Iterables.*;
@@ -42,20 +49,33 @@ public class Journeys implements Models {
     public static final Long CUT_TOLERANT = 2 * 60 * 60 * 1000L; // 2 hours
     public static final String IDX_PROP_ACTION_IDS = "action_ids";
     public static final String PROP_LENGTH = "length";
+    public static final String PROP_SEALED_AT = "sealed_at";
+    public static final String IDX_PROP_FIRST_ACTION = "first_action";
+    public static final String IDX_PROP_ANONYMOUS_ID = "anonymous_id";
+    public static final String IDX_PROP_USER_START_ACTIVE_AT = "user_start_active_at";
+    public static final String IDX_PROP_USER_LAST_ACTIVE_AT = "user_last_active_at";
+    // fields derived from the user that are copied onto every journey of the user
+    private static final List<String> USER_FIELDS = Arrays.asList(IDX_PROP_UID, IDX_PROP_ANONYMOUS_ID,
+            IDX_PROP_USER_START_ACTIVE_AT, IDX_PROP_USER_LAST_ACTIVE_AT);
+    private static final List<String> QUERY_FIELDS = Arrays.asList(IDX_PROP_FIRST_ACTION, IDX_PROP_ANONYMOUS_ID,
+            IDX_PROP_USER_START_ACTIVE_AT, IDX_PROP_USER_LAST_ACTIVE_AT);
     public static final Set<String> INDEXED_FIELDS = new HashSet<>(3);
 
     private final Application app;
-    private final Map<String, LinkedList<Node>> journeysCache;
+    private final SessionCache sessionCache;
     private final ChronologicalChain chainHelper;
     private final Events events;
+    private final DeferredJourneyIndex deferredIndex;
+    private final AtomicLong indexWrites = new AtomicLong();
     private GraphDatabaseService graphDb;
 
     public Journeys(Application application) {
         this.app = application;
         this.graphDb = application.graphDB();
-        this.journeysCache = new HashMap<>();
+        this.sessionCache = new SessionCache();
         chainHelper = new ChronologicalChain(Events.PROP_START_AT);
         this.events = app.events();
+        this.deferredIndex = DeferredJourneyIndex.forDatabase(graphDb);
     }
 
     public void setupSchema() {
@@ -84,41 +104,127 @@ public class Journeys implements Models {
 
     public Node addEvent(String sessionId, String userIdentifier, Node event, Node action) {
         Node journey = findOrCreateCoveredBySessionId(sessionId, event, userIdentifier);
+        addEvent(journey, event, action, null);
+        return journey;
+    }
+
+    /**
+     * Add event to a resolved journey.
+     *
+     * @param previous event just added to the journey that is not later than this event, null if unknown.
+     *                 Used for inserting time sorted run of events without searching from chain ends.
+     */
+    void addEvent(Node journey, Node event, Node action, Node previous) {
         GraphDbUtils.connectUnique(journey, RelTypes.JOURNEY_ACTIONS, action);
         expandTimeRange(journey, events.getStartAt(event));
         event.createRelationshipTo(journey, RelTypes.BELONGS_TO);
-        legacyIndex().add(journey, IDX_PROP_ACTION_IDS, new ValueContext(action.getId()).indexNumeric());
-        chainHelper.insert(journey, event);
+        deferredIndex.actionAdded(this, journey, action.getId());
+        boolean empty = chainHelper.isEmpty(journey);
+        if (previous == null) {
+            chainHelper.insert(journey, event);
+        } else {
+            chainHelper.insertFrom(journey, previous, event);
+        }
+        if (event.equals(firstEvent(journey))) {
+            indexLater(journey, IDX_PROP_FIRST_ACTION);
+        }
         incrementLength(journey);
-        return journey;
     }
 
     private void incrementLength(Node journey) {
         journey.setProperty(PROP_LENGTH, length(journey) + 1);
-        legacyIndex().remove(journey, PROP_LENGTH);
-        legacyIndex().add(journey, PROP_LENGTH, new ValueContext(length(journey)).indexNumeric());
+        indexLater(journey, PROP_LENGTH);
     }
 
-    private void expandTimeRange(Node journey, Long eventAt) {
+    private void indexLater(Node journey, String field) {
+        deferredIndex.fieldChanged(this, journey, field);
+    }
+
+    /**
+     * Write pending index updates of the journey, called by DeferredJourneyIndex when flushing.
+     */
+    void writeIndex(Node journey, boolean created, Set<String> fields, Set<Long> actionIds) {
+        if (!journey.hasLabel(getLabel())) {
+            // id of a journey from a rolled back transaction, taken by another node
+            return;
+        }
         Index<Node> index = legacyIndex();
-        ValueContext valueContext = new ValueContext(eventAt).indexNumeric();
+        int writes = 0;
+        for (String field : fields) {
+            if (!created) {
+                index.remove(journey, field);
+                writes++;
+            }
+            Object value = indexValue(journey, field);
+            if (value != null) {
+                index.add(journey, field, value);
+                writes++;
+            }
+        }
+        if (!actionIds.isEmpty()) {
+            for (Relationship rel : journey.getRelationships(RelTypes.JOURNEY_ACTIONS, Direction.OUTGOING)) {
+                long actionId = rel.getEndNode().getId();
+                if (actionIds.contains(actionId)) {
+                    index.add(journey, IDX_PROP_ACTION_IDS, new ValueContext(actionId).indexNumeric());
+                    writes++;
+                }
+            }
+        }
+        indexWrites.addAndGet(writes);
+    }
+
+    private Object indexValue(Node journey, String field) {
+        if (IDX_PROP_UID.equals(field)) {
+            return userIdentifier(journey);
+        }
+        if (IDX_PROP_FIRST_ACTION.equals(field)) {
+            Node first = firstEvent(journey);
+            return first == null ? null : events.getActionLabel(first);
+        }
+        if (USER_FIELDS.contains(field)) {
+            Node user = user(journey);
+            if (user == null) {
+                return null;
+            }
+            if (IDX_PROP_ANONYMOUS_ID.equals(field)) {
+                return app.users().getAnonymousId(user);
+            }
+            Long activeAt = IDX_PROP_USER_START_ACTIVE_AT.equals(field) ?
+                    app.users().getStartActiveAt(user) : app.users().getLastActiveAt(user);
+            return activeAt == null ? null : new ValueContext(activeAt).indexNumeric();
+        }
+        Object value = journey.getProperty(field, null);
+        return value == null ? null : new ValueContext(value).indexNumeric();
+    }
+
+    /**
+     * @return count of legacy index writes made after collapsing updates per journey and transaction
+     */
+    public Map<String, Object> indexStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("index_writes", indexWrites.get());
+        return stats;
+    }
+
+    private void expandTimeRange(Node journey, Long eventAt) {
+        SessionCache.CachedJourney cached = sessionCache.get(journey.getId());
+        if (cached != null) {
+            cached.expand(eventAt);
+        }
         if (chainHelper.isEmpty(journey)) {
             journey.setProperty(PROP_START_AT, eventAt);
             journey.setProperty(PROP_FINISH_AT, eventAt);
-
-            index.add(journey, PROP_START_AT, valueContext);
-            index.add(journey, PROP_FINISH_AT, valueContext);
+            indexLater(journey, PROP_START_AT);
+            indexLater(journey, PROP_FINISH_AT);
         } else {
             if (eventAt < getStartAt(journey)) {
                 journey.setProperty(PROP_START_AT, eventAt);
-                index.remove(journey, PROP_START_AT);
-                index.add(journey, PROP_START_AT, valueContext);
+                indexLater(journey, PROP_START_AT);
             }
 
             if (eventAt > getFinishAt(journey)) {
                 journey.setProperty(PROP_FINISH_AT, eventAt);
-                index.remove(journey, PROP_FINISH_AT);
-                index.add(journey, PROP_FINISH_AT, valueContext);
+                indexLater(journey, PROP_FINISH_AT);
             }
         }
     }
@@ -143,46 +249,47 @@ public class Journeys implements Models {
         return filter(new Predicate<Node>() {
             @Override
             public boolean accept(Node event) {
-                return !app.actions().isIgnored(events.action(event));
+                return !app.actions().isIgnored(events.actionId(event));
             }
         }, evs);
     }
 
-    private Node findOrCreateCoveredBySessionId(String sessionId, Node event, String userIdentifier) {
-        if (journeysCache.containsKey(sessionId)) {
-            LinkedList<Node> journeys = journeysCache.get(sessionId);
-            for (Node journey : journeys) {
-                if (covers(journey, event, userIdentifier)) {
-                    return journey;
+    Node findOrCreateCoveredBySessionId(String sessionId, Node event, String userIdentifier) {
+        long eventAt = events.getStartAt(event);
+        SessionCache.CachedJourney cached = sessionCache.findCovering(sessionId, eventAt, userIdentifier);
+        if (cached == null && !sessionCache.isComplete(sessionId)) {
+            // load all journeys of the session once, later lookups are answered by the cache alone
+            try (ResourceIterator<Node> journeys = findAllBySessionId(sessionId)) {
+                while (journeys.hasNext()) {
+                    Node journey = journeys.next();
+                    if (isSealed(journey)) {
+                        continue;
+                    }
+                    sessionCache.put(sessionId, journey.getId(), getStartAt(journey), getFinishAt(journey), userIdentifier(journey));
                 }
             }
+            sessionCache.markComplete(sessionId);
+            cached = sessionCache.findCovering(sessionId, eventAt, userIdentifier, false);
         }
-
-        ResourceIterator<Node> journeys = findAllBySessionId(sessionId);
-
-        while (journeys.hasNext()) {
-            Node journey = journeys.next();
-            if (covers(journey, event, userIdentifier)) {
-                putIntoCache(sessionId, journey);
-                return journey;
-            }
+        if (cached != null) {
+            return graphDb.getNodeById(cached.getId());
         }
 
         Node journey = graphDb.createNode(getLabel());
         journey.setProperty(PROP_SESSION_ID, sessionId);
-        putIntoCache(sessionId, journey);
+        deferredIndex.created(this, journey);
+        sessionCache.put(sessionId, journey.getId(), null, null, null);
         return journey;
     }
 
-    private void putIntoCache(String sessionId, Node journey) {
-        if (!journeysCache.containsKey(sessionId)) {
-            journeysCache.put(sessionId, new LinkedList<Node>());
+    boolean covers(Node journey, Node event, String userIdentifier) {
+        SessionCache.CachedJourney cached = sessionCache.get(journey.getId());
+        if (cached != null) {
+            return cached.covers(events.getStartAt(event), userIdentifier);
+        }
+        if (isSealed(journey)) {
+            return false;
         }
-
-        journeysCache.get(sessionId).addFirst(journey);
-    }
-
-    private boolean covers(Node journey, Node event, String userIdentifier) {
         String journeyUserId = userIdentifier(journey);
         return (journeyUserId == null || userIdentifier == null || journeyUserId.equals(userIdentifier)) &&
                 events.getStartAt(event) >= getStartAt(journey) - CUT_TOLERANT &&
@@ -190,6 +297,46 @@ public class Journeys implements Models {
 
     }
 
+    public SessionCache sessionCache() {
+        return sessionCache;
+    }
+
+    public boolean isSealed(Node journey) {
+        return journey.hasProperty(PROP_SEALED_AT);
+    }
+
+    /**
+     * Seal a journey no more event is expected to join: it is dropped from the session cache and never
+     * picked for new events of its session again, a late event starts a new journey instead.
+     */
+    public void seal(Node journey, long sealedAt) {
+        journey.setProperty(PROP_SEALED_AT, sealedAt);
+        indexLater(journey, PROP_SEALED_AT);
+        sessionCache.remove(getSessionId(journey), journey.getId());
+    }
+
+    /**
+     * @return latest finish time of all journeys, null if there is no journey
+     */
+    public Long latestFinishAt() {
+        QueryContext query = new QueryContext(new MatchAllDocsQuery())
+                .sort(new Sort(new SortField(PROP_FINISH_AT, SortField.LONG, true)))
+                .top(1);
+        try (IndexHits<Node> hits = query(query)) {
+            return hits.hasNext() ? getFinishAt(hits.next()) : null;
+        }
+    }
+
+    /**
+     * @return at most limit journeys not sealed yet that finished before given time
+     */
+    public IndexHits<Node> unsealedFinishedBefore(long finishAt, int limit) {
+        BooleanQuery query = new BooleanQuery();
+        query.add(NumericRangeQuery.newLongRange(PROP_FINISH_AT, null, finishAt, true, false), BooleanClause.Occur.MUST);
+        query.add(NumericRangeQuery.newLongRange(PROP_SEALED_AT, null, null, true, true), BooleanClause.Occur.MUST_NOT);
+        return query(new QueryContext(query).top(limit));
+    }
+
     @Override
     public Map<String, Object> toHash(Node journey) {
         return toHash(journey, Integer.MAX_VALUE, 0);
@@ -218,7 +365,7 @@ public class Journeys implements Models {
 
     private String userIdentifier(Node journey) {
         Node user = user(journey);
-        return app.users().getIdentifier(user);
+        return user == null ? null : app.users().getIdentifier(user);
     }
 
     public String getSessionId(Node journey) {
@@ -231,17 +378,32 @@ public class Journeys implements Models {
 
     public void setUser(Node journey, Node user) {
         if (GraphDbUtils.connectSingle(journey, RelTypes.JOURNEY_USER, user)) {
-            Index<Node> index = legacyIndex();
-            index.remove(journey, IDX_PROP_UID);
             String uid = userIdentifier(journey);
-            if (uid != null) {
-                index.add(journey, IDX_PROP_UID, uid);
+            indexLater(journey, IDX_PROP_UID);
+            indexLater(journey, IDX_PROP_ANONYMOUS_ID);
+            indexLater(journey, IDX_PROP_USER_START_ACTIVE_AT);
+            indexLater(journey, IDX_PROP_USER_LAST_ACTIVE_AT);
+            SessionCache.CachedJourney cached = sessionCache.get(journey.getId());
+            if (cached != null) {
+                cached.setUserIdentifier(uid);
             }
         }
     }
 
+    /**
+     * Mark start or last active time of the user changed, the field gets reindexed on all journeys of
+     * the user once the transaction commits.
+     */
+    void userActivityChanged(Node user, String field) {
+        deferredIndex.userChanged(this, user, field);
+    }
+
+    Iterable<Node> journeysOf(Node user) {
+        return app.users().journeys(user);
+    }
 
     public IndexHits<Node> query(QueryContext queryContext) {
+        deferredIndex.flush();
         return legacyIndex().query(queryContext);
     }
 
@@ -274,7 +436,18 @@ public class Journeys implements Models {
         return journey.getDegree(RelTypes.FIRST_JOURNEY, Direction.INCOMING) > 0;
     }
 
+    /**
+     * Index first action, anonymous id and user active time of journey created before these fields
+     * were indexed, written when the transaction commits.
+     */
+    public void indexQueryFields(Node journey) {
+        for (String field : QUERY_FIELDS) {
+            indexLater(journey, field);
+        }
+    }
+
     public void reindex(Node journey) {
+        deferredIndex.flush();
         Index<Node> index = legacyIndex();
         if (!journey.hasLabel(getLabel())) {
             throw new RuntimeException("Illegal access to index: " +
@@ -285,6 +458,10 @@ public class Journeys implements Models {
         index.remove(journey, IDX_PROP_UID);
         index.remove(journey, PROP_FINISH_AT);
         index.remove(journey, PROP_START_AT);
+        index.remove(journey, PROP_SEALED_AT);
+        for (String field : QUERY_FIELDS) {
+            index.remove(journey, field);
+        }
 
         String uid = userIdentifier(journey);
         if (uid != null) {
@@ -292,10 +469,18 @@ public class Journeys implements Models {
         }
         index.add(journey, PROP_START_AT, new ValueContext(getStartAt(journey)).indexNumeric());
         index.add(journey, PROP_FINISH_AT, new ValueContext(getFinishAt(journey)).indexNumeric());
+        if (isSealed(journey)) {
+            index.add(journey, PROP_SEALED_AT, new ValueContext(journey.getProperty(PROP_SEALED_AT)).indexNumeric());
+        }
+        for (String field : QUERY_FIELDS) {
+            Object value = indexValue(journey, field);
+            if (value != null) {
+                index.add(journey, field, value);
+            }
+        }
 
         for (Node event : this.events(journey)) {
-            Node action = app.events().action(event);
-            index.add(journey, IDX_PROP_ACTION_IDS, new ValueContext(action.getId()).indexNumeric());
+            index.add(journey, IDX_PROP_ACTION_IDS, new ValueContext(app.events().actionId(event)).indexNumeric());
         }
     }
 
@@ -305,8 +490,11 @@ public class Journeys implements Models {
 
     public Node firstEventForAction(Node journey, String actionLabel) {
         Node action = app.actions().findByActionLabel(actionLabel);
+        if (action == null) {
+            return null;
+        }
         for (Node event : events(journey)) {
-            if (app.events().action(event).equals(action)) {
+            if (app.events().actionId(event) == action.getId()) {
                 return event;
             }
         }
@@ -351,7 +539,7 @@ public class Journeys implements Models {
     }
 
     public Integer length(Node journey) {
-        return journey.hasProperty(PROP_LENGTH) ? (Integer) journey.getProperty(PROP_LENGTH) : 0;
+        return (Integer) journey.getProperty(PROP_LENGTH, 0);
     }
 
     public Node firstEvent(Node journey) {
@@ -23,17 +23,34 @@ import org.apache.commons.lang.NotImplementedException;
 import org.neo4j.graphdb.*;
 import org.neo4j.helpers.collection.Iterables;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.thoughtworks.studios.journey.utils.IterableUtils.toIterable;
 
+/**
+ * Multi valued named properties of nodes, e.g. user traits, stored as relationships from the node to
+ * a node per property name, with the value on the relationship.
+ * <p>
+ * Nodes with many values also keep a sorted array of hashes of their (name, value) pairs, together with
+ * the ids of the relationships holding them, so checking whether a node already has a value does not
+ * scan all its property relationships. The arrays are built the first time a node is found having more
+ * than HASHES_THRESHOLD values.
+ */
 public abstract class PropertyCollections implements Models {
     private static final String PROP_NAME = "name";
-    private static final String REL_PROP_VALUE = "value";
+    static final String REL_PROP_VALUE = "value";
+    private static final int HASHES_THRESHOLD = 32;
     protected Application app;
+    private final ConcurrentHashMap<String, Long> propertyNodeIds = new ConcurrentHashMap<>();
 
     public abstract Label getLabel();
 
@@ -53,13 +70,17 @@ public abstract class PropertyCollections implements Models {
         app = application;
     }
 
-    private Node findOrCreate(String propertyName) {
+    protected Node findOrCreate(String propertyName) {
         Node property = find(propertyName);
+        if (property == null && WriteScope.lockShared(getLabel().name() + ":" + propertyName)) {
+            property = find(propertyName);
+        }
         if (property != null) {
             return property;
         }
         Node node = app.graphDB().createNode(getLabel());
         node.setProperty(PROP_NAME, propertyName);
+        propertyNodeIds.put(propertyName, node.getId());
         return node;
     }
 
@@ -72,7 +93,29 @@ public abstract class PropertyCollections implements Models {
     }
 
     public Node find(String name) {
-        return app.graphDB().findNode(getLabel(), PROP_NAME, name);
+        Long nodeId = propertyNodeIds.get(name);
+        if (nodeId != null) {
+            Node cached = live(nodeId, name);
+            if (cached != null) {
+                return cached;
+            }
+            propertyNodeIds.remove(name, nodeId);
+        }
+        Node property = app.graphDB().findNode(getLabel(), PROP_NAME, name);
+        if (property != null) {
+            propertyNodeIds.put(name, property.getId());
+        }
+        return property;
+    }
+
+    // cached id may be of a node deleted or rolled back, with the id reused by another node since
+    private Node live(long nodeId, String name) {
+        try {
+            Node node = app.graphDB().getNodeById(nodeId);
+            return node.hasLabel(getLabel()) && name.equals(node.getProperty(PROP_NAME, null)) ? node : null;
+        } catch (NotFoundException e) {
+            return null;
+        }
     }
 
     public Set<Object> getProperty(Node node, String propertyName) {
@@ -106,28 +149,221 @@ public abstract class PropertyCollections implements Models {
     }
 
     public void setProperty(Node node, String propertyName, Object value) {
-        Set<Object> existingValues = getProperty(node, propertyName);
-        if (!existingValues.contains(value)) {
-            Node property = findOrCreate(propertyName);
-            writePropertyValue(node, property, value);
-        }
+        ValueLookup lookup = new ValueLookup(node);
+        setValues(lookup, propertyName, value instanceof Iterable ? (Iterable) value : Arrays.asList(value));
+        lookup.save();
     }
 
-    private void writePropertyValue(Node node, Node property, Object value) {
-        if (value == null) {
-            return;
+    /**
+     * Add values of many properties at once, e.g. all properties copied from another node. Existing
+     * values of the node are looked up once for all of them.
+     */
+    public void setProperties(Node node, Map<String, Set> properties) {
+        ValueLookup lookup = new ValueLookup(node);
+        for (Map.Entry<String, Set> entry : properties.entrySet()) {
+            setValues(lookup, entry.getKey(), entry.getValue());
         }
+        lookup.save();
+    }
 
-        if (value instanceof Iterable) {
-            for (Object v : (Iterable) value) {
-                writePropertyValue(node, property, v);
+    private void setValues(ValueLookup lookup, String propertyName, Iterable values) {
+        Node property = null;
+        for (Object value : values) {
+            if (value == null) {
+                continue;
+            }
+            if (value instanceof Iterable) {
+                setValues(lookup, propertyName, (Iterable) value);
+                continue;
+            }
+            if (lookup.contains(propertyName, value)) {
+                continue;
+            }
+            if (property == null) {
+                property = findOrCreate(propertyName);
             }
-            return;
+            Relationship rel = lookup.node.createRelationshipTo(property, propertyRelType());
+            rel.setProperty(REL_PROP_VALUE, value);
+            lookup.add(propertyName, value, rel);
         }
-        Relationship rel = node.createRelationshipTo(property, propertyRelType());
-        rel.setProperty(REL_PROP_VALUE, value);
     }
 
+    protected String hashesPropertyName() {
+        return propertyRelType().name().toLowerCase() + "_hashes";
+    }
+
+    protected String hashRelsPropertyName() {
+        return propertyRelType().name().toLowerCase() + "_hash_rels";
+    }
+
+    /**
+     * Drop the value hashes of a node, after its property relationships got changed other than by
+     * adding values.
+     */
+    protected void removeValueHashes(Node node) {
+        node.removeProperty(hashesPropertyName());
+        node.removeProperty(hashRelsPropertyName());
+    }
+
+    // 64 bit FNV-1a over name, value type and value, array values by content
+    private static long valueHash(String name, Object value) {
+        long hash = 0xcbf29ce484222325L;
+        String text = value.getClass().isArray() ? Arrays.deepToString(new Object[]{value}) : value.toString();
+        byte[] bytes = (name + '\u0000' + value.getClass().getName() + '\u0000' + text).getBytes(StandardCharsets.UTF_8);
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static boolean sameValue(Object left, Object right) {
+        return Arrays.deepEquals(new Object[]{left}, new Object[]{right});
+    }
+
+    /**
+     * Values a node has, looked up from its hashes array when it has one, otherwise from one scan of
+     * its property relationships. Each hash is stored along with the id of its relationship, so a hash
+     * hit is confirmed by reading that relationship only. Values added are remembered, so a value is
+     * only written once.
+     */
+    private class ValueLookup {
+        private final Node node;
+        private long[] hashes;
+        // ids of the relationships of hashes, at the same index
+        private long[] relIds;
+        private int size;
+        private Map<String, Set<Object>> scanned;
+        private boolean dirty;
+
+        private ValueLookup(Node node) {
+            this.node = node;
+            long[] storedHashes = (long[]) node.getProperty(hashesPropertyName(), null);
+            long[] storedRelIds = (long[]) node.getProperty(hashRelsPropertyName(), null);
+            // hashes stored without relationship ids get built again from a scan
+            if (storedHashes != null && storedRelIds != null && storedHashes.length == storedRelIds.length) {
+                hashes = storedHashes;
+                relIds = storedRelIds;
+                size = storedHashes.length;
+            }
+        }
+
+        private boolean contains(String name, Object value) {
+            if (hashes == null) {
+                if (scanned == null) {
+                    scan();
+                }
+                if (hashes == null) {
+                    Set<Object> values = scanned.get(name);
+                    if (values != null) {
+                        for (Object existing : values) {
+                            if (sameValue(existing, value)) {
+                                return true;
+                            }
+                        }
+                    }
+                    return false;
+                }
+            }
+            long hash = valueHash(name, value);
+            int index = Arrays.binarySearch(hashes, 0, size, hash);
+            if (index < 0) {
+                return false;
+            }
+            // a hash hit is only a candidate, colliding values have the same hash
+            while (index > 0 && hashes[index - 1] == hash) {
+                index--;
+            }
+            for (; index < size && hashes[index] == hash; index++) {
+                if (hasValue(relIds[index], name, value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // remember a value added by given relationship, after contains() told the node does not have it
+        private void add(String name, Object value, Relationship rel) {
+            if (hashes == null) {
+                remember(name, value);
+                return;
+            }
+            long hash = valueHash(name, value);
+            int index = Arrays.binarySearch(hashes, 0, size, hash);
+            insert(index < 0 ? -index - 1 : index, hash, rel.getId());
+        }
+
+        // relationship of a stored id may have been deleted since, with the id reused by another one
+        private boolean hasValue(long relId, String name, Object value) {
+            Relationship rel;
+            try {
+                rel = app.graphDB().getRelationshipById(relId);
+            } catch (NotFoundException e) {
+                return false;
+            }
+            return rel.isType(propertyRelType()) && node.equals(rel.getStartNode())
+                    && name.equals(getName(rel.getEndNode())) && sameValue(rel.getProperty(REL_PROP_VALUE), value);
+        }
+
+        private void remember(String name, Object value) {
+            Set<Object> values = scanned.get(name);
+            if (values == null) {
+                values = new HashSet<>();
+                scanned.put(name, values);
+            }
+            values.add(value);
+        }
+
+        private void scan() {
+            scanned = new HashMap<>();
+            List<Relationship> rels = new ArrayList<>();
+            for (Relationship rel : node.getRelationships(propertyRelType(), Direction.OUTGOING)) {
+                remember(getName(rel.getEndNode()), rel.getProperty(REL_PROP_VALUE));
+                rels.add(rel);
+            }
+            if (rels.size() <= HASHES_THRESHOLD) {
+                return;
+            }
+            long[][] entries = new long[rels.size()][];
+            for (int i = 0; i < entries.length; i++) {
+                Relationship rel = rels.get(i);
+                entries[i] = new long[]{valueHash(getName(rel.getEndNode()), rel.getProperty(REL_PROP_VALUE)), rel.getId()};
+            }
+            Arrays.sort(entries, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] left, long[] right) {
+                    return Long.compare(left[0], right[0]);
+                }
+            });
+            hashes = new long[entries.length];
+            relIds = new long[entries.length];
+            for (long[] entry : entries) {
+                hashes[size] = entry[0];
+                relIds[size++] = entry[1];
+            }
+            dirty = true;
+        }
+
+        private void insert(int index, long hash, long relId) {
+            if (size == hashes.length) {
+                hashes = Arrays.copyOf(hashes, Math.max(size * 2, 16));
+                relIds = Arrays.copyOf(relIds, hashes.length);
+            }
+            System.arraycopy(hashes, index, hashes, index + 1, size - index);
+            System.arraycopy(relIds, index, relIds, index + 1, size - index);
+            hashes[index] = hash;
+            relIds[index] = relId;
+            size++;
+            dirty = true;
+        }
+
+        private void save() {
+            if (dirty) {
+                node.setProperty(hashesPropertyName(), size == hashes.length ? hashes : Arrays.copyOf(hashes, size));
+                node.setProperty(hashRelsPropertyName(), size == relIds.length ? relIds : Arrays.copyOf(relIds, size));
+            }
+        }
+    }
 
     public Set sampleValues(Node trait, int sampleLimit) {
         HashSet<Object> result = new HashSet<>();
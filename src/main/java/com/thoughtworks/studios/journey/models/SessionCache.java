@@ -0,0 +1,359 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.models;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.thoughtworks.studios.journey.utils.MapUtils.mapOf;
+
+/**
+ * Cache of recently active journeys by session id, used for resolving which journey an incoming event
+ * belongs to. Only journey node ids and the attributes needed for the covering check (time range and
+ * user identifier) are kept, so the check can be done without touching the graph. Sessions are evicted
+ * when the cache is over capacity (least recently used first) or when idle for too long.
+ * <p>
+ * Journeys of a session are kept sorted by start time: the latest journey is checked first, which is
+ * where nearly all events of a live session go, then the journeys starting close enough to the event
+ * are found by binary search. A session marked complete holds all journeys of the session, so a miss
+ * means no journey covers the event without looking into the graph.
+ */
+public class SessionCache {
+    public static final int DEFAULT_MAX_SESSIONS = Integer.getInteger("journey.session_cache.max_sessions", 10000);
+    public static final long DEFAULT_IDLE_MILLIS = Long.getLong("journey.session_cache.idle_ms", 10 * 60 * 1000L);
+
+    private final ConcurrentLinkedHashMap<String, Session> sessions;
+    private final ConcurrentHashMap<Long, CachedJourney> journeys = new ConcurrentHashMap<>();
+    private final long idleMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private volatile long lastSweepAt = System.currentTimeMillis();
+
+    public SessionCache() {
+        this(DEFAULT_MAX_SESSIONS, DEFAULT_IDLE_MILLIS);
+    }
+
+    public SessionCache(int maxSessions, long idleMillis) {
+        this.idleMillis = idleMillis;
+        this.sessions = new ConcurrentLinkedHashMap.Builder<String, Session>()
+                .maximumWeightedCapacity(maxSessions)
+                .listener(new EvictionListener<String, Session>() {
+                    @Override
+                    public void onEviction(String sessionId, Session session) {
+                        evictions.incrementAndGet();
+                        forget(session);
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Find cached journey of the session covering the event
+     *
+     * @return cached journey, or null if no cached journey covers the event
+     */
+    public CachedJourney findCovering(String sessionId, long eventAt, String userIdentifier) {
+        return findCovering(sessionId, eventAt, userIdentifier, true);
+    }
+
+    /**
+     * @param record whether to count the lookup as a hit or miss, false when looking again after loading
+     */
+    public CachedJourney findCovering(String sessionId, long eventAt, String userIdentifier, boolean record) {
+        long now = System.currentTimeMillis();
+        evictIdle(now);
+        Session session = sessions.get(sessionId);
+        if (session != null) {
+            session.lastAccessAt = now;
+            CachedJourney journey = session.findCovering(eventAt, userIdentifier);
+            if (journey != null) {
+                if (record) {
+                    hits.incrementAndGet();
+                }
+                return journey;
+            }
+        }
+        if (record) {
+            misses.incrementAndGet();
+        }
+        return null;
+    }
+
+    /**
+     * @return whether all journeys of the session are cached
+     */
+    public boolean isComplete(String sessionId) {
+        Session session = sessions.get(sessionId);
+        return session != null && session.complete;
+    }
+
+    /**
+     * Mark the session as holding all of its journeys, after they have been put from the graph.
+     */
+    public void markComplete(String sessionId) {
+        Session session = sessions.get(sessionId);
+        if (session != null) {
+            session.complete = true;
+            loads.incrementAndGet();
+        }
+    }
+
+    public CachedJourney put(String sessionId, long journeyId, Long startAt, Long finishAt, String userIdentifier) {
+        CachedJourney journey = journeys.get(journeyId);
+        if (journey == null) {
+            journey = new CachedJourney(journeyId, startAt, finishAt, userIdentifier);
+        }
+
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            Session fresh = new Session();
+            session = sessions.putIfAbsent(sessionId, fresh);
+            if (session == null) {
+                session = fresh;
+            }
+        }
+        session.lastAccessAt = System.currentTimeMillis();
+        if (session.add(journey)) {
+            journeys.put(journeyId, journey);
+        }
+        return journey;
+    }
+
+    public CachedJourney get(long journeyId) {
+        return journeys.get(journeyId);
+    }
+
+    /**
+     * Drop a journey no longer open for events. A complete session stays complete: the journey is
+     * left out on purpose, a later miss creates a new journey instead of looking into the graph.
+     */
+    public void remove(String sessionId, long journeyId) {
+        CachedJourney journey = journeys.remove(journeyId);
+        Session session = sessions.get(sessionId);
+        if (journey != null && session != null) {
+            session.remove(journey);
+        }
+    }
+
+    public void evictIdle(long now) {
+        if (now - lastSweepAt < Math.min(idleMillis, 10 * 1000L)) {
+            return;
+        }
+        lastSweepAt = now;
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            Session session = entry.getValue();
+            if (now - session.lastAccessAt > idleMillis && sessions.remove(entry.getKey(), session)) {
+                evictions.incrementAndGet();
+                forget(session);
+            }
+        }
+    }
+
+    public void clear() {
+        sessions.clear();
+        journeys.clear();
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public Map<String, Object> stats() {
+        return mapOf("sessions", (Object) sessions.size(),
+                "hits", hits.get(),
+                "misses", misses.get(),
+                "evictions", evictions.get(),
+                "loads", loads.get());
+    }
+
+    private void forget(Session session) {
+        for (CachedJourney journey : session.journeys()) {
+            journeys.remove(journey.id, journey);
+        }
+    }
+
+    public static class CachedJourney {
+        private final long id;
+        private Long startAt;
+        private Long finishAt;
+        private String userIdentifier;
+        private volatile Session session;
+
+        private CachedJourney(long id, Long startAt, Long finishAt, String userIdentifier) {
+            this.id = id;
+            this.startAt = startAt;
+            this.finishAt = finishAt;
+            this.userIdentifier = userIdentifier;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public void expand(long eventAt) {
+            boolean startMoved = false;
+            synchronized (this) {
+                if (startAt == null || eventAt < startAt) {
+                    startAt = eventAt;
+                    startMoved = true;
+                }
+                if (finishAt == null || eventAt > finishAt) {
+                    finishAt = eventAt;
+                }
+            }
+            // outside of own lock, session locks itself before its journeys
+            Session owner = session;
+            if (owner != null) {
+                owner.expanded(this, startMoved);
+            }
+        }
+
+        private synchronized Long getStartAt() {
+            return startAt;
+        }
+
+        private synchronized long span() {
+            return startAt == null ? 0 : finishAt - startAt;
+        }
+
+        public synchronized void setUserIdentifier(String userIdentifier) {
+            this.userIdentifier = userIdentifier;
+        }
+
+        public synchronized boolean covers(long eventAt, String eventUserIdentifier) {
+            if (startAt == null) {
+                return false;
+            }
+            return (userIdentifier == null || eventUserIdentifier == null || userIdentifier.equals(eventUserIdentifier)) &&
+                    eventAt >= startAt - Journeys.CUT_TOLERANT &&
+                    eventAt <= finishAt + Journeys.CUT_TOLERANT;
+        }
+    }
+
+    private static class Session {
+        // sorted by start time, journeys without any event yet are at the end
+        private final List<CachedJourney> journeys = new ArrayList<>(2);
+        // longest time range of the journeys, bounding how early a covering journey may start
+        private long maxSpan = 0;
+        private volatile boolean complete;
+        private volatile long lastAccessAt;
+
+        private synchronized CachedJourney findCovering(long eventAt, String userIdentifier) {
+            int size = journeys.size();
+            if (size == 0) {
+                return null;
+            }
+            CachedJourney latest = journeys.get(size - 1);
+            if (latest.covers(eventAt, userIdentifier)) {
+                return latest;
+            }
+            long earliestStart = eventAt - Journeys.CUT_TOLERANT - maxSpan;
+            for (int i = floor(eventAt + Journeys.CUT_TOLERANT); i >= 0; i--) {
+                CachedJourney journey = journeys.get(i);
+                if (journey.getStartAt() < earliestStart) {
+                    break;
+                }
+                if (journey != latest && journey.covers(eventAt, userIdentifier)) {
+                    return journey;
+                }
+            }
+            return null;
+        }
+
+        private synchronized boolean add(CachedJourney journey) {
+            if (journey.session == this) {
+                return false;
+            }
+            journey.session = this;
+            insert(journey);
+            maxSpan = Math.max(maxSpan, journey.span());
+            return true;
+        }
+
+        private synchronized void remove(CachedJourney journey) {
+            if (journeys.remove(journey)) {
+                journey.session = null;
+            }
+        }
+
+        private synchronized void expanded(CachedJourney journey, boolean startMoved) {
+            maxSpan = Math.max(maxSpan, journey.span());
+            if (!startMoved) {
+                return;
+            }
+            int index = journeys.lastIndexOf(journey);
+            if (index < 0) {
+                return;
+            }
+            Long startAt = journey.getStartAt();
+            boolean afterPrevious = index == 0 || compare(journeys.get(index - 1).getStartAt(), startAt) <= 0;
+            boolean beforeNext = index == journeys.size() - 1 || compare(startAt, journeys.get(index + 1).getStartAt()) <= 0;
+            if (!afterPrevious || !beforeNext) {
+                journeys.remove(index);
+                insert(journey);
+            }
+        }
+
+        private synchronized List<CachedJourney> journeys() {
+            return new ArrayList<>(journeys);
+        }
+
+        private void insert(CachedJourney journey) {
+            Long startAt = journey.getStartAt();
+            // appending is the common case: a journey without events yet, or starting after all others
+            int index = journeys.size();
+            if (startAt != null && index > 0 && compare(journeys.get(index - 1).getStartAt(), startAt) > 0) {
+                index = floor(startAt) + 1;
+            }
+            journeys.add(index, journey);
+        }
+
+        // index of the last journey starting no later than given time, -1 if there is none
+        private int floor(long at) {
+            int low = 0;
+            int high = journeys.size() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                Long startAt = journeys.get(mid).getStartAt();
+                if (startAt != null && startAt <= at) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high;
+        }
+
+        // journeys without start time sort after all others
+        private static int compare(Long left, Long right) {
+            if (left == null || right == null) {
+                return left == null ? (right == null ? 0 : 1) : -1;
+            }
+            return Long.compare(left, right);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.models;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.thoughtworks.studios.journey.utils.GraphDbUtils;
+import org.neo4j.graphdb.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.thoughtworks.studios.journey.utils.MapUtils.mapOf;
+
+/**
+ * Dictionary of strings repeated across events of a namespace, e.g. urls. Each distinct string is
+ * stored once as a node with a dense code, and events keep the code instead of the string. Recently
+ * used strings are cached both ways, so decoding the popular ones does not touch the graph; decoding
+ * also returns the same string instance for a code, which makes per value memoization cheap.
+ * <p>
+ * Codes are allocated from a counter shared by all Application instances of the namespace, so codes
+ * allocated by transactions rolled back are never handed out again while the database is running.
+ */
+public class StringDictionary implements Models {
+    public static final int DEFAULT_CACHE_SIZE = Integer.getInteger("journey.string_dictionary.cache_size", 10000);
+
+    static final String PROP_CODE = "code";
+    static final String PROP_VALUE = "value";
+
+    private static final Map<GraphDatabaseService, Map<String, AtomicLong>> counters = new WeakHashMap<>();
+
+    private final Application app;
+    private final GraphDatabaseService graphDb;
+    private final ConcurrentLinkedHashMap<String, Entry> codes;
+    private final ConcurrentLinkedHashMap<Long, String> values;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile AtomicLong counter;
+
+    public StringDictionary(Application application) {
+        this.app = application;
+        this.graphDb = application.graphDB();
+        this.codes = new ConcurrentLinkedHashMap.Builder<String, Entry>().maximumWeightedCapacity(DEFAULT_CACHE_SIZE).build();
+        this.values = new ConcurrentLinkedHashMap.Builder<Long, String>().maximumWeightedCapacity(DEFAULT_CACHE_SIZE).build();
+    }
+
+    @Override
+    public void setupSchema() {
+        GraphDbUtils.createIndexIfNotExists(graphDb, getLabel(), PROP_VALUE);
+        GraphDbUtils.createIndexIfNotExists(graphDb, getLabel(), PROP_CODE);
+    }
+
+    @Override
+    public Label getLabel() {
+        return app.nameSpacedLabel("DictionaryString");
+    }
+
+    @Override
+    public Map<String, Object> toHash(Node node) {
+        return mapOf(PROP_CODE, node.getProperty(PROP_CODE), PROP_VALUE, node.getProperty(PROP_VALUE));
+    }
+
+    /**
+     * @return code of the string, adding it to the dictionary if it is not there yet
+     */
+    public long encode(String value) {
+        Entry entry = codes.get(value);
+        if (entry != null && entry.isLive()) {
+            return entry.code;
+        }
+
+        Node node = graphDb.findNode(getLabel(), PROP_VALUE, value);
+        if (node == null && WriteScope.lockShared("string:" + value)) {
+            node = graphDb.findNode(getLabel(), PROP_VALUE, value);
+        }
+        if (node == null) {
+            long code = counter().getAndIncrement();
+            node = graphDb.createNode(getLabel());
+            node.setProperty(PROP_CODE, code);
+            node.setProperty(PROP_VALUE, value);
+        }
+        long code = (Long) node.getProperty(PROP_CODE);
+        codes.put(value, new Entry(node.getId(), code));
+        values.put(code, value);
+        return code;
+    }
+
+    /**
+     * @return string of the code, or null if there is no such code
+     */
+    public String decode(long code) {
+        String value = values.get(code);
+        if (value != null) {
+            hits.incrementAndGet();
+            return value;
+        }
+        misses.incrementAndGet();
+        Node node = graphDb.findNode(getLabel(), PROP_CODE, code);
+        if (node == null) {
+            return null;
+        }
+        value = (String) node.getProperty(PROP_VALUE);
+        String raced = values.putIfAbsent(code, value);
+        return raced == null ? value : raced;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("cached_codes", codes.size());
+        stats.put("cached_values", values.size());
+        stats.put("decode_hits", hits.get());
+        stats.put("decode_misses", misses.get());
+        return stats;
+    }
+
+    // shared counter raised past the largest code in the graph, e.g. after an import
+    private AtomicLong counter() {
+        if (counter == null) {
+            synchronized (this) {
+                if (counter == null) {
+                    long next = 0;
+                    ResourceIterator<Node> nodes = graphDb.findNodes(getLabel());
+                    while (nodes.hasNext()) {
+                        next = Math.max(next, (Long) nodes.next().getProperty(PROP_CODE) + 1);
+                    }
+                    AtomicLong shared = sharedCounter();
+                    long current;
+                    while ((current = shared.get()) < next && !shared.compareAndSet(current, next)) {
+                        // retry
+                    }
+                    counter = shared;
+                }
+            }
+        }
+        return counter;
+    }
+
+    private AtomicLong sharedCounter() {
+        synchronized (counters) {
+            Map<String, AtomicLong> byNamespace = counters.get(graphDb);
+            if (byNamespace == null) {
+                byNamespace = new HashMap<>();
+                counters.put(graphDb, byNamespace);
+            }
+            AtomicLong shared = byNamespace.get(app.nameSpace());
+            if (shared == null) {
+                shared = new AtomicLong();
+                byNamespace.put(app.nameSpace(), shared);
+            }
+            return shared;
+        }
+    }
+
+    private class Entry {
+        private final long nodeId;
+        private final long code;
+
+        private Entry(long nodeId, long code) {
+            this.nodeId = nodeId;
+            this.code = code;
+        }
+
+        // node may be of a transaction rolled back, with the id reused by another node since
+        private boolean isLive() {
+            try {
+                Node node = graphDb.getNodeById(nodeId);
+                return node.hasLabel(getLabel()) && Long.valueOf(code).equals(node.getProperty(PROP_CODE, null));
+            } catch (NotFoundException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -23,9 +23,12 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
+import org.neo4j.helpers.collection.Iterables;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 import static com.thoughtworks.studios.journey.utils.GraphDbUtils.propertyValueOrNull;
@@ -87,20 +90,31 @@ public class Users implements Models {
     }
 
     public void addJourney(Node user, Node journey) {
+        Long startActiveAt = getStartActiveAt(user);
+        Long lastActiveAt = getLastActiveAt(user);
         if (user.equals(app.journeys().user(journey))) {
             journeysChainHelper.revise(journey);
         } else {
             journeysChainHelper.insert(user, journey);
             app.journeys().setUser(journey, user);
         }
+        // journeys of the user only need reindexing when start or last active time moved
+        if (!Objects.equals(startActiveAt, getStartActiveAt(user))) {
+            app.journeys().userActivityChanged(user, Journeys.IDX_PROP_USER_START_ACTIVE_AT);
+        }
+        if (!Objects.equals(lastActiveAt, getLastActiveAt(user))) {
+            app.journeys().userActivityChanged(user, Journeys.IDX_PROP_USER_LAST_ACTIVE_AT);
+        }
     }
 
     public Long getStartActiveAt(Node user) {
-        return app.journeys().getStartAt(journeysChainHelper.first(user));
+        Node first = journeysChainHelper.first(user);
+        return first == null ? null : app.journeys().getStartAt(first);
     }
 
     public Long getLastActiveAt(Node user) {
-        return app.journeys().getFinishAt(journeysChainHelper.last(user));
+        Node last = journeysChainHelper.last(user);
+        return last == null ? null : app.journeys().getFinishAt(last);
     }
 
     public boolean isAnonymous(Node user) {
@@ -123,13 +137,14 @@ public class Users implements Models {
     // rob everything left user have, give them to the right user
     // then destroy the left user -- an extremely cruel method :-)
     public void merge(Node leftUser, Node rightUser) {
-        for (Node journey : journeys(leftUser)) {
-            addJourney(rightUser, journey);
-        }
-        Map<String, Set> traits = traits(leftUser);
-        for (String name : traits.keySet()) {
-            addTrait(rightUser, name, traits.get(name));
+        List<Node> journeys = Iterables.toList(journeys(leftUser));
+        journeysChainHelper.merge(rightUser, leftUser);
+        for (Node journey : journeys) {
+            app.journeys().setUser(journey, rightUser);
         }
+        app.journeys().userActivityChanged(rightUser, Journeys.IDX_PROP_USER_START_ACTIVE_AT);
+        app.journeys().userActivityChanged(rightUser, Journeys.IDX_PROP_USER_LAST_ACTIVE_AT);
+        app.userTraits().setProperties(rightUser, traits(leftUser));
         Iterable<Relationship> relationships = leftUser.getRelationships();
         for (Relationship relationship : relationships) {
             relationship.delete();
@@ -138,6 +153,10 @@ public class Users implements Models {
     }
 
     public Node identify(String uid, String anonymousId) {
+        WriteScope.lockShared("anonymous:" + anonymousId);
+        if (uid != null) {
+            WriteScope.lockShared("user:" + uid);
+        }
         Node anonymous = findByAnonymousId(anonymousId);
         if (uid == null) {
             if (anonymous == null) {
@@ -0,0 +1,113 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.models;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Locks held by a write unit under striped write locking: the locks the unit is opened with (e.g.
+ * stripes of the sessions it writes) plus locks on shared keys taken by models while writing, e.g.
+ * before creating a user or an action that concurrent units might create as well. All of them are
+ * released when the scope is closed, which must be after the transaction is closed, so nodes created
+ * under a shared key lock are committed before other units can look for them.
+ * <p>
+ * Shared key locks are taken in whatever order models need them, so they are acquired with a
+ * timeout and a {@link WriteConflictException} is thrown when it expires, for the unit to be rolled
+ * back and retried. Without an open scope on current thread locking shared keys does nothing.
+ */
+public class WriteScope implements AutoCloseable {
+    private static final ThreadLocal<WriteScope> current = new ThreadLocal<>();
+
+    private final Lock[] sharedStripes;
+    private final long timeoutMillis;
+    private final Deque<Lock> held = new ArrayDeque<>();
+
+    private WriteScope(Lock[] sharedStripes, long timeoutMillis) {
+        this.sharedStripes = sharedStripes;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Open a scope on current thread, acquiring the locks in given order.
+     *
+     * @param locks         locks to acquire, in an order consistent across all units
+     * @param sharedStripes stripes for shared keys, null if models need not lock shared keys
+     * @param timeoutMillis how long to wait for a shared key lock
+     */
+    public static WriteScope open(List<Lock> locks, Lock[] sharedStripes, long timeoutMillis) {
+        if (current.get() != null) {
+            throw new IllegalStateException("write scope already opened on current thread");
+        }
+        WriteScope scope = new WriteScope(sharedStripes, timeoutMillis);
+        try {
+            for (Lock lock : locks) {
+                lock.lock();
+                scope.held.push(lock);
+            }
+        } catch (RuntimeException e) {
+            scope.release();
+            throw e;
+        }
+        current.set(scope);
+        return scope;
+    }
+
+    /**
+     * Lock a shared key, e.g. "user:johndoe", till the scope of current thread closes.
+     *
+     * @return false if there is no scope needing shared keys locked on current thread
+     * @throws WriteConflictException if the key can not be locked in time
+     */
+    public static boolean lockShared(String key) {
+        WriteScope scope = current.get();
+        if (scope == null || scope.sharedStripes == null) {
+            return false;
+        }
+        Lock lock = scope.sharedStripes[(key.hashCode() & Integer.MAX_VALUE) % scope.sharedStripes.length];
+        if (scope.held.contains(lock)) {
+            return true;
+        }
+        try {
+            if (!lock.tryLock(scope.timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new WriteConflictException("Timed out locking " + key);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WriteConflictException("Interrupted locking " + key);
+        }
+        scope.held.push(lock);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        current.remove();
+        release();
+    }
+
+    private void release() {
+        while (!held.isEmpty()) {
+            held.pop().unlock();
+        }
+    }
+}
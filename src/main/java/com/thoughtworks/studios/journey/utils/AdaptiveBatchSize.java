@@ -0,0 +1,177 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Batch size of a bulk operation (e.g. reindex) which adapts to how expensive its batches are. Each unit of
+ * work reports approximately how many entities it changed, and a batch is committed once its changes reach
+ * a limit learned from earlier commits. A commit slower than the target time shrinks the limit toward what
+ * would commit in time. Otherwise the limit keeps growing (or shrinking) by half as long as the time spent
+ * per change, work and commit together, gets better, and turns around when it gets worse: large
+ * transactions commit fast for their size, but make legacy index operations inside them slower as the
+ * transaction state grows. The limit never goes over the memory budget.
+ * <p>
+ * Limits are learned per namespace and operation, so a later run starts from where the last one ended.
+ * Changes are reported by callers, as the kernel transaction state is not exposed through the public api.
+ * Not adaptive, batches are committed by a fixed number of units and commits are only measured.
+ */
+public class AdaptiveBatchSize {
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("journey.batch_tx.adaptive", "true"));
+    public static final long TARGET_COMMIT_MILLIS = Long.getLong("journey.batch_tx.target_commit_ms", 500L);
+    public static final long MAX_CHANGES = Long.getLong("journey.batch_tx.max_changes", 100000L);
+    public static final long MIN_CHANGES = 10;
+
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, AdaptiveBatchSize>> registry = new ConcurrentHashMap<>();
+
+    private final int batchSize;
+    private final boolean adaptive;
+    private final long targetCommitMillis;
+    private final long maxChanges;
+    private volatile long changesLimit;
+    private boolean growing = true;
+    private double lastCost = 0;
+    private long commits;
+    private long units;
+    private long changes;
+    private long commitNanos;
+    private long maxCommitNanos;
+    private int maxCommitSize;
+    private int lastCommitSize;
+
+    /**
+     * @param initialBatchSize units per batch when not adaptive, and the initial changes limit when adaptive
+     */
+    public AdaptiveBatchSize(int initialBatchSize, boolean adaptive, long targetCommitMillis, long maxChanges) {
+        this.batchSize = initialBatchSize;
+        this.changesLimit = Math.min(initialBatchSize, maxChanges);
+        this.adaptive = adaptive;
+        this.targetCommitMillis = targetCommitMillis;
+        this.maxChanges = maxChanges;
+    }
+
+    /**
+     * @return batch size shared by runs of the operation under the namespace, starting at given size
+     */
+    public static AdaptiveBatchSize forOperation(String ns, String operation, int initialBatchSize) {
+        ConcurrentHashMap<String, AdaptiveBatchSize> operations = registry.get(ns);
+        if (operations == null) {
+            ConcurrentHashMap<String, AdaptiveBatchSize> fresh = new ConcurrentHashMap<>();
+            operations = registry.putIfAbsent(ns, fresh);
+            if (operations == null) {
+                operations = fresh;
+            }
+        }
+        AdaptiveBatchSize size = operations.get(operation);
+        if (size == null) {
+            AdaptiveBatchSize fresh = new AdaptiveBatchSize(initialBatchSize, ENABLED, TARGET_COMMIT_MILLIS, MAX_CHANGES);
+            size = operations.putIfAbsent(operation, fresh);
+            if (size == null) {
+                size = fresh;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return statistics of batch operations run under the namespace by operation name, empty if none has run
+     */
+    public static Map<String, Object> stats(String ns) {
+        Map<String, Object> result = new HashMap<>();
+        ConcurrentHashMap<String, AdaptiveBatchSize> operations = registry.get(ns);
+        if (operations != null) {
+            for (Map.Entry<String, AdaptiveBatchSize> entry : operations.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().stats());
+            }
+        }
+        return result;
+    }
+
+    public long changesLimit() {
+        return changesLimit;
+    }
+
+    public boolean fits(long batchChanges) {
+        return !adaptive || batchChanges <= changesLimit;
+    }
+
+    public boolean isFull(int batchUnits, long batchChanges) {
+        return adaptive ? batchChanges >= changesLimit : batchUnits >= batchSize;
+    }
+
+    /**
+     * Record a commit and adapt the changes limit to it.
+     *
+     * @param batchUnits   units committed
+     * @param batchChanges approximate entities changed by the units
+     * @param batchNanos   time from beginning of the transaction to end of its commit
+     * @param nanos        time the commit took
+     */
+    public synchronized void committed(int batchUnits, long batchChanges, long batchNanos, long nanos) {
+        if (batchUnits == 0) {
+            return;
+        }
+        commits++;
+        units += batchUnits;
+        changes += batchChanges;
+        commitNanos += nanos;
+        maxCommitNanos = Math.max(maxCommitNanos, nanos);
+        maxCommitSize = Math.max(maxCommitSize, batchUnits);
+        lastCommitSize = batchUnits;
+
+        long millis = Math.max(1, nanos / 1000000);
+        // a partial batch (the last one, or an explicit commit) says little unless it was already too slow
+        if (!adaptive || (!isFull(batchUnits, batchChanges) && millis <= targetCommitMillis)) {
+            return;
+        }
+        long inTime = batchChanges * targetCommitMillis / millis;
+        long next;
+        if (millis > targetCommitMillis) {
+            next = Math.max(changesLimit / 2, inTime);
+            growing = false;
+        } else {
+            double cost = batchNanos / (double) Math.max(1, batchChanges);
+            if (lastCost > 0 && cost > lastCost * 1.1) {
+                growing = !growing;
+            }
+            lastCost = cost;
+            next = growing ? Math.min(changesLimit * 3 / 2, inTime) : changesLimit * 2 / 3;
+        }
+        changesLimit = Math.max(MIN_CHANGES, Math.min(maxChanges, next));
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("adaptive", adaptive);
+        stats.put("batch_size", batchSize);
+        stats.put("changes_limit", changesLimit);
+        stats.put("commits", commits);
+        stats.put("units", units);
+        stats.put("changes", changes);
+        stats.put("last_commit_size", lastCommitSize);
+        stats.put("max_commit_size", maxCommitSize);
+        stats.put("avg_commit_size", commits == 0 ? 0.0 : units / (double) commits);
+        stats.put("avg_commit_ms", commits == 0 ? 0.0 : commitNanos / 1e6 / commits);
+        stats.put("max_commit_ms", maxCommitNanos / 1e6);
+        return stats;
+    }
+}
@@ -24,34 +24,90 @@ import org.neo4j.graphdb.Transaction;
 public class BatchTransaction implements AutoCloseable {
     private final GraphDatabaseService db;
     private final int batchSize;
+    private final AdaptiveBatchSize adaptiveSize;
     Transaction tx;
     int batchCount = 0;
+    private long batchChanges = 0;
+    private long batchStart;
+    private boolean failed = false;
 
     public BatchTransaction(GraphDatabaseService db, int batchSize) {
+        this(db, batchSize, null);
+    }
+
+    /**
+     * Batch transaction committing as often as given adaptive size says, reporting each commit back to it.
+     */
+    public BatchTransaction(GraphDatabaseService db, AdaptiveBatchSize adaptiveSize) {
+        this(db, 0, adaptiveSize);
+    }
+
+    private BatchTransaction(GraphDatabaseService db, int batchSize, AdaptiveBatchSize adaptiveSize) {
         this.db = db;
         this.batchSize = batchSize;
+        this.adaptiveSize = adaptiveSize;
         tx = this.db.beginTx();
+        batchStart = System.nanoTime();
     }
 
     public void increment() {
+        increment(1);
+    }
+
+    /**
+     * @param changes approximate number of entities the unit created, changed or deleted
+     */
+    public void increment(int changes) {
         batchCount++;
-        if (batchCount >= batchSize) {
+        batchChanges += changes;
+        if (adaptiveSize == null ? batchCount >= batchSize : adaptiveSize.isFull(batchCount, batchChanges)) {
+            commit();
+        }
+    }
+
+    /**
+     * Commit the current batch first if a unit of given approximate changes would not fit into its budget,
+     * so that large units start with an empty transaction state.
+     */
+    public void reserve(int changes) {
+        if (adaptiveSize != null && batchCount > 0 && !adaptiveSize.fits(batchChanges + changes)) {
             commit();
         }
     }
 
     public void commit() {
         tx.success();
-        tx.close();
+        closeTx();
         tx = db.beginTx();
-        batchCount = 0;
+        batchStart = System.nanoTime();
+    }
+
+    // mark current batch as failed, so it will be rolled back on close instead of committed
+    public void failure() {
+        failed = true;
     }
 
     @Override
     public void close() {
         if (tx!=null) {
-            tx.success();
-            tx.close();
+            if (failed) {
+                tx.failure();
+                tx.close();
+            } else {
+                tx.success();
+                closeTx();
+            }
         }
     }
-}
\ No newline at end of file
+
+    private void closeTx() {
+        long start = System.nanoTime();
+        tx.close();
+        if (adaptiveSize != null) {
+            long end = System.nanoTime();
+            adaptiveSize.committed(batchCount, batchChanges, end - batchStart, end - start);
+        }
+        batchCount = 0;
+        batchChanges = 0;
+    }
+}
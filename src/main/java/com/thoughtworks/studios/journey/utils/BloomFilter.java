@@ -0,0 +1,168 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.utils;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe bloom filter for strings. mightContain returning false means the string was
+ * definitely never put; returning true means it probably was.
+ */
+public class BloomFilter {
+    private static final int FILE_MAGIC = 0x4a424c4d;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int numHashes;
+    private final long expectedInsertions;
+    private final AtomicLong insertions;
+
+    public BloomFilter(long expectedInsertions, double fpp) {
+        this(optimalNumBits(expectedInsertions, fpp), optimalNumHashes(expectedInsertions, optimalNumBits(expectedInsertions, fpp)), expectedInsertions, 0);
+    }
+
+    private BloomFilter(long numBits, int numHashes, long expectedInsertions, long insertions) {
+        this.bits = new AtomicLongArray((int) ((numBits + 63) / 64));
+        this.numBits = (long) bits.length() * 64;
+        this.numHashes = numHashes;
+        this.expectedInsertions = expectedInsertions;
+        this.insertions = new AtomicLong(insertions);
+    }
+
+    public void put(String value) {
+        long hash1 = hash(value);
+        long hash2 = mix(hash1 ^ FNV_PRIME);
+        for (int i = 0; i < numHashes; i++) {
+            setBit(index(hash1, hash2, i));
+        }
+        insertions.incrementAndGet();
+    }
+
+    public boolean mightContain(String value) {
+        long hash1 = hash(value);
+        long hash2 = mix(hash1 ^ FNV_PRIME);
+        for (int i = 0; i < numHashes; i++) {
+            if (!getBit(index(hash1, hash2, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether as many values have been put as the filter sized for, so any further insertion
+     * pushes the false positive rate above the expected one.
+     */
+    public boolean isSaturated() {
+        return insertions.get() >= expectedInsertions;
+    }
+
+    public long insertions() {
+        return insertions.get();
+    }
+
+    public long expectedInsertions() {
+        return expectedInsertions;
+    }
+
+    /**
+     * @return estimated false positive probability with current number of insertions
+     */
+    public double expectedFpp() {
+        return Math.pow(1 - Math.exp(-(double) numHashes * insertions.get() / numBits), numHashes);
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(FILE_MAGIC);
+        out.writeLong(numBits);
+        out.writeInt(numHashes);
+        out.writeLong(expectedInsertions);
+        out.writeLong(insertions.get());
+        for (int i = 0; i < bits.length(); i++) {
+            out.writeLong(bits.get(i));
+        }
+    }
+
+    public static BloomFilter readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != FILE_MAGIC) {
+            throw new IOException("not a bloom filter file");
+        }
+        long numBits = in.readLong();
+        int numHashes = in.readInt();
+        long expectedInsertions = in.readLong();
+        long insertions = in.readLong();
+        BloomFilter filter = new BloomFilter(numBits, numHashes, expectedInsertions, insertions);
+        for (int i = 0; i < filter.bits.length(); i++) {
+            filter.bits.set(i, in.readLong());
+        }
+        return filter;
+    }
+
+    private long index(long hash1, long hash2, int i) {
+        long combined = hash1 + i * hash2;
+        return (combined & Long.MAX_VALUE) % numBits;
+    }
+
+    private void setBit(long index) {
+        int word = (int) (index >>> 6);
+        long mask = 1L << index;
+        long old;
+        do {
+            old = bits.get(word);
+            if ((old & mask) != 0) {
+                return;
+            }
+        } while (!bits.compareAndSet(word, old, old | mask));
+    }
+
+    private boolean getBit(long index) {
+        return (bits.get((int) (index >>> 6)) & (1L << index)) != 0;
+    }
+
+    private static long hash(String value) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return mix(h);
+    }
+
+    // murmur3 finalizer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long optimalNumBits(long expectedInsertions, double fpp) {
+        return Math.max(64, (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+    }
+
+    private static int optimalNumHashes(long expectedInsertions, long numBits) {
+        return Math.max(1, (int) Math.round((double) numBits / Math.max(1, expectedInsertions) * Math.log(2)));
+    }
+}
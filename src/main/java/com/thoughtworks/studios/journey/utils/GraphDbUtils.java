@@ -20,6 +20,7 @@ package com.thoughtworks.studios.journey.utils;
 
 import org.neo4j.function.Function;
 import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
 import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexManager;
 import org.neo4j.graphdb.schema.IndexCreator;
@@ -27,7 +28,9 @@ import org.neo4j.graphdb.schema.IndexDefinition;
 import org.neo4j.graphdb.schema.Schema;
 import org.neo4j.helpers.Predicate;
 import org.neo4j.helpers.collection.PagingIterator;
+import org.neo4j.kernel.configuration.Config;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -38,6 +41,20 @@ import static org.neo4j.helpers.collection.IteratorUtil.singleOrNull;
 
 public class GraphDbUtils {
 
+    /**
+     * @return store directory of the database from its config, null when the database does not expose
+     * its dependencies. Neo4j 2.2 deprecates every type that does, without a public replacement, so it is
+     * referenced by name here instead of imported.
+     */
+    @SuppressWarnings("deprecation")
+    public static File storeDir(GraphDatabaseService graphDb) {
+        if (!(graphDb instanceof org.neo4j.kernel.GraphDatabaseAPI)) {
+            return null;
+        }
+        DependencyResolver resolver = ((org.neo4j.kernel.GraphDatabaseAPI) graphDb).getDependencyResolver();
+        return resolver.resolveDependency(Config.class).get(GraphDatabaseSettings.store_dir);
+    }
+
     // Destroy all nodes with a label in batches. This method manage the transaction internally. So
     // should not be wrapped into transactions.
     public static void destroyAll(GraphDatabaseService graphDb, Label label) {
@@ -18,12 +18,17 @@
  */
 package com.thoughtworks.studios.journey.utils;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.type.TypeFactory;
 import com.fasterxml.jackson.datatype.joda.JodaModule;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
 
@@ -54,4 +59,49 @@ public class JSONUtils {
         return MAPPER.readValue(json, TypeFactory.defaultInstance().constructCollectionType(List.class, String.class));
     }
 
+    public static ListOfMapReader listOfMapReader(InputStream stream) throws IOException {
+        return new ListOfMapReader(MAPPER.getFactory().createParser(stream));
+    }
+
+    /**
+     * Read a json array of objects one element at a time, so that the whole array never need to be
+     * held in memory.
+     */
+    public static class ListOfMapReader implements MapReader {
+        private static final JavaType MAP_TYPE = TypeFactory.defaultInstance().constructMapType(java.util.HashMap.class, String.class, Object.class);
+        private final JsonParser parser;
+        private boolean started = false;
+
+        private ListOfMapReader(JsonParser parser) {
+            this.parser = parser;
+        }
+
+        /**
+         * @return next element in the array, or null if reached end of the array
+         * @throws IOException if input is not a json array of objects
+         */
+        @Override
+        public Map<String, Object> next() throws IOException {
+            if (!started) {
+                started = true;
+                if (parser.nextToken() != JsonToken.START_ARRAY) {
+                    throw new JsonParseException("expect a json array", parser.getCurrentLocation());
+                }
+            }
+
+            JsonToken token = parser.nextToken();
+            if (token == null || token == JsonToken.END_ARRAY) {
+                return null;
+            }
+            if (token != JsonToken.START_OBJECT) {
+                throw new JsonParseException("expect a json object in array", parser.getCurrentLocation());
+            }
+            return MAPPER.readValue(parser, MAP_TYPE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            parser.close();
+        }
+    }
 }
@@ -47,9 +47,15 @@ public class URIUtils {
         } catch (Exception e) {
             return null;
         }
-        String query = uri.getQuery();
+        return queryParam(uri.getQuery(), paramName);
+    }
 
-        if (query == null) {
+    /**
+     * @param query raw query part of an uri
+     * @return decoded value of the first parameter named paramName
+     */
+    public static String queryParam(String query, String paramName) {
+        if (query == null || paramName == null) {
             return null;
         }
 
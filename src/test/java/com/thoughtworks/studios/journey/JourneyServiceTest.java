@@ -18,15 +18,22 @@
  */
 package com.thoughtworks.studios.journey;
 
+import com.thoughtworks.studios.journey.ingestion.BinaryEventsWriter;
+import com.thoughtworks.studios.journey.models.Journeys;
 import org.junit.Before;
 import org.junit.Test;
 import org.neo4j.function.Function;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.TransactionFailureException;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
 import org.neo4j.server.rest.domain.JsonParseException;
 import org.neo4j.test.TestGraphDatabaseFactory;
 
 import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -36,17 +43,19 @@ import static com.thoughtworks.studios.journey.utils.JSONUtils.*;
 import static com.thoughtworks.studios.journey.utils.MapUtils.mapOf;
 import static com.thoughtworks.studios.journey.utils.MapUtils.merge;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 import static org.neo4j.helpers.collection.Iterables.*;
 import static org.neo4j.server.rest.domain.JsonHelper.jsonToList;
 import static org.neo4j.server.rest.domain.JsonHelper.readJson;
 
 public class JourneyServiceTest {
 
+    private GraphDatabaseService db;
     private JourneyService service;
 
     @Before
     public void setup() throws IOException {
-        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
         service = new JourneyService(db);
     }
 
@@ -56,7 +65,7 @@ public class JourneyServiceTest {
     }
 
     @Test
-    public void setupSchemaShouldBeIdempotent() {
+    public void setupSchemaShouldBeIdempotent() throws IOException {
         assertEquals(200, service.setupSchema("foo").getStatus());
         assertEquals(200, service.setupSchema("bar").getStatus());
         assertEquals(200, service.setupSchema("bar").getStatus());
@@ -74,8 +83,8 @@ public class JourneyServiceTest {
                 createEventAttributes("s1", "a1", 30L),
                 createEventAttributes("s1", "a3", 40L, "u2")
         ));
-        assertEquals(201, service.addEvents("parsley", eventJson).getStatus());
-        assertEquals(201, service.addEvents("acme", eventJson).getStatus());
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
+        assertEquals(201, service.addEvents("acme", false, stream(eventJson)).getStatus());
 
         assertEquals(200, service.destroy("parsley").getStatus());
 
@@ -84,6 +93,36 @@ public class JourneyServiceTest {
 
     }
 
+    @Test
+    public void migratingCustomPropertiesLayoutShouldKeepEventProperties() throws IOException {
+        service.setupSchema("parsley");
+        String eventJson = toJson(iterable(
+                createEventAttributes("s0", "a0", 10L, mapOf("plan", "free", "tags", list("x", "y"))),
+                createEventAttributes("s0", "a1", 20L)
+        ));
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
+        Object before = jsonToListMap((String) service.journeys("parsley", "", 1, 0, true, 101).getEntity()).get(0).get("events");
+
+        assertEquals(mapOf("converted", 1), jsonToMap((String) service.migrateCustomProperties("parsley", "inline").getEntity()));
+        assertEquals(before, jsonToListMap((String) service.journeys("parsley", "", 1, 0, true, 101).getEntity()).get(0).get("events"));
+        assertEquals(mapOf("converted", 1), jsonToMap((String) service.migrateCustomProperties("parsley", "relationships").getEntity()));
+        assertEquals(before, jsonToListMap((String) service.journeys("parsley", "", 1, 0, true, 101).getEntity()).get(0).get("events"));
+        assertEquals(400, service.migrateCustomProperties("parsley", "columns").getStatus());
+    }
+
+    @Test
+    public void canAddEventsToSameSessionAfterDestroy() throws IOException {
+        service.setupSchema("parsley");
+        assertEquals(201, service.addEvents("parsley", false, stream(toJson(iterable(createEventAttributes("s0", "a0", 10L, "u1"))))).getStatus());
+        assertEquals(200, service.destroy("parsley").getStatus());
+        service.setupSchema("parsley");
+        assertEquals(201, service.addEvents("parsley", false, stream(toJson(iterable(createEventAttributes("s0", "a1", 20L, "u1"))))).getStatus());
+
+        List<Map> journeys = jsonToListMap((String) service.journeys("parsley", "", -1, 0, true, 101).getEntity());
+        assertEquals(1, journeys.size());
+        assertIterableEquals(iterable("a1"), map(pluck("action_label"), (Iterable<Map>) journeys.get(0).get("events")));
+    }
+
     @Test
     public void canFetchJourneysAfterImportEvents() throws IOException {
         service.setupSchema("parsley");
@@ -95,7 +134,7 @@ public class JourneyServiceTest {
                 createEventAttributes("s1", "a3", 40L, "u2")
         ));
 
-        assertEquals(201, service.addEvents("parsley", eventJson).getStatus());
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
         Response response = service.journeys("parsley", "", -1, 0, true, 101);
         assertEquals(200, response.getStatus());
         List<Map> journeys = jsonToListMap((String) response.getEntity());
@@ -122,7 +161,7 @@ public class JourneyServiceTest {
                                 "status_code", "302"))
         ));
 
-        assertEquals(201, service.addEvents("parsley", eventJson).getStatus());
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
         Response response = service.journeys("parsley", "", -1, 0, true, 101);
         assertEquals(200, response.getStatus());
         List<Map> journeys = jsonToListMap((String) response.getEntity());
@@ -144,7 +183,7 @@ public class JourneyServiceTest {
                 createEventAttributes("s1", "a3", 40L, "u2")
         ));
 
-        assertEquals(201, service.addEvents("parsley", eventJson).getStatus());
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
         String queryJson = "[\"user.identifier = 'u1'\"]";
         Response response = service.journeys("parsley", queryJson, -1, 0, true, 101);
         assertEquals(200, response.getStatus());
@@ -167,7 +206,7 @@ public class JourneyServiceTest {
                 createEventAttributes("s1", "a3", 40L, "u2")
         ));
 
-        assertEquals(201, service.addEvents("parsley", eventJson).getStatus());
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
         assertEquals(200, service.reindex("parsley").getStatus());
 
         String queryJson = "[\"user.identifier =~ 'u*'\"]";
@@ -188,7 +227,7 @@ public class JourneyServiceTest {
                 createEventAttributes("s1", "a3", 40L, "u2")
         ));
 
-        assertEquals(201, service.addEvents("parsley", eventJson).getStatus());
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
         String queryJson = "[\"user.identifier = 'u1'\"]";
         Response response = service.journeysSummary("parsley", queryJson);
         assertEquals(200, response.getStatus());
@@ -197,6 +236,30 @@ public class JourneyServiceTest {
         assertEquals(1, summary.get("user_count"));
     }
 
+    @Test
+    public void fetchJourneysPlan() throws IOException, JsonParseException {
+        service.setupSchema("parsley");
+
+        String eventJson = toJson(iterable(
+                createEventAttributes("s0", "a0", 10L, "u1"),
+                createEventAttributes("s0", "a1", 20L, "u1"),
+                createEventAttributes("s1", "a1", 30L),
+                createEventAttributes("s1", "a3", 40L, "u2")
+        ));
+
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
+        String queryJson = "[\"user.identifier = 'u1'\", \"finish_at > user.start_active_at\"]";
+        Response response = service.journeysPlan("parsley", queryJson, true);
+        assertEquals(200, response.getStatus());
+        Map<String, Object> plan = (Map<String, Object>) readJson((String) response.getEntity());
+        assertEquals(2, ((List) plan.get("index_conditions")).size());
+        List<Map> residuals = (List<Map>) plan.get("residual_conditions");
+        assertEquals(1, residuals.size());
+        assertEquals("finish_at > user.start_active_at", residuals.get(0).get("condition"));
+        assertEquals(1, residuals.get(0).get("evaluated"));
+        assertEquals(1, plan.get("journey_count"));
+    }
+
     @Test
     public void fetchJourneysActionGraph() throws IOException, JsonParseException {
         service.setupSchema("parsley");
@@ -208,7 +271,7 @@ public class JourneyServiceTest {
                 createEventAttributes("s1", "a3", 40L, "u2")
         ));
 
-        assertEquals(201, service.addEvents("parsley", eventJson).getStatus());
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
         String queryJson = "[\"user.identifier = 'u1'\"]";
         Response response = service.journeysActionGraph("parsley", queryJson, 10);
         assertEquals(200, response.getStatus());
@@ -245,7 +308,7 @@ public class JourneyServiceTest {
 
         ));
 
-        assertEquals(201, service.addEvents("parsley", eventJson).getStatus());
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
         assertEquals(201, service.buildSuffixTrees("parsley", 3, 100).getStatus());
 
 
@@ -301,7 +364,7 @@ public class JourneyServiceTest {
                 createEventAttributes("s2", "g", dateToMillis(2011, 12, 13, 5), "u2"),
                 createEventAttributes("s2", "c", dateToMillis(2011, 12, 13, 5), "u2")
         ));
-        assertEquals(201, service.addEvents("parsley", eventJson).getStatus());
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
         assertEquals(201, service.buildSuffixTrees("parsley", 3, 100).getStatus());
 
 
@@ -330,7 +393,7 @@ public class JourneyServiceTest {
                 createEventAttributes("s1", "a3", dateToMillis(2014, 12, 14, 5), "u2")
         ));
 
-        assertEquals(201, service.addEvents("parsley", eventJson).getStatus());
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
 
         Response response = service.actionLabels("parsley");
         assertEquals(200, response.getStatus());
@@ -351,7 +414,7 @@ public class JourneyServiceTest {
                 createEventAttributes("s1", "a3", dateToMillis(2014, 12, 14, 5), "u2")
         ));
 
-        assertEquals(201, service.addEvents("parsley", eventJson).getStatus());
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
         assertEquals(200, service.ignoreAction("parsley", "a1", true).getStatus());
 
         Response response = service.actionLabels("parsley");
@@ -360,6 +423,36 @@ public class JourneyServiceTest {
         assertIterableEquals(iterable("a0", "a3"), labels);
     }
 
+    @Test
+    public void ignoredFlagShouldNotStayWhenIgnoreActionRollsBack() throws IOException, JsonParseException {
+        service.setupSchema("parsley");
+        String eventJson = toJson(iterable(
+                createEventAttributes("s0", "a0", 10L, "u1"),
+                createEventAttributes("s0", "a1", 20L, "u1")
+        ));
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
+        assertIterableEquals(iterable("a0", "a1"), (List<String>) readJson((String) service.actionLabels("parsley").getEntity()));
+
+        db.registerTransactionEventHandler(new TransactionEventHandler.Adapter<Object>() {
+            @Override
+            public Object beforeCommit(TransactionData data) throws Exception {
+                if (data.assignedNodeProperties().iterator().hasNext()) {
+                    throw new IllegalStateException("commit refused");
+                }
+                return null;
+            }
+        });
+        try {
+            service.ignoreAction("parsley", "a1", true);
+            fail("ignore should have been rolled back");
+        } catch (TransactionFailureException e) {
+            // expected
+        }
+
+        List<String> labels = (List<String>) readJson((String) service.actionLabels("parsley").getEntity());
+        assertIterableEquals(iterable("a0", "a1"), labels);
+    }
+
     @Test
     public void testFetchAllIgnoredActions() throws IOException, JsonParseException {
         service.setupSchema("parsley");
@@ -372,7 +465,7 @@ public class JourneyServiceTest {
                 createEventAttributes("s1", "a3", dateToMillis(2014, 12, 14, 5), "u2")
         ));
 
-        assertEquals(201, service.addEvents("parsley", eventJson).getStatus());
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
         assertEquals(200, service.ignoreAction("parsley", "a1", true).getStatus());
         assertEquals(200, service.ignoreAction("parsley", "a3", true).getStatus());
 
@@ -401,7 +494,7 @@ public class JourneyServiceTest {
                 createEventAttributes("s1", "a3", dateToMillis(2014, 12, 14, 5), "u2")
         ));
 
-        assertEquals(201, service.addEvents("parsley", eventJson).getStatus());
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
 
         Response response = service.query("parsley", "event.timestamp |> time_floor:day |> to_date |> group_count", "[{\"action\": \"a1\"}]", false);
         assertEquals(200, response.getStatus());
@@ -420,7 +513,7 @@ public class JourneyServiceTest {
                 createEventAttributes("s1", "a3", 40L, "u2")
         ));
 
-        assertEquals(201, service.addEvents("parsley", eventJson).getStatus());
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
 
         List<Map> journeyList = jsonToListMap((String) service.journeys("parsley", "", -1, 0, true, 101).getEntity());
         int j1Id = (int) journeyList.get(0).get("id");
@@ -454,7 +547,7 @@ public class JourneyServiceTest {
                 createEventAttributes("s2", "g", dateToMillis(2011, 12, 13, 5), "u2"),
                 createEventAttributes("s2", "c", dateToMillis(2011, 12, 13, 5), "u2")
         ));
-        assertEquals(201, service.addEvents("parsley", eventJson).getStatus());
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
         Response response = service.query("parsley", "user |> distinct |> count", "[{ \"action\": \"a\"}, { \"action\": \"d\"}]", true);
         assertEquals(200, response.getStatus());
         assertEquals(list(list(list(1)), list(list(1))), extractDataFromQueryResult((String) response.getEntity()));
@@ -480,7 +573,7 @@ public class JourneyServiceTest {
                 createEventAttributes("s2", "g", dateToMillis(2011, 12, 13, 5), "u2"),
                 createEventAttributes("s2", "c", dateToMillis(2011, 12, 13, 5), "u2")
         ));
-        assertEquals(201, service.addEvents("parsley", eventJson).getStatus());
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
         Response response = service.query("parsley", "event.color |> group_count", "[{\"action\":\"e\"}]", true);
         assertEquals(200, response.getStatus());
         assertEquals(list(list(list("red", 1),
@@ -507,7 +600,7 @@ public class JourneyServiceTest {
                 createEventAttributes("s2", "g", dateToMillis(2011, 12, 13, 5), "u2"),
                 createEventAttributes("s2", "c", dateToMillis(2011, 12, 13, 5), "u2")
         ));
-        assertEquals(201, service.addEvents("parsley", eventJson).getStatus());
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
         Response response = service.query("parsley", "user", "[{\"action\":\"e\"}]", true);
         assertEquals(200, response.getStatus());
         assertEquals(list(list(list(mapOf("uid", "u1", "traits", mapOf(), "anonymous_id", null)),
@@ -520,12 +613,116 @@ public class JourneyServiceTest {
         String eventJson = toJson(iterable(
                 createEventAttributes("s0", "a", dateToMillis(2011, 12, 11, 11), "u1")
         ));
-        assertEquals(201, service.addEvents("parsley", eventJson).getStatus());
+        assertEquals(201, service.addEvents("parsley", false, stream(eventJson)).getStatus());
         Response response = service.query("parsley", "event.timestamp |> to_date", "[{\"action\":\"*\"}]", true);
         assertEquals(200, response.getStatus());
         assertEquals(list(list(list("2011-12-11T11:00:00.000Z"))), extractDataFromQueryResult((String) response.getEntity()));
     }
 
+    @Test
+    public void addEventsShouldTellCommittedCountWhenALaterChunkFails() throws IOException {
+        service.setupSchema("parsley");
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            events.add(createEventAttributes("s" + i, "a0", 10L, "u1"));
+        }
+        String eventJson = toJson(events);
+        eventJson = eventJson.substring(0, eventJson.length() - 1) + ",{\"session_id\":";
+
+        Response response = service.addEvents("parsley", false, stream(eventJson));
+        assertEquals(500, response.getStatus());
+        assertEquals(1000, jsonToMap((String) response.getEntity()).get("committed"));
+    }
+
+    @Test
+    public void addEventsAsyncShouldCommitInBackground() throws Exception {
+        service.setupSchema("parsley");
+        String eventJson = toJson(iterable(
+                createEventAttributes("s0", "a0", 10L, "u1"),
+                createEventAttributes("s0", "a1", 20L, "u1")
+        ));
+        Response response = service.addEvents("parsley", true, stream(eventJson));
+        assertEquals(202, response.getStatus());
+        long batchId = ((Number) jsonToMap((String) response.getEntity()).get("batch_id")).longValue();
+
+        String status = "pending";
+        for (int i = 0; i < 100 && status.equals("pending"); i++) {
+            Thread.sleep(50);
+            status = (String) jsonToMap((String) service.ingestBatchStatus("parsley", batchId).getEntity()).get("status");
+        }
+        assertEquals("committed", status);
+        assertEquals(404, service.ingestBatchStatus("parsley", batchId + 1).getStatus());
+
+        List<Map> journeys = jsonToListMap((String) service.journeys("parsley", "", -1, 0, true, 101).getEntity());
+        assertEquals(1, journeys.size());
+        assertIterableEquals(iterable("a0", "a1"), map(pluck("action_label"), (Iterable<Map>) journeys.get(0).get("events")));
+    }
+
+    @Test
+    public void addEventsAsyncShouldBeWrittenWhenPluginStops() throws Exception {
+        service.setupSchema("parsley");
+        String eventJson = toJson(iterable(
+                createEventAttributes("s0", "a0", 10L, "u1"),
+                createEventAttributes("s0", "a1", 20L, "u1")
+        ));
+        assertEquals(202, service.addEvents("parsley", true, stream(eventJson)).getStatus());
+        new JourneyPluginLifecycle().stop();
+
+        List<Map> journeys = jsonToListMap((String) service.journeys("parsley", "", -1, 0, true, 101).getEntity());
+        assertEquals(1, journeys.size());
+        assertIterableEquals(iterable("a0", "a1"), map(pluck("action_label"), (Iterable<Map>) journeys.get(0).get("events")));
+    }
+
+    @Test
+    public void identifyBatchShouldIdentifyAllRecords() throws IOException {
+        service.setupSchema("parsley");
+        String recordsJson = toJson(list(
+                mapOf("uid", "u1", "anonymous_id", "anon-01", "traits", mapOf("plan", "gold")),
+                mapOf("uid", "u2", "traits", mapOf("plan", "free")),
+                mapOf("anonymous_id", "anon-03")
+        ));
+        Response response = service.identifyBatch("parsley", stream(recordsJson));
+        assertEquals(201, response.getStatus());
+        assertEquals(mapOf("identified", 3), jsonToMap((String) response.getEntity()));
+
+        assertEquals(mapOf("plan", list("gold")), jsonToMap((String) service.user("parsley", "u1").getEntity()).get("traits"));
+        assertEquals(mapOf("plan", list("free")), jsonToMap((String) service.user("parsley", "u2").getEntity()).get("traits"));
+        assertEquals(200, service.anonymousUser("parsley", "anon-03").getStatus());
+    }
+
+    @Test
+    public void sealJourneysShouldStartNewJourneyForLateEventsOfSession() throws IOException {
+        service.setupSchema("parsley");
+        long latest = 10L + 2 * Journeys.CUT_TOLERANT;
+        service.addEvents("parsley", false, stream(toJson(list(
+                createEventAttributes("s0", "a0", 10L),
+                createEventAttributes("s1", "a0", latest)))));
+
+        Response response = service.sealJourneys("parsley");
+        assertEquals(mapOf("sealed", 1), jsonToMap((String) response.getEntity()));
+        assertEquals(mapOf("sealed", 0), jsonToMap((String) service.sealJourneys("parsley").getEntity()));
+
+        service.addEvents("parsley", false, stream(toJson(list(createEventAttributes("s0", "a1", 20L)))));
+        List<Map> journeys = jsonToListMap((String) service.journeys("parsley", "", -1, 0, true, 101).getEntity());
+        assertEquals(3, journeys.size());
+        Map stats = jsonToMap((String) service.stats("parsley").getEntity());
+        assertEquals(1, ((Map) stats.get("journey_sealer")).get("sealed"));
+    }
+
+    @Test
+    public void addEventsInBinaryFormat() throws IOException {
+        service.setupSchema("parsley");
+        byte[] body = BinaryEventsWriter.encode(list(
+                createEventAttributes("s0", "a0", 10L, "u1", mapOf("color", "red")),
+                createEventAttributes("s0", "a1", 20L, "u1")
+        ));
+        assertEquals(201, service.addBinaryEvents("parsley", false, new ByteArrayInputStream(body)).getStatus());
+
+        List<Map> journeys = jsonToListMap((String) service.journeys("parsley", "", -1, 0, true, 101).getEntity());
+        assertEquals(1, journeys.size());
+        assertIterableEquals(iterable("a0", "a1"), map(pluck("action_label"), (Iterable<Map>) journeys.get(0).get("events")));
+    }
+
     private Object extractDataFromQueryResult(String responseBody) throws IOException {
         Map<String, Object> result = jsonToMap(responseBody);
         return result.get("data");
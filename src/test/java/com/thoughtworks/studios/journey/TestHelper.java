@@ -26,6 +26,9 @@ import org.joda.time.DateTimeZone;
 import org.neo4j.function.Function;
 import org.neo4j.helpers.collection.IteratorUtil;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import static com.thoughtworks.studios.journey.utils.MapUtils.mapOf;
@@ -141,4 +144,8 @@ public class TestHelper {
     public static Tuple t(JQLValue... vs) {
         return new Tuple(vs);
     }
+
+    public static InputStream stream(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
 }
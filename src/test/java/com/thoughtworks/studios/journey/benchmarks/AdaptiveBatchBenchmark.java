@@ -0,0 +1,121 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.models.Application;
+import com.thoughtworks.studios.journey.utils.AdaptiveBatchSize;
+import com.thoughtworks.studios.journey.utils.BatchTransaction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.io.fs.FileUtils;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+
+/**
+ * Reindex of journeys mostly of 1 to 3 events with a few 2000 events ones in between, committing every 100
+ * journeys as the reindex api used to, against an adaptive changes limit targeting commits of 200ms.
+ * Runs on disk so commits pay for flushing.
+ */
+public class AdaptiveBatchBenchmark {
+    private static final String NS = "bench";
+    private static final int SHORT_JOURNEYS = 20000;
+    private static final int LONG_JOURNEYS = 40;
+    private static final int LONG_JOURNEY_LENGTH = 2000;
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "journey-adaptive-batch-bench");
+        FileUtils.deleteRecursively(dir);
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newEmbeddedDatabase(dir.getPath());
+        Application app = new Application(db, NS);
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+        populate(db, app);
+
+        // warm up
+        reindex(db, app, "adaptive", adaptive());
+        reindex(db, app, "fixed", null);
+        reindex(db, app, "adaptive", adaptive());
+        db.shutdown();
+        FileUtils.deleteRecursively(dir);
+        System.exit(0);
+    }
+
+    private static AdaptiveBatchSize adaptive() {
+        return new AdaptiveBatchSize(100, true, 200, AdaptiveBatchSize.MAX_CHANGES);
+    }
+
+    private static void populate(GraphDatabaseService db, Application app) {
+        Random random = new Random(42);
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (int j = 0; j < SHORT_JOURNEYS + LONG_JOURNEYS; j++) {
+            int length = random.nextInt(SHORT_JOURNEYS / LONG_JOURNEYS) == 0 ? LONG_JOURNEY_LENGTH : 1 + random.nextInt(3);
+            for (int e = 0; e < length; e++) {
+                events.add(createEventAttributes("s" + j, "a" + random.nextInt(50), e * 1000L));
+            }
+            if (events.size() >= 5000) {
+                write(db, app, events);
+                events = new ArrayList<>();
+            }
+        }
+        write(db, app, events);
+    }
+
+    private static void write(GraphDatabaseService db, Application app, List<Map<String, Object>> events) {
+        try (Transaction tx = db.beginTx()) {
+            app.events().addAll(events);
+            tx.success();
+        }
+    }
+
+    private static void reindex(GraphDatabaseService db, Application app, String name, AdaptiveBatchSize size) {
+        List<Long> ids = new ArrayList<>();
+        try (Transaction ignored = db.beginTx()) {
+            ResourceIterator<Node> journeys = db.findNodes(app.journeys().getLabel());
+            while (journeys.hasNext()) {
+                ids.add(journeys.next().getId());
+            }
+        }
+        // fixed batches still report commits for their metrics
+        AdaptiveBatchSize metrics = size == null ? new AdaptiveBatchSize(100, false, 200, AdaptiveBatchSize.MAX_CHANGES) : size;
+        long start = System.nanoTime();
+        try (BatchTransaction tx = new BatchTransaction(db, metrics)) {
+            for (Long id : ids) {
+                Node journey = db.getNodeById(id);
+                int changes = app.journeys().length(journey) + 3;
+                tx.reserve(changes);
+                app.journeys().reindex(journey);
+                tx.increment(changes);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%s: %d journeys reindexed in %d ms; %s%n", name, ids.size(), elapsed / 1000000, metrics.stats());
+    }
+}
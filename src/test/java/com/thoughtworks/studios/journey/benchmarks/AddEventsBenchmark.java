@@ -0,0 +1,108 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.JourneyService;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+import static com.thoughtworks.studios.journey.TestHelper.stream;
+import static com.thoughtworks.studios.journey.utils.JSONUtils.jsonToMap;
+import static com.thoughtworks.studios.journey.utils.JSONUtils.toJson;
+
+/**
+ * Compare events/sec of synchronous add_events against async group commit mode, with a number of
+ * concurrent clients each posting small batches. Run with main(), e.g.
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=...AddEventsBenchmark
+ */
+public class AddEventsBenchmark {
+    private static final String NS = "bench";
+    private static final int CLIENTS = 4;
+    private static final int BATCHES_PER_CLIENT = 250;
+    private static final int EVENTS_PER_BATCH = 10;
+
+    public static void main(String[] args) throws Exception {
+        run(false);
+        run(true);
+        System.exit(0);
+    }
+
+    private static void run(final boolean async) throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        final JourneyService service = new JourneyService(db);
+        service.setupSchema(NS);
+
+        ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+        List<Future<Long>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int c = 0; c < CLIENTS; c++) {
+            final int client = c;
+            futures.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    long lastBatchId = 0;
+                    for (int b = 0; b < BATCHES_PER_CLIENT; b++) {
+                        Response response = service.addEvents(NS, async, stream(batchJson(client, b)));
+                        if (async) {
+                            lastBatchId = Math.max(lastBatchId, ((Number) jsonToMap((String) response.getEntity()).get("batch_id")).longValue());
+                        }
+                    }
+                    return lastBatchId;
+                }
+            }));
+        }
+
+        long lastBatchId = 0;
+        for (Future<Long> future : futures) {
+            lastBatchId = Math.max(lastBatchId, future.get());
+        }
+        if (async) {
+            while (!"committed".equals(jsonToMap((String) service.ingestBatchStatus(NS, lastBatchId).getEntity()).get("status"))) {
+                Thread.sleep(1);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        long total = (long) CLIENTS * BATCHES_PER_CLIENT * EVENTS_PER_BATCH;
+        System.out.printf("%-6s %d events in %d ms: %.0f events/sec%n",
+                async ? "async" : "sync", total, elapsed / 1000000, total * 1e9 / elapsed);
+        db.shutdown();
+    }
+
+    private static String batchJson(int client, int batch) throws IOException {
+        List<Map> events = new ArrayList<>(EVENTS_PER_BATCH);
+        for (int i = 0; i < EVENTS_PER_BATCH; i++) {
+            String sessionId = "c" + client + "-s" + (batch % 50);
+            events.add(createEventAttributes(sessionId, "action" + (i % 7), batch * 60000L + i * 1000L, (String) null));
+        }
+        return toJson(events);
+    }
+}
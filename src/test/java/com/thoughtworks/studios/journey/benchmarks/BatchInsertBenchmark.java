@@ -0,0 +1,95 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.models.Application;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+
+/**
+ * Compare inserting events one by one (Events.add) against session grouped, time sorted batch
+ * insertion (Events.addAll), on interleaved sessions where a share of events arrive out of order.
+ */
+public class BatchInsertBenchmark {
+    private static final String NS = "bench";
+    private static final int SESSIONS = 200;
+    private static final int EVENTS_PER_SESSION = 50;
+    private static final int CHUNK_SIZE = 1000;
+    private static final double OUT_OF_ORDER_RATE = 0.1;
+
+    public static void main(String[] args) {
+        List<Map<String, Object>> events = generate(new Random(42));
+        run("one by one", events, false);
+        run("batched", events, true);
+        System.exit(0);
+    }
+
+    private static void run(String name, List<Map<String, Object>> events, boolean batched) {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Application app = new Application(db, NS);
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+
+        long start = System.nanoTime();
+        for (int from = 0; from < events.size(); from += CHUNK_SIZE) {
+            List<Map<String, Object>> chunk = events.subList(from, Math.min(from + CHUNK_SIZE, events.size()));
+            try (Transaction tx = db.beginTx()) {
+                if (batched) {
+                    app.events().addAll(new ArrayList<>(chunk));
+                } else {
+                    for (Map<String, Object> event : chunk) {
+                        app.events().add(event);
+                    }
+                }
+                tx.success();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-10s %d events in %d ms: %.0f events/sec%n",
+                name, events.size(), elapsed / 1000000, events.size() * 1e9 / elapsed);
+        db.shutdown();
+    }
+
+    private static List<Map<String, Object>> generate(Random random) {
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (int i = 0; i < EVENTS_PER_SESSION; i++) {
+            for (int s = 0; s < SESSIONS; s++) {
+                long at = 1000000L + i * 10000L + s;
+                events.add(createEventAttributes("s" + s, "action" + random.nextInt(20), at, (String) null));
+            }
+        }
+        for (int i = 1; i < events.size(); i++) {
+            if (random.nextDouble() < OUT_OF_ORDER_RATE) {
+                Collections.swap(events, i, Math.max(0, i - random.nextInt(CHUNK_SIZE)));
+            }
+        }
+        return events;
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.ingestion.BinaryEventsReader;
+import com.thoughtworks.studios.journey.ingestion.BinaryEventsWriter;
+import com.thoughtworks.studios.journey.utils.MapReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+import static com.thoughtworks.studios.journey.utils.JSONUtils.listOfMapReader;
+import static com.thoughtworks.studios.journey.utils.JSONUtils.toJson;
+
+/**
+ * Payload size and decoding time of add_events bodies in json and in the binary format, for batches
+ * of events with a few custom properties.
+ */
+public class BinaryEventsBenchmark {
+    private static final int BATCH_SIZE = 1000;
+    private static final int PASSES = 200;
+
+    public static void main(String[] args) throws IOException {
+        List<Map<String, Object>> events = generate();
+        byte[] json = toJson(events).getBytes(StandardCharsets.UTF_8);
+        byte[] binary = BinaryEventsWriter.encode(events);
+        // warm up
+        decodeJson(json, PASSES);
+        decodeBinary(binary, PASSES);
+
+        System.out.printf("json: %d bytes per batch, %.1f us per event%n", json.length, decodeJson(json, PASSES) / 1000.0 / PASSES / BATCH_SIZE);
+        System.out.printf("binary: %d bytes per batch, %.1f us per event%n", binary.length, decodeBinary(binary, PASSES) / 1000.0 / PASSES / BATCH_SIZE);
+    }
+
+    private static long decodeJson(byte[] body, int passes) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < passes; i++) {
+            drain(listOfMapReader(new ByteArrayInputStream(body)));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long decodeBinary(byte[] body, int passes) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < passes; i++) {
+            drain(new BinaryEventsReader(new ByteArrayInputStream(body)));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void drain(MapReader reader) throws IOException {
+        int count = 0;
+        try (MapReader ignored = reader) {
+            while (reader.next() != null) {
+                count++;
+            }
+        }
+        if (count != BATCH_SIZE) {
+            throw new IllegalStateException("decoded " + count + " events");
+        }
+    }
+
+    private static List<Map<String, Object>> generate() {
+        Random random = new Random(42);
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("plan", "p" + random.nextInt(3));
+            properties.put("cart_size", random.nextInt(10));
+            properties.put("experiment", "exp-" + random.nextInt(5));
+            String user = random.nextInt(4) == 0 ? "user-" + random.nextInt(100) + "@example.com" : null;
+            Map<String, Object> event = createEventAttributes("session-" + i / 10, "Action " + random.nextInt(20),
+                    1449000000000L + 1000L * i, user, properties);
+            event.put("url", "https://shop.example.com/catalog/category-" + random.nextInt(50) + "/products");
+            event.put("referrer", "https://www.example.org/search?q=journey");
+            event.put("client_ip", "10.0.0." + random.nextInt(255));
+            events.add(event);
+        }
+        return events;
+    }
+}
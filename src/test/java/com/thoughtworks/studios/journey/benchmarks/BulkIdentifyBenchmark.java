@@ -0,0 +1,83 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.JourneyService;
+import com.thoughtworks.studios.journey.utils.MapUtils;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.*;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+import static com.thoughtworks.studios.journey.TestHelper.stream;
+import static com.thoughtworks.studios.journey.utils.JSONUtils.toJson;
+
+/**
+ * Login back fill: identify users of existing anonymous sessions with a few traits each, through
+ * one identify request per user against one identify_batch request for all of them.
+ */
+public class BulkIdentifyBenchmark {
+    private static final String NS = "bench";
+    private static final int USERS = 5000;
+    private static final int ANONYMOUS_SESSIONS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        // warm up
+        run(false, 500);
+        run(true, 500);
+        run(false, USERS);
+        run(true, USERS);
+        System.exit(0);
+    }
+
+    private static void run(boolean bulk, int users) throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        JourneyService service = new JourneyService(db);
+        service.setupSchema(NS);
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (int i = 0; i < ANONYMOUS_SESSIONS; i++) {
+            Map<String, Object> event = createEventAttributes("s" + i, "a" + i % 20, 1000L * i);
+            event.put("anonymous_id", "anon-" + i);
+            events.add(event);
+        }
+        service.addEvents(NS, false, stream(toJson(events)));
+
+        Random random = new Random(42);
+        List<Map<String, Object>> records = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            Map<String, Object> traits = MapUtils.<String, Object>mapOf("plan", "p" + random.nextInt(3), "company", "c" + random.nextInt(500),
+                    "signed_up_at", 1449000000000L + random.nextInt(1000000));
+            records.add(MapUtils.<String, Object>mapOf("uid", "user-" + i, "anonymous_id", "anon-" + random.nextInt(users), "traits", traits));
+        }
+
+        long start = System.nanoTime();
+        if (bulk) {
+            service.identifyBatch(NS, stream(toJson(records)));
+        } else {
+            for (Map<String, Object> record : records) {
+                service.identify(NS, (String) record.get("uid"), (String) record.get("anonymous_id"), toJson(record.get("traits")));
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%s: %d users in %d ms, %.0f users/sec%n", bulk ? "identify_batch" : "identify",
+                users, elapsed / 1000000, users * 1e9 / elapsed);
+        db.shutdown();
+    }
+}
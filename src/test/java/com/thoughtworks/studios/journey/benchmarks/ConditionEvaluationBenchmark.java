@@ -0,0 +1,121 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.jql.conditions.JourneyCondition;
+import com.thoughtworks.studios.journey.models.Application;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+
+/**
+ * Measure JourneyCondition.evaluate over millions of journey evaluations, on journeys already in
+ * the page cache so the cost of evaluating the condition itself shows.
+ */
+public class ConditionEvaluationBenchmark {
+    private static final String NS = "bench";
+    private static final int USERS = 200;
+    private static final int JOURNEYS_PER_USER = 5;
+    private static final int PASSES = 2000;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+    private static final String[] CONDITIONS = {
+            "length > 10",
+            "length % 7 = 0",
+            "finish_at - start_at > 60 * 1000",
+            "start_at >= user.start_active_at + 24 * 3600 * 1000",
+            "length > 2.5",
+            "first_action = 'a7'"
+    };
+
+    public static void main(String[] args) {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Application app = new Application(db, NS);
+        setup(db, app);
+
+        try (Transaction ignored = db.beginTx()) {
+            List<Node> journeys = new ArrayList<>();
+            ResourceIterator<Node> nodes = db.findNodes(app.journeys().getLabel());
+            while (nodes.hasNext()) {
+                journeys.add(nodes.next());
+            }
+            for (String condition : CONDITIONS) {
+                run(app, journeys, condition);
+            }
+        }
+
+        db.shutdown();
+        System.exit(0);
+    }
+
+    private static void run(Application app, List<Node> journeys, String condition) {
+        JourneyCondition parsed = JourneyCondition.parse(condition);
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long start = System.nanoTime();
+            long accepted = 0;
+            for (int pass = 0; pass < PASSES; pass++) {
+                for (Node journey : journeys) {
+                    if (parsed.evaluate(app, journey)) {
+                        accepted++;
+                    }
+                }
+            }
+            long evaluations = (long) PASSES * journeys.size();
+            if (round >= WARMUP_ROUNDS) {
+                System.out.printf("%-55s round %d: %d evaluations, %d accepted, %.1f ns/evaluation%n",
+                        condition, round - WARMUP_ROUNDS, evaluations, accepted,
+                        (System.nanoTime() - start) / (double) evaluations);
+            }
+        }
+    }
+
+    private static void setup(GraphDatabaseService db, Application app) {
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+
+        Random random = new Random(42);
+        long day = 24 * 3600 * 1000L;
+        for (int u = 0; u < USERS; u++) {
+            try (Transaction tx = db.beginTx()) {
+                for (int j = 0; j < JOURNEYS_PER_USER; j++) {
+                    List<Map<String, Object>> events = new ArrayList<>();
+                    int length = 1 + random.nextInt(20);
+                    for (int i = 0; i < length; i++) {
+                        events.add(createEventAttributes("s" + u + "-" + j, "a" + random.nextInt(30),
+                                j * day + u * 60 * 1000L + i * 10 * 1000L, "u" + u));
+                    }
+                    app.events().addAll(events);
+                }
+                tx.success();
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.models.Application;
+import com.thoughtworks.studios.journey.models.CustomProperties;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+
+/**
+ * Compare store size and read latency of event custom properties written as relationships and
+ * written inline on event nodes.
+ */
+public class CustomPropertiesLayoutBenchmark {
+    private static final String NS = "bench";
+    private static final int EVENTS = 20000;
+    private static final int CHUNK_SIZE = 1000;
+    private static final int READ_PASSES = 5;
+
+    public static void main(String[] args) throws IOException {
+        // warm up
+        run(CustomProperties.Layout.RELATIONSHIPS, 2000);
+        run(CustomProperties.Layout.RELATIONSHIPS, EVENTS);
+        run(CustomProperties.Layout.INLINE, EVENTS);
+        System.exit(0);
+    }
+
+    private static void run(CustomProperties.Layout layout, int eventCount) throws IOException {
+        File dir = Files.createTempDirectory("journey-bench").toFile();
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newEmbeddedDatabase(dir.getPath());
+        Application app = new Application(db, NS);
+        app.customProperties().setLayout(layout);
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+
+        Random random = new Random(42);
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (int i = 0; i < eventCount; i++) {
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("plan", "p" + random.nextInt(3));
+            properties.put("browser", "b" + random.nextInt(5));
+            properties.put("country", "c" + random.nextInt(50));
+            properties.put("screen_width", 800 + random.nextInt(1000));
+            properties.put("logged_in", random.nextBoolean());
+            properties.put("tags", Arrays.asList("t" + random.nextInt(10), "t" + (10 + random.nextInt(10))));
+            events.add(createEventAttributes("s" + i / 10, "a" + random.nextInt(20), 1000L * (i % 10), properties));
+        }
+        long start = System.nanoTime();
+        for (int from = 0; from < events.size(); from += CHUNK_SIZE) {
+            try (Transaction tx = db.beginTx()) {
+                app.events().addAll(events.subList(from, Math.min(from + CHUNK_SIZE, events.size())));
+                tx.success();
+            }
+        }
+        long writeElapsed = System.nanoTime() - start;
+
+        long readElapsed = 0;
+        long values = 0;
+        for (int pass = 0; pass < READ_PASSES; pass++) {
+            try (Transaction ignored = db.beginTx()) {
+                ResourceIterator<Node> nodes = db.findNodes(app.events().getLabel());
+                start = System.nanoTime();
+                while (nodes.hasNext()) {
+                    Node event = nodes.next();
+                    for (Set set : app.events().properties(event).values()) {
+                        values += set.size();
+                    }
+                    values += app.events().values(event, "country").size();
+                }
+                readElapsed += System.nanoTime() - start;
+            }
+        }
+        db.shutdown();
+
+        System.out.printf("%-13s %d events: write %.1f us/event, read %.1f us/event, relationship store %d KB, property store %d KB, total store %d KB (%d values read)%n",
+                layout, eventCount, writeElapsed / 1e3 / eventCount, readElapsed / 1e3 / eventCount / READ_PASSES,
+                StoreFiles.size(dir, "neostore.relationshipstore.db") / 1024, StoreFiles.size(dir, "neostore.propertystore.db") / 1024,
+                StoreFiles.size(dir, "neostore") / 1024, values);
+        StoreFiles.delete(dir);
+    }
+}
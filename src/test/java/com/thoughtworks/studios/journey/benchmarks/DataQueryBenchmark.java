@@ -0,0 +1,119 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.jql.DataQuery;
+import com.thoughtworks.studios.journey.models.Application;
+import com.thoughtworks.studios.journey.utils.BatchTransaction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+import static com.thoughtworks.studios.journey.utils.MapUtils.mapOf;
+
+/**
+ * Measure DataQuery.execute with stops, on events without the denormalized action_id property
+ * (action resolved through the ACTION relationship) and after backfilling it.
+ */
+public class DataQueryBenchmark {
+    private static final String NS = "bench";
+    private static final int SESSIONS = 2000;
+    private static final int EVENTS_PER_SESSION = 20;
+    private static final int ACTIONS = 30;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Application app = new Application(db, NS);
+        setup(db, app);
+
+        List<Long> eventIds = new ArrayList<>();
+        try (Transaction ignored = db.beginTx()) {
+            ResourceIterator<Node> events = db.findNodes(app.events().getLabel());
+            while (events.hasNext()) {
+                eventIds.add(events.next().getId());
+            }
+        }
+
+        try (BatchTransaction tx = new BatchTransaction(db, 5000)) {
+            for (Long id : eventIds) {
+                db.getNodeById(id).removeProperty("action_id");
+                tx.increment();
+            }
+        }
+        run("relationship", db, app);
+
+        try (BatchTransaction tx = new BatchTransaction(db, 5000)) {
+            for (Long id : eventIds) {
+                app.events().backfillActionId(db.getNodeById(id));
+                tx.increment();
+            }
+        }
+        run("action_id", db, app);
+
+        db.shutdown();
+        System.exit(0);
+    }
+
+    private static void run(String name, GraphDatabaseService db, Application app) {
+        for (int round = 0; round < ROUNDS; round++) {
+            try (Transaction ignored = db.beginTx()) {
+                long start = System.nanoTime();
+                DataQuery query = new DataQuery(app);
+                query.select("event.action |> group_count");
+                query.addStop(stop("a1")).addStop(stop("a2")).addStop(stop("a3"));
+                int rows = query.execute().data().size();
+                System.out.printf("%-12s round %d: %d rows in %d ms%n",
+                        name, round, rows, (System.nanoTime() - start) / 1000000);
+            }
+        }
+    }
+
+    private static Map<String, Object> stop(String action) {
+        return mapOf("action", action, "conditions", Collections.emptyList());
+    }
+
+    private static void setup(GraphDatabaseService db, Application app) {
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+
+        Random random = new Random(42);
+        for (int s = 0; s < SESSIONS; s++) {
+            try (Transaction tx = db.beginTx()) {
+                List<Map<String, Object>> events = new ArrayList<>();
+                for (int i = 0; i < EVENTS_PER_SESSION; i++) {
+                    events.add(createEventAttributes("s" + s, "a" + random.nextInt(ACTIONS), 1000000L + i * 1000L, (String) null));
+                }
+                app.events().addAll(events);
+                tx.success();
+            }
+        }
+    }
+}
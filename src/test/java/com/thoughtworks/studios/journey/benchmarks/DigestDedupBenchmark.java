@@ -0,0 +1,110 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.models.Application;
+import com.thoughtworks.studios.journey.models.Events;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributesWithDigest;
+
+/**
+ * Measure the dedup check cost per imported event: digest index lookup alone against digest filter
+ * check (falling back to the index lookup on probable hits), for digests that are mostly new.
+ */
+public class DigestDedupBenchmark {
+    private static final String NS = "bench";
+    private static final int EXISTING = 50000;
+    private static final int CHECKS = 200000;
+    private static final double DUPLICATE_RATE = 0.01;
+
+    public static void main(String[] args) {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Application app = new Application(db, NS);
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+        String[] existing = new String[EXISTING];
+        for (int from = 0; from < EXISTING; from += 1000) {
+            try (Transaction tx = db.beginTx()) {
+                for (int i = from; i < from + 1000; i++) {
+                    existing[i] = UUID.randomUUID().toString();
+                    app.events().add(createEventAttributesWithDigest("s" + i % 500, existing[i]));
+                }
+                tx.success();
+            }
+        }
+
+        String[] digests = new String[CHECKS];
+        for (int i = 0; i < CHECKS; i++) {
+            digests[i] = i % (int) (1 / DUPLICATE_RATE) == 0 ? existing[i % EXISTING] : UUID.randomUUID().toString();
+        }
+
+        // fresh instance so the filter is built by scanning, and the build is timed separately
+        Events events = new Application(db, NS).events();
+        try (Transaction ignored = db.beginTx()) {
+            long start = System.nanoTime();
+            events.digestFilter().mightExist("warm up");
+            System.out.printf("filter build: %d events in %d ms%n", EXISTING, (System.nanoTime() - start) / 1000000);
+
+            for (int round = 0; round < 3; round++) {
+                start = System.nanoTime();
+                int found = 0;
+                for (String digest : digests) {
+                    if (events.findByDigest(digest) != null) {
+                        found++;
+                    }
+                }
+                report("index only", start, found);
+
+                start = System.nanoTime();
+                found = 0;
+                for (String digest : digests) {
+                    if (!events.digestFilter().mightExist(digest)) {
+                        continue;
+                    }
+                    if (events.findByDigest(digest) != null) {
+                        found++;
+                    } else {
+                        events.digestFilter().recordFalsePositive();
+                    }
+                }
+                report("filter", start, found);
+            }
+            System.out.println("filter stats: " + events.digestFilter().stats());
+        }
+        db.shutdown();
+        System.exit(0);
+    }
+
+    private static void report(String name, long start, int found) {
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-10s %d checks (%d found) in %d ms: %.0f ns/event%n",
+                name, CHECKS, found, elapsed / 1000000, (double) elapsed / CHECKS);
+    }
+}
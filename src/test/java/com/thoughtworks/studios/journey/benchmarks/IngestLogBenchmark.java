@@ -0,0 +1,119 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.ingestion.EventsWriter;
+import com.thoughtworks.studios.journey.ingestion.GroupCommitIngestor;
+import com.thoughtworks.studios.journey.ingestion.IngestLog;
+import com.thoughtworks.studios.journey.ingestion.NamespaceLocks;
+import com.thoughtworks.studios.journey.models.Application;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+
+/**
+ * Client facing latency of posting event batches from concurrent clients to an on disk database:
+ * synchronous writes to the graph against asynchronous ingestion acknowledged once the batch is synced
+ * to the ingest log. Time until the log is applied to the graph is reported separately.
+ */
+public class IngestLogBenchmark {
+    private static final String NS = "bench";
+    private static final int CLIENTS = 4;
+    private static final int BATCHES_PER_CLIENT = 100;
+    private static final int BATCH_SIZE = 50;
+
+    public static void main(String[] args) throws Exception {
+        // warm up
+        run(false);
+        run(true);
+        run(false);
+        run(true);
+        System.exit(0);
+    }
+
+    private static void run(final boolean logged) throws Exception {
+        File dir = Files.createTempDirectory("journey-bench").toFile();
+        final GraphDatabaseService db = new TestGraphDatabaseFactory().newEmbeddedDatabase(dir.getPath());
+        Application app = new Application(db, NS);
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+
+        NamespaceLocks locks = new NamespaceLocks();
+        final EventsWriter writer = new EventsWriter(db, NS, locks);
+        final GroupCommitIngestor ingestor = logged
+                ? new GroupCommitIngestor(db, NS, locks, 10000, 5000, 50, 0, new IngestLog(new File(dir, "ingest-log")))
+                : null;
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int c = 0; c < CLIENTS; c++) {
+            final int client = c;
+            futures.add(clients.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Random random = new Random(client);
+                    for (int b = 0; b < BATCHES_PER_CLIENT; b++) {
+                        List<Map> batch = new ArrayList<>();
+                        for (int i = 0; i < BATCH_SIZE; i++) {
+                            batch.add(createEventAttributes("c" + client + "s" + random.nextInt(200), "a" + random.nextInt(20), 1000L * b + i));
+                        }
+                        long posted = System.nanoTime();
+                        if (logged) {
+                            ingestor.submit(batch);
+                        } else {
+                            //noinspection unchecked
+                            writer.write((List) batch);
+                        }
+                        latencies.add(System.nanoTime() - posted);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long acknowledged = System.nanoTime() - start;
+        if (logged) {
+            ingestor.shutdown();
+        }
+        long applied = System.nanoTime() - start;
+        clients.shutdown();
+
+        Collections.sort(latencies);
+        System.out.printf("%s: latency p50 %.2f ms, p99 %.2f ms; all acknowledged in %d ms, applied in %d ms%s%n",
+                logged ? "logged async" : "sync", latencies.get(latencies.size() / 2) / 1e6,
+                latencies.get(latencies.size() * 99 / 100) / 1e6, acknowledged / 1000000, applied / 1000000,
+                logged ? ", log " + ingestor.logStats() : "");
+        db.shutdown();
+    }
+}
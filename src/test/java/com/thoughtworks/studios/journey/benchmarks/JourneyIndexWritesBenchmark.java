@@ -0,0 +1,95 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.models.Application;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+
+/**
+ * Count journey legacy index writes per ingested event: the writes eager maintenance would make
+ * (requested) against the writes made after collapsing them per journey at commit.
+ */
+public class JourneyIndexWritesBenchmark {
+    private static final String NS = "bench";
+    private static final int SESSIONS = 500;
+    private static final int EVENTS_PER_SESSION = 20;
+    private static final int CHUNK_SIZE = 1000;
+
+    public static void main(String[] args) {
+        run("session batches", generate(false));
+        run("interleaved", generate(true));
+        System.exit(0);
+    }
+
+    private static void run(String name, List<Map<String, Object>> events) {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Application app = new Application(db, NS);
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+
+        long start = System.nanoTime();
+        for (int from = 0; from < events.size(); from += CHUNK_SIZE) {
+            try (Transaction tx = db.beginTx()) {
+                app.events().addAll(new ArrayList<>(events.subList(from, Math.min(from + CHUNK_SIZE, events.size()))));
+                tx.success();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Map<String, Object> stats = app.journeys().indexStats();
+        System.out.printf("%s: %d events in %d ms, %.0f events/sec, index writes per event %.2f%n",
+                name, events.size(), elapsed / 1000000, events.size() * 1e9 / elapsed,
+                (Long) stats.get("index_writes") / (double) events.size());
+        db.shutdown();
+    }
+
+    // interleaved: every chunk has a couple of events from each session, otherwise whole sessions
+    private static List<Map<String, Object>> generate(boolean interleaved) {
+        Random random = new Random(42);
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (int s = 0; s < SESSIONS; s++) {
+            String user = random.nextInt(4) == 0 ? "u" + s : null;
+            for (int i = 0; i < EVENTS_PER_SESSION; i++) {
+                events.add(createEventAttributes("s" + s, "a" + random.nextInt(20), 1000000L + i * 10000L, user));
+            }
+        }
+        if (interleaved) {
+            List<Map<String, Object>> result = new ArrayList<>(events.size());
+            for (int i = 0; i < EVENTS_PER_SESSION; i++) {
+                for (int s = 0; s < SESSIONS; s++) {
+                    result.add(events.get(s * EVENTS_PER_SESSION + i));
+                }
+            }
+            return result;
+        }
+        return events;
+    }
+}
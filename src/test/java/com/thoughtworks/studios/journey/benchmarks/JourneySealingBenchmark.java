@@ -0,0 +1,109 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.ingestion.EventsWriter;
+import com.thoughtworks.studios.journey.ingestion.JourneySealer;
+import com.thoughtworks.studios.journey.ingestion.NamespaceLocks;
+import com.thoughtworks.studios.journey.models.Application;
+import com.thoughtworks.studios.journey.models.ApplicationRegistry;
+import com.thoughtworks.studios.journey.models.Journeys;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+
+/**
+ * Ingestion of long lived sessions with and without sealing sweeps between rounds. Every round each
+ * session gets a new journey; the session cache is cleared every few rounds, as if sessions got evicted,
+ * so resolving the next event of a session loads its journeys from the graph again. With sealing only
+ * journeys still open are loaded and cached.
+ */
+public class JourneySealingBenchmark {
+    private static final String NS = "bench";
+    private static final int SESSIONS = 100;
+    private static final int ROUNDS = 200;
+    private static final int EVENTS_PER_JOURNEY = 3;
+    private static final int BATCH_SIZE = 50;
+    private static final int ROUNDS_PER_SWEEP = 10;
+
+    public static void main(String[] args) throws Exception {
+        // warm up
+        run(ROUNDS / 4, true);
+        run(ROUNDS, false);
+        run(ROUNDS, true);
+        System.exit(0);
+    }
+
+    private static void run(int rounds, boolean sealing) {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Application app = ApplicationRegistry.getInstance().get(db, NS);
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+        NamespaceLocks locks = new NamespaceLocks();
+        EventsWriter writer = new EventsWriter(db, NS, locks);
+        JourneySealer sealer = new JourneySealer(db, NS, locks, 1000, 0);
+
+        Random random = new Random(42);
+        long gap = 3 * Journeys.CUT_TOLERANT;
+        long writeNanos = 0;
+        long sweepNanos = 0;
+        int sealed = 0;
+        int eventCount = 0;
+        for (int round = 0; round < rounds; round++) {
+            List<Map<String, Object>> events = new ArrayList<>();
+            for (int s = 0; s < SESSIONS; s++) {
+                for (int e = 0; e < EVENTS_PER_JOURNEY; e++) {
+                    events.add(createEventAttributes("kiosk-" + s, "a" + random.nextInt(20), round * gap + e * 1000L));
+                }
+            }
+            Collections.shuffle(events, random);
+            eventCount += events.size();
+
+            long start = System.nanoTime();
+            for (int from = 0; from < events.size(); from += BATCH_SIZE) {
+                writer.write(events.subList(from, Math.min(from + BATCH_SIZE, events.size())));
+            }
+            writeNanos += System.nanoTime() - start;
+
+            if (round % ROUNDS_PER_SWEEP == ROUNDS_PER_SWEEP - 1) {
+                if (sealing) {
+                    start = System.nanoTime();
+                    sealed += sealer.sweep();
+                    sweepNanos += System.nanoTime() - start;
+                }
+                ApplicationRegistry.getInstance().get(db, NS).journeys().sessionCache().clear();
+            }
+        }
+        System.out.printf("sealing %s: %d events in %d ms, %.0f events/sec; %d journeys sealed in %d ms; session cache %s%n",
+                sealing, eventCount, writeNanos / 1000000, eventCount * 1e9 / writeNanos, sealed, sweepNanos / 1000000,
+                ApplicationRegistry.getInstance().get(db, NS).journeys().sessionCache().stats());
+        ApplicationRegistry.getInstance().invalidate(NS);
+        db.shutdown();
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.models.Application;
+import com.thoughtworks.studios.journey.models.Journeys;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+
+/**
+ * Ingestion of long lived sessions (e.g. kiosks) which accumulate hundreds of journeys each, posted in
+ * small batches interleaving many sessions. Most events continue the latest journey of their session,
+ * every few events start a new journey and a few arrive late into an old one. Throughput of the last
+ * quarter shows the cost once sessions have hundreds of journeys.
+ */
+public class LongSessionBenchmark {
+    private static final String NS = "bench";
+    private static final int SESSIONS = 100;
+    private static final int JOURNEYS_PER_SESSION = 200;
+    private static final int EVENTS_PER_JOURNEY = 3;
+    private static final int BATCH_SIZE = 50;
+
+    public static void main(String[] args) throws Exception {
+        List<Map<String, Object>> events = generate();
+        // warm up
+        run(events.subList(0, events.size() / 4));
+        run(events);
+        System.exit(0);
+    }
+
+    private static void run(List<Map<String, Object>> events) {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Application app = new Application(db, NS);
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+
+        long start = System.nanoTime();
+        long lastQuarter = 0;
+        for (int from = 0; from < events.size(); from += BATCH_SIZE) {
+            if (from >= events.size() * 3 / 4 && lastQuarter == 0) {
+                lastQuarter = System.nanoTime();
+            }
+            try (Transaction tx = db.beginTx()) {
+                app.events().addAll(events.subList(from, Math.min(from + BATCH_SIZE, events.size())));
+                tx.success();
+            }
+        }
+        long end = System.nanoTime();
+        System.out.printf("%d events in %d ms, %.0f events/sec; last quarter %.0f events/sec; session cache %s%n",
+                events.size(), (end - start) / 1000000, events.size() * 1e9 / (end - start),
+                events.size() / 4 * 1e9 / (end - lastQuarter), app.journeys().sessionCache().stats());
+        db.shutdown();
+    }
+
+    private static List<Map<String, Object>> generate() {
+        Random random = new Random(42);
+        long gap = 3 * Journeys.CUT_TOLERANT;
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (int j = 0; j < JOURNEYS_PER_SESSION; j++) {
+            List<Map<String, Object>> round = new ArrayList<>();
+            for (int s = 0; s < SESSIONS; s++) {
+                for (int e = 0; e < EVENTS_PER_JOURNEY; e++) {
+                    round.add(createEventAttributes("kiosk-" + s, "a" + random.nextInt(20), j * gap + e * 1000L));
+                }
+                if (j > 10 && random.nextInt(10) == 0) {
+                    int late = j - 1 - random.nextInt(10);
+                    round.add(createEventAttributes("kiosk-" + s, "late", late * gap + 500L));
+                }
+            }
+            Collections.shuffle(round, random);
+            events.addAll(round);
+        }
+        return events;
+    }
+}
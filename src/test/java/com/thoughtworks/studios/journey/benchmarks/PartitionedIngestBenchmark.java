@@ -0,0 +1,93 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.ingestion.NamespaceLocks;
+import com.thoughtworks.studios.journey.ingestion.PartitionedIngestor;
+import com.thoughtworks.studios.journey.models.Application;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+
+/**
+ * Throughput of synchronous ingestion through partitioned workers: one client posts chunks of
+ * interleaved events of many sessions, which get split over 1, 2, 4 and 8 workers.
+ */
+public class PartitionedIngestBenchmark {
+    private static final String NS = "bench";
+    private static final int SESSIONS = 1000;
+    private static final int EVENTS_PER_SESSION = 10;
+    private static final int CHUNK_SIZE = 1000;
+    private static final int[] WORKERS = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws Exception {
+        List<Map<String, Object>> events = generate();
+        // warm up
+        run(2, events);
+        for (int workers : WORKERS) {
+            run(workers, events);
+        }
+        System.exit(0);
+    }
+
+    private static void run(int workers, List<Map<String, Object>> events) throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Application app = new Application(db, NS);
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+
+        NamespaceLocks locks = new NamespaceLocks();
+        PartitionedIngestor ingestor = new PartitionedIngestor(db, NS, locks, workers);
+        long start = System.nanoTime();
+        for (int from = 0; from < events.size(); from += CHUNK_SIZE) {
+            ingestor.write(events.subList(from, Math.min(from + CHUNK_SIZE, events.size())));
+        }
+        long elapsed = System.nanoTime() - start;
+        ingestor.shutdown();
+
+        System.out.printf("%d workers: %d events in %d ms, %.0f events/sec, %d retries%n",
+                workers, events.size(), elapsed / 1000000, events.size() * 1e9 / elapsed, locks.stats().get("retries"));
+        db.shutdown();
+    }
+
+    // events of all sessions interleaved in time order, as a client collecting them would post
+    private static List<Map<String, Object>> generate() {
+        Random random = new Random(42);
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (int i = 0; i < EVENTS_PER_SESSION; i++) {
+            for (int s = 0; s < SESSIONS; s++) {
+                String user = i == EVENTS_PER_SESSION - 1 && s % 4 == 0 ? "u" + s % 100 : null;
+                Map<String, Object> properties = new HashMap<>();
+                properties.put("plan", "p" + random.nextInt(3));
+                events.add(createEventAttributes("s" + s, "a" + random.nextInt(20), 1000L * i, user, properties));
+            }
+        }
+        return events;
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.jql.JourneyQuery;
+import com.thoughtworks.studios.journey.models.Application;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+
+/**
+ * Measure selective journey queries on first action, anonymous id and user active time, and the
+ * ingestion cost of keeping those fields indexed on journeys.
+ */
+public class QueryPushdownBenchmark {
+    private static final String NS = "bench";
+    private static final int USERS = 2000;
+    private static final int JOURNEYS_PER_USER = 5;
+    private static final int EVENTS_PER_JOURNEY = 10;
+    private static final int ACTIONS = 200;
+    private static final long DAY = 24 * 3600 * 1000L;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Application app = new Application(db, NS);
+        setup(db, app);
+
+        long lastUserStart = (USERS - 1) * 60 * 1000L;
+        run(db, app, "first_action = 'a7'");
+        run(db, app, "user.start_active_at >= " + lastUserStart);
+        run(db, app, "user.last_active_at < " + ((JOURNEYS_PER_USER - 1) * DAY + 60 * 1000L));
+        run(db, app, "user.anonymous_id = 'anon-41'");
+
+        db.shutdown();
+        System.exit(0);
+    }
+
+    private static void run(GraphDatabaseService db, Application app, String condition) {
+        for (int round = 0; round < ROUNDS; round++) {
+            try (Transaction ignored = db.beginTx()) {
+                long start = System.nanoTime();
+                JourneyQuery query = JourneyQuery.Builder.query(app).conditions(Collections.singletonList(condition)).build();
+                int count = 0;
+                for (Node ignoredJourney : query.journeys()) {
+                    count++;
+                }
+                System.out.printf("%-40s round %d: %d journeys in %.1f ms%n",
+                        condition, round, count, (System.nanoTime() - start) / 1000000.0);
+            }
+        }
+    }
+
+    private static void setup(GraphDatabaseService db, Application app) {
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        int count = 0;
+        // odd users stay anonymous. One transaction per day of all users, so activity of every user
+        // changes in every transaction
+        for (int j = 0; j < JOURNEYS_PER_USER; j++) {
+            try (Transaction tx = db.beginTx()) {
+                for (int u = 0; u < USERS; u++) {
+                    List<Map<String, Object>> events = new ArrayList<>();
+                    long journeyStart = j * DAY + u * 60 * 1000L;
+                    for (int i = 0; i < EVENTS_PER_JOURNEY; i++) {
+                        Map<String, Object> event = createEventAttributes("s" + u + "-" + j,
+                                "a" + random.nextInt(ACTIONS), journeyStart + i * 1000L, u % 2 == 0 ? "u" + u : null);
+                        event.put("anonymous_id", "anon-" + u);
+                        events.add(event);
+                        count++;
+                    }
+                    app.events().addAll(events);
+                }
+                tx.success();
+            }
+        }
+        System.out.printf("ingested %d events in %d ms, %s%n", count, (System.nanoTime() - start) / 1000000,
+                app.journeys().indexStats());
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.ingestion.GroupCommitIngestor;
+import com.thoughtworks.studios.journey.ingestion.NamespaceLocks;
+import com.thoughtworks.studios.journey.models.Application;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+
+/**
+ * Asynchronous ingestion of events arriving out of order: each event is displaced by up to a few hundred
+ * positions from its place in the time ordered stream, and the stream is posted in small batches that get
+ * written one by one. Compares writing the batches as they come with holding them in a reorder window.
+ */
+public class ReorderBufferBenchmark {
+    private static final String NS = "bench";
+    private static final int SESSIONS = 100;
+    private static final int EVENTS_PER_SESSION = 100;
+    private static final int BATCH_SIZE = 20;
+    private static final int MAX_DISPLACEMENT = 300;
+    private static final long[] WINDOWS = {0, 1000};
+
+    public static void main(String[] args) throws Exception {
+        List<Map> events = generate();
+        // warm up
+        run(0, events);
+        for (long window : WINDOWS) {
+            run(window, events);
+        }
+        System.exit(0);
+    }
+
+    private static void run(long window, List<Map> events) throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Application app = new Application(db, NS);
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+
+        GroupCommitIngestor ingestor = new GroupCommitIngestor(db, NS, new NamespaceLocks(), events.size(), BATCH_SIZE, 0, window);
+        long start = System.nanoTime();
+        for (int from = 0; from < events.size(); from += BATCH_SIZE) {
+            ingestor.submit(events.subList(from, Math.min(from + BATCH_SIZE, events.size())));
+        }
+        ingestor.shutdown();
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("window %d ms: %d events in %d ms, %.0f events/sec (%d ms excluding window)%s%n",
+                window, events.size(), elapsed / 1000000, events.size() * 1e9 / elapsed,
+                elapsed / 1000000 - window, window > 0 ? ", buffer " + ingestor.reorderStats() : "");
+        db.shutdown();
+    }
+
+    private static List<Map> generate() {
+        Random random = new Random(42);
+        List<Map> events = new ArrayList<>();
+        for (int i = 0; i < EVENTS_PER_SESSION; i++) {
+            for (int s = 0; s < SESSIONS; s++) {
+                String user = s % 2 == 0 ? "u" + s % 20 : null;
+                events.add(createEventAttributes("s" + s, "a" + random.nextInt(20), 1000L * i + s, user));
+            }
+        }
+        // late arrivals: every event swapped with one up to MAX_DISPLACEMENT positions ahead
+        for (int i = 0; i < events.size(); i++) {
+            int j = Math.min(events.size() - 1, i + random.nextInt(MAX_DISPLACEMENT));
+            Collections.swap(events, i, j);
+        }
+        return events;
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.jql.JourneyQuery;
+import com.thoughtworks.studios.journey.models.Application;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+
+/**
+ * Measure journey queries with residual conditions (not answerable by the journey index) written
+ * in both orders: an expensive one walking the user's journey chain and a cheap selective one.
+ */
+public class ResidualPlanBenchmark {
+    private static final String NS = "bench";
+    private static final int USERS = 2000;
+    private static final int JOURNEYS_PER_USER = 5;
+    private static final int MAX_EVENTS_PER_JOURNEY = 20;
+    private static final long DAY = 24 * 3600 * 1000L;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Application app = new Application(db, NS);
+        setup(db, app);
+
+        String expensive = "start_at >= user.start_active_at + " + 3 * DAY;
+        String cheap = "length % 7 = 0";
+        run(db, app, expensive, cheap);
+        run(db, app, cheap, expensive);
+
+        db.shutdown();
+        System.exit(0);
+    }
+
+    private static void run(GraphDatabaseService db, Application app, String... conditions) {
+        for (int round = 0; round < ROUNDS; round++) {
+            try (Transaction ignored = db.beginTx()) {
+                long start = System.nanoTime();
+                JourneyQuery query = JourneyQuery.Builder.query(app).conditions(Arrays.asList(conditions)).build();
+                int count = 0;
+                for (Node ignoredJourney : query.journeys()) {
+                    count++;
+                }
+                System.out.printf("%s round %d: %d journeys in %.1f ms%n",
+                        Arrays.toString(conditions), round, count, (System.nanoTime() - start) / 1000000.0);
+            }
+        }
+    }
+
+    private static void setup(GraphDatabaseService db, Application app) {
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+
+        Random random = new Random(42);
+        for (int u = 0; u < USERS; u++) {
+            try (Transaction tx = db.beginTx()) {
+                for (int j = 0; j < JOURNEYS_PER_USER; j++) {
+                    List<Map<String, Object>> events = new ArrayList<>();
+                    int length = 1 + random.nextInt(MAX_EVENTS_PER_JOURNEY);
+                    for (int i = 0; i < length; i++) {
+                        events.add(createEventAttributes("s" + u + "-" + j, "a" + random.nextInt(30),
+                                j * DAY + u * 60 * 1000L + i * 1000L, "u" + u));
+                    }
+                    app.events().addAll(events);
+                }
+                tx.success();
+            }
+        }
+    }
+}
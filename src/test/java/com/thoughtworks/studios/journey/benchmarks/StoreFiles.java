@@ -0,0 +1,50 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import org.neo4j.io.fs.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Store directory helpers shared by benchmarks that compare store sizes.
+ */
+class StoreFiles {
+    private StoreFiles() {
+    }
+
+    // total size of store files with names starting with prefix
+    static long size(File dir, String prefix) {
+        long size = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && file.getName().startsWith(prefix) && !file.getName().endsWith(".id")) {
+                    size += file.length();
+                }
+            }
+        }
+        return size;
+    }
+
+    static void delete(File dir) throws IOException {
+        FileUtils.deleteRecursively(dir);
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.jql.DataQuery;
+import com.thoughtworks.studios.journey.models.Application;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+
+/**
+ * Compare store size and read latency of event urls and referrers stored as plain strings and
+ * dictionary encoded, with urls drawn from a few hundred popular ones.
+ */
+public class StringDictionaryBenchmark {
+    private static final String NS = "bench";
+    private static final int EVENTS = 20000;
+    private static final int URLS = 300;
+    private static final int REFERRERS = 100;
+    private static final int CHUNK_SIZE = 1000;
+    private static final int READ_PASSES = 5;
+
+    public static void main(String[] args) throws IOException {
+        // warm up
+        run(false, 2000);
+        run(false, EVENTS);
+        run(true, EVENTS);
+        System.exit(0);
+    }
+
+    private static void run(boolean encoded, int eventCount) throws IOException {
+        File dir = Files.createTempDirectory("journey-bench").toFile();
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newEmbeddedDatabase(dir.getPath());
+        Application app = new Application(db, NS);
+        app.events().setEncodeStrings(encoded);
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+
+        Random random = new Random(42);
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (int i = 0; i < eventCount; i++) {
+            Map<String, Object> event = createEventAttributes("s" + i / 10, "a" + random.nextInt(20), 1000L * (i % 10));
+            event.put("url", "https://shop.example.com/catalog/category-" + popular(random, URLS)
+                    + "/products?sort=price&page=" + popular(random, 5) + "&utm_source=newsletter&utm_campaign=spring");
+            event.put("referrer", "https://www.search-" + popular(random, REFERRERS) + ".example.org/search?q=journey+analysis");
+            events.add(event);
+        }
+        long start = System.nanoTime();
+        for (int from = 0; from < events.size(); from += CHUNK_SIZE) {
+            try (Transaction tx = db.beginTx()) {
+                app.events().addAll(events.subList(from, Math.min(from + CHUNK_SIZE, events.size())));
+                tx.success();
+            }
+        }
+        long writeElapsed = System.nanoTime() - start;
+
+        long readElapsed = 0;
+        long chars = 0;
+        for (int pass = 0; pass < READ_PASSES; pass++) {
+            try (Transaction ignored = db.beginTx()) {
+                ResourceIterator<Node> nodes = db.findNodes(app.events().getLabel());
+                start = System.nanoTime();
+                while (nodes.hasNext()) {
+                    Node event = nodes.next();
+                    chars += app.events().getUrl(event).length() + app.events().getReferrer(event).length();
+                }
+                readElapsed += System.nanoTime() - start;
+            }
+        }
+
+        long queryElapsed;
+        try (Transaction ignored = db.beginTx()) {
+            DataQuery query = new DataQuery(app);
+            query.select("event.referrer |> url_domain");
+            start = System.nanoTime();
+            chars += query.execute().data().size();
+            queryElapsed = System.nanoTime() - start;
+        }
+        db.shutdown();
+
+        System.out.printf("%-7s %d events: write %.1f us/event, read url+referrer %.2f us/event, url_domain query %d ms, string store %d KB, property stores %d KB (%d)%n",
+                encoded ? "encoded" : "plain", eventCount, writeElapsed / 1e3 / eventCount,
+                readElapsed / 1e3 / eventCount / READ_PASSES, queryElapsed / 1000000,
+                StoreFiles.size(dir, "neostore.propertystore.db.strings") / 1024, StoreFiles.size(dir, "neostore.propertystore.db") / 1024, chars);
+        StoreFiles.delete(dir);
+    }
+
+    // skewed towards the first few
+    private static int popular(Random random, int count) {
+        return (int) (count * Math.pow(random.nextDouble(), 3));
+    }
+}
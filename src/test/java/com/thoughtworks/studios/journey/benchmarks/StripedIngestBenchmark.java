@@ -0,0 +1,119 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.ingestion.EventsWriter;
+import com.thoughtworks.studios.journey.ingestion.NamespaceLocks;
+import com.thoughtworks.studios.journey.models.Application;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+
+/**
+ * Concurrency stress of synchronous event writes: writer threads each write their own sessions in
+ * chunks, sharing actions, users and property names, under the namespace lock and under striped locks.
+ */
+public class StripedIngestBenchmark {
+    private static final String NS = "bench";
+    private static final int SESSIONS = 800;
+    private static final int EVENTS_PER_SESSION = 10;
+    private static final int SESSIONS_PER_CHUNK = 10;
+    private static final int[] THREADS = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws Exception {
+        // warm up
+        run(true, 2);
+        for (int threads : THREADS) {
+            run(false, threads);
+            run(true, threads);
+        }
+        System.exit(0);
+    }
+
+    private static void run(boolean striped, int threads) throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Application app = new Application(db, NS);
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+
+        final NamespaceLocks locks = new NamespaceLocks(striped, NamespaceLocks.DEFAULT_STRIPES, NamespaceLocks.DEFAULT_TIMEOUT_MILLIS);
+        final EventsWriter writer = new EventsWriter(db, NS, locks);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final List<List<Map<String, Object>>> chunks = generate(t, threads);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (List<Map<String, Object>> chunk : chunks) {
+                        writer.write(chunk);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        long events = SESSIONS * EVENTS_PER_SESSION;
+        System.out.printf("%-9s %d threads: %d events in %d ms, %.0f events/sec, %d retries%n",
+                striped ? "striped" : "namespace", threads, events, elapsed / 1000000, events * 1e9 / elapsed,
+                locks.stats().get("retries"));
+        db.shutdown();
+    }
+
+    // sessions of one writer thread, in chunks of a few whole sessions
+    private static List<List<Map<String, Object>>> generate(int thread, int threads) {
+        Random random = new Random(thread);
+        List<List<Map<String, Object>>> chunks = new ArrayList<>();
+        List<Map<String, Object>> chunk = new ArrayList<>();
+        for (int s = thread; s < SESSIONS; s += threads) {
+            String user = random.nextInt(4) == 0 ? "u" + random.nextInt(50) : null;
+            for (int i = 0; i < EVENTS_PER_SESSION; i++) {
+                Map<String, Object> properties = new HashMap<>();
+                properties.put("plan", "p" + random.nextInt(3));
+                chunk.add(createEventAttributes("s" + s, "a" + random.nextInt(20), 1000L * i,
+                        i == EVENTS_PER_SESSION - 1 ? user : null, properties));
+            }
+            if (chunk.size() >= SESSIONS_PER_CHUNK * EVENTS_PER_SESSION) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.models.Application;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time setting traits of a user who already has thousands of trait values, both traits already
+ * set (as repeated identify calls do) and new ones.
+ */
+public class TraitWritesBenchmark {
+    private static final String NS = "bench";
+    private static final int[] EXISTING_VALUES = {1000, 2000, 4000};
+    private static final int WRITES = 500;
+
+    public static void main(String[] args) {
+        // warm up
+        run(1000);
+        for (int existing : EXISTING_VALUES) {
+            run(existing);
+        }
+        System.exit(0);
+    }
+
+    private static void run(int existing) {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Application app = new Application(db, NS);
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            Node user = app.users().identify("u1", "anon");
+            // 100 traits, each with many values, as multi valued traits (e.g. tags) accumulate
+            for (int i = 0; i < existing; i++) {
+                app.users().addTrait(user, "t" + i % 100, "v" + i);
+            }
+            tx.success();
+        }
+
+        long repeated;
+        long fresh;
+        try (Transaction tx = db.beginTx()) {
+            Node user = app.users().findByIdentifier("u1");
+            long start = System.nanoTime();
+            for (int i = 0; i < WRITES; i++) {
+                app.users().addTrait(user, "t" + i % 100, "v" + i);
+            }
+            repeated = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < WRITES; i++) {
+                app.users().addTrait(user, "t" + i % 100, "new" + i);
+            }
+            fresh = System.nanoTime() - start;
+            tx.success();
+        }
+
+        System.out.printf("%d existing values: %.1f us per existing value, %.1f us per new value%n",
+                existing, repeated / 1e3 / WRITES, fresh / 1e3 / WRITES);
+        db.shutdown();
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.benchmarks;
+
+import com.thoughtworks.studios.journey.models.Application;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+
+/**
+ * Time Users.merge of an anonymous user into an identified user, both with thousands of journeys
+ * interleaved in time and some hundreds of traits.
+ */
+public class UserMergeBenchmark {
+    private static final String NS = "bench";
+    private static final int[] JOURNEYS = {500, 2000, 4000};
+    private static final int TRAITS = 300;
+    private static final int CHUNK_SIZE = 1000;
+
+    public static void main(String[] args) {
+        // warm up
+        run(500);
+        for (int journeys : JOURNEYS) {
+            run(journeys);
+        }
+        System.exit(0);
+    }
+
+    private static void run(int journeysPerUser) {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Application app = new Application(db, NS);
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (int i = 0; i < journeysPerUser; i++) {
+            events.add(withAnonymousId(createEventAttributes("known-" + i, "a", 1000L * (2 * i), "u1"), "known"));
+            events.add(withAnonymousId(createEventAttributes("anon-" + i, "a", 1000L * (2 * i + 1)), "anon"));
+        }
+        for (int from = 0; from < events.size(); from += CHUNK_SIZE) {
+            try (Transaction tx = db.beginTx()) {
+                app.events().addAll(events.subList(from, Math.min(from + CHUNK_SIZE, events.size())));
+                tx.success();
+            }
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            Node identified = app.users().findByIdentifier("u1");
+            Node anonymous = app.users().findByAnonymousId("anon");
+            for (int i = 0; i < TRAITS; i++) {
+                app.users().addTrait(identified, "t" + i, "v" + i);
+                app.users().addTrait(anonymous, "t" + (i + TRAITS / 2), "w" + i);
+            }
+            tx.success();
+        }
+
+        long elapsed;
+        try (Transaction tx = db.beginTx()) {
+            Node identified = app.users().findByIdentifier("u1");
+            Node anonymous = app.users().findByAnonymousId("anon");
+            long start = System.nanoTime();
+            app.users().merge(anonymous, identified);
+            elapsed = System.nanoTime() - start;
+            tx.success();
+        }
+
+        try (Transaction ignored = db.beginTx()) {
+            Node identified = app.users().findByIdentifier("u1");
+            int count = 0;
+            long last = Long.MIN_VALUE;
+            for (Node journey : app.users().journeys(identified)) {
+                long startAt = app.journeys().getStartAt(journey);
+                if (startAt < last) {
+                    throw new IllegalStateException("journeys out of order after merge");
+                }
+                last = startAt;
+                count++;
+            }
+            System.out.printf("%d + %d journeys, %d + %d traits: merged in %.1f ms, %d journeys after merge%n",
+                    journeysPerUser, journeysPerUser, TRAITS, TRAITS, elapsed / 1e6, count);
+        }
+        db.shutdown();
+    }
+
+    private static Map<String, Object> withAnonymousId(Map<String, Object> event, String anonymousId) {
+        event.put("anonymous_id", anonymousId);
+        return event;
+    }
+}
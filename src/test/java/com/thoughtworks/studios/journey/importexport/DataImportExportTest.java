@@ -58,6 +58,33 @@ public class DataImportExportTest extends ModelTestCase {
         assertEquals("a1\na11", app2.actions().getActionLabel(actions.get(0)));
     }
 
+    @Test
+    public void importShouldPointActionIdsToImportedActions() throws IOException {
+        setupJourney(list("a1", "a2"), 200L, "u1");
+        dumpToApp2();
+        for (Node event : Iterables.toList(app2.allNodes(app2.events()))) {
+            assertEquals(app2.events().action(event), app2.actions().findByActionLabel(app2.events().getActionLabel(event)));
+            assertEquals(app2.events().getActionLabel(event), app.events().getActionLabel(app.events().findByDigest(
+                    (String) event.getProperty("digest"))));
+        }
+    }
+
+    @Test
+    public void importShouldKeepDictionaryEncodedUrls() throws IOException {
+        app.events().setEncodeStrings(true);
+        setupJourney(list("a1", "a2"), 200L, "u1");
+        dumpToApp2();
+        List<Node> events = Iterables.toList(app2.allNodes(app2.events()));
+        assertEquals(2, events.size());
+        for (Node event : events) {
+            assertEquals(app.events().getUrl(app.events().findByDigest((String) event.getProperty("digest"))),
+                    app2.events().getUrl(event));
+        }
+        long code = app2.strings().encode("/fresh");
+        assertEquals("/fresh", app2.strings().decode(code));
+        assertEquals("/url/a1", app2.strings().decode(app2.strings().encode("/url/a1")));
+    }
+
     private void dumpToApp2() throws IOException {
         StringWriter dump = new StringWriter();
         new DataImportExport(app).export(new PrintWriter(dump));
@@ -0,0 +1,108 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.ingestion;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+import static com.thoughtworks.studios.journey.utils.CollectionUtils.list;
+import static com.thoughtworks.studios.journey.utils.JSONUtils.jsonToListMap;
+import static com.thoughtworks.studios.journey.utils.JSONUtils.toJson;
+import static com.thoughtworks.studios.journey.utils.MapUtils.mapOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class BinaryEventsReaderTest {
+
+    @Test
+    public void shouldDecodeEventsAsJsonWould() throws IOException {
+        Map<String, Object> first = createEventAttributes("s0", "a", 1449000000000L, "u1",
+                mapOf("plan", "gold", "seats", 3, "ratio", 0.5, "beta", true, "tags", list("x", "y")));
+        first.put("referrer", "http://example.com");
+        first.put("anonymous_id", "anon");
+        first.put("status_code", "200");
+        Map<String, Object> second = createEventAttributes("s0", "a", 1448000000000L);
+        List<Map<String, Object>> events = list(first, second);
+
+        List<Map<String, Object>> decoded = decode(BinaryEventsWriter.encode(events));
+        assertEquals(jsonToListMap(toJson(withoutEmptyAttributes(events))), jsonToListMap(toJson(decoded)));
+        assertEquals(1448000000000L, decoded.get(1).get("start_at"));
+        assertSame(decoded.get(0).get("session_id"), decoded.get(1).get("session_id"));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectUnknownFormat() throws IOException {
+        decode(toJson(list(createEventAttributes("s0"))).getBytes("UTF-8"));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectStringReferenceOutOfTable() throws IOException {
+        byte[] bytes = BinaryEventsWriter.encode(list(createEventAttributes("s0")));
+        // last byte is the property count of the only event, make it refer to a missing name
+        byte[] corrupted = new byte[bytes.length + 1];
+        System.arraycopy(bytes, 0, corrupted, 0, bytes.length);
+        corrupted[bytes.length - 1] = 1;
+        corrupted[bytes.length] = 100;
+        decode(corrupted);
+    }
+
+    @Test(expected = EOFException.class)
+    public void shouldNotTrustStringTableCount() throws IOException {
+        // Integer.MAX_VALUE strings claimed, none sent
+        decode(new byte[]{'J', 'E', 'V', 1, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07});
+    }
+
+    @Test(expected = EOFException.class)
+    public void shouldNotTrustStringLength() throws IOException {
+        // one string of Integer.MAX_VALUE bytes claimed, three sent
+        decode(new byte[]{'J', 'E', 'V', 1, 1, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07, 'a', 'b', 'c'});
+    }
+
+    // absent and empty attributes are not told apart by the format
+    private List<Map<String, Object>> withoutEmptyAttributes(List<Map<String, Object>> events) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Map<String, Object> event : events) {
+            Map<String, Object> copy = new HashMap<>(event);
+            copy.values().removeAll(Collections.singleton(null));
+            copy.values().removeAll(Collections.singleton(mapOf()));
+            result.add(copy);
+        }
+        return result;
+    }
+
+    private List<Map<String, Object>> decode(byte[] bytes) throws IOException {
+        List<Map<String, Object>> result = new ArrayList<>();
+        try (BinaryEventsReader reader = new BinaryEventsReader(new ByteArrayInputStream(bytes))) {
+            Map<String, Object> event;
+            while ((event = reader.next()) != null) {
+                result.add(event);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.ingestion;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static com.thoughtworks.studios.journey.ingestion.BinaryEventsReader.*;
+
+/**
+ * Reference encoder of the binary events format read by {@link BinaryEventsReader}.
+ */
+public class BinaryEventsWriter {
+    private final Map<String, Integer> refs = new LinkedHashMap<>();
+
+    public static byte[] encode(List<? extends Map> events) throws IOException {
+        return new BinaryEventsWriter().write(events);
+    }
+
+    private byte[] write(List<? extends Map> events) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        writeVarLong(out, events.size());
+        long previousStartAt = 0;
+        for (Map event : events) {
+            long startAt = ((Number) event.get("start_at")).longValue();
+            writeSignedVarLong(out, startAt - previousStartAt);
+            previousStartAt = startAt;
+            for (String field : FIELDS) {
+                Object value = event.get(field);
+                writeString(out, value == null ? null : value.toString());
+            }
+            Map<?, ?> properties = (Map) event.get("properties");
+            if (properties == null) {
+                writeVarLong(out, 0);
+                continue;
+            }
+            writeVarLong(out, properties.size());
+            for (Map.Entry<?, ?> entry : properties.entrySet()) {
+                writeString(out, (String) entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        }
+        out.flush();
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(result);
+        header.write(MAGIC);
+        writeVarLong(header, refs.size());
+        for (String string : refs.keySet()) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(header, bytes.length);
+            header.write(bytes);
+        }
+        header.flush();
+        body.writeTo(result);
+        return result.toByteArray();
+    }
+
+    private void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            out.writeByte(LONG);
+            writeSignedVarLong(out, ((Number) value).longValue());
+        } else if (value instanceof Collection) {
+            out.writeByte(LIST);
+            writeVarLong(out, ((Collection) value).size());
+            for (Object element : (Collection) value) {
+                writeValue(out, element);
+            }
+        } else {
+            out.writeByte(STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    private void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        Integer ref = refs.get(value);
+        if (ref == null) {
+            ref = refs.size() + 1;
+            refs.put(value, ref);
+        }
+        writeVarLong(out, ref);
+    }
+
+    private static void writeSignedVarLong(DataOutputStream out, long value) throws IOException {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
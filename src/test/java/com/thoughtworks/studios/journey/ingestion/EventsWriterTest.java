@@ -0,0 +1,278 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.ingestion;
+
+import com.thoughtworks.studios.journey.ModelTestCase;
+import com.thoughtworks.studios.journey.models.Application;
+import com.thoughtworks.studios.journey.models.ApplicationRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.helpers.collection.IteratorUtil.count;
+
+public class EventsWriterTest {
+    private static final int THREADS = 4;
+    private static final int SESSIONS_PER_THREAD = 10;
+    private static final String[] ACTIONS = {"home", "search", "view", "checkout"};
+
+    private GraphDatabaseService db;
+    private final CountDownLatch committing = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final Set<Thread> held = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+    private final Set<Thread> failing = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+    @Before
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        // registered before any model, so held transactions have not written the journey index yet
+        db.registerTransactionEventHandler(new TransactionEventHandler.Adapter<Void>() {
+            @Override
+            public Void beforeCommit(TransactionData data) throws Exception {
+                if (failing.contains(Thread.currentThread())) {
+                    throw new IllegalStateException("failed on purpose");
+                }
+                if (held.contains(Thread.currentThread())) {
+                    committing.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                return null;
+            }
+        });
+        Application app = new Application(db, ModelTestCase.TEST_NAME_SPACE);
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void concurrentStripedWritesShouldNotDuplicateSharedNodes() throws Exception {
+        NamespaceLocks locks = new NamespaceLocks(true, 16, 1000);
+        writeConcurrently(locks);
+        assertWritten();
+    }
+
+    @Test
+    public void concurrentNamespaceWritesShouldNotDuplicateSharedNodes() throws Exception {
+        NamespaceLocks locks = new NamespaceLocks(false, 16, 1000);
+        writeConcurrently(locks);
+        assertWritten();
+        assertEquals(0L, locks.stats().get("retries"));
+    }
+
+    @Test
+    public void stripedWritesUnderLoadShouldFinishWithoutDuplicates() throws Exception {
+        final int threads = 8;
+        final int chunks = 10;
+        final int sessionsPerChunk = 5;
+        final NamespaceLocks locks = new NamespaceLocks(true, 16, 1000);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    EventsWriter writer = new EventsWriter(db, ModelTestCase.TEST_NAME_SPACE, locks);
+                    Random random = new Random(thread);
+                    for (int c = 0; c < chunks; c++) {
+                        List<Map<String, Object>> events = new ArrayList<>();
+                        for (int s = 0; s < sessionsPerChunk; s++) {
+                            String sessionId = "s" + thread + "-" + c + "-" + s;
+                            String uid = "u" + random.nextInt(10);
+                            for (int i = 0; i < ACTIONS.length; i++) {
+                                Map<String, Object> properties = new HashMap<>();
+                                properties.put("plan", "p" + random.nextInt(3));
+                                events.add(createEventAttributes(sessionId, ACTIONS[random.nextInt(ACTIONS.length)],
+                                        1000L * i, i == ACTIONS.length - 1 ? uid : null, properties));
+                            }
+                        }
+                        writer.write(events);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            // a deadlock between stripes would hang here
+            future.get(2, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+
+        Application app = new Application(db, ModelTestCase.TEST_NAME_SPACE);
+        try (Transaction ignored = db.beginTx()) {
+            assertEquals(threads * chunks * sessionsPerChunk * ACTIONS.length, app.events().count());
+            assertEquals(threads * chunks * sessionsPerChunk, app.journeys().count());
+            assertEquals(ACTIONS.length, count(app.actions().all()));
+            Set<String> identifiers = new HashSet<>();
+            for (Node user : app.users().findAll()) {
+                if (!app.users().isAnonymous(user)) {
+                    assertTrue(identifiers.add(app.users().getIdentifier(user)));
+                }
+            }
+            assertEquals(10, identifiers.size());
+        }
+    }
+
+    @Test
+    public void stripedWritesOfDifferentSessionsShouldNotBlockEachOther() throws Exception {
+        final NamespaceLocks locks = new NamespaceLocks(true, 16, 1000);
+        final CountDownLatch written = new CountDownLatch(1);
+        try (AutoCloseable ignored = locks.forSessions(Collections.singleton("a"))) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    new EventsWriter(db, ModelTestCase.TEST_NAME_SPACE, locks).write(Collections.singletonList(
+                            createEventAttributes(onOtherStripe(locks, "a"), "home", 0L)));
+                    written.countDown();
+                }
+            });
+            thread.start();
+            assertTrue(written.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void failedWriteShouldNotLoseDigestsOfConcurrentWriters() throws Exception {
+        NamespaceLocks locks = new NamespaceLocks(true, 16, 1000);
+        final EventsWriter writer = new EventsWriter(db, ModelTestCase.TEST_NAME_SPACE, locks);
+        ApplicationRegistry.getInstance().reset(ModelTestCase.TEST_NAME_SPACE);
+        // commits action nodes up front, writers below use different actions so only meet on the digest filter
+        writer.write(Arrays.asList(event("w", "home", "warm-up-1"), event("w", "search", "warm-up-2")));
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writer.write(Collections.singletonList(event("a", "home", "committed-later")));
+            }
+        });
+        held.add(thread);
+        thread.start();
+        assertTrue(committing.await(10, TimeUnit.SECONDS));
+
+        // fails and invalidates the namespace while the other writer is still in its transaction
+        String other = onOtherStripe(locks, "a");
+        failing.add(Thread.currentThread());
+        try {
+            writer.write(Collections.singletonList(event(other, "search", "rolled-back")));
+        } catch (RuntimeException expected) {
+            // the failure being tested
+        }
+        failing.remove(Thread.currentThread());
+        writer.write(Collections.singletonList(event(other, "search", "committed-first")));
+
+        release.countDown();
+        thread.join(10000);
+        writer.write(Collections.singletonList(event("a", "home", "committed-later")));
+
+        Application app = new Application(db, ModelTestCase.TEST_NAME_SPACE);
+        try (Transaction ignored = db.beginTx()) {
+            assertEquals(4, app.events().count());
+            assertNotNull(app.events().findByDigest("committed-later"));
+        }
+    }
+
+    private void writeConcurrently(final NamespaceLocks locks) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    EventsWriter writer = new EventsWriter(db, ModelTestCase.TEST_NAME_SPACE, locks);
+                    for (int s = 0; s < SESSIONS_PER_THREAD; s++) {
+                        String sessionId = "s" + thread + "-" + s;
+                        String uid = "u" + (s % 3);
+                        List<Map<String, Object>> events = new ArrayList<>();
+                        for (int i = 0; i < ACTIONS.length; i++) {
+                            events.add(createEventAttributes(sessionId, ACTIONS[i], 1000L * i, i == 0 ? null : uid));
+                        }
+                        writer.write(events);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+    }
+
+    private void assertWritten() {
+        Application app = new Application(db, ModelTestCase.TEST_NAME_SPACE);
+        try (Transaction ignored = db.beginTx()) {
+            assertEquals(THREADS * SESSIONS_PER_THREAD * ACTIONS.length, app.events().count());
+            assertEquals(THREADS * SESSIONS_PER_THREAD, app.journeys().count());
+
+            Set<String> labels = new HashSet<>();
+            int actions = 0;
+            for (Node action : app.actions().all()) {
+                labels.add(app.actions().getActionLabel(action));
+                actions++;
+            }
+            assertEquals(new HashSet<>(Arrays.asList(ACTIONS)), labels);
+            assertEquals(ACTIONS.length, actions);
+
+            List<String> identifiers = new ArrayList<>();
+            for (Node user : app.users().findAll()) {
+                if (!app.users().isAnonymous(user)) {
+                    identifiers.add(app.users().getIdentifier(user));
+                }
+            }
+            Collections.sort(identifiers);
+            assertEquals(Arrays.asList("u0", "u1", "u2"), identifiers);
+        }
+    }
+
+    private static Map<String, Object> event(String sessionId, String action, String digest) {
+        return createEventAttributes(sessionId, action, 0L, "/url/" + action, "GET", digest, null, new HashMap());
+    }
+
+    // a session id hashing onto a stripe other than the one of given session id
+    private static String onOtherStripe(NamespaceLocks locks, String sessionId) {
+        int stripe = locks.stripe(sessionId);
+        for (int i = 0; ; i++) {
+            if (locks.stripe("s" + i) != stripe) {
+                return "s" + i;
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.ingestion;
+
+import com.thoughtworks.studios.journey.ModelTestCase;
+import com.thoughtworks.studios.journey.models.Application;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+import static com.thoughtworks.studios.journey.utils.CollectionUtils.list;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GroupCommitIngestorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldCommitAllQueuedBatchesOnShutdown() throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        GroupCommitIngestor ingestor = new GroupCommitIngestor(db, ModelTestCase.TEST_NAME_SPACE, new NamespaceLocks(), 100, 3, 1000);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(ingestor.submit(list((Map) createEventAttributes("s" + i, "a", i * 1000L), createEventAttributes("s" + i, "b", i * 1000L + 1))));
+        }
+        ingestor.shutdown();
+
+        for (Long id : ids) {
+            assertEquals(GroupCommitIngestor.BatchStatus.COMMITTED, ingestor.status(id));
+        }
+        assertEquals(-1, ingestor.submit(list((Map) createEventAttributes("s0", "c", 10L))));
+
+        try (Transaction ignored = db.beginTx()) {
+            assertEquals(10, new Application(db, ModelTestCase.TEST_NAME_SPACE).events().count());
+        }
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldRejectWhenQueueIsFull() throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        NamespaceLocks locks = new NamespaceLocks();
+        Lock lock = locks.exclusive();
+        lock.lock();
+        GroupCommitIngestor ingestor = new GroupCommitIngestor(db, ModelTestCase.TEST_NAME_SPACE, locks, 1, 1, 0);
+        long accepted = 0;
+        long rejected = 0;
+        for (int i = 0; i < 5; i++) {
+            if (ingestor.submit(list((Map) createEventAttributes("s0", "a", 10L * i))) < 0) {
+                rejected++;
+            } else {
+                accepted++;
+            }
+        }
+        assertEquals(5, accepted + rejected);
+        assertTrue(rejected > 0);
+        lock.unlock();
+        ingestor.shutdown();
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldOnlyFailTheBadBatchOfAGroup() throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        NamespaceLocks locks = new NamespaceLocks();
+        Lock lock = locks.exclusive();
+        lock.lock();
+        GroupCommitIngestor ingestor = new GroupCommitIngestor(db, ModelTestCase.TEST_NAME_SPACE, locks, 100, 10, 1000);
+        Map<String, Object> withoutStartAt = createEventAttributes("s1", "b", 2000L);
+        withoutStartAt.remove("start_at");
+        long first = ingestor.submit(list((Map) createEventAttributes("s0", "a", 1000L)));
+        long bad = ingestor.submit(list((Map) withoutStartAt));
+        long last = ingestor.submit(list((Map) createEventAttributes("s2", "c", 3000L)));
+        lock.unlock();
+        ingestor.shutdown();
+
+        assertEquals(GroupCommitIngestor.BatchStatus.COMMITTED, ingestor.status(first));
+        assertEquals(GroupCommitIngestor.BatchStatus.FAILED, ingestor.status(bad));
+        assertEquals(GroupCommitIngestor.BatchStatus.COMMITTED, ingestor.status(last));
+        try (Transaction ignored = db.beginTx()) {
+            assertEquals(2, new Application(db, ModelTestCase.TEST_NAME_SPACE).events().count());
+        }
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldHoldEventsInReorderWindowUntilShutdown() throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        GroupCommitIngestor ingestor = new GroupCommitIngestor(db, ModelTestCase.TEST_NAME_SPACE, new NamespaceLocks(), 100, 10, 0, 60000);
+        long first = ingestor.submit(list((Map) createEventAttributes("s0", "b", 2000L)));
+        long second = ingestor.submit(list((Map) createEventAttributes("s0", "a", 1000L), createEventAttributes("s0", "c", 3000L)));
+        Thread.sleep(300);
+
+        assertEquals(GroupCommitIngestor.BatchStatus.PENDING, ingestor.status(first));
+        assertEquals(GroupCommitIngestor.BatchStatus.PENDING, ingestor.status(second));
+        assertEquals(3L, ingestor.reorderStats().get("depth"));
+        assertEquals(1L, ingestor.reorderStats().get("out_of_order"));
+
+        ingestor.shutdown();
+        assertEquals(GroupCommitIngestor.BatchStatus.COMMITTED, ingestor.status(first));
+        assertEquals(GroupCommitIngestor.BatchStatus.COMMITTED, ingestor.status(second));
+        assertEquals(0L, ingestor.reorderStats().get("depth"));
+
+        try (Transaction ignored = db.beginTx()) {
+            Application app = new Application(db, ModelTestCase.TEST_NAME_SPACE);
+            assertEquals(3, app.events().count());
+            assertEquals(1, app.journeys().count());
+        }
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldFailBatchesWithEventsThatCanNotBeReordered() throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        GroupCommitIngestor ingestor = new GroupCommitIngestor(db, ModelTestCase.TEST_NAME_SPACE, new NamespaceLocks(), 100, 10, 0, 60000);
+        Map<String, Object> withoutStartAt = createEventAttributes("s0", "b", 2000L);
+        withoutStartAt.remove("start_at");
+        long bad = ingestor.submit(list((Map) createEventAttributes("s0", "a", 1000L), withoutStartAt));
+        long good = ingestor.submit(list((Map) createEventAttributes("s1", "c", 3000L)));
+        ingestor.shutdown();
+
+        assertEquals(GroupCommitIngestor.BatchStatus.FAILED, ingestor.status(bad));
+        assertEquals(GroupCommitIngestor.BatchStatus.COMMITTED, ingestor.status(good));
+        try (Transaction ignored = db.beginTx()) {
+            assertEquals(1, new Application(db, ModelTestCase.TEST_NAME_SPACE).events().count());
+        }
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldStopWithDatabase() throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        GroupCommitIngestor ingestor = new GroupCommitIngestor(db, ModelTestCase.TEST_NAME_SPACE, new NamespaceLocks(), 100, 10, 0, 60000);
+        ShutdownWithDatabase.register(db, ingestor);
+        long id = ingestor.submit(list((Map) createEventAttributes("s0", "a", 1000L)));
+        db.shutdown();
+
+        assertFalse(ingestor.isServing(db));
+        // the database refuses new transactions when shutting down, events held so far can not be written
+        assertEquals(GroupCommitIngestor.BatchStatus.FAILED, ingestor.status(id));
+    }
+
+    @Test
+    public void shouldReplayLoggedBatchesNotCheckpointed() throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        File dir = folder.newFolder();
+        GroupCommitIngestor ingestor = new GroupCommitIngestor(db, ModelTestCase.TEST_NAME_SPACE, new NamespaceLocks(), 100, 10, 0, 0, new IngestLog(dir));
+        ingestor.submit(list((Map) createEventAttributes("s0", "a", 1000L)));
+        ingestor.shutdown();
+        assertEquals(0, new IngestLog(dir).recoveredRecords());
+
+        // batches acknowledged but not applied before a crash
+        IngestLog log = new IngestLog(dir);
+        log.sync(log.append(list((Map) createEventAttributes("s0", "b", 2000L), createEventAttributes("s1", "c", 3000L))));
+        log.close();
+
+        ingestor = new GroupCommitIngestor(db, ModelTestCase.TEST_NAME_SPACE, new NamespaceLocks(), 100, 10, 0, 0, new IngestLog(dir));
+        ingestor.shutdown();
+        try (Transaction ignored = db.beginTx()) {
+            assertEquals(3, new Application(db, ModelTestCase.TEST_NAME_SPACE).events().count());
+        }
+        assertEquals(0, new IngestLog(dir).recoveredRecords());
+
+        // replaying from a lost checkpoint skips events already applied
+        assertTrue(new File(dir, "checkpoint").delete());
+        ingestor = new GroupCommitIngestor(db, ModelTestCase.TEST_NAME_SPACE, new NamespaceLocks(), 100, 10, 0, 0, new IngestLog(dir));
+        ingestor.shutdown();
+        try (Transaction ignored = db.beginTx()) {
+            assertEquals(3, new Application(db, ModelTestCase.TEST_NAME_SPACE).events().count());
+        }
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldKeepCheckpointBelowBatchesFailedToReplay() throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        File dir = folder.newFolder();
+        Map<String, Object> withoutStartAt = createEventAttributes("s1", "b", 2000L);
+        withoutStartAt.remove("start_at");
+        IngestLog log = new IngestLog(dir);
+        log.append(list((Map) createEventAttributes("s0", "a", 1000L)));
+        long bad = log.append(list((Map) withoutStartAt));
+        log.sync(log.append(list((Map) createEventAttributes("s2", "c", 3000L))));
+        log.close();
+
+        GroupCommitIngestor ingestor = new GroupCommitIngestor(db, ModelTestCase.TEST_NAME_SPACE, new NamespaceLocks(), 100, 1, 0, 0, new IngestLog(dir));
+        long live = ingestor.submit(list((Map) createEventAttributes("s3", "d", 4000L)));
+        ingestor.shutdown();
+
+        assertEquals(GroupCommitIngestor.BatchStatus.COMMITTED, ingestor.status(live));
+        try (Transaction ignored = db.beginTx()) {
+            assertEquals(3, new Application(db, ModelTestCase.TEST_NAME_SPACE).events().count());
+        }
+        // the failed batch and everything after it are replayed again on next start
+        log = new IngestLog(dir);
+        assertEquals(3, log.recoveredRecords());
+        try (IngestLog.RecordReader reader = log.recovered()) {
+            assertEquals(bad, reader.next().getEnd());
+        }
+        log.close();
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldDeadLetterBatchesFailedToReplayTooManyTimes() throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        File dir = folder.newFolder();
+        Map<String, Object> withoutStartAt = createEventAttributes("s1", "b", 2000L);
+        withoutStartAt.remove("start_at");
+        IngestLog log = new IngestLog(dir);
+        log.append(list((Map) createEventAttributes("s0", "a", 1000L)));
+        log.sync(log.append(list((Map) withoutStartAt)));
+        log.close();
+
+        for (int start = 1; start < GroupCommitIngestor.REPLAY_ATTEMPTS; start++) {
+            new GroupCommitIngestor(db, ModelTestCase.TEST_NAME_SPACE, new NamespaceLocks(), 100, 1, 0, 0, new IngestLog(dir)).shutdown();
+            log = new IngestLog(dir);
+            assertEquals(1, log.recoveredRecords());
+            log.close();
+        }
+        new GroupCommitIngestor(db, ModelTestCase.TEST_NAME_SPACE, new NamespaceLocks(), 100, 1, 0, 0, new IngestLog(dir)).shutdown();
+
+        log = new IngestLog(dir);
+        assertEquals(0, log.recoveredRecords());
+        log.close();
+        List<String> deadLetters = Files.readAllLines(new File(dir, "dead-letter").toPath(), StandardCharsets.UTF_8);
+        assertEquals(1, deadLetters.size());
+        assertTrue(deadLetters.get(0).contains("\"session_id\":\"s1\""));
+        try (Transaction ignored = db.beginTx()) {
+            assertEquals(1, new Application(db, ModelTestCase.TEST_NAME_SPACE).events().count());
+        }
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldHaveReplayedLoggedBatchesAfterAwaitingReplay() throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        File dir = folder.newFolder();
+        IngestLog log = new IngestLog(dir);
+        log.append(list((Map) createEventAttributes("s0", "a", 1000L)));
+        log.sync(log.append(list((Map) createEventAttributes("s1", "b", 2000L))));
+        log.close();
+
+        GroupCommitIngestor ingestor = new GroupCommitIngestor(db, ModelTestCase.TEST_NAME_SPACE, new NamespaceLocks(), 100, 10, 0, 0, new IngestLog(dir));
+        ingestor.awaitReplay();
+        try (Transaction ignored = db.beginTx()) {
+            assertEquals(2, new Application(db, ModelTestCase.TEST_NAME_SPACE).events().count());
+        }
+        ingestor.shutdown();
+        db.shutdown();
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.ingestion;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+import static com.thoughtworks.studios.journey.utils.CollectionUtils.list;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IngestLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldRecoverBatchesAfterCheckpoint() throws Exception {
+        File dir = folder.newFolder();
+        IngestLog log = new IngestLog(dir, 1024);
+        long first = log.append(list((Map) createEventAttributes("s0", "a", 1L)));
+        long second = log.append(list((Map) createEventAttributes("s0", "b", 2L), createEventAttributes("s0", "c", 3L)));
+        log.sync(second);
+        log.checkpoint(first);
+        log.close();
+
+        log = new IngestLog(dir, 1024);
+        List<IngestLog.Record> recovered = recovered(log);
+        assertEquals(1, recovered.size());
+        assertEquals(first, recovered.get(0).getStart());
+        assertEquals(second, recovered.get(0).getEnd());
+        assertEquals("b", recovered.get(0).getEvents().get(0).get("action_label"));
+        assertEquals(2, recovered.get(0).getEvents().size());
+
+        long third = log.append(list((Map) createEventAttributes("s0", "d", 4L)));
+        assertTrue(third > second);
+        log.close();
+        assertEquals(2, new IngestLog(dir, 1024).recoveredRecords());
+    }
+
+    @Test
+    public void shouldEndLogAtTornRecord() throws Exception {
+        File dir = folder.newFolder();
+        IngestLog log = new IngestLog(dir, 1024);
+        long first = log.append(list((Map) createEventAttributes("s0", "a", 1L)));
+        long second = log.append(list((Map) createEventAttributes("s0", "b", 2L)));
+        log.sync(second);
+        log.close();
+
+        // flip a byte in the payload of the second record
+        try (RandomAccessFile file = new RandomAccessFile(dir.listFiles(new SegmentFilter())[0], "rw")) {
+            file.seek(second - 2);
+            file.write(file.read() ^ 0xff);
+        }
+
+        log = new IngestLog(dir, 1024);
+        assertEquals(1, log.recoveredRecords());
+        assertEquals(first, recovered(log).get(0).getEnd());
+        long third = log.append(list((Map) createEventAttributes("s0", "c", 3L)));
+        log.close();
+
+        List<IngestLog.Record> recovered = recovered(new IngestLog(dir, 1024));
+        assertEquals(2, recovered.size());
+        assertEquals(third, recovered.get(1).getEnd());
+        assertEquals("c", recovered.get(1).getEvents().get(0).get("action_label"));
+    }
+
+    @Test
+    public void shouldRollSegmentsAndDeleteCheckpointedOnes() throws Exception {
+        File dir = folder.newFolder();
+        IngestLog log = new IngestLog(dir, 512);
+        long end = 0;
+        for (int i = 0; i < 10; i++) {
+            end = log.append(list((Map) createEventAttributes("s0", "a" + i, (long) i)));
+        }
+        log.sync(end);
+        int segments = dir.listFiles(new SegmentFilter()).length;
+        assertTrue(segments > 2);
+
+        log.checkpoint(end);
+        assertEquals(1, dir.listFiles(new SegmentFilter()).length);
+        log.close();
+        assertTrue(recovered(new IngestLog(dir, 512)).isEmpty());
+    }
+
+    @Test
+    public void shouldEndLogAtFirstCorruptedRecordAcrossSegments() throws Exception {
+        File dir = folder.newFolder();
+        IngestLog log = new IngestLog(dir, 512);
+        List<Long> ends = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ends.add(log.append(list((Map) createEventAttributes("s0", "a" + i, (long) i))));
+        }
+        log.sync(ends.get(9));
+        log.close();
+        File[] segments = dir.listFiles(new SegmentFilter());
+        Arrays.sort(segments);
+        assertTrue(segments.length > 2);
+
+        // flip a byte in the payload of the last record of the first segment
+        long firstSegmentEnd = 0;
+        for (long end : ends) {
+            if (end <= segments[0].length()) {
+                firstSegmentEnd = end;
+            }
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            file.seek(firstSegmentEnd - 2);
+            file.write(file.read() ^ 0xff);
+        }
+
+        log = new IngestLog(dir, 512);
+        List<IngestLog.Record> recovered = recovered(log);
+        assertEquals(ends.indexOf(firstSegmentEnd), recovered.size());
+        assertEquals(1, dir.listFiles(new SegmentFilter()).length);
+        long next = log.append(list((Map) createEventAttributes("s0", "b", 10L)));
+        log.close();
+
+        recovered = recovered(new IngestLog(dir, 512));
+        assertEquals(ends.indexOf(firstSegmentEnd) + 1, recovered.size());
+        assertEquals(next, recovered.get(recovered.size() - 1).getEnd());
+    }
+
+    private static List<IngestLog.Record> recovered(IngestLog log) throws IOException {
+        List<IngestLog.Record> result = new ArrayList<>();
+        try (IngestLog.RecordReader reader = log.recovered()) {
+            IngestLog.Record record;
+            while ((record = reader.next()) != null) {
+                result.add(record);
+            }
+        }
+        return result;
+    }
+
+    private static class SegmentFilter implements java.io.FileFilter {
+        @Override
+        public boolean accept(File file) {
+            return file.getName().endsWith(".segment");
+        }
+    }
+}
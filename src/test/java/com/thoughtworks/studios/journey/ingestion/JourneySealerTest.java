@@ -0,0 +1,111 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.ingestion;
+
+import com.thoughtworks.studios.journey.ModelTestCase;
+import com.thoughtworks.studios.journey.models.Application;
+import com.thoughtworks.studios.journey.models.ApplicationRegistry;
+import com.thoughtworks.studios.journey.models.Journeys;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.helpers.collection.Iterables.toList;
+
+public class JourneySealerTest {
+    private GraphDatabaseService db;
+    private NamespaceLocks locks;
+
+    @Before
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Application app = new Application(db, ModelTestCase.TEST_NAME_SPACE);
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+        locks = new NamespaceLocks();
+    }
+
+    @After
+    public void tearDown() {
+        ApplicationRegistry.getInstance().invalidate(ModelTestCase.TEST_NAME_SPACE);
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldSealJourneysFinishedBeforeNewestEventInBatches() {
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            events.add(createEventAttributes("s" + i, "home", 100L * i));
+        }
+        events.add(createEventAttributes("s4", "search", Journeys.CUT_TOLERANT + 250L));
+        EventsWriter writer = new EventsWriter(db, ModelTestCase.TEST_NAME_SPACE, locks);
+        writer.write(events);
+
+        JourneySealer sealer = new JourneySealer(db, ModelTestCase.TEST_NAME_SPACE, locks, 2, 0);
+        assertEquals(3, sealer.sweep());
+        assertEquals(0, sealer.sweep());
+        assertEquals(3L, sealer.stats().get("sealed"));
+        assertEquals(2L, sealer.stats().get("sweeps"));
+
+        try (Transaction ignored = db.beginTx()) {
+            Journeys journeys = app().journeys();
+            assertTrue(journeys.isSealed(journeyOf("s0")));
+            assertTrue(journeys.isSealed(journeyOf("s2")));
+            assertFalse(journeys.isSealed(journeyOf("s3")));
+            assertFalse(journeys.isSealed(journeyOf("s4")));
+        }
+
+        writer.write(Collections.singletonList(createEventAttributes("s0", "search", 150L)));
+        try (Transaction ignored = db.beginTx()) {
+            Journeys journeys = app().journeys();
+            List<Node> session = toList(journeys.findAllBySessionId("s0"));
+            assertEquals(2, session.size());
+            assertTrue(journeys.isSealed(session.get(0)) != journeys.isSealed(session.get(1)));
+        }
+    }
+
+    private Application app() {
+        return ApplicationRegistry.getInstance().get(db, ModelTestCase.TEST_NAME_SPACE);
+    }
+
+    private Node journeyOf(String sessionId) {
+        List<Node> session = toList(app().journeys().findAllBySessionId(sessionId));
+        assertEquals(1, session.size());
+        return session.get(0);
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.ingestion;
+
+import com.thoughtworks.studios.journey.ModelTestCase;
+import com.thoughtworks.studios.journey.models.Application;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+import static org.junit.Assert.*;
+
+public class PartitionedIngestorTest {
+    private GraphDatabaseService db;
+
+    @Before
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Application app = new Application(db, ModelTestCase.TEST_NAME_SPACE);
+        try (Transaction tx = db.beginTx()) {
+            app.setupSchema();
+            tx.success();
+        }
+        try (Transaction ignored = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldRouteSessionsConsistentlyOverAllWorkers() throws InterruptedException {
+        PartitionedIngestor ingestor = new PartitionedIngestor(db, ModelTestCase.TEST_NAME_SPACE, new NamespaceLocks(), 4);
+        int[] sessions = new int[4];
+        for (int i = 0; i < 1000; i++) {
+            int worker = ingestor.workerFor("s" + i);
+            assertEquals(worker, ingestor.workerFor("s" + i));
+            sessions[worker]++;
+        }
+        for (int count : sessions) {
+            assertTrue(count > 100);
+        }
+        ingestor.shutdown();
+    }
+
+    @Test
+    public void shouldWriteEventsOfAllSessionsBeforeReturning() throws InterruptedException {
+        PartitionedIngestor ingestor = new PartitionedIngestor(db, ModelTestCase.TEST_NAME_SPACE, new NamespaceLocks(), 4);
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            for (int s = 0; s < 20; s++) {
+                events.add(createEventAttributes("s" + s, "a" + i, 1000L * i, i == 4 ? "u" + (s % 2) : null));
+            }
+        }
+        ingestor.write(events);
+
+        Application app = new Application(db, ModelTestCase.TEST_NAME_SPACE);
+        try (Transaction ignored = db.beginTx()) {
+            assertEquals(100, app.events().count());
+            assertEquals(20, app.journeys().count());
+            int actions = 0;
+            for (Node ignoredAction : app.actions().all()) {
+                actions++;
+            }
+            assertEquals(5, actions);
+            assertEquals(5, (int) app.journeys().length(app.journeys().findAllBySessionId("s7").next()));
+            assertNotNull(app.users().findByIdentifier("u0"));
+            assertNotNull(app.users().findByIdentifier("u1"));
+        }
+
+        List<Map<String, Object>> workers = (List<Map<String, Object>>) ingestor.stats().get("workers");
+        long written = 0;
+        for (Map<String, Object> worker : workers) {
+            written += (Long) worker.get("events");
+        }
+        assertEquals(100, written);
+        ingestor.shutdown();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectWritesAfterShutdown() throws InterruptedException {
+        PartitionedIngestor ingestor = new PartitionedIngestor(db, ModelTestCase.TEST_NAME_SPACE, new NamespaceLocks(), 2);
+        ingestor.shutdown();
+        ingestor.write(Collections.singletonList(createEventAttributes("s0", "a", 0L)));
+    }
+
+    @Test
+    public void shouldOnlyFailThePartThatFailsOnItsOwnWhenAGroupFails() throws Exception {
+        NamespaceLocks locks = new NamespaceLocks(false, 64, 60000);
+        PartitionedIngestor ingestor = new PartitionedIngestor(db, ModelTestCase.TEST_NAME_SPACE, locks, 1, 64, 2000);
+        Lock exclusive = locks.exclusive();
+        exclusive.lock();
+        Writer first = new Writer(ingestor, createEventAttributes("s0", "a", 1000L));
+        first.start();
+        waitFor(first, 0, ingestor);
+        // queued behind the first one, written in one group
+        Writer good = new Writer(ingestor, createEventAttributes("s1", "a", 1000L));
+        good.start();
+        waitFor(good, 1, ingestor);
+        Writer bad = new Writer(ingestor, withoutStartAt("s2"));
+        bad.start();
+        waitFor(bad, 2, ingestor);
+        exclusive.unlock();
+
+        first.join();
+        good.join();
+        bad.join();
+        assertNull(first.failure);
+        assertNull(good.failure);
+        assertNotNull(bad.failure);
+        try (Transaction ignored = db.beginTx()) {
+            assertEquals(2, new Application(db, ModelTestCase.TEST_NAME_SPACE).events().count());
+        }
+        ingestor.shutdown();
+    }
+
+    @Test
+    public void shouldShutDownWhileWritesAreBlockedOnAFullQueue() throws Exception {
+        NamespaceLocks locks = new NamespaceLocks(false, 64, 60000);
+        final PartitionedIngestor ingestor = new PartitionedIngestor(db, ModelTestCase.TEST_NAME_SPACE, locks, 1, 1, 2000);
+        Lock exclusive = locks.exclusive();
+        exclusive.lock();
+        List<Writer> writers = new ArrayList<>();
+        // the first is taken by the worker, the second fills the queue and the third waits for room
+        for (int i = 0; i < 3; i++) {
+            Writer writer = new Writer(ingestor, createEventAttributes("s" + i, "a", 1000L));
+            writer.start();
+            waitFor(writer, Math.min(i, 1), ingestor);
+            writers.add(writer);
+        }
+
+        Thread shutdown = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ingestor.shutdown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        shutdown.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (ingestor.isServing(db) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(ingestor.isServing(db));
+        exclusive.unlock();
+
+        shutdown.join();
+        for (Writer writer : writers) {
+            writer.join();
+            assertNull(writer.failure);
+        }
+        try (Transaction ignored = db.beginTx()) {
+            assertEquals(3, new Application(db, ModelTestCase.TEST_NAME_SPACE).events().count());
+        }
+    }
+
+    @Test
+    public void shouldTellHowManyEventsGotCommittedWhenSomePartsFail() throws InterruptedException {
+        PartitionedIngestor ingestor = new PartitionedIngestor(db, ModelTestCase.TEST_NAME_SPACE, new NamespaceLocks(), 2);
+        String good = sessionOf(ingestor, 0);
+        String bad = sessionOf(ingestor, 1);
+        List<Map<String, Object>> events = new ArrayList<>();
+        events.add(createEventAttributes(good, "a", 1000L));
+        events.add(createEventAttributes(good, "b", 2000L));
+        events.add(withoutStartAt(bad));
+        try {
+            ingestor.write(events);
+            fail("should fail the part of the bad session");
+        } catch (PartialWriteException e) {
+            assertEquals(2, e.getCommitted());
+        }
+        ingestor.shutdown();
+    }
+
+    private static Map<String, Object> withoutStartAt(String sessionId) {
+        Map<String, Object> event = createEventAttributes(sessionId, "a", 1000L);
+        event.remove("start_at");
+        return event;
+    }
+
+    private static String sessionOf(PartitionedIngestor ingestor, int worker) {
+        for (int i = 0; ; i++) {
+            if (ingestor.workerFor("s" + i) == worker) {
+                return "s" + i;
+            }
+        }
+    }
+
+    // wait till the writer is blocked, either waiting for its parts or for room in the queue
+    private static void waitFor(Writer writer, int queueSize, PartitionedIngestor ingestor) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            List<Map<String, Object>> workers = (List<Map<String, Object>>) ingestor.stats().get("workers");
+            if (writer.getState() == Thread.State.WAITING && (Integer) workers.get(0).get("queue_size") == queueSize) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("writer did not get blocked");
+    }
+
+    private static class Writer extends Thread {
+        private final PartitionedIngestor ingestor;
+        private final Map<String, Object> event;
+        private volatile Exception failure;
+
+        private Writer(PartitionedIngestor ingestor, Map<String, Object> event) {
+            this.ingestor = ingestor;
+            this.event = event;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ingestor.write(Collections.singletonList(event));
+            } catch (InterruptedException | RuntimeException e) {
+                failure = e;
+            }
+        }
+    }
+}
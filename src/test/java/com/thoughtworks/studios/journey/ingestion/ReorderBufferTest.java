@@ -0,0 +1,82 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.ingestion;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.thoughtworks.studios.journey.TestHelper.createEventAttributes;
+import static com.thoughtworks.studios.journey.utils.CollectionUtils.list;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReorderBufferTest {
+
+    @Test
+    public void shouldFlushSessionInTimeOrderAfterWindow() {
+        ReorderBuffer buffer = new ReorderBuffer(1000, 100);
+        buffer.add(createEventAttributes("s0", "c", 300L), 1, 0);
+        buffer.add(createEventAttributes("s0", "a", 100L), 1, 10);
+        buffer.add(createEventAttributes("s1", "x", 200L), 2, 500);
+        buffer.add(createEventAttributes("s0", "b", 200L), 2, 900);
+
+        assertTrue(buffer.drain(999).isEmpty());
+        assertEquals(list("a", "b", "c"), actions(buffer.drain(1000)));
+        assertEquals(list("x"), actions(buffer.drain(1500)));
+        assertTrue(buffer.isEmpty());
+        assertEquals(2L, buffer.stats().get("out_of_order"));
+        assertEquals(0L, buffer.stats().get("late"));
+    }
+
+    @Test
+    public void shouldCountEventsArrivingAfterTheirSessionGotFlushedAsLate() {
+        ReorderBuffer buffer = new ReorderBuffer(1000, 100);
+        buffer.add(createEventAttributes("s0", "b", 200L), 1, 0);
+        buffer.drain(1000);
+        buffer.add(createEventAttributes("s0", "a", 100L), 2, 1100);
+        buffer.add(createEventAttributes("s0", "c", 300L), 2, 1100);
+
+        assertEquals(list("a", "c"), actions(buffer.drainAll(1200)));
+        assertEquals(1L, buffer.stats().get("late"));
+        assertEquals(1.0 / 3, (Double) buffer.stats().get("late_rate"), 0.0001);
+    }
+
+    @Test
+    public void shouldFlushOldestSessionsEarlyWhenOverCapacity() {
+        ReorderBuffer buffer = new ReorderBuffer(1000, 2);
+        buffer.add(createEventAttributes("s0", "a", 100L), 1, 0);
+        buffer.add(createEventAttributes("s1", "b", 100L), 1, 0);
+        buffer.add(createEventAttributes("s2", "c", 100L), 1, 0);
+
+        assertEquals(list("a"), actions(buffer.drain(10)));
+        assertEquals(2L, buffer.stats().get("depth"));
+        assertEquals(1L, buffer.stats().get("forced_flushes"));
+    }
+
+    private List<String> actions(List<ReorderBuffer.Buffered> events) {
+        List<String> result = new ArrayList<>();
+        for (ReorderBuffer.Buffered event : events) {
+            result.add((String) ((Map) event.getEvent()).get("action_label"));
+        }
+        return result;
+    }
+}
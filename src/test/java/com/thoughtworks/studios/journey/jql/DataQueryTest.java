@@ -309,6 +309,19 @@ public class DataQueryTest extends ModelTestCase {
         assertEquals(list(list(t(v("www.google.com")), t(v("www.facebook.com")))), query.execute().data());
     }
 
+    @Test
+    public void testSelectDomainOfEncodedReferrer() throws IOException {
+        Node r12 = Iterables.toList(journeys.events(j1)).get(1);
+        r12.setProperty("referrer_code", app.strings().encode("https://www.google.com/url/a1?foo=bar"));
+        Node r21 = Iterables.toList(journeys.events(j2)).get(0);
+        r21.setProperty("referrer_code", app.strings().encode("https://www.facebook.com/url/a1?foo=baz"));
+
+        DataQuery query = new DataQuery(app);
+        query.select("event.referrer |> url_domain");
+        query.addStop(stop("a1"));
+        assertEquals(list(list(t(v("www.google.com")), t(v("www.facebook.com")))), query.execute().data());
+    }
+
     @Test
     public void testSelectAction() throws IOException {
         DataQuery query = new DataQuery(app);
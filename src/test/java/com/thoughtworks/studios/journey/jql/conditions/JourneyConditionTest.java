@@ -0,0 +1,96 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.jql.conditions;
+
+import com.thoughtworks.studios.journey.ModelTestCase;
+import com.thoughtworks.studios.journey.jql.DataQueryError;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+
+import static com.thoughtworks.studios.journey.TestHelper.dateToMillis;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.helpers.collection.Iterables.iterable;
+
+public class JourneyConditionTest extends ModelTestCase {
+    private Node journey;
+
+    @Before
+    public void setup() {
+        journey = setupJourney(iterable("a0", "a1", "a2"), dateToMillis(2015, 1, 1), 100L, "u0", "s0");
+    }
+
+    @Test
+    public void integerComparisonWithConstantOnEitherSide() {
+        assertTrue(evaluate("length = 3"));
+        assertTrue(evaluate("3 = length"));
+        assertTrue(evaluate("1 < length"));
+        assertFalse(evaluate("length < 1 + 2"));
+        assertTrue(evaluate("length <= 6 / 2"));
+        assertTrue(evaluate("length != 4"));
+    }
+
+    @Test
+    public void integerArithmeticShouldTruncateLikeIntValues() {
+        assertTrue(evaluate("length / 2 = 1"));
+        assertTrue(evaluate("length % 2 = 1"));
+        assertTrue(evaluate("finish_at - start_at = 200"));
+        assertTrue(evaluate("start_at = user.start_active_at"));
+        assertTrue(evaluate("finish_at >= user.last_active_at"));
+    }
+
+    @Test
+    public void floatComparisonShouldFallBackToValues() {
+        assertTrue(evaluate("length > 2.5"));
+        assertFalse(evaluate("length > 3.5"));
+        assertTrue(evaluate("length * 1.5 = 4.5"));
+    }
+
+    @Test
+    public void stringConditionsShouldStillWork() {
+        assertTrue(evaluate("first_action = 'a0'"));
+        assertTrue(evaluate("user.identifier =~ 'u*'"));
+        assertTrue(evaluate("actions includes 'a2'"));
+    }
+
+    @Test(expected = DataQueryError.class)
+    public void shouldRaiseErrorComparingIntegerWithString() {
+        evaluate("length = 'a0'");
+    }
+
+    @Test(expected = DataQueryError.class)
+    public void shouldRaiseErrorEvaluatingFloatAsInteger() {
+        new FloatValue(1.5).evalLong(app, journey);
+    }
+
+    @Test(expected = DataQueryError.class)
+    public void shouldRaiseErrorEvaluatingStringAsInteger() {
+        new StringValue("a0").evalLong(app, journey);
+    }
+
+    @Test(expected = DataQueryError.class)
+    public void shouldRaiseErrorForUnknownField() {
+        evaluate("duration > 3");
+    }
+
+    private boolean evaluate(String condition) {
+        return JourneyCondition.parse(condition).evaluate(app, journey);
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.models;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ActionDictionaryTest {
+
+    @Test
+    public void shouldAssignDenseIdsInRegisterOrder() {
+        ActionDictionary dictionary = new ActionDictionary();
+        assertEquals(0, dictionary.put("a0", 10L, false).getId());
+        assertEquals(1, dictionary.put("a1", 11L, true).getId());
+        assertEquals(2, dictionary.size());
+
+        assertEquals(11L, dictionary.byLabel("a1").getNodeId());
+        assertEquals("a0", dictionary.byNodeId(10L).getLabel());
+        assertEquals("a1", dictionary.byId(1).getLabel());
+        assertTrue(dictionary.byId(1).isIgnored());
+        assertNull(dictionary.byId(2));
+        assertNull(dictionary.byLabel("a2"));
+    }
+
+    @Test
+    public void shouldKeepIdWhenIgnoredFlagChanges() {
+        ActionDictionary dictionary = new ActionDictionary();
+        dictionary.put("a0", 10L, false);
+        ActionDictionary.Entry before = dictionary.byLabel("a0");
+        ActionDictionary.Entry after = dictionary.put("a0", 10L, true);
+        assertEquals(before.getId(), after.getId());
+        assertTrue(dictionary.byNodeId(10L).isIgnored());
+        assertFalse(before.isIgnored());
+        assertEquals(1, dictionary.size());
+    }
+
+    @Test
+    public void shouldNotReuseIdsOfRemovedEntries() {
+        ActionDictionary dictionary = new ActionDictionary();
+        dictionary.put("a0", 10L, false);
+        dictionary.remove(10L);
+        assertNull(dictionary.byLabel("a0"));
+        assertNull(dictionary.byId(0));
+        assertEquals(1, dictionary.put("a0", 12L, false).getId());
+    }
+
+    @Test
+    public void shouldReplaceStaleEntryOfSameLabel() {
+        ActionDictionary dictionary = new ActionDictionary();
+        dictionary.put("a0", 10L, false);
+        dictionary.put("a0", 12L, false);
+        assertNull(dictionary.byNodeId(10L));
+        assertEquals(12L, dictionary.byLabel("a0").getNodeId());
+    }
+}
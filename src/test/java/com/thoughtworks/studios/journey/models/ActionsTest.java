@@ -26,8 +26,7 @@ import org.neo4j.graphdb.Node;
 import static com.thoughtworks.studios.journey.TestHelper.*;
 import static com.thoughtworks.studios.journey.utils.CollectionUtils.list;
 import static com.thoughtworks.studios.journey.utils.MapUtils.mapOf;
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.*;
 
 public class ActionsTest extends ModelTestCase {
 
@@ -63,4 +62,28 @@ public class ActionsTest extends ModelTestCase {
         Node a2 = actions.findByActionLabel("a2");
         assertEquals("POST", actions.getHttpMethod(a2));
     }
+
+    @Test
+    public void dictionaryShouldTrackCreatedAndIgnoredActions() {
+        Node event = events.add(createEventAttributes("s1", "a0", 100L));
+        Node a0 = action("a0");
+        ActionDictionary.Entry entry = actions.dictionary().byLabel("a0");
+        assertEquals(a0.getId(), entry.getNodeId());
+        assertEquals(entry.getId(), events.getActionEntry(event).getId());
+
+        actions.ignore(a0);
+        assertTrue(actions.dictionary().byLabel("a0").isIgnored());
+        assertTrue(new Application(db, TEST_NAME_SPACE).actions().isIgnored(a0));
+        actions.unIgnore(a0);
+        assertFalse(actions.isIgnored(a0));
+    }
+
+    @Test
+    public void findByActionLabelShouldSkipEntriesOfRemovedActions() {
+        Node a0 = actions.findOrCreateByActionLabel("a0");
+        a0.delete();
+        assertNull(actions.findByActionLabel("a0"));
+        assertNull(actions.dictionary().byLabel("a0"));
+        assertNotEquals(a0.getId(), actions.findOrCreateByActionLabel("a0").getId());
+    }
 }
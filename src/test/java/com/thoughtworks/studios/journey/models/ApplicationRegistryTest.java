@@ -0,0 +1,102 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.models;
+
+import com.thoughtworks.studios.journey.ModelTestCase;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import static org.junit.Assert.*;
+
+public class ApplicationRegistryTest extends ModelTestCase {
+
+    @Test
+    public void shouldKeepApplicationAcrossCalls() {
+        ApplicationRegistry registry = new ApplicationRegistry(10, 60000L);
+        Application parsley = registry.get(db, TEST_NAME_SPACE);
+        assertSame(parsley, registry.get(db, TEST_NAME_SPACE));
+        assertNotSame(parsley, registry.get(db, TEST_NAME_SPACE2));
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void shouldCreateNewApplicationAfterInvalidate() {
+        ApplicationRegistry registry = new ApplicationRegistry(10, 60000L);
+        Application parsley = registry.get(db, TEST_NAME_SPACE);
+        registry.invalidate(TEST_NAME_SPACE);
+        assertNotSame(parsley, registry.get(db, TEST_NAME_SPACE));
+    }
+
+    @Test
+    public void shouldKeepDigestFilterAcrossInvalidateButNotReset() {
+        ApplicationRegistry registry = new ApplicationRegistry(10, 60000L);
+        DigestFilter digestFilter = registry.get(db, TEST_NAME_SPACE).events().digestFilter();
+        registry.invalidate(TEST_NAME_SPACE);
+        assertSame(digestFilter, registry.get(db, TEST_NAME_SPACE).events().digestFilter());
+        registry.reset(TEST_NAME_SPACE);
+        assertNotSame(digestFilter, registry.get(db, TEST_NAME_SPACE).events().digestFilter());
+    }
+
+    @Test
+    public void shouldNotReuseApplicationOfAnotherDatabase() {
+        ApplicationRegistry registry = new ApplicationRegistry(10, 60000L);
+        GraphDatabaseService another = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        try {
+            registry.get(db, TEST_NAME_SPACE);
+            assertSame(another, registry.get(another, TEST_NAME_SPACE).graphDB());
+        } finally {
+            another.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldBoundNumberOfNamespaces() {
+        ApplicationRegistry registry = new ApplicationRegistry(2, 60000L);
+        Application first = registry.get(db, "ns1");
+        registry.get(db, "ns2");
+        registry.get(db, "ns3");
+        assertEquals(2, registry.size());
+        assertNotSame(first, registry.get(db, "ns1"));
+    }
+
+    @Test
+    public void shouldEvictIdleNamespaces() throws InterruptedException {
+        ApplicationRegistry registry = new ApplicationRegistry(10, 10L);
+        Application first = registry.get(db, "ns1");
+        Thread.sleep(30);
+        registry.get(db, "ns2");
+        assertEquals(1, registry.size());
+        assertNotSame(first, registry.get(db, "ns1"));
+    }
+
+    @Test
+    public void shouldKeepDigestFilterAcrossEviction() throws InterruptedException {
+        ApplicationRegistry registry = new ApplicationRegistry(1, 10L);
+        DigestFilter digestFilter = registry.get(db, "ns1").events().digestFilter();
+        registry.get(db, "ns2");
+        assertEquals(1, registry.size());
+        assertSame(digestFilter, registry.get(db, "ns1").events().digestFilter());
+
+        Thread.sleep(30);
+        registry.get(db, "ns2");
+        assertEquals(1, registry.size());
+        assertSame(digestFilter, registry.get(db, "ns1").events().digestFilter());
+    }
+}
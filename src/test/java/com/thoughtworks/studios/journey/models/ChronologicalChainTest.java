@@ -156,6 +156,54 @@ public class ChronologicalChainTest extends ModelTestCase {
     }
 
 
+    @Test
+    public void insertFromShouldWalkForwardFromHint() {
+        chainHelper.insert(chain, a);
+        chainHelper.insert(chain, d);
+        chainHelper.insertFrom(chain, a, b);
+        chainHelper.insertFrom(chain, b, c);
+        Node e = createNodeAt("e", 500L);
+        chainHelper.insertFrom(chain, c, e);
+
+        assertIterableEquals(iterable(a, b, c, d, e), chainHelper.nodes(chain));
+        assertIterableEquals(iterable(e, d, c, b, a), chainHelper.reverseNodes(chain));
+    }
+
+    @Test
+    public void mergeShouldInterleaveNodesOfBothChainsInTimeOrder() {
+        Node other = db.createNode();
+        Node b2 = createNodeAt("b2", 200L);
+        chainHelper.insert(chain, a);
+        chainHelper.insert(chain, b);
+        chainHelper.insert(chain, d);
+        chainHelper.insert(other, b2);
+        chainHelper.insert(other, c);
+
+        chainHelper.merge(chain, other);
+        assertIterableEquals(iterable(a, b, b2, c, d), chainHelper.nodes(chain));
+        assertIterableEquals(iterable(d, c, b2, b, a), chainHelper.reverseNodes(chain));
+        assertTrue(chainHelper.isEmpty(other));
+    }
+
+    @Test
+    public void mergeShouldHandleEmptyChainsAndChainsNotOverlapping() {
+        Node other = db.createNode();
+        chainHelper.merge(chain, other);
+        assertTrue(chainHelper.isEmpty(chain));
+
+        chainHelper.insert(other, c);
+        chainHelper.insert(other, d);
+        chainHelper.merge(chain, other);
+        assertIterableEquals(iterable(c, d), chainHelper.nodes(chain));
+
+        chainHelper.insert(other, a);
+        chainHelper.insert(other, b);
+        chainHelper.merge(chain, other);
+        assertIterableEquals(iterable(a, b, c, d), chainHelper.nodes(chain));
+        assertIterableEquals(iterable(d, c, b, a), chainHelper.reverseNodes(chain));
+        assertTrue(chainHelper.isEmpty(other));
+    }
+
     private Node createNodeAt(String name, long value) {
         Node node = db.createNode();
         node.setProperty("at", value);
@@ -23,13 +23,16 @@ import org.junit.Test;
 import org.neo4j.graphdb.Node;
 
 import java.util.Map;
+import java.util.Set;
 
 import static com.thoughtworks.studios.journey.TestHelper.*;
 import static com.thoughtworks.studios.journey.utils.CollectionUtils.list;
 import static com.thoughtworks.studios.journey.utils.CollectionUtils.set;
 import static com.thoughtworks.studios.journey.utils.MapUtils.mapOf;
 import static org.junit.Assert.*;
+import static org.neo4j.helpers.collection.Iterables.count;
 import static org.neo4j.helpers.collection.Iterables.iterable;
+import static org.neo4j.helpers.collection.Iterables.map;
 import static org.neo4j.helpers.collection.IteratorUtil.first;
 
 public class EventsTest extends ModelTestCase {
@@ -150,6 +153,64 @@ public class EventsTest extends ModelTestCase {
         assertEquals(set("v1", "v2", "v3"), events.values(event, "k"));
     }
 
+    @Test
+    public void shouldStoreSingleValuedPropertiesOnEventInInlineLayout() {
+        app.customProperties().setLayout(CustomProperties.Layout.INLINE);
+        Node event = events.add(createEventAttributes("s1", "a0", 100L, mapOf("k", "v", "n", 3, "m", list("v1", "v2"))));
+        assertEquals(mapOf("k", set("v"), "n", set(3), "m", set("v1", "v2")), events.properties(event));
+        assertEquals(set("v"), events.values(event, "k"));
+        assertEquals(set(), events.values(event, "x"));
+        assertEquals("v", event.getProperty(CustomProperties.INLINE_PREFIX + "k"));
+        assertEquals(2, count(event.getRelationships(RelTypes.CUSTOM_PROPERTY)));
+        assertNotNull(app.customProperties().find("k"));
+
+        events.addProperty(event, "k", "v");
+        events.addProperty(event, "k", "w");
+        assertEquals(set("v", "w"), events.values(event, "k"));
+        assertFalse(event.hasProperty(CustomProperties.INLINE_PREFIX + "k"));
+        assertEquals(mapOf("k", set("v", "w"), "n", set(3), "m", set("v1", "v2")), events.properties(event));
+    }
+
+    @Test
+    public void migratingBetweenLayoutsShouldKeepProperties() {
+        Node event = events.add(createEventAttributes("s1", "a0", 100L, mapOf("k", "v", "m", list("v1", "v2"))));
+        Node plain = events.add(createEventAttributes("s1", "a1", 200L));
+        Map<String, Set> properties = events.properties(event);
+
+        assertTrue(app.customProperties().inline(event));
+        assertFalse(app.customProperties().inline(plain));
+        assertEquals(properties, events.properties(event));
+        assertEquals(set("v1", "v2"), events.values(event, "m"));
+        assertEquals(2, count(event.getRelationships(RelTypes.CUSTOM_PROPERTY)));
+
+        assertTrue(app.customProperties().toRelationships(event));
+        assertFalse(app.customProperties().toRelationships(event));
+        assertEquals(properties, events.properties(event));
+        assertEquals(3, count(event.getRelationships(RelTypes.CUSTOM_PROPERTY)));
+        assertFalse(event.hasProperty(CustomProperties.PROP_LAYOUT));
+    }
+
+    @Test
+    public void shouldStoreRepeatedUrlsOnceWhenEncodingStrings() {
+        events.setEncodeStrings(true);
+        Map<String, Object> attrs = createEventAttributes("s1", "a0", 100L);
+        attrs.put("referrer", "http://example.com/?q=journey");
+        Node e1 = events.add(attrs);
+        Node e2 = events.add(createEventAttributes("s1", "a0", 200L));
+        assertEquals("/url/a0", events.getUrl(e1));
+        assertEquals("/url/a0", events.getUrl(e2));
+        assertEquals("http://example.com/?q=journey", events.getReferrer(e1));
+        assertNull(events.getReferrer(e2));
+        assertFalse(e1.hasProperty("url"));
+        assertEquals(2, count(app.getAllNodesWithLabel("DictionaryString")));
+
+        events.setEncodeStrings(false);
+        Node e3 = events.add(createEventAttributes("s1", "a1", 300L));
+        assertEquals("/url/a1", events.getUrl(e3));
+        assertEquals("/url/a0", events.getUrl(e1));
+        assertEquals(2, count(app.getAllNodesWithLabel("DictionaryString")));
+    }
+
     @Test
     public void shouldSkipNullValues() {
         Node event = events.add(createEventAttributes("s1", "a0", 100L, mapOf("k", "v", "k1", null)));
@@ -161,4 +222,86 @@ public class EventsTest extends ModelTestCase {
     public void shouldSkipEventWithUnreasonableTime() {
         assertNull(events.add(createEventAttributes("s1", "a0", dateToMillis(3000, 1, 4))));
     }
+
+    @Test
+    public void addAllShouldInsertEventsOfSessionInTimeOrder() {
+        Map<String, Object> e1 = createEventAttributes("s1", "a0", 300L);
+        Map<String, Object> e2 = createEventAttributes("s2", "a1", 100L);
+        Map<String, Object> e3 = createEventAttributes("s1", "a1", 100L);
+        Map<String, Object> e4 = createEventAttributes("s1", "a2", 200L);
+        assertEquals(4, events.addAll(list(e1, e2, e3, e4)));
+        assertEquals(2, journeys.count());
+
+        Node journey = events.journeyOf(events.findByDigest((String) e1.get("digest")));
+        assertIterableEquals(iterable("a1", "a2", "a0"), map(events.getActionLabelFn(), journeys.events(journey)));
+        assertEquals((Long) 100L, journeys.getStartAt(journey));
+        assertEquals((Long) 300L, journeys.getFinishAt(journey));
+        assertEquals((Integer) 3, journeys.length(journey));
+    }
+
+    @Test
+    public void addAllShouldSpliceEventsIntoExistingJourney() {
+        Node first = events.add(createEventAttributes("s1", "a0", 100L));
+        events.add(createEventAttributes("s1", "a3", 500L));
+        events.addAll(list(
+                createEventAttributes("s1", "a2", 300L),
+                createEventAttributes("s1", "a4", 600L),
+                createEventAttributes("s1", "a1", 200L)));
+        assertEquals(1, journeys.count());
+        assertIterableEquals(iterable("a0", "a1", "a2", "a3", "a4"),
+                map(events.getActionLabelFn(), journeys.events(events.journeyOf(first))));
+    }
+
+    @Test
+    public void addAllShouldSplitJourneysOnTimeGapAndUserChange() {
+        long gap = Journeys.CUT_TOLERANT + 1;
+        events.addAll(list(
+                createEventAttributes("s1", "a0", 100L, "u1"),
+                createEventAttributes("s1", "a1", 100L + gap, "u1"),
+                createEventAttributes("s1", "a2", 200L + gap, "u2")));
+        assertEquals(3, journeys.count());
+        assertEquals(2, count(users.journeys(users.findByIdentifier("u1"))));
+        assertEquals(1, count(users.journeys(users.findByIdentifier("u2"))));
+    }
+
+    @Test
+    public void addAllShouldSkipDuplicatedDigests() {
+        events.add(createEventAttributesWithDigest("s1", "d0"));
+        assertEquals(1, events.addAll(list(
+                createEventAttributesWithDigest("s1", "d0"),
+                createEventAttributesWithDigest("s1", "d1"),
+                createEventAttributesWithDigest("s1", "d1"))));
+        assertEquals(2, events.count());
+    }
+
+    @Test
+    public void digestFilterShouldBeRebuiltFromExistingEvents() {
+        events.add(createEventAttributesWithDigest("s1", "d0"));
+        Events reloaded = new Application(db, TEST_NAME_SPACE).events();
+        assertNull(reloaded.add(createEventAttributesWithDigest("s1", "d0")));
+        assertNotNull(reloaded.add(createEventAttributesWithDigest("s1", "d1")));
+        assertEquals(2, reloaded.count());
+        assertEquals(2L, reloaded.digestFilter().stats().get("insertions"));
+        assertEquals(1L, reloaded.digestFilter().stats().get("probable_hits"));
+        assertEquals(1L, reloaded.digestFilter().stats().get("definite_misses"));
+    }
+
+    @Test
+    public void shouldStoreActionIdOnEvent() {
+        Node event = events.add(createEventAttributes("s1", "a0", 100L));
+        assertEquals(actions.findByActionLabel("a0").getId(), event.getProperty("action_id"));
+        assertEquals(actions.findByActionLabel("a0").getId(), events.actionId(event));
+        assertFalse(events.backfillActionId(event));
+    }
+
+    @Test
+    public void shouldFallbackToActionRelationshipForEventsWithoutActionId() {
+        Node event = events.add(createEventAttributes("s1", "a0", 100L));
+        event.removeProperty("action_id");
+        assertEquals(actions.findByActionLabel("a0"), events.action(event));
+        assertEquals("a0", events.getActionLabel(event));
+
+        assertTrue(events.backfillActionId(event));
+        assertEquals(actions.findByActionLabel("a0").getId(), event.getProperty("action_id"));
+    }
 }
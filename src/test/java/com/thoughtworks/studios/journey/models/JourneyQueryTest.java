@@ -25,11 +25,15 @@ import org.junit.Before;
 import org.junit.Test;
 import org.neo4j.graphdb.Node;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import static com.thoughtworks.studios.journey.TestHelper.assertIterableEquals;
 import static com.thoughtworks.studios.journey.TestHelper.dateToMillis;
 import static com.thoughtworks.studios.journey.utils.CollectionUtils.list;
+import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertTrue;
 import static org.neo4j.helpers.collection.Iterables.iterable;
@@ -131,6 +135,29 @@ public class JourneyQueryTest extends ModelTestCase {
         assertIterableEquals(list(), query("first_action = 'a3'").journeys());
     }
 
+    @Test
+    public void queryJourneysByAnonymousId() {
+        assertIterableEquals(list(j3), query("user.anonymous_id = 's2'").journeys());
+        assertIterableEquals(list(j1, j2, j4), query("user.anonymous_id != 's2'").journeys());
+    }
+
+    @Test
+    public void userActiveTimeShouldFollowLaterJourneyOfUser() {
+        Node j5 = setupJourney(iterable("a1"), dateToMillis(2015, 1, 5), 100L, "u0", "s3");
+        assertIterableEquals(list(j1, j5), query("user.last_active_at >= " + dateToMillis(2015, 1, 5)).journeys());
+        assertIterableEquals(list(j1, j5), query("user.start_active_at < " + dateToMillis(2015, 1, 2)).journeys());
+    }
+
+    @Test
+    public void indexedUserFieldsShouldFollowMergeOfUsers() {
+        assertIterableEquals(list(j3), query("user.start_active_at >= " + dateToMillis(2015, 1, 3)).journeys());
+        users.identify("u0", "s2");
+        assertIterableEquals(list(), query("user.start_active_at >= " + dateToMillis(2015, 1, 3)).journeys());
+        assertIterableEquals(list(j1, j3), query("user.start_active_at < " + dateToMillis(2015, 1, 2)).journeys());
+        assertIterableEquals(list(j1, j3), query("user.identifier = 'u0'").journeys());
+        assertIterableEquals(list(), query("user.anonymous_id = 's2'").journeys());
+    }
+
     @Test
     public void queryCanBeLimitedToFirstJourneys() {
         assertIterableEquals(list(j1, j2, j3), query("start_at = user.start_active_at").journeys());
@@ -155,6 +182,34 @@ public class JourneyQueryTest extends ModelTestCase {
         assertIterableEquals(list(j1, j2, j3, j4), query("start_at <= user.start_active_at + 72 * 60 * 60 * 1000").journeys());
     }
 
+    @Test
+    public void residualConditionsShouldBeEvaluatedCheapestFirst() {
+        JourneyQuery query = query("start_at >= user.start_active_at + 24 * 3600 * 1000", "length % 2 = 0");
+        assertIterableEquals(list(j4), query.journeys());
+        assertEquals(list("length % 2 = 0", "start_at >= user.start_active_at + 24 * 3600 * 1000"), residualConditions(query));
+    }
+
+    @Test
+    public void residualConditionsShouldBeEvaluatedMostSelectiveFirst() {
+        JourneyQuery query = query("length % 2 = 0", "length % 3 = 0");
+        assertIterableEquals(list(), query.journeys());
+        assertEquals(list("length % 3 = 0", "length % 2 = 0"), residualConditions(query));
+        Map<String, Object> plan = query.plan().toHash();
+        assertEquals(4, plan.get("sampled"));
+        assertEquals(1, ((List) plan.get("index_conditions")).size());
+    }
+
+    @Test
+    public void planShouldCountJourneysRejectedByEachResidualCondition() {
+        JourneyQuery query = query("length % 2 = 0", "length % 3 = 0");
+        assertIterableEquals(list(), query.journeys());
+        List<Map<String, Object>> residuals = (List<Map<String, Object>>) query.plan().toHash().get("residual_conditions");
+        assertEquals(4L, residuals.get(0).get("evaluated"));
+        assertEquals(3L, residuals.get(0).get("rejected"));
+        assertEquals(1L, residuals.get(1).get("evaluated"));
+        assertEquals(1L, residuals.get(1).get("rejected"));
+    }
+
     @Test
     public void queryJourneyIncludeCertainAction() {
         assertIterableEquals(list(j3), query("actions excludes 'a1'").journeys());
@@ -211,6 +266,14 @@ public class JourneyQueryTest extends ModelTestCase {
         assertTrue(query("user.identifier = 'u1'").evalConditions(j2));
     }
 
+    private List<Object> residualConditions(JourneyQuery query) {
+        List<Object> result = new ArrayList<>();
+        for (Map<String, Object> step : (List<Map<String, Object>>) query.plan().toHash().get("residual_conditions")) {
+            result.add(step.get("condition"));
+        }
+        return result;
+    }
+
     private JourneyQuery query(String... conditions) {
         return builder().conditions(Arrays.asList(conditions)).build();
     }
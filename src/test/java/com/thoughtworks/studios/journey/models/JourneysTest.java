@@ -24,8 +24,12 @@ import org.apache.lucene.search.NumericRangeQuery;
 import org.junit.Before;
 import org.junit.Test;
 import org.neo4j.function.Function;
+import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
 import org.neo4j.index.lucene.QueryContext;
+import org.neo4j.test.TestGraphDatabaseFactory;
 
 import java.util.Map;
 
@@ -59,6 +63,36 @@ public class JourneysTest extends ModelTestCase {
         assertEquals(2, journeys.length(j4).intValue());
     }
 
+    @Test
+    public void sessionCacheShouldResolveFollowingEventsOfSession() {
+        Node event = events.add(createEventAttributes("s0", "a2", 300L, "ur0"));
+        assertEquals(j1, events.journeyOf(event));
+        assertTrue((Long) journeys.sessionCache().stats().get("hits") > 0);
+        assertEquals(j1.getId(), journeys.sessionCache().findCovering("s0", 300L, "ur0").getId());
+    }
+
+    @Test
+    public void sealedJourneyShouldNotTakeNewEventsOfSession() {
+        journeys.seal(j1, 1000L);
+        assertTrue(journeys.isSealed(j1));
+        assertNull(journeys.sessionCache().get(j1.getId()));
+
+        Node event = events.add(createEventAttributes("s0", "a2", 300L, "ur0"));
+        assertNotEquals(j1, events.journeyOf(event));
+        assertEquals(2, journeys.length(j1).intValue());
+    }
+
+    @Test
+    public void shouldFindUnsealedJourneysFinishedBefore() {
+        assertEquals((Long) (100L + Journeys.CUT_TOLERANT + 300L), journeys.latestFinishAt());
+        assertEquals(set(j1, j2, j3), toSet(journeys.unsealedFinishedBefore(401L, 10)));
+        assertEquals(set(j1), toSet(journeys.unsealedFinishedBefore(200L, 10)));
+
+        journeys.seal(j2, 1000L);
+        assertEquals(set(j1, j3), toSet(journeys.unsealedFinishedBefore(401L, 10)));
+        assertEquals(1, count(journeys.unsealedFinishedBefore(400L, 1)));
+    }
+
     @Test
     public void toHashWithEnoughEventLimit() {
         Map<String, Object> hash = journeys.toHash(j1, 2, 0);
@@ -77,6 +111,154 @@ public class JourneysTest extends ModelTestCase {
         assertEquals(set(j1, j2, j4), toSet(journeys.query(includesActionQuery("a1"))));
     }
 
+    @Test
+    public void indexUpdatesShouldBeCollapsedAndVisibleInTransaction() {
+        assertEquals(set(j3), toSet(journeys.query(lengthQuery(3L))));
+        long writes = indexWrites();
+        events.add(createEventAttributes("s0", "a3", 300L, "ur0"));
+        assertEquals(set(j1, j3), toSet(journeys.query(lengthQuery(3L))));
+        long writesOfOneEvent = indexWrites() - writes;
+
+        writes = indexWrites();
+        events.add(createEventAttributes("s0", "a3", 400L, "ur0"));
+        events.add(createEventAttributes("s0", "a3", 500L, "ur0"));
+
+        assertEquals(set(j1), toSet(journeys.query(lengthQuery(5L))));
+        assertEquals(writesOfOneEvent, indexWrites() - writes);
+        assertEquals(set(j3), toSet(journeys.query(lengthQuery(3L))));
+        assertEquals(set(j2, j4), toSet(journeys.query(lengthQuery(2L))));
+        assertEquals(set(j1, j3), toSet(journeys.query(includesActionQuery("a3"))));
+        assertEquals(set(j1), toSet(journeys.query(finishAtQuery(500L))));
+        assertEquals(set(), toSet(journeys.query(finishAtQuery(100L))));
+    }
+
+    @Test
+    public void indexUpdatesShouldBeWrittenOnCommit() {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        try {
+            Application app = new Application(db, TEST_NAME_SPACE);
+            try (Transaction tx = db.beginTx()) {
+                app.setupSchema();
+                tx.success();
+            }
+            try (Transaction tx = db.beginTx()) {
+                app.events().add(createEventAttributes("s0", "a0", 100L, "ur0"));
+                app.events().add(createEventAttributes("s0", "a1", 200L, "ur0"));
+                tx.success();
+            }
+            try (Transaction ignored = db.beginTx()) {
+                Index<Node> index = db.index().forNodes(app.journeys().getLabel().name() + ":indexes");
+                assertEquals(1, count(index.query(lengthQuery(2L))));
+                assertEquals(1, count(index.get(Journeys.IDX_PROP_UID, "ur0")));
+                assertEquals(0, count(index.query(lengthQuery(1L))));
+                assertEquals(1, count(index.get(Journeys.IDX_PROP_FIRST_ACTION, "a0")));
+                assertEquals(mapOf("index_writes", (Object) 9L), app.journeys().indexStats());
+            }
+        } finally {
+            db.shutdown();
+        }
+    }
+
+    @Test
+    public void indexUpdatesOfRolledBackTransactionShouldNotBeWrittenByNextOne() {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        try {
+            Application app = new Application(db, TEST_NAME_SPACE);
+            try (Transaction tx = db.beginTx()) {
+                app.setupSchema();
+                tx.success();
+            }
+            try (Transaction tx = db.beginTx()) {
+                app.events().add(createEventAttributes("s0", "a0", 100L, "ur0"));
+                app.events().add(createEventAttributes("s0", "a1", 200L, "ur0"));
+                tx.failure();
+            }
+            try (Transaction tx = db.beginTx()) {
+                app.events().add(createEventAttributes("s1", "a2", 100L, "ur1"));
+                tx.success();
+            }
+            try (Transaction ignored = db.beginTx()) {
+                Index<Node> index = db.index().forNodes(app.journeys().getLabel().name() + ":indexes");
+                assertEquals(0, count(index.get(Journeys.IDX_PROP_UID, "ur0")));
+                assertEquals(0, count(index.query(lengthQuery(2L))));
+                assertEquals(1, count(index.query(lengthQuery(1L))));
+                assertEquals(1, count(index.get(Journeys.IDX_PROP_FIRST_ACTION, "a2")));
+                assertEquals(1, count(index.query(new QueryContext(Journeys.IDX_PROP_ACTION_IDS + ":*"))));
+            }
+        } finally {
+            db.shutdown();
+        }
+    }
+
+    @Test
+    public void indexUpdatesOfFailedTransactionShouldBeDroppedOnInvalidate() {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        try {
+            Application app = new Application(db, TEST_NAME_SPACE);
+            try (Transaction tx = db.beginTx()) {
+                app.setupSchema();
+                tx.success();
+            }
+            try (Transaction tx = db.beginTx()) {
+                app.events().add(createEventAttributes("s0", "a0", 100L, "ur0"));
+                tx.success();
+            }
+            try (Transaction tx = db.beginTx()) {
+                app.events().add(createEventAttributes("s0", "a1", 200L, "ur0"));
+                tx.failure();
+            }
+            ApplicationRegistry.getInstance().invalidate(TEST_NAME_SPACE);
+
+            long writes = (Long) app.journeys().indexStats().get("index_writes");
+            try (Transaction ignored = db.beginTx()) {
+                assertEquals(1, count(app.journeys().query(lengthQuery(1L))));
+            }
+            assertEquals(writes, app.journeys().indexStats().get("index_writes"));
+        } finally {
+            db.shutdown();
+        }
+    }
+
+    @Test
+    public void indexUpdatesShouldBeWrittenByTransactionOnlyRemovingProperties() {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        try {
+            Application app = new Application(db, TEST_NAME_SPACE);
+            Node journey;
+            try (Transaction tx = db.beginTx()) {
+                app.setupSchema();
+                tx.success();
+            }
+            try (Transaction tx = db.beginTx()) {
+                app.events().add(createEventAttributes("s0", "a0", 100L, "ur0"));
+                journey = app.journeys().findAllBySessionId("s0").next();
+                journey.setProperty("obsolete", true);
+                tx.success();
+            }
+            long writes = (Long) app.journeys().indexStats().get("index_writes");
+            try (Transaction tx = db.beginTx()) {
+                app.journeys().indexQueryFields(journey);
+                journey.removeProperty("obsolete");
+                tx.success();
+            }
+            assertTrue((Long) app.journeys().indexStats().get("index_writes") > writes);
+        } finally {
+            db.shutdown();
+        }
+    }
+
+    private long indexWrites() {
+        return (Long) journeys.indexStats().get("index_writes");
+    }
+
+    private QueryContext lengthQuery(long length) {
+        return new QueryContext(NumericRangeQuery.newIntRange(Journeys.PROP_LENGTH, 1, (int) length, (int) length, true, true));
+    }
+
+    private QueryContext finishAtQuery(long at) {
+        return new QueryContext(NumericRangeQuery.newLongRange(Journeys.PROP_FINISH_AT, 1, at, at, true, true));
+    }
+
     private QueryContext includesActionQuery(String actionLabel) {
         Node action = actions.findByActionLabel(actionLabel);
         return new QueryContext(
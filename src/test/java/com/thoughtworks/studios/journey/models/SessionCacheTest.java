@@ -0,0 +1,128 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.models;
+
+import org.junit.Test;
+
+import static com.thoughtworks.studios.journey.utils.MapUtils.mapOf;
+import static org.junit.Assert.*;
+
+public class SessionCacheTest {
+
+    @Test
+    public void shouldFindJourneyCoveringEventTime() {
+        SessionCache cache = new SessionCache(10, 60000L);
+        cache.put("s1", 1L, 100L, 200L, null);
+        assertEquals(1L, cache.findCovering("s1", 150L, null).getId());
+        assertEquals(1L, cache.findCovering("s1", 200L + Journeys.CUT_TOLERANT, "u1").getId());
+        assertNull(cache.findCovering("s1", 201L + Journeys.CUT_TOLERANT, null));
+        assertNull(cache.findCovering("s2", 150L, null));
+    }
+
+    @Test
+    public void shouldRespectUserIdentifier() {
+        SessionCache cache = new SessionCache(10, 60000L);
+        cache.put("s1", 1L, 100L, 200L, "u1");
+        assertNotNull(cache.findCovering("s1", 150L, "u1"));
+        assertNotNull(cache.findCovering("s1", 150L, null));
+        assertNull(cache.findCovering("s1", 150L, "u2"));
+
+        cache.get(1L).setUserIdentifier("u2");
+        assertNotNull(cache.findCovering("s1", 150L, "u2"));
+    }
+
+    @Test
+    public void emptyJourneyShouldNotCoverAnythingUntilExpanded() {
+        SessionCache cache = new SessionCache(10, 60000L);
+        cache.put("s1", 1L, null, null, null);
+        assertNull(cache.findCovering("s1", 100L, null));
+        cache.get(1L).expand(100L);
+        cache.get(1L).expand(50L);
+        assertNotNull(cache.findCovering("s1", 50L - Journeys.CUT_TOLERANT, null));
+        assertNull(cache.findCovering("s1", 49L - Journeys.CUT_TOLERANT, null));
+    }
+
+    @Test
+    public void shouldFindCoveringJourneyAmongManyOfLongSession() {
+        SessionCache cache = new SessionCache(10, 60000L);
+        long gap = 3 * Journeys.CUT_TOLERANT;
+        // put out of time order, and one long journey overlapping later ones for another user
+        for (long i = 99; i >= 0; i--) {
+            cache.put("s1", i, i * gap, i * gap + 1000L, "u1");
+        }
+        cache.put("s1", 100L, 10 * gap + 1, 20 * gap, "u2");
+
+        assertEquals(42L, cache.findCovering("s1", 42 * gap + 500L, "u1").getId());
+        assertEquals(99L, cache.findCovering("s1", 99 * gap + Journeys.CUT_TOLERANT, "u1").getId());
+        assertEquals(100L, cache.findCovering("s1", 15 * gap + 3000L + Journeys.CUT_TOLERANT, "u2").getId());
+        assertNull(cache.findCovering("s1", 15 * gap + 3000L + Journeys.CUT_TOLERANT, "u1"));
+
+        // journey expanded back before its predecessor is found in its new place
+        cache.get(50L).expand(48 * gap - 10);
+        assertEquals(50L, cache.findCovering("s1", 48 * gap - 10 - Journeys.CUT_TOLERANT, null).getId());
+        assertEquals(49L, cache.findCovering("s1", 49 * gap + 1000L, "u1").getId());
+    }
+
+    @Test
+    public void shouldTellCompleteSessions() {
+        SessionCache cache = new SessionCache(1, 60000L);
+        cache.put("s1", 1L, 100L, 100L, null);
+        assertFalse(cache.isComplete("s1"));
+        cache.markComplete("s1");
+        assertTrue(cache.isComplete("s1"));
+        cache.put("s2", 2L, 100L, 100L, null);
+        assertFalse(cache.isComplete("s1"));
+    }
+
+    @Test
+    public void removedJourneyShouldNotCoverEventsOfCompleteSession() {
+        SessionCache cache = new SessionCache(10, 60000L);
+        cache.put("s1", 1L, 100L, 200L, null);
+        cache.put("s1", 2L, 100L + 3 * Journeys.CUT_TOLERANT, 200L + 3 * Journeys.CUT_TOLERANT, null);
+        cache.markComplete("s1");
+        cache.remove("s1", 1L);
+        assertNull(cache.get(1L));
+        assertNull(cache.findCovering("s1", 150L, null));
+        assertTrue(cache.isComplete("s1"));
+        assertEquals(2L, cache.findCovering("s1", 150L + 3 * Journeys.CUT_TOLERANT, null).getId());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedSessionsOverCapacity() {
+        SessionCache cache = new SessionCache(2, 60000L);
+        cache.put("s1", 1L, 100L, 100L, null);
+        cache.put("s2", 2L, 100L, 100L, null);
+        cache.put("s3", 3L, 100L, 100L, null);
+        assertEquals(2, cache.size());
+        assertNull(cache.findCovering("s1", 100L, null));
+        assertNull(cache.get(1L));
+        assertNotNull(cache.findCovering("s3", 100L, null));
+        assertEquals(mapOf("sessions", (Object) 2, "hits", 1L, "misses", 1L, "evictions", 1L, "loads", 0L), cache.stats());
+    }
+
+    @Test
+    public void shouldEvictIdleSessions() throws InterruptedException {
+        SessionCache cache = new SessionCache(10, 10L);
+        cache.put("s1", 1L, 100L, 100L, null);
+        Thread.sleep(30);
+        assertNull(cache.findCovering("s1", 100L, null));
+        assertNull(cache.get(1L));
+        assertEquals(1L, cache.stats().get("evictions"));
+    }
+}
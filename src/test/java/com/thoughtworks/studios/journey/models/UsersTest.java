@@ -19,10 +19,16 @@
 package com.thoughtworks.studios.journey.models;
 
 import com.thoughtworks.studios.journey.ModelTestCase;
+import com.thoughtworks.studios.journey.utils.CollectionUtils;
+import com.thoughtworks.studios.journey.utils.MapUtils;
 import org.junit.Test;
 import org.neo4j.function.Function;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
 import org.neo4j.helpers.collection.Iterables;
+import org.neo4j.index.lucene.QueryContext;
+
+import java.util.Map;
 
 import static com.thoughtworks.studios.journey.TestHelper.*;
 import static com.thoughtworks.studios.journey.utils.CollectionUtils.list;
@@ -54,6 +60,18 @@ public class UsersTest extends ModelTestCase {
         assertEquals(journeys.getFinishAt(journey2), users.getLastActiveAt(user));
     }
 
+    @Test
+    public void journeysOfUserShouldOnlyBeReindexedWhenActiveTimeMoves() {
+        setupJourney(iterable("a0", "a1"), dateToMillis(2014, 7, 7, 10), 10 * 1000L, "u1", "s1");
+        setupJourney(iterable("a0", "a1"), dateToMillis(2014, 7, 7, 12), 10 * 1000L, "u1", "s2");
+        setupJourney(iterable("a0", "a1"), dateToMillis(2014, 7, 7, 14), 10 * 1000L, "u1", "s3");
+
+        long middle = indexWritesOfEvent("s2", dateToMillis(2014, 7, 7, 12) + 5000L);
+        long last = indexWritesOfEvent("s3", dateToMillis(2014, 7, 7, 14) + 5000L);
+        assertEquals(middle, last);
+        assertTrue(indexWritesOfEvent("s3", dateToMillis(2014, 7, 7, 14) + 60 * 1000L) > last);
+    }
+
     @Test
     public void getJourneysForAUserInSpecifiedTimeOrder() {
         Node journey1 = setupJourney(iterable("a0", "a1", "a2"), dateToMillis(2014, 7, 7, 10), "u1");
@@ -238,6 +256,138 @@ public class UsersTest extends ModelTestCase {
         assertEquals(mapOf("company size", set(30), "industry", set("IT", "computer")), users.traits(identified));
     }
 
+    @Test
+    public void bulkIdentifyShouldHaveSameOutcomeAsIdentifyingOneByOne() {
+        Node existing = users.identify("u0", null);
+        users.addTrait(existing, "industry", "IT");
+        Node anonymous = users.identify(null, "anon-00");
+        users.addTrait(anonymous, "company size", 30);
+
+        int count = new BulkIdentify(app, CollectionUtils.<Map<String, Object>>list(
+                mapOf("anonymous_id", "anon-01", "traits", mapOf("plan", "free")),
+                mapOf("uid", "u1", "anonymous_id", "anon-01", "traits", mapOf("plan", "gold")),
+                mapOf("uid", "u0", "anonymous_id", "anon-00", "traits", mapOf("industry", "computer")),
+                mapOf("uid", "u0", "traits", mapOf("industry", "IT")),
+                MapUtils.<String, Object>mapOf("traits", mapOf("plan", "gold"))
+        )).process();
+
+        assertEquals(4, count);
+        assertNull(users.findByAnonymousId("anon-00"));
+        assertNull(users.findByAnonymousId("anon-01"));
+        assertEquals(existing, users.findByIdentifier("u0"));
+        assertEquals(mapOf("company size", set(30), "industry", set("IT", "computer")), users.traits(existing));
+        assertEquals(mapOf("plan", set("free", "gold")), users.traits(users.findByIdentifier("u1")));
+        assertEquals(2, Iterables.count(users.findAll()));
+    }
+
+    @Test
+    public void testMergeShouldInterleaveJourneysAndNotDuplicateTraitValues() {
+        Node j0 = setupJourney(iterable("a0"), 1000L, 100, "u1", "s0");
+        Node j1 = setupJourney(iterable("a0"), 2000L, 100, null, "s1");
+        Node j2 = setupJourney(iterable("a0"), 3000L, 100, "u1", "s2");
+        Node j3 = setupJourney(iterable("a0"), 4000L, 100, null, "s3");
+        Node identified = users.findByIdentifier("u1");
+        Node anonymous = journeys.user(j1);
+        users.addTrait(identified, "industry", "IT");
+        users.addTrait(anonymous, "industry", set("IT", "finance"));
+        users.merge(journeys.user(j3), anonymous);
+
+        users.merge(anonymous, identified);
+        assertIterableEquals(iterable(j0, j1, j2, j3), users.journeys(identified));
+        assertIterableEquals(iterable(j3, j2, j1, j0), users.journeys(identified, true));
+        assertEquals(identified, journeys.user(j3));
+        assertEquals(mapOf("industry", set("IT", "finance")), users.traits(identified));
+        assertEquals(2, Iterables.count(identified.getRelationships(RelTypes.USER_TRAIT)));
+    }
+
+    @Test
+    public void testTraitValuesShouldStaySingleForUsersWithManyValues() {
+        Node user = users.identify("u1", null);
+        for (int i = 0; i < 100; i++) {
+            users.addTrait(user, "tag", "v" + i);
+        }
+        users.addTrait(user, "tag", list("v1", "v99", "v100"));
+        users.addTrait(user, "score", 1);
+        users.addTrait(user, "score", 1L);
+        users.addTrait(user, "tag", "v50");
+
+        assertEquals(101, users.getTraitValue(user, "tag").size());
+        assertEquals(set(1, 1L), users.getTraitValue(user, "score"));
+        assertEquals(103, Iterables.count(user.getRelationships(RelTypes.USER_TRAIT)));
+    }
+
+    @Test
+    public void testTraitValueShouldBeWrittenWhenOnlyItsHashIsKnown() {
+        Node user = users.identify("u1", null);
+        for (int i = 0; i < 100; i++) {
+            users.addTrait(user, "tag", "v" + i);
+        }
+        for (Relationship relationship : user.getRelationships(RelTypes.USER_TRAIT)) {
+            if ("v50".equals(relationship.getProperty("value"))) {
+                relationship.delete();
+            }
+        }
+
+        users.addTrait(user, "tag", "v50");
+        assertEquals(100, users.getTraitValue(user, "tag").size());
+        assertTrue(users.getTraitValue(user, "tag").contains("v50"));
+    }
+
+    @Test
+    public void testTraitHashesStoredWithoutRelationshipIdsShouldBeBuiltAgain() {
+        Node user = users.identify("u1", null);
+        for (int i = 0; i < 100; i++) {
+            users.addTrait(user, "tag", "v" + i);
+        }
+        assertEquals(100, ((long[]) user.getProperty("user_trait_hash_rels")).length);
+        user.removeProperty("user_trait_hash_rels");
+
+        users.addTrait(user, "tag", "v50");
+        users.addTrait(user, "tag", "v100");
+        assertEquals(101, Iterables.count(user.getRelationships(RelTypes.USER_TRAIT)));
+        long[] hashes = (long[]) user.getProperty("user_trait_hashes");
+        long[] relIds = (long[]) user.getProperty("user_trait_hash_rels");
+        assertEquals(101, hashes.length);
+        assertEquals(101, relIds.length);
+        for (long relId : relIds) {
+            assertEquals(user, db.getRelationshipById(relId).getStartNode());
+        }
+    }
+
+    @Test
+    public void testArrayTraitValuesShouldBeComparedByContent() {
+        Node user = users.identify("u1", null);
+        for (int i = 0; i < 100; i++) {
+            users.addTrait(user, "tag", "v" + i);
+        }
+        users.addTrait(user, "roles", new String[]{"admin", "dev"});
+        users.addTrait(user, "roles", new String[]{"admin", "dev"});
+        users.addTrait(user, "roles", new String[]{"admin"});
+
+        assertEquals(102, Iterables.count(user.getRelationships(RelTypes.USER_TRAIT)));
+    }
+
+    @Test
+    public void testTraitShouldBeWrittenAgainAfterItsNodeIsDeleted() {
+        Node user = users.identify("u1", null);
+        users.addTrait(user, "industry", "IT");
+        Node trait = app.userTraits().find("industry");
+        for (Relationship relationship : trait.getRelationships()) {
+            relationship.delete();
+        }
+        trait.delete();
+
+        users.addTrait(user, "industry", "finance");
+        assertEquals(set("finance"), users.getTraitValue(user, "industry"));
+    }
+
+    private long indexWritesOfEvent(String sessionId, long startAt) {
+        journeys.query(new QueryContext(Journeys.IDX_PROP_UID + ":u1"));
+        long before = (Long) journeys.indexStats().get("index_writes");
+        events.add(createEventAttributes(sessionId, "a2", startAt, "u1"));
+        journeys.query(new QueryContext(Journeys.IDX_PROP_UID + ":u1"));
+        return (Long) journeys.indexStats().get("index_writes") - before;
+    }
 
     private Function<Node, String> pluckIdentifier() {
         return new Function<Node, String>() {
@@ -0,0 +1,78 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.models;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+
+public class WriteScopeTest {
+
+    @Test
+    public void lockingSharedKeysWithoutScopeShouldDoNothing() {
+        assertFalse(WriteScope.lockShared("user:u1"));
+        try (WriteScope ignored = WriteScope.open(Collections.<Lock>emptyList(), null, 10)) {
+            assertFalse(WriteScope.lockShared("user:u1"));
+        }
+    }
+
+    @Test
+    public void sharedKeyLocksShouldBeHeldTillScopeCloses() throws Exception {
+        final Lock[] stripes = {new ReentrantLock()};
+        try (WriteScope ignored = WriteScope.open(Collections.<Lock>emptyList(), stripes, 10)) {
+            assertTrue(WriteScope.lockShared("user:u1"));
+            assertTrue(WriteScope.lockShared("user:u2"));
+            try {
+                lockSharedOnOtherThread(stripes, "user:u2");
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof WriteConflictException);
+            }
+        }
+        assertTrue(lockSharedOnOtherThread(stripes, "user:u2"));
+        assertFalse(WriteScope.lockShared("user:u1"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotOpenNestedScopes() {
+        try (WriteScope ignored = WriteScope.open(Collections.<Lock>emptyList(), null, 10)) {
+            WriteScope.open(Collections.<Lock>emptyList(), null, 10);
+        }
+    }
+
+    private boolean lockSharedOnOtherThread(final Lock[] stripes, final String key) throws Exception {
+        Future<Boolean> future = Executors.newSingleThreadExecutor().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                try (WriteScope ignored = WriteScope.open(Collections.<Lock>emptyList(), stripes, 10)) {
+                    return WriteScope.lockShared(key);
+                }
+            }
+        });
+        return future.get();
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.utils;
+
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+import static org.junit.Assert.*;
+import static org.neo4j.helpers.collection.IteratorUtil.count;
+
+public class AdaptiveBatchSizeTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    public void shouldGrowWhileCostPerChangeImproves() {
+        AdaptiveBatchSize size = new AdaptiveBatchSize(100, true, 100, 100000);
+        size.committed(50, 100, 10 * MS, 10 * MS);
+        assertEquals(150, size.changesLimit());
+        // bounded by what commits in target time
+        size.committed(50, 150, 15 * MS, 80 * MS);
+        assertEquals(187, size.changesLimit());
+    }
+
+    @Test
+    public void shouldTurnAroundWhenCostPerChangeGetsWorse() {
+        AdaptiveBatchSize size = new AdaptiveBatchSize(100, true, 100, 100000);
+        size.committed(100, 100, 10 * MS, 1 * MS);
+        size.committed(150, 150, 100 * MS, 1 * MS);
+        assertEquals(100, size.changesLimit());
+        size.committed(100, 100, 10 * MS, 1 * MS);
+        assertEquals(66, size.changesLimit());
+        size.committed(66, 66, 20 * MS, 1 * MS);
+        assertEquals(99, size.changesLimit());
+    }
+
+    @Test
+    public void shouldShrinkWhenCommitsAreSlow() {
+        AdaptiveBatchSize size = new AdaptiveBatchSize(1000, true, 100, 100000);
+        size.committed(1000, 1000, 150 * MS, 150 * MS);
+        assertEquals(666, size.changesLimit());
+        size.committed(666, 666, 1000 * MS, 1000 * MS);
+        assertEquals(333, size.changesLimit());
+        // a slow partial batch counts too
+        size.committed(100, 100, 500 * MS, 500 * MS);
+        assertEquals(166, size.changesLimit());
+    }
+
+    @Test
+    public void shouldKeepChangesUnderBudget() {
+        AdaptiveBatchSize size = new AdaptiveBatchSize(100, true, 100, 120);
+        size.committed(10, 100, 1 * MS, 1 * MS);
+        assertEquals(120, size.changesLimit());
+        assertTrue(size.fits(120));
+        assertFalse(size.fits(121));
+        assertTrue(size.isFull(1, 120));
+    }
+
+    @Test
+    public void fastPartialBatchShouldNotChangeLimit() {
+        AdaptiveBatchSize size = new AdaptiveBatchSize(100, true, 100, 100000);
+        size.committed(3, 3, 1 * MS, 1 * MS);
+        assertEquals(100, size.changesLimit());
+    }
+
+    @Test
+    public void shouldCommitByUnitsAndOnlyRecordMetricsWhenNotAdaptive() {
+        AdaptiveBatchSize size = new AdaptiveBatchSize(100, false, 100, 10);
+        assertFalse(size.isFull(99, 1000));
+        assertTrue(size.isFull(100, 0));
+        assertTrue(size.fits(1000));
+        size.committed(100, 1000, 20 * MS, 10 * MS);
+        size.committed(50, 500, 40 * MS, 30 * MS);
+        assertEquals(2L, size.stats().get("commits"));
+        assertEquals(100, size.stats().get("max_commit_size"));
+        assertEquals(75.0, size.stats().get("avg_commit_size"));
+        assertEquals(20.0, size.stats().get("avg_commit_ms"));
+    }
+
+    @Test
+    public void batchTransactionShouldCommitBeforeUnitsNotFitting() {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        try {
+            AdaptiveBatchSize size = new AdaptiveBatchSize(10, true, 60000, 100000);
+            try (BatchTransaction tx = new BatchTransaction(db, size)) {
+                for (int i = 0; i < 5; i++) {
+                    db.createNode();
+                    tx.increment();
+                }
+                tx.reserve(8);
+                assertEquals(1L, size.stats().get("commits"));
+                db.createNode();
+                tx.increment(8);
+            }
+            assertEquals(2L, size.stats().get("commits"));
+            assertEquals(6L, size.stats().get("units"));
+            assertEquals(13L, size.stats().get("changes"));
+            try (Transaction ignored = db.beginTx()) {
+                assertEquals(6, count(GlobalGraphOperations.at(db).getAllNodes()));
+            }
+        } finally {
+            db.shutdown();
+        }
+    }
+}
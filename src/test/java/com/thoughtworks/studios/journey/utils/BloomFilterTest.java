@@ -0,0 +1,80 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.utils;
+
+import org.junit.Test;
+
+import java.io.*;
+
+import static org.junit.Assert.*;
+
+public class BloomFilterTest {
+
+    @Test
+    public void shouldContainPutValues() {
+        BloomFilter filter = new BloomFilter(1000, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            filter.put("digest" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain("digest" + i));
+        }
+        assertEquals(1000, filter.insertions());
+    }
+
+    @Test
+    public void falsePositiveRateShouldBeCloseToExpected() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.put("digest" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < 300);
+    }
+
+    @Test
+    public void shouldBeSaturatedOverExpectedInsertions() {
+        BloomFilter filter = new BloomFilter(10, 0.01);
+        for (int i = 0; i < 10; i++) {
+            assertFalse(filter.isSaturated());
+            filter.put("digest" + i);
+        }
+        assertTrue(filter.isSaturated());
+    }
+
+    @Test
+    public void shouldSurviveWriteAndRead() throws IOException {
+        BloomFilter filter = new BloomFilter(100, 0.01);
+        filter.put("d1");
+        filter.put("d2");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        filter.writeTo(new DataOutputStream(bytes));
+
+        BloomFilter read = BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertTrue(read.mightContain("d1"));
+        assertTrue(read.mightContain("d2"));
+        assertEquals(2, read.insertions());
+        assertEquals(100, read.expectedInsertions());
+    }
+}
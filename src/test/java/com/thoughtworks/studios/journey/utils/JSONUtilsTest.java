@@ -0,0 +1,60 @@
+/**
+ * This file is part of journey-neo4j-plugin. journey-neo4j-plugin is a neo4j server extension that provides out-of-box action path analysis features on top of the graph database.
+ *
+ * Copyright 2015 ThoughtWorks, Inc. and Pengchao Wang
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.thoughtworks.studios.journey.utils;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static com.thoughtworks.studios.journey.TestHelper.stream;
+import static com.thoughtworks.studios.journey.utils.JSONUtils.listOfMapReader;
+import static com.thoughtworks.studios.journey.utils.MapUtils.mapOf;
+import static org.junit.Assert.*;
+
+public class JSONUtilsTest {
+
+    @Test
+    public void testListOfMapReaderReadsElementsOneByOne() throws Exception {
+        JSONUtils.ListOfMapReader reader = listOfMapReader(stream("[{\"a\":1}, {\"b\":{\"c\":\"d\"}}, {}]"));
+        assertEquals(mapOf("a", (Object) 1), reader.next());
+        assertEquals(mapOf("b", (Object) mapOf("c", "d")), reader.next());
+        assertEquals(mapOf(), reader.next());
+        assertNull(reader.next());
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void testListOfMapReaderOnEmptyArray() throws Exception {
+        assertNull(listOfMapReader(stream("[]")).next());
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testListOfMapReaderRejectsNoneArray() throws IOException {
+        listOfMapReader(stream("{\"a\":1}")).next();
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testListOfMapReaderRejectsNoneObjectElement() throws IOException {
+        JSONUtils.ListOfMapReader reader = listOfMapReader(stream("[{\"a\":1}, 2]"));
+        reader.next();
+        reader.next();
+    }
+}